@@ -0,0 +1,102 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.type.TypeReference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.smartsheet.restapi.model.SmartsheetAttachment;
+import com.smartsheet.restapi.model.SmartsheetHome;
+import com.smartsheet.restapi.model.SmartsheetPagingwrapper;
+import com.smartsheet.restapi.model.SmartsheetSheet;
+import com.smartsheet.restapi.model.SmartsheetUser;
+import com.smartsheet.restapi.service.JsonDeserializer;
+import com.smartsheet.restapi.service.SheetAttachmentExtractor;
+import com.smartsheet.restapi.service.SmartsheetService;
+
+/**
+ * Measures deserializing the payloads of the API which a backup reads for
+ * every user and sheet, as the service does, and extracting the attachments
+ * of a sheet by streaming its JSON (which the backup does instead of
+ * deserializing the sheet).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonDeserializerBenchmark {
+
+	@Param({ "SMALL", "MEDIUM", "HUGE" })
+	public SyntheticPayloads.Size size;
+
+	private String sheetJson;
+	private byte[] sheetBytes;
+	private String homeJson;
+	private String usersJson;
+
+	@Setup
+	public void generatePayloads() {
+		sheetJson = SyntheticPayloads.sheet(size);
+		sheetBytes = sheetJson.getBytes(Charset.forName("UTF-8"));
+		homeJson = SyntheticPayloads.home(size);
+		usersJson = SyntheticPayloads.users(size);
+	}
+
+	@Benchmark
+	public SmartsheetSheet deserializeSheet() throws Exception {
+		return new JsonDeserializer<SmartsheetSheet>().deserialize(sheetJson, SmartsheetSheet.class);
+	}
+
+	@Benchmark
+	public void extractSheetAttachments(final Blackhole blackhole) throws Exception {
+		SheetAttachmentExtractor.extract(new ByteArrayInputStream(sheetBytes), new SmartsheetService.AttachmentHandler() {
+			@Override
+			public void handle(SmartsheetAttachment attachment) {
+				blackhole.consume(attachment);
+			}
+		});
+	}
+
+	@Benchmark
+	public SmartsheetHome deserializeHome() throws Exception {
+		return new JsonDeserializer<SmartsheetHome>().deserialize(homeJson, SmartsheetHome.class);
+	}
+
+	@Benchmark
+	public SmartsheetPagingwrapper<SmartsheetUser> deserializeUsers() throws Exception {
+		return new JsonDeserializer<SmartsheetPagingwrapper<SmartsheetUser>>().deserialize(usersJson,
+				new TypeReference<SmartsheetPagingwrapper<SmartsheetUser>>() {
+				});
+	}
+}
@@ -0,0 +1,84 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.smartsheet.tools.LocalFileSystemSink;
+import com.smartsheet.tools.NameRegistry;
+import com.smartsheet.tools.SheetSaver;
+
+/**
+ * Measures naming the files and folders of a backup: scrubbing the characters
+ * which aren't allowed in file names, and reserving unique names in a folder
+ * where many items have the same name (as in a folder of attachments).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NamingBenchmark {
+
+	private static final int NAMES = 1000;
+	/** The number of distinct names, so that each name is used 10 times */
+	private static final int DISTINCT_NAMES = 100;
+
+	private final String[] names = new String[NAMES];
+	/** A folder which doesn't exist, so that no names are listed from disk */
+	private final File folder = new File(System.getProperty("java.io.tmpdir"), "naming-benchmark-" + System.nanoTime());
+	private final LocalFileSystemSink sink = new LocalFileSystemSink();
+
+	@Setup
+	public void generateNames() {
+		for (int i = 0; i < NAMES; i++) {
+			int name = i % DISTINCT_NAMES;
+			// a third of the names have characters to scrub
+			names[i] = name % 3 == 0 ? "Q" + name + ": Budget / Forecast <draft>?" : "Q" + name + " Budget and Forecast";
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NAMES)
+	public void scrubName(Blackhole blackhole) {
+		for (String name : names)
+			blackhole.consume(SheetSaver.scrubName(name));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NAMES)
+	public void reserveUniqueNames(Blackhole blackhole) {
+		NameRegistry registry = new NameRegistry(sink);
+		for (String name : names)
+			blackhole.consume(registry.reserveUnique(folder, name, ".xls"));
+	}
+}
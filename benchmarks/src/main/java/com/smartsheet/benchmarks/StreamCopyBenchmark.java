@@ -0,0 +1,94 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.smartsheet.utils.HttpUtils;
+
+/**
+ * Measures copying the content of an attachment from its stream to the
+ * backup with {@link HttpUtils#copyAndClose}, to a
+ * stream which discards the bytes (the cost of the copy itself) and to a
+ * file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StreamCopyBenchmark {
+
+	@Param({ "65536", "1048576", "16777216" })
+	public int bytes;
+
+	private byte[] content;
+	private File file;
+
+	@Setup
+	public void generateContent() throws IOException {
+		content = new byte[bytes];
+		new Random(42).nextBytes(content);
+		file = File.createTempFile("stream-copy-benchmark", ".bin");
+	}
+
+	@TearDown
+	public void deleteFile() {
+		file.delete();
+	}
+
+	@Benchmark
+	public void copyToDiscardingStream(final Blackhole blackhole) throws IOException {
+		HttpUtils.copyAndClose(new ByteArrayInputStream(content), new OutputStream() {
+			@Override
+			public void write(int b) {
+				blackhole.consume(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				blackhole.consume(len);
+			}
+		});
+	}
+
+	@Benchmark
+	public void copyToFile() throws IOException {
+		HttpUtils.copyAndClose(new ByteArrayInputStream(content), new FileOutputStream(file));
+	}
+}
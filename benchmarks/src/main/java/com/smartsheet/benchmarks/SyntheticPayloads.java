@@ -0,0 +1,188 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.benchmarks;
+
+/**
+ * Generates synthetic JSON payloads of the API (sheet details, user homes and
+ * pages of users) shaped like those of a real organization, in a few sizes.
+ * The payloads are deterministic, so that results can be compared between
+ * runs and commits.
+ */
+public class SyntheticPayloads {
+
+	/**
+	 * The sizes of the payloads benchmarked.
+	 */
+	public enum Size {
+		/** A small sheet, a home with a few sheets and a page of a few users */
+		SMALL(10, 5, 5),
+		/** A typical sheet, home and page of users */
+		MEDIUM(1000, 200, 100),
+		/** A sheet at the row limit, a home with thousands of sheets and a large organization */
+		HUGE(20000, 5000, 10000);
+
+		final int rows;
+		final int homeSheets;
+		final int users;
+
+		Size(int rows, int homeSheets, int users) {
+			this.rows = rows;
+			this.homeSheets = homeSheets;
+			this.users = users;
+		}
+	}
+
+	private static final int COLUMNS = 8;
+	private static final int ROWS_PER_ATTACHMENT = 10;
+	private static final int ROWS_PER_DISCUSSION = 25;
+	private static final int SHEETS_PER_FOLDER = 10;
+	private static final String CREATED_AT = "\"2013-05-15T10:27:51Z\"";
+
+	private SyntheticPayloads() {
+		// private constructor because this is a singleton helper class, not intended to be instantiated
+	}
+
+	/**
+	 * @return the JSON of the details of a sheet, with cells, row attachments
+	 *         and discussions with comment attachments
+	 */
+	public static String sheet(Size size) {
+		StringBuilder json = new StringBuilder(size.rows * 600);
+		json.append("{\"id\":1000,\"name\":\"Synthetic sheet\",\"accessLevel\":\"OWNER\",\"columns\":[");
+		for (int column = 0; column < COLUMNS; column++) {
+			if (column > 0)
+				json.append(',');
+			json.append("{\"id\":").append(2000 + column).append(",\"index\":").append(column)
+					.append(",\"title\":\"Column ").append(column).append("\",\"type\":\"TEXT_NUMBER\"")
+					.append(column == 0 ? ",\"primary\":true}" : "}");
+		}
+		json.append("],\"rows\":[");
+		for (int row = 0; row < size.rows; row++) {
+			if (row > 0)
+				json.append(',');
+			json.append("{\"id\":").append(10000 + row).append(",\"rowNumber\":").append(row + 1)
+					.append(",\"cells\":[");
+			for (int column = 0; column < COLUMNS; column++) {
+				if (column > 0)
+					json.append(',');
+				json.append("{\"columnId\":").append(2000 + column).append(",\"type\":\"TEXT_NUMBER\",");
+				if (column % 2 == 0)
+					json.append("\"value\":\"Task ").append(row).append('.').append(column)
+							.append("\",\"displayValue\":\"Task ").append(row).append('.').append(column).append("\"}");
+				else
+					json.append("\"value\":").append(row * column).append('}');
+			}
+			json.append(']');
+			if (row % ROWS_PER_ATTACHMENT == 0) {
+				json.append(",\"attachments\":[");
+				appendAttachment(json, 100000 + row, "Row " + row + " report.pdf", "FILE");
+				json.append(']');
+			}
+			if (row % ROWS_PER_DISCUSSION == 0) {
+				json.append(",\"discussions\":[{\"id\":").append(200000 + row)
+						.append(",\"title\":\"Discussion\",\"comments\":[{\"id\":").append(300000 + row)
+						.append(",\"text\":\"See attached\",\"createdAt\":").append(CREATED_AT)
+						.append("}],\"commentAttachments\":[");
+				appendAttachment(json, 400000 + row, "Row " + row + " link", "LINK");
+				json.append("]}]");
+			}
+			json.append('}');
+		}
+		json.append("],\"attachments\":[");
+		appendAttachment(json, 500000, "Sheet plan.xlsx", "FILE");
+		json.append("],\"discussions\":[]}");
+		return json.toString();
+	}
+
+	/**
+	 * @return the JSON of the home of a user, with sheets at the top level,
+	 *         in folders and in workspaces
+	 */
+	public static String home(Size size) {
+		StringBuilder json = new StringBuilder(size.homeSheets * 100);
+		int sheet = 0;
+		int third = Math.max(1, size.homeSheets / 3);
+		json.append("{\"sheets\":[");
+		sheet = appendSheets(json, sheet, Math.min(third, size.homeSheets));
+		json.append("],\"folders\":[");
+		int folder = 0;
+		while (sheet < 2 * third && sheet < size.homeSheets) {
+			if (folder > 0)
+				json.append(',');
+			json.append("{\"id\":").append(600000 + folder).append(",\"name\":\"Folder ").append(folder)
+					.append("\",\"sheets\":[");
+			sheet = appendSheets(json, sheet, Math.min(sheet + SHEETS_PER_FOLDER, 2 * third));
+			json.append("],\"folders\":[]}");
+			folder++;
+		}
+		json.append("],\"workspaces\":[");
+		int workspace = 0;
+		while (sheet < size.homeSheets) {
+			if (workspace > 0)
+				json.append(',');
+			json.append("{\"id\":").append(700000 + workspace).append(",\"name\":\"Workspace ").append(workspace)
+					.append("\",\"accessLevel\":\"ADMIN\",\"sheets\":[");
+			sheet = appendSheets(json, sheet, Math.min(sheet + SHEETS_PER_FOLDER, size.homeSheets));
+			json.append("],\"folders\":[]}");
+			workspace++;
+		}
+		json.append("]}");
+		return json.toString();
+	}
+
+	/**
+	 * @return the JSON of a page of users listing all the users of an
+	 *         organization
+	 */
+	public static String users(Size size) {
+		StringBuilder json = new StringBuilder(size.users * 200);
+		json.append("{\"pageNumber\":1,\"pageSize\":").append(size.users).append(",\"totalPages\":1,\"totalCount\":")
+				.append(size.users).append(",\"data\":[");
+		for (int user = 0; user < size.users; user++) {
+			if (user > 0)
+				json.append(',');
+			json.append("{\"id\":").append(800000 + user).append(",\"email\":\"user").append(user)
+					.append("@example.com\",\"name\":\"User ").append(user).append("\",\"firstName\":\"User\",")
+					.append("\"lastName\":\"").append(user).append("\",\"admin\":").append(user == 0)
+					.append(",\"licensedSheetCreator\":").append(user % 4 == 0).append(",\"status\":\"")
+					.append(user % 10 == 9 ? "PENDING" : "ACTIVE").append("\"}");
+		}
+		json.append("]}");
+		return json.toString();
+	}
+
+	private static int appendSheets(StringBuilder json, int from, int to) {
+		for (int sheet = from; sheet < to; sheet++) {
+			if (sheet > from)
+				json.append(',');
+			json.append("{\"id\":").append(900000 + sheet).append(",\"name\":\"Sheet ").append(sheet)
+					.append("\",\"accessLevel\":\"").append(sheet % 3 == 0 ? "EDITOR" : "OWNER")
+					.append("\",\"permalink\":\"https://app.smartsheet.com/b/home?lx=").append(sheet).append("\"}");
+		}
+		return to;
+	}
+
+	private static void appendAttachment(StringBuilder json, long id, String name, String type) {
+		json.append("{\"id\":").append(id).append(",\"name\":\"").append(name).append("\",\"attachmentType\":\"")
+				.append(type).append('"');
+		if (type.equals("FILE"))
+			json.append(",\"mimeType\":\"application/octet-stream\",\"sizeInKb\":").append(id % 500 + 1);
+		else
+			json.append(",\"url\":\"https://www.example.com/").append(id).append('"');
+		json.append(",\"createdAt\":").append(CREATED_AT).append('}');
+	}
+}
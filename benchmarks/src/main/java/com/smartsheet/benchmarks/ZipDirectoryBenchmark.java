@@ -0,0 +1,104 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.smartsheet.utils.FileUtils;
+
+/**
+ * Measures zipping a backup folder with {@link FileUtils#zipDirectory(File, File)}.
+ * The folder is generated once: user folders of sheet exports (compressible)
+ * and attachments (random, hence incompressible, like images and archives).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ZipDirectoryBenchmark {
+
+	private static final int FILES_PER_FOLDER = 20;
+	private static final int MAX_FILE_BYTES = 64 * 1024;
+
+	@Param({ "100", "1000" })
+	public int files;
+
+	private File directory;
+	private File zipFile;
+
+	@Setup
+	public void generateDirectory() throws IOException {
+		directory = File.createTempFile("zip-benchmark", "");
+		directory.delete();
+		Random random = new Random(42);
+		for (int i = 0; i < files; i++) {
+			File folder = new File(directory, "user" + i / FILES_PER_FOLDER + "@example.com");
+			folder.mkdirs();
+			byte[] content = new byte[random.nextInt(MAX_FILE_BYTES) + 1];
+			if (i % 2 == 0) {
+				for (int b = 0; b < content.length; b++)
+					content[b] = (byte) ("Task,Status,Owner,Due\n".charAt(b % 22));
+				write(new File(folder, "Sheet " + i + ".xls"), content);
+			} else {
+				random.nextBytes(content);
+				write(new File(folder, "Attachment " + i + ".png"), content);
+			}
+		}
+		zipFile = File.createTempFile("zip-benchmark", ".zip");
+	}
+
+	@TearDown
+	public void deleteDirectory() throws IOException {
+		org.apache.commons.io.FileUtils.deleteDirectory(directory);
+		zipFile.delete();
+	}
+
+	@Benchmark
+	public long zipDirectory() throws IOException {
+		FileUtils.zipDirectory(directory, zipFile);
+		return zipFile.length();
+	}
+
+	private static void write(File file, byte[] content) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+	}
+}
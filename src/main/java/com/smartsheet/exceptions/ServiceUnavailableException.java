@@ -37,6 +37,11 @@ public class ServiceUnavailableException extends IOException {
     public ServiceUnavailableException() {
     }
 
+    protected ServiceUnavailableException(String message, String url) {
+        super(message);
+        this.url = url;
+    }
+
     public String getUrl() {
         return url;
     }
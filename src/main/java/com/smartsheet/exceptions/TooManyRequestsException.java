@@ -0,0 +1,48 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.exceptions;
+
+/**
+ * Thrown when a HTTP request returns status code 429 (Too Many Requests),
+ * i.e. the rate limit was exceeded. It is retried like a 503, but only after
+ * the delay which the server asks for (if any).
+ */
+public class TooManyRequestsException extends ServiceUnavailableException {
+
+    public static final int TOO_MANY_REQUESTS_CODE = 429;
+
+    private static final long serialVersionUID = 1L;
+
+    private final int retryAfterSecs;
+
+    /**
+     * @param retryAfterSecs
+     *            the delay before retrying given by the Retry-After header of
+     *            the response, or -1 if none
+     */
+    public TooManyRequestsException(String url, int retryAfterSecs) {
+        super(TOO_MANY_REQUESTS_CODE + " (Too Many Requests) from GET " + url, url);
+        this.retryAfterSecs = retryAfterSecs;
+    }
+
+    /**
+     * @return the delay before retrying given by the server, or -1 if none
+     */
+    public int getRetryAfterSecs() {
+        return retryAfterSecs;
+    }
+}
@@ -19,14 +19,19 @@ package com.smartsheet.restapi.service;
 import java.util.List;
 
 import com.smartsheet.exceptions.SmartsheetGetAttachmentDetailsException;
+import com.smartsheet.exceptions.SmartsheetGetFolderDetailsException;
 import com.smartsheet.exceptions.SmartsheetGetHomeException;
 import com.smartsheet.exceptions.SmartsheetGetSheetDetailsException;
+import com.smartsheet.exceptions.SmartsheetGetSheetsException;
 import com.smartsheet.exceptions.SmartsheetGetUsersException;
+import com.smartsheet.exceptions.SmartsheetGetWorkspaceDetailsException;
 import com.smartsheet.restapi.model.SmartsheetAttachment;
+import com.smartsheet.restapi.model.SmartsheetFolder;
 import com.smartsheet.restapi.model.SmartsheetHome;
 import com.smartsheet.restapi.model.SmartsheetPagingwrapper;
 import com.smartsheet.restapi.model.SmartsheetSheet;
 import com.smartsheet.restapi.model.SmartsheetUser;
+import com.smartsheet.restapi.model.SmartsheetWorkspace;
 
 /**
  * A wrapper around a {@link SmartsheetService} delegate which contextualizes
@@ -62,6 +67,51 @@ public class ErrorContextualizingSmartsheetService implements SmartsheetService,
 		}
 	}
 
+	@Override
+	public SmartsheetPagingwrapper<SmartsheetSheet> getSheets(int page) throws Exception {
+		try {
+			return delegateService.getSheets(page);
+		} catch (Exception e) {
+			throw new SmartsheetGetSheetsException(e);
+		}
+	}
+
+	@Override
+	public SmartsheetPagingwrapper<SmartsheetFolder> getHomeFolders(int page) throws Exception {
+		try {
+			return delegateService.getHomeFolders(page);
+		} catch (Exception e) {
+			throw new SmartsheetGetHomeException(e);
+		}
+	}
+
+	@Override
+	public SmartsheetPagingwrapper<SmartsheetWorkspace> getWorkspaces(int page) throws Exception {
+		try {
+			return delegateService.getWorkspaces(page);
+		} catch (Exception e) {
+			throw new SmartsheetGetHomeException(e);
+		}
+	}
+
+	@Override
+	public SmartsheetFolder getFolder(String folderName, long folderId) throws Exception {
+		try {
+			return delegateService.getFolder(folderName, folderId);
+		} catch (Exception e) {
+			throw new SmartsheetGetFolderDetailsException(e, folderName, folderId);
+		}
+	}
+
+	@Override
+	public SmartsheetWorkspace getWorkspace(String workspaceName, long workspaceId) throws Exception {
+		try {
+			return delegateService.getWorkspace(workspaceName, workspaceId);
+		} catch (Exception e) {
+			throw new SmartsheetGetWorkspaceDetailsException(e, workspaceName, workspaceId);
+		}
+	}
+
 	@Override
 	public SmartsheetSheet getSheetDetails(String sheetName, long sheetId) throws Exception {
 		try {
@@ -71,6 +121,15 @@ public class ErrorContextualizingSmartsheetService implements SmartsheetService,
 		}
 	}
 
+	@Override
+	public void getSheetAttachments(String sheetName, long sheetId, AttachmentHandler handler) throws Exception {
+		try {
+			delegateService.getSheetAttachments(sheetName, sheetId, handler);
+		} catch (Exception e) {
+			throw new SmartsheetGetSheetDetailsException(e, sheetName, sheetId);
+		}
+	}
+
 	@Override
 	public SmartsheetAttachment getAttachmentDetails(String attachmentName, long attachmentId, String sheetName,
 			long sheetId) throws Exception {
@@ -17,9 +17,11 @@
 package com.smartsheet.restapi.service;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 
 import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.map.DeserializationConfig;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
@@ -50,6 +52,21 @@ public class JsonDeserializer<T> {
 		return mapper.readValue(json, type);
 	}
 
+	/**
+	 * Deserialize the JSON object at the current token of a parser, leaving
+	 * the parser at the end of the object.
+	 */
+	public T deserialize(JsonParser parser, Class<T> type) throws JsonMappingException, JsonParseException, IOException {
+		return mapper.readValue(parser, type);
+	}
+
+	/**
+	 * @return a parser of a JSON stream
+	 */
+	public static JsonParser newParser(InputStream json) throws JsonParseException, IOException {
+		return mapper.getJsonFactory().createJsonParser(json);
+	}
+
 	/**
 	 * Deserialize a JSON array.
 	 */
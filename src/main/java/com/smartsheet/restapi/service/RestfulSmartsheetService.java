@@ -17,16 +17,24 @@
 package com.smartsheet.restapi.service;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.codehaus.jackson.type.TypeReference;
 
+import com.smartsheet.exceptions.ServiceUnavailableException;
 import com.smartsheet.restapi.model.SmartsheetAttachment;
+import com.smartsheet.restapi.model.SmartsheetFolder;
 import com.smartsheet.restapi.model.SmartsheetHome;
 import com.smartsheet.restapi.model.SmartsheetPagingwrapper;
 import com.smartsheet.restapi.model.SmartsheetSheet;
 import com.smartsheet.restapi.model.SmartsheetUser;
+import com.smartsheet.restapi.model.SmartsheetWorkspace;
 import com.smartsheet.utils.HttpUtils;
+import com.smartsheet.utils.LatencyHistogram;
+import com.smartsheet.utils.MetricsRegistry;
+import com.smartsheet.utils.ParallelPageReader;
 
 /**
  * A RESTful implementation of the {@link Smartsheet} interface, i.e., using the
@@ -38,10 +46,45 @@ import com.smartsheet.utils.HttpUtils;
 public class RestfulSmartsheetService implements SmartsheetService, Cloneable {
 
 	public static final String DEFAULT_API_BASE_URL = "https://api.smartsheet.com/2.0/";
+
+	// the number of sheets, folders or workspaces listed by each request of
+	// getSheets, getHomeFolders or getWorkspaces
+	private static final int LIST_PAGE_SIZE = 1000;
+
+	/**
+	 * The number of rows read by each request of a page of a sheet by default,
+	 * by getSheetAttachments and by the snapshots of sheets
+	 */
+	public static final int DEFAULT_ROWS_PAGE_SIZE = 1000;
+
+	// the latency of each method (including deserializing the response)
+	private static final LatencyHistogram GET_USERS_LATENCY = MetricsRegistry.getInstance()
+			.histogram("api.getUsers.latency");
+	private static final LatencyHistogram GET_HOME_LATENCY = MetricsRegistry.getInstance()
+			.histogram("api.getHome.latency");
+	private static final LatencyHistogram GET_SHEETS_LATENCY = MetricsRegistry.getInstance()
+			.histogram("api.getSheets.latency");
+	private static final LatencyHistogram GET_HOME_FOLDERS_LATENCY = MetricsRegistry.getInstance()
+			.histogram("api.getHomeFolders.latency");
+	private static final LatencyHistogram GET_WORKSPACES_LATENCY = MetricsRegistry.getInstance()
+			.histogram("api.getWorkspaces.latency");
+	private static final LatencyHistogram GET_FOLDER_LATENCY = MetricsRegistry.getInstance()
+			.histogram("api.getFolder.latency");
+	private static final LatencyHistogram GET_WORKSPACE_LATENCY = MetricsRegistry.getInstance()
+			.histogram("api.getWorkspace.latency");
+	private static final LatencyHistogram GET_SHEET_DETAILS_LATENCY = MetricsRegistry.getInstance()
+			.histogram("api.getSheetDetails.latency");
+	private static final LatencyHistogram GET_SHEET_ATTACHMENTS_LATENCY = MetricsRegistry.getInstance()
+			.histogram("api.getSheetAttachments.latency");
+	private static final LatencyHistogram GET_ATTACHMENT_DETAILS_LATENCY = MetricsRegistry.getInstance()
+			.histogram("api.getAttachmentDetails.latency");
 	public final String API_BASE_URL;
 
 	private String accessToken;
 	private String assumedUserEmail;
+	private int usersPageSize; // 0 for the API's default
+	private int rowsPageSize = DEFAULT_ROWS_PAGE_SIZE;
+	private ParallelPageReader pageReader = new ParallelPageReader(1); // shared by clones
 
 	public RestfulSmartsheetService(String accessToken) {
 		this.accessToken = accessToken;
@@ -53,34 +96,229 @@ public class RestfulSmartsheetService implements SmartsheetService, Cloneable {
 		this.API_BASE_URL = apiBaseUrl;
 	}
 
+	/**
+	 * Sets the number of users listed in each page by {@link #getUsers(int)},
+	 * or 0 for the API's default. Larger pages take fewer requests to list the
+	 * users of a large organization.
+	 */
+	public void setUsersPageSize(int usersPageSize) {
+		this.usersPageSize = usersPageSize;
+	}
+
+	/**
+	 * Sets the number of rows read by each request of
+	 * {@link #getSheetAttachments(String, long, AttachmentHandler)}, so that a
+	 * large sheet is read in several smaller requests.
+	 */
+	public void setRowsPageSize(int rowsPageSize) {
+		this.rowsPageSize = rowsPageSize;
+	}
+
+	/**
+	 * Sets the reader of the pages of rows of a sheet after the first, which
+	 * reads them one at a time by default.
+	 */
+	public void setPageReader(ParallelPageReader pageReader) {
+		this.pageReader = pageReader;
+	}
+
 	@Override
 	public SmartsheetPagingwrapper<SmartsheetUser> getUsers(int page) throws Exception {
-		String json = getJsonPayload(API_BASE_URL + "users?page=" + page);
-		return (new JsonDeserializer<SmartsheetPagingwrapper<SmartsheetUser>>().deserialize(json,
-				new TypeReference<SmartsheetPagingwrapper<SmartsheetUser>>() {
-				}));
+		long start = System.nanoTime();
+		try {
+			String json = getJsonPayload(API_BASE_URL + "users?page=" + page
+					+ (usersPageSize > 0 ? "&pageSize=" + usersPageSize : ""));
+			return (new JsonDeserializer<SmartsheetPagingwrapper<SmartsheetUser>>().deserialize(json,
+					new TypeReference<SmartsheetPagingwrapper<SmartsheetUser>>() {
+					}));
+		} finally {
+			GET_USERS_LATENCY.recordSince(start);
+		}
 	}
 
 	@Override
 	public SmartsheetHome getHome() throws Exception {
+		long start = System.nanoTime();
+		try {
+			String json = getJsonPayload(API_BASE_URL + "home");
+			return new JsonDeserializer<SmartsheetHome>().deserialize(json, SmartsheetHome.class);
+		} finally {
+			GET_HOME_LATENCY.recordSince(start);
+		}
+	}
+
+	@Override
+	public SmartsheetPagingwrapper<SmartsheetSheet> getSheets(int page) throws Exception {
+		long start = System.nanoTime();
+		try {
+			String json = getJsonPayload(API_BASE_URL + "sheets?page=" + page + "&pageSize=" + LIST_PAGE_SIZE);
+			return (new JsonDeserializer<SmartsheetPagingwrapper<SmartsheetSheet>>().deserialize(json,
+					new TypeReference<SmartsheetPagingwrapper<SmartsheetSheet>>() {
+					}));
+		} finally {
+			GET_SHEETS_LATENCY.recordSince(start);
+		}
+	}
 
-		String json = getJsonPayload(API_BASE_URL + "home");
-		return new JsonDeserializer<SmartsheetHome>().deserialize(json, SmartsheetHome.class);
+	@Override
+	public SmartsheetPagingwrapper<SmartsheetFolder> getHomeFolders(int page) throws Exception {
+		long start = System.nanoTime();
+		try {
+			String json = getJsonPayload(API_BASE_URL + "home/folders?page=" + page + "&pageSize=" + LIST_PAGE_SIZE);
+			return (new JsonDeserializer<SmartsheetPagingwrapper<SmartsheetFolder>>().deserialize(json,
+					new TypeReference<SmartsheetPagingwrapper<SmartsheetFolder>>() {
+					}));
+		} finally {
+			GET_HOME_FOLDERS_LATENCY.recordSince(start);
+		}
+	}
+
+	@Override
+	public SmartsheetPagingwrapper<SmartsheetWorkspace> getWorkspaces(int page) throws Exception {
+		long start = System.nanoTime();
+		try {
+			String json = getJsonPayload(API_BASE_URL + "workspaces?page=" + page + "&pageSize=" + LIST_PAGE_SIZE);
+			return (new JsonDeserializer<SmartsheetPagingwrapper<SmartsheetWorkspace>>().deserialize(json,
+					new TypeReference<SmartsheetPagingwrapper<SmartsheetWorkspace>>() {
+					}));
+		} finally {
+			GET_WORKSPACES_LATENCY.recordSince(start);
+		}
+	}
+
+	@Override
+	public SmartsheetFolder getFolder(String folderName, long folderId) throws Exception {
+		long start = System.nanoTime();
+		try {
+			String json = getJsonPayload(API_BASE_URL + "folders/" + folderId);
+			return new JsonDeserializer<SmartsheetFolder>().deserialize(json, SmartsheetFolder.class);
+		} finally {
+			GET_FOLDER_LATENCY.recordSince(start);
+		}
+	}
+
+	@Override
+	public SmartsheetWorkspace getWorkspace(String workspaceName, long workspaceId) throws Exception {
+		long start = System.nanoTime();
+		try {
+			String json = getJsonPayload(API_BASE_URL + "workspaces/" + workspaceId);
+			return new JsonDeserializer<SmartsheetWorkspace>().deserialize(json, SmartsheetWorkspace.class);
+		} finally {
+			GET_WORKSPACE_LATENCY.recordSince(start);
+		}
 	}
 
 	@Override
 	public SmartsheetSheet getSheetDetails(String sheetName, long sheetId) throws Exception {
+		long start = System.nanoTime();
+		try {
+			String json = getJsonPayload(API_BASE_URL + "sheets/" + sheetId + "?include=attachments,discussions");
+			return new JsonDeserializer<SmartsheetSheet>().deserialize(json, SmartsheetSheet.class);
+		} finally {
+			GET_SHEET_DETAILS_LATENCY.recordSince(start);
+		}
+	}
+
+	@Override
+	public void getSheetAttachments(String sheetName, final long sheetId, final AttachmentHandler handler)
+			throws Exception {
+		long start = System.nanoTime();
+		try {
+			// the first page gives the attachments of the sheet itself, and
+			// its number of rows (hence of pages); they are handled as they
+			// are read, as a 503 is received before any is read
+			final int[] totalRowCount = new int[1];
+			HttpUtils.streamJsonPayload(getRowsPageUrl(sheetId, 1), accessToken, assumedUserEmail,
+					new HttpUtils.ContentHandler() {
+						@Override
+						public void handle(InputStream content) throws IOException {
+							try {
+								totalRowCount[0] = SheetAttachmentExtractor.extractPage(content, handler, true);
+							} catch (IOException e) {
+								throw e;
+							} catch (Exception e) {
+								throw new IOException(e);
+							}
+						}
+					});
+			if (totalRowCount[0] < 0)
+				return; // the rows weren't paged
+
+			// the other pages are read several at a time, each retried on its
+			// own, and their attachments handled in order
+			final String target = "Sheet [" + sheetName + "]";
+			int totalPages = (totalRowCount[0] + rowsPageSize - 1) / rowsPageSize;
+			try {
+				pageReader.read(2, totalPages, new ParallelPageReader.PageSource<List<SmartsheetAttachment>>() {
+					@Override
+					public List<SmartsheetAttachment> read(int pageNumber) throws Exception {
+						return readRowAttachments(sheetId, pageNumber, target);
+					}
+				}, new ParallelPageReader.PageHandler<List<SmartsheetAttachment>>() {
+					@Override
+					public void handle(List<SmartsheetAttachment> attachments) throws Exception {
+						for (SmartsheetAttachment attachment : attachments)
+							handler.handle(attachment);
+					}
+				});
+
+			} catch (ServiceUnavailableException e) {
+				// not retried by reading the whole sheet again, as the page
+				// has been retried on its own and the attachments of the
+				// pages before have been handled
+				throw new IOException("The rows of sheet " + sheetId + " could not be read", e);
+			}
+
+		} finally {
+			GET_SHEET_ATTACHMENTS_LATENCY.recordSince(start);
+		}
+	}
+
+	/**
+	 * @return the attachments of the rows (and their discussions) in a page of
+	 *         the rows of a sheet, read completely so that the request can be
+	 *         retried
+	 */
+	private List<SmartsheetAttachment> readRowAttachments(long sheetId, int pageNumber, String target)
+			throws Exception {
+		final List<SmartsheetAttachment> attachments = new ArrayList<SmartsheetAttachment>();
+		HttpUtils.saveUrlTo(getRowsPageUrl(sheetId, pageNumber), accessToken, HttpUtils.ACCEPT_JSON_HEADER,
+				assumedUserEmail, new HttpUtils.ContentHandler() {
+					@Override
+					public void handle(InputStream content) throws IOException {
+						attachments.clear(); // read afresh if the request is retried
+						try {
+							SheetAttachmentExtractor.extractPage(content, new AttachmentHandler() {
+								@Override
+								public void handle(SmartsheetAttachment attachment) {
+									attachments.add(attachment);
+								}
+							}, false);
+						} catch (IOException e) {
+							throw e;
+						} catch (Exception e) {
+							throw new IOException(e);
+						}
+					}
+				}, target);
+		return attachments;
+	}
 
-		String json = getJsonPayload(API_BASE_URL + "sheets/" + sheetId + "?include=attachments,discussions");
-		return new JsonDeserializer<SmartsheetSheet>().deserialize(json, SmartsheetSheet.class);
+	private String getRowsPageUrl(long sheetId, int pageNumber) {
+		return API_BASE_URL + "sheets/" + sheetId + "?include=attachments,discussions&page=" + pageNumber
+				+ "&pageSize=" + rowsPageSize;
 	}
 
 	@Override
 	public SmartsheetAttachment getAttachmentDetails(String attachmentName, long attachmentId, String sheetName,
 			long sheetId) throws Exception {
-
-		String json = getJsonPayload(API_BASE_URL + "sheets/" + sheetId + "/attachments/" + attachmentId);
-		return new JsonDeserializer<SmartsheetAttachment>().deserialize(json, SmartsheetAttachment.class);
+		long start = System.nanoTime();
+		try {
+			String json = getJsonPayload(API_BASE_URL + "sheets/" + sheetId + "/attachments/" + attachmentId);
+			return new JsonDeserializer<SmartsheetAttachment>().deserialize(json, SmartsheetAttachment.class);
+		} finally {
+			GET_ATTACHMENT_DETAILS_LATENCY.recordSince(start);
+		}
 	}
 
 	@Override
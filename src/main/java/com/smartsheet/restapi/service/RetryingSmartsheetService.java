@@ -20,12 +20,17 @@ import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import com.smartsheet.exceptions.ServiceUnavailableException;
+import com.smartsheet.exceptions.TooManyRequestsException;
 import com.smartsheet.restapi.model.SmartsheetAttachment;
+import com.smartsheet.restapi.model.SmartsheetFolder;
 import com.smartsheet.restapi.model.SmartsheetHome;
 import com.smartsheet.restapi.model.SmartsheetPagingwrapper;
 import com.smartsheet.restapi.model.SmartsheetSheet;
 import com.smartsheet.restapi.model.SmartsheetUser;
+import com.smartsheet.restapi.model.SmartsheetWorkspace;
+import com.smartsheet.utils.MetricsRegistry;
 import com.smartsheet.utils.ProgressWatcher;
+import com.smartsheet.utils.StripedCounter;
 
 /**
  * A wrapper around a {@link SmartsheetService} delegate which retries when the
@@ -40,6 +45,12 @@ public class RetryingSmartsheetService implements SmartsheetService, Cloneable {
 	public static final int MAX_RETRIES = 5;
 	private static final int WAIT_INTERVAL_SECS = 5;
 
+	private static final StripedCounter RETRIES = MetricsRegistry.getInstance().counter("api.retries");
+	private static final StripedCounter BACKOFFS = MetricsRegistry.getInstance().counter("api.backoffs");
+	private static final StripedCounter RATE_LIMITED = MetricsRegistry.getInstance().counter("api.rateLimited");
+	private static final StripedCounter BACKOFF_SECONDS = MetricsRegistry.getInstance()
+			.counter("api.backoffSeconds");
+
 	private SmartsheetService delegateService;
 
 	public RetryingSmartsheetService(SmartsheetService delegateService) {
@@ -57,7 +68,7 @@ public class RetryingSmartsheetService implements SmartsheetService, Cloneable {
 
 			} catch (ServiceUnavailableException e) {
 				if (i < MAX_RETRIES)
-					sleepForDefinedInterval(i + 1, "getUsers");
+					sleepForDefinedInterval(i + 1, "getUsers", e);
 				else
 					finalException = e;
 			}
@@ -77,7 +88,107 @@ public class RetryingSmartsheetService implements SmartsheetService, Cloneable {
 
 			} catch (ServiceUnavailableException e) {
 				if (i < MAX_RETRIES)
-					sleepForDefinedInterval(i + 1, "getHome");
+					sleepForDefinedInterval(i + 1, "getHome", e);
+				else
+					finalException = e;
+			}
+		}
+
+		throw finalException;
+	}
+
+	@Override
+	public SmartsheetPagingwrapper<SmartsheetSheet> getSheets(int page) throws Exception {
+		ServiceUnavailableException finalException = null;
+
+		for (int i = 0; i <= MAX_RETRIES; i++) {
+			notifyIfRetry(i);
+			try {
+				return delegateService.getSheets(page);
+
+			} catch (ServiceUnavailableException e) {
+				if (i < MAX_RETRIES)
+					sleepForDefinedInterval(i + 1, "getSheets", e);
+				else
+					finalException = e;
+			}
+		}
+
+		throw finalException;
+	}
+
+	@Override
+	public SmartsheetPagingwrapper<SmartsheetFolder> getHomeFolders(int page) throws Exception {
+		ServiceUnavailableException finalException = null;
+
+		for (int i = 0; i <= MAX_RETRIES; i++) {
+			notifyIfRetry(i);
+			try {
+				return delegateService.getHomeFolders(page);
+
+			} catch (ServiceUnavailableException e) {
+				if (i < MAX_RETRIES)
+					sleepForDefinedInterval(i + 1, "getHomeFolders", e);
+				else
+					finalException = e;
+			}
+		}
+
+		throw finalException;
+	}
+
+	@Override
+	public SmartsheetPagingwrapper<SmartsheetWorkspace> getWorkspaces(int page) throws Exception {
+		ServiceUnavailableException finalException = null;
+
+		for (int i = 0; i <= MAX_RETRIES; i++) {
+			notifyIfRetry(i);
+			try {
+				return delegateService.getWorkspaces(page);
+
+			} catch (ServiceUnavailableException e) {
+				if (i < MAX_RETRIES)
+					sleepForDefinedInterval(i + 1, "getWorkspaces", e);
+				else
+					finalException = e;
+			}
+		}
+
+		throw finalException;
+	}
+
+	@Override
+	public SmartsheetFolder getFolder(String folderName, long folderId) throws Exception {
+		ServiceUnavailableException finalException = null;
+
+		for (int i = 0; i <= MAX_RETRIES; i++) {
+			notifyIfRetry(i);
+			try {
+				return delegateService.getFolder(folderName, folderId);
+
+			} catch (ServiceUnavailableException e) {
+				if (i < MAX_RETRIES)
+					sleepForDefinedInterval(i + 1, "getFolder", e);
+				else
+					finalException = e;
+			}
+		}
+
+		throw finalException;
+	}
+
+	@Override
+	public SmartsheetWorkspace getWorkspace(String workspaceName, long workspaceId) throws Exception {
+		ServiceUnavailableException finalException = null;
+
+		for (int i = 0; i <= MAX_RETRIES; i++) {
+			notifyIfRetry(i);
+			try {
+				return delegateService.getWorkspace(workspaceName, workspaceId);
+
+			} catch (ServiceUnavailableException e) {
+				if (i < MAX_RETRIES)
+					sleepForDefinedInterval(i + 1, "getWorkspace", e);
 				else
 					finalException = e;
 			}
@@ -97,7 +208,30 @@ public class RetryingSmartsheetService implements SmartsheetService, Cloneable {
 
 			} catch (ServiceUnavailableException e) {
 				if (i < MAX_RETRIES)
-					sleepForDefinedInterval(i + 1, "getSheetDetails");
+					sleepForDefinedInterval(i + 1, "getSheetDetails", e);
+				else
+					finalException = e;
+			}
+		}
+
+		throw finalException;
+	}
+
+	@Override
+	public void getSheetAttachments(String sheetName, long sheetId, AttachmentHandler handler) throws Exception {
+		ServiceUnavailableException finalException = null;
+
+		for (int i = 0; i <= MAX_RETRIES; i++) {
+			notifyIfRetry(i);
+			try {
+				// a 503 is received before any attachment is read, so none
+				// are passed to the handler twice
+				delegateService.getSheetAttachments(sheetName, sheetId, handler);
+				return;
+
+			} catch (ServiceUnavailableException e) {
+				if (i < MAX_RETRIES)
+					sleepForDefinedInterval(i + 1, "getSheetAttachments", e);
 				else
 					finalException = e;
 			}
@@ -118,7 +252,7 @@ public class RetryingSmartsheetService implements SmartsheetService, Cloneable {
 
 			} catch (ServiceUnavailableException e) {
 				if (i < MAX_RETRIES)
-					sleepForDefinedInterval(i + 1, "getAttachmentDetails");
+					sleepForDefinedInterval(i + 1, "getAttachmentDetails", e);
 				else
 					finalException = e;
 			}
@@ -133,14 +267,33 @@ public class RetryingSmartsheetService implements SmartsheetService, Cloneable {
 	}
 
 	private static void notifyIfRetry(int i) {
-		if (i > 0)
-			ProgressWatcher.getInstance().notify("--- retry #" + i);
+		if (i > 0) {
+			RETRIES.increment();
+			ProgressWatcher.getInstance().notify("--- retry #%d", i);
+		}
 	}
 
-	public static void sleepForDefinedInterval(int retryNumber, String action) throws InterruptedException {
-		int sleepSecs = retryNumber * WAIT_INTERVAL_SECS;
-		ProgressWatcher.getInstance().notify("503 (Service Unavailable) received for [" + action + "] - sleep "
-				+ sleepSecs + " secs before retry...");
+	/**
+	 * Waits before a request which failed is retried: for a 503, a little
+	 * longer for each retry; for a 429, for as long as the server asks, or
+	 * otherwise twice as long for each retry.
+	 */
+	public static void sleepForDefinedInterval(int retryNumber, String action, ServiceUnavailableException cause)
+			throws InterruptedException {
+		int sleepSecs;
+		if (cause instanceof TooManyRequestsException) {
+			int retryAfterSecs = ((TooManyRequestsException) cause).getRetryAfterSecs();
+			sleepSecs = retryAfterSecs >= 0 ? retryAfterSecs : WAIT_INTERVAL_SECS << (retryNumber - 1);
+			RATE_LIMITED.increment();
+			ProgressWatcher.getInstance().notify(
+					"429 (Too Many Requests) received for [%s] - sleep %d secs before retry...", action, sleepSecs);
+		} else {
+			sleepSecs = retryNumber * WAIT_INTERVAL_SECS;
+			ProgressWatcher.getInstance().notify(
+					"503 (Service Unavailable) received for [%s] - sleep %d secs before retry...", action, sleepSecs);
+		}
+		BACKOFFS.increment();
+		BACKOFF_SECONDS.add(sleepSecs);
 		Thread.sleep(TimeUnit.SECONDS.toMillis(sleepSecs));
 	}
 
@@ -157,8 +310,11 @@ public class RetryingSmartsheetService implements SmartsheetService, Cloneable {
 	@Override
 	public Object clone() throws CloneNotSupportedException {
 		RetryingSmartsheetService rss = (RetryingSmartsheetService) super.clone();
-		if (this.delegateService instanceof RestfulSmartsheetService) {
-			rss.delegateService = (RestfulSmartsheetService) ((RestfulSmartsheetService) this.delegateService).clone();
+		// any cloneable delegate (not only a RestfulSmartsheetService, but
+		// also a decorator of one) is cloned, so that the clone assumes its
+		// user independently
+		if (this.delegateService instanceof Cloneable) {
+			rss.delegateService = (SmartsheetService) this.delegateService.clone();
 		}
 
 		return rss;
@@ -0,0 +1,155 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.restapi.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import com.smartsheet.restapi.model.SmartsheetAttachment;
+
+/**
+ * Extracts the attachments of a sheet from the JSON of its details as the
+ * JSON is read, walking its tokens rather than deserializing the whole sheet.
+ * Only the attachments themselves are deserialized; rows, cells, columns and
+ * discussions are skipped over without being built, so the memory needed
+ * doesn't grow with the size of the sheet.
+ * <p>
+ * The attachments extracted are those of the sheet, its discussions, its rows
+ * and their discussions (the same as those in a deserialized
+ * {@link com.smartsheet.restapi.model.SmartsheetSheet}), in the order they
+ * appear in the JSON.
+ */
+public class SheetAttachmentExtractor {
+
+	private static final JsonDeserializer<SmartsheetAttachment> deserializer =
+			new JsonDeserializer<SmartsheetAttachment>();
+
+	private SheetAttachmentExtractor() {
+		// private constructor because this is a singleton helper class, not intended to be instantiated
+	}
+
+	/**
+	 * Reads the JSON of a sheet from a stream, passing each attachment to a
+	 * handler as soon as it has been read.
+	 */
+	public static void extract(InputStream json, SmartsheetService.AttachmentHandler handler) throws Exception {
+		extractPage(json, handler, true);
+	}
+
+	/**
+	 * Reads the JSON of a page of the rows of a sheet from a stream, passing
+	 * each attachment to a handler as soon as it has been read. The
+	 * attachments of the sheet itself and of its discussions, which are the
+	 * same in every page, are only passed on if asked for.
+	 *
+	 * @return the total number of rows of the sheet, or -1 if the JSON doesn't
+	 *         give it
+	 */
+	public static int extractPage(InputStream json, SmartsheetService.AttachmentHandler handler,
+			boolean withSheetAttachments) throws Exception {
+		int totalRowCount = -1;
+		JsonParser parser = JsonDeserializer.newParser(json);
+		try {
+			expect(parser.nextToken(), JsonToken.START_OBJECT, parser);
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if (field.equals("attachments") && withSheetAttachments)
+					extractAttachments(parser, handler);
+				else if (field.equals("discussions") && withSheetAttachments)
+					extractDiscussions(parser, handler);
+				else if (field.equals("rows"))
+					extractRows(parser, handler);
+				else if (field.equals("totalRowCount") && value == JsonToken.VALUE_NUMBER_INT)
+					totalRowCount = parser.getIntValue();
+				else
+					parser.skipChildren();
+			}
+
+		} finally {
+			parser.close();
+		}
+		return totalRowCount;
+	}
+
+	private static void extractRows(JsonParser parser, SmartsheetService.AttachmentHandler handler)
+			throws Exception {
+		if (!isArray(parser))
+			return;
+
+		while (parser.nextToken() == JsonToken.START_OBJECT) {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if (field.equals("attachments"))
+					extractAttachments(parser, handler);
+				else if (field.equals("discussions"))
+					extractDiscussions(parser, handler);
+				else
+					parser.skipChildren(); // cells etc.
+			}
+		}
+	}
+
+	private static void extractDiscussions(JsonParser parser, SmartsheetService.AttachmentHandler handler)
+			throws Exception {
+		if (!isArray(parser))
+			return;
+
+		while (parser.nextToken() == JsonToken.START_OBJECT) {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if (field.equals("commentAttachments"))
+					extractAttachments(parser, handler);
+				else
+					parser.skipChildren();
+			}
+		}
+	}
+
+	private static void extractAttachments(JsonParser parser, SmartsheetService.AttachmentHandler handler)
+			throws Exception {
+		if (!isArray(parser))
+			return;
+
+		while (parser.nextToken() == JsonToken.START_OBJECT)
+			handler.handle(deserializer.deserialize(parser, SmartsheetAttachment.class));
+	}
+
+	/**
+	 * @return whether the current token starts an array (if it's null, the
+	 *         token is skipped)
+	 */
+	private static boolean isArray(JsonParser parser) throws JsonParseException, IOException {
+		if (parser.getCurrentToken() == JsonToken.VALUE_NULL)
+			return false;
+
+		expect(parser.getCurrentToken(), JsonToken.START_ARRAY, parser);
+		return true;
+	}
+
+	private static void expect(JsonToken token, JsonToken expected, JsonParser parser) throws JsonParseException {
+		if (token != expected)
+			throw new JsonParseException("Expected " + expected + " but found " + token,
+					parser.getCurrentLocation());
+	}
+}
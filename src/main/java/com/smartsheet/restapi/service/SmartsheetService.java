@@ -19,22 +19,69 @@ package com.smartsheet.restapi.service;
 import java.util.List;
 
 import com.smartsheet.restapi.model.SmartsheetAttachment;
+import com.smartsheet.restapi.model.SmartsheetFolder;
 import com.smartsheet.restapi.model.SmartsheetHome;
 import com.smartsheet.restapi.model.SmartsheetPagingwrapper;
 import com.smartsheet.restapi.model.SmartsheetSheet;
 import com.smartsheet.restapi.model.SmartsheetUser;
+import com.smartsheet.restapi.model.SmartsheetWorkspace;
 
 /**
  * An abstraction of a service for Smartsheet requests.
  */
 public interface SmartsheetService {
 
+	/**
+	 * Receives the attachments of a sheet as they are read.
+	 */
+	interface AttachmentHandler {
+		void handle(SmartsheetAttachment attachment) throws Exception;
+	}
+
 	SmartsheetPagingwrapper<SmartsheetUser> getUsers(int page) throws Exception;
 
     SmartsheetHome getHome() throws Exception;
 
+    /**
+     * Lists the sheets which the current user can access (each with their
+     * access level, but not their location in the home), page by page.
+     */
+    SmartsheetPagingwrapper<SmartsheetSheet> getSheets(int page) throws Exception;
+
+    /**
+     * Lists the folders at the top of the home of the current user (without
+     * their contents), page by page.
+     */
+    SmartsheetPagingwrapper<SmartsheetFolder> getHomeFolders(int page) throws Exception;
+
+    /**
+     * Lists the workspaces which the current user can access (without their
+     * contents), page by page.
+     */
+    SmartsheetPagingwrapper<SmartsheetWorkspace> getWorkspaces(int page) throws Exception;
+
+    /**
+     * Gets the sheets and folders directly in a folder (without the contents
+     * of those folders).
+     */
+    SmartsheetFolder getFolder(String folderName, long folderId) throws Exception;
+
+    /**
+     * Gets the sheets and folders directly in a workspace (without the
+     * contents of those folders).
+     */
+    SmartsheetWorkspace getWorkspace(String workspaceName, long workspaceId) throws Exception;
+
     SmartsheetSheet getSheetDetails(String sheetName, long sheetId) throws Exception;
 
+    /**
+     * Gets the attachments of a sheet (including those of its rows and
+     * discussions), passing each to a handler as soon as it's read rather than
+     * building the whole sheet. The handler is called at most once for each
+     * attachment, even if the request is retried.
+     */
+    void getSheetAttachments(String sheetName, long sheetId, AttachmentHandler handler) throws Exception;
+
     SmartsheetAttachment getAttachmentDetails(String attachmentName, long attachmentId, String sheetName, long sheetId) throws Exception;
 
     String getAccessToken();
@@ -0,0 +1,126 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import com.smartsheet.restapi.model.SmartsheetAttachment;
+
+/**
+ * Writes the CSV summary of the non-file attachments of a sheet. The file is
+ * opened with the first summary and kept open (with the rows buffered) until
+ * the sheet is finished and the writer is closed, so a sheet with many links
+ * costs one file rather than one open and close per link. Fields are quoted
+ * as in RFC 4180.
+ * <p>
+ * Each sheet has its own writer, and the methods are thread-safe.
+ */
+public class AttachmentSummaryWriter implements Closeable {
+
+	private static final String HEADER = "Name,URL,AttachmentType";
+	private static final String LINE_SEPARATOR = "\r\n"; // as in RFC 4180
+	private static final int BUFFER_SIZE = 16 * 1024; // 16K
+
+	private final BackupSink sink;
+	private final File file;
+	private final StringBuilder row = new StringBuilder();
+	private Writer writer;
+	private int rowCount;
+
+	public AttachmentSummaryWriter(BackupSink sink, File file) {
+		this.sink = sink;
+		this.file = file;
+	}
+
+	/**
+	 * Writes the summary of a non-file attachment as a row, opening the file
+	 * (and writing the header) if it's the first.
+	 */
+	public synchronized void write(SmartsheetAttachment attachment) throws IOException {
+		if (writer == null) {
+			writer = new BufferedWriter(new OutputStreamWriter(sink.newOutputStream(file)), BUFFER_SIZE);
+			writer.write(HEADER);
+			writer.write(LINE_SEPARATOR);
+		}
+
+		row.setLength(0);
+		appendField(row, attachment.getName()).append(',');
+		appendField(row, attachment.getUrl()).append(',');
+		appendField(row, attachment.getAttachmentType()).append(LINE_SEPARATOR);
+		writer.append(row);
+		rowCount++;
+	}
+
+	/**
+	 * @return the file which the summaries are written to
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the number of summaries written
+	 */
+	public synchronized int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Flushes the summaries to the file and closes it (committing it to the
+	 * sink). Nothing is written if there were no summaries.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+			SheetSaver.FILES_CREATED.increment();
+		}
+	}
+
+	/**
+	 * Appends a CSV field, enclosing it in double quotes (and doubling any
+	 * double quotes in it) if it contains a comma, double quote or line break.
+	 * A null field is empty.
+	 */
+	private static StringBuilder appendField(StringBuilder row, String field) {
+		if (field == null)
+			return row;
+
+		boolean quote = false;
+		for (int i = 0; i < field.length() && !quote; i++) {
+			char c = field.charAt(i);
+			quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+		}
+		if (!quote)
+			return row.append(field);
+
+		row.append('"');
+		for (int i = 0; i < field.length(); i++) {
+			char c = field.charAt(i);
+			if (c == '"')
+				row.append('"');
+			row.append(c);
+		}
+		return row.append('"');
+	}
+}
@@ -0,0 +1,346 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.map.DeserializationConfig;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.smartsheet.restapi.model.SmartsheetHome;
+import com.smartsheet.restapi.model.SmartsheetUser;
+
+/**
+ * An inventory of what a backup of an organization would back up: its users,
+ * the home (sheet, folder and workspace hierarchy) of each active user, the
+ * number of sheets they own and, if taken with attachments, the number and
+ * size of the file attachments of those sheets. No content is downloaded to
+ * take it.
+ * <p>
+ * The inventory is saved as a JSON file by a dry run, from which it estimates
+ * the work of the backup. A later backup can read it back to use the users and
+ * homes listed in it rather than listing them again.
+ */
+public class BackupInventory {
+
+	/** The API requests made for each sheet: its export and its details */
+	private static final int REQUESTS_PER_SHEET = 2;
+	/** The API requests made for each file attachment: its details and download */
+	private static final int REQUESTS_PER_ATTACHMENT = 2;
+	private static final int LARGEST_USERS = 10;
+
+	private static final ObjectMapper mapper = newMapper();
+
+	/**
+	 * The inventory of a user.
+	 */
+	public static class UserInventory {
+		private String email;
+		private String status;
+		private SmartsheetHome home;
+		private int ownedSheets;
+		private int fileAttachments;
+		private long fileAttachmentBytes;
+
+		public String getEmail() {
+			return email;
+		}
+
+		public void setEmail(String email) {
+			this.email = email;
+		}
+
+		public String getStatus() {
+			return status;
+		}
+
+		public void setStatus(String status) {
+			this.status = status;
+		}
+
+		/**
+		 * @return the home of the user, or null if the user isn't active or
+		 *         their home couldn't be listed
+		 */
+		public SmartsheetHome getHome() {
+			return home;
+		}
+
+		public void setHome(SmartsheetHome home) {
+			this.home = home;
+		}
+
+		public int getOwnedSheets() {
+			return ownedSheets;
+		}
+
+		public void setOwnedSheets(int ownedSheets) {
+			this.ownedSheets = ownedSheets;
+		}
+
+		public int getFileAttachments() {
+			return fileAttachments;
+		}
+
+		public void setFileAttachments(int fileAttachments) {
+			this.fileAttachments = fileAttachments;
+		}
+
+		public long getFileAttachmentBytes() {
+			return fileAttachmentBytes;
+		}
+
+		public void setFileAttachmentBytes(long fileAttachmentBytes) {
+			this.fileAttachmentBytes = fileAttachmentBytes;
+		}
+	}
+
+	private long createdAt = System.currentTimeMillis();
+	private int userPages;
+	private boolean attachmentsInventoried;
+	private List<UserInventory> users = new ArrayList<UserInventory>();
+
+	private Map<String, UserInventory> usersByEmail; // built when first needed
+
+	/**
+	 * Reads an inventory saved by {@link #write(File)}.
+	 */
+	public static BackupInventory read(File file) throws IOException {
+		return mapper.readValue(file, BackupInventory.class);
+	}
+
+	public void write(File file) throws IOException {
+		mapper.writeValue(file, this);
+	}
+
+	/**
+	 * @return when the inventory was taken (in milliseconds since the epoch)
+	 */
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	public void setCreatedAt(long createdAt) {
+		this.createdAt = createdAt;
+	}
+
+	/**
+	 * @return the number of pages which the users were listed in
+	 */
+	public int getUserPages() {
+		return userPages;
+	}
+
+	public void setUserPages(int userPages) {
+		this.userPages = userPages;
+	}
+
+	/**
+	 * @return whether the file attachments of the sheets were counted (which
+	 *         takes a request per sheet)
+	 */
+	public boolean isAttachmentsInventoried() {
+		return attachmentsInventoried;
+	}
+
+	public void setAttachmentsInventoried(boolean attachmentsInventoried) {
+		this.attachmentsInventoried = attachmentsInventoried;
+	}
+
+	public List<UserInventory> getUsers() {
+		return users;
+	}
+
+	public void setUsers(List<UserInventory> users) {
+		this.users = users;
+		usersByEmail = null;
+	}
+
+	public void addUser(UserInventory user) {
+		users.add(user);
+		usersByEmail = null;
+	}
+
+	/**
+	 * @return the users of the inventory, as if listed by the API
+	 */
+	@JsonIgnore
+	public List<SmartsheetUser> getSmartsheetUsers() {
+		List<SmartsheetUser> smartsheetUsers = new ArrayList<SmartsheetUser>(users.size());
+		for (UserInventory user : users) {
+			SmartsheetUser smartsheetUser = new SmartsheetUser();
+			smartsheetUser.setEmail(user.getEmail());
+			smartsheetUser.setStatus(user.getStatus());
+			smartsheetUsers.add(smartsheetUser);
+		}
+		return smartsheetUsers;
+	}
+
+	/**
+	 * @return the home of a user, or null if it isn't in the inventory
+	 */
+	public synchronized SmartsheetHome getHome(String email) {
+		if (usersByEmail == null) {
+			usersByEmail = new HashMap<String, UserInventory>();
+			for (UserInventory user : users)
+				usersByEmail.put(user.getEmail(), user);
+		}
+
+		UserInventory user = usersByEmail.get(email);
+		return user == null ? null : user.getHome();
+	}
+
+	@JsonIgnore
+	public int getTotalOwnedSheets() {
+		int total = 0;
+		for (UserInventory user : users)
+			total += user.getOwnedSheets();
+		return total;
+	}
+
+	@JsonIgnore
+	public int getTotalFileAttachments() {
+		int total = 0;
+		for (UserInventory user : users)
+			total += user.getFileAttachments();
+		return total;
+	}
+
+	@JsonIgnore
+	public long getTotalFileAttachmentBytes() {
+		long total = 0;
+		for (UserInventory user : users)
+			total += user.getFileAttachmentBytes();
+		return total;
+	}
+
+	/**
+	 * @return the number of API requests which a backup would make, including
+	 *         those which list the users and their homes unless the backup
+	 *         uses the inventory
+	 */
+	public long estimateApiRequests(boolean usingInventory) {
+		long requests = (long) getTotalOwnedSheets() * REQUESTS_PER_SHEET
+				+ (long) getTotalFileAttachments() * REQUESTS_PER_ATTACHMENT;
+		if (!usingInventory) {
+			requests += userPages;
+			for (UserInventory user : users) {
+				if (user.getHome() != null)
+					requests++;
+			}
+		}
+		return requests;
+	}
+
+	/**
+	 * Estimates how long a backup would take, as the longest of: the time
+	 * which the rate limit allows its requests to be made in, the time for the
+	 * sheets to be backed up one after another, and the time for the
+	 * attachments to be downloaded by the download threads. The time to
+	 * transfer content isn't included.
+	 *
+	 * @param requestsPerMinute
+	 *            the rate limit of the API
+	 * @param downloadThreads
+	 *            the number of threads which download attachments
+	 * @param requestSeconds
+	 *            the mean time taken by a request
+	 */
+	public long estimateSeconds(boolean usingInventory, int requestsPerMinute, int downloadThreads,
+			double requestSeconds) {
+		long requests = estimateApiRequests(usingInventory);
+		long attachmentRequests = (long) getTotalFileAttachments() * REQUESTS_PER_ATTACHMENT;
+
+		double rateLimited = requests * 60.0 / requestsPerMinute;
+		double sequential = (requests - attachmentRequests) * requestSeconds;
+		double downloads = attachmentRequests * requestSeconds / downloadThreads;
+		return (long) Math.ceil(Math.max(rateLimited, Math.max(sequential, downloads)));
+	}
+
+	/**
+	 * @return the users with the most to back up (by the size of their file
+	 *         attachments, then by the number of sheets they own)
+	 */
+	public List<UserInventory> getLargestUsers(int count) {
+		List<UserInventory> largest = new ArrayList<UserInventory>(users);
+		Collections.sort(largest, new Comparator<UserInventory>() {
+			@Override
+			public int compare(UserInventory user1, UserInventory user2) {
+				if (user1.getFileAttachmentBytes() != user2.getFileAttachmentBytes())
+					return user1.getFileAttachmentBytes() < user2.getFileAttachmentBytes() ? 1 : -1;
+				return user2.getOwnedSheets() - user1.getOwnedSheets();
+			}
+		});
+		return largest.subList(0, Math.min(count, largest.size()));
+	}
+
+	/**
+	 * @return the lines of a report of the plan of a backup from the inventory
+	 */
+	public List<String> describePlan(int requestsPerMinute, int downloadThreads, double requestSeconds) {
+		int activeUsers = 0;
+		for (UserInventory user : users) {
+			if (user.getHome() != null)
+				activeUsers++;
+		}
+
+		List<String> lines = new ArrayList<String>();
+		lines.add("*** Dry run plan ***");
+		lines.add(String.format("Users: %d (%d active and listed)", users.size(), activeUsers));
+		lines.add(String.format("Owned sheets: %d", getTotalOwnedSheets()));
+		if (attachmentsInventoried)
+			lines.add(String.format("File attachments: %d (%s)", getTotalFileAttachments(),
+					BackupProgress.formatBytes(getTotalFileAttachmentBytes())));
+		else
+			lines.add("File attachments: not inventoried (set dryRunAttachments=true to count them)");
+
+		lines.add("Largest users:");
+		for (UserInventory user : getLargestUsers(LARGEST_USERS)) {
+			if (user.getHome() == null)
+				break;
+			lines.add(String.format("    %s - %d sheets, %d file attachments (%s)", user.getEmail(),
+					user.getOwnedSheets(), user.getFileAttachments(),
+					BackupProgress.formatBytes(user.getFileAttachmentBytes())));
+		}
+
+		lines.add(String.format("Estimated API requests: %d (%d when using this inventory)",
+				estimateApiRequests(false), estimateApiRequests(true)));
+		lines.add(String.format(
+				"Estimated duration: %s (%s when using this inventory) at %d requests per minute, "
+						+ "%d download threads and %.0f ms per request, excluding content transfer time",
+				BackupProgress.formatDuration(estimateSeconds(false, requestsPerMinute, downloadThreads,
+						requestSeconds)),
+				BackupProgress.formatDuration(estimateSeconds(true, requestsPerMinute, downloadThreads,
+						requestSeconds)),
+				requestsPerMinute, downloadThreads, requestSeconds * 1000));
+		return lines;
+	}
+
+	private static ObjectMapper newMapper() {
+		ObjectMapper mapper = new ObjectMapper();
+		mapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+		return mapper;
+	}
+}
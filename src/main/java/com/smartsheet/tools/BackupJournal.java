@@ -0,0 +1,363 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.smartsheet.utils.ProgressWatcher;
+
+/**
+ * A write-ahead journal of the progress of a backup, kept in the backup folder
+ * so that a backup which was interrupted (e.g. the JVM died) can be resumed in
+ * place instead of starting over.
+ * <p>
+ * Every local folder and file is journaled when its name is assigned, before
+ * any content is written to it, and again when it is complete. A resumed
+ * backup therefore reuses the names assigned by the interrupted one, skips the
+ * users, sheets and attachments which were completed, and restarts the files
+ * which were only partially written.
+ * <p>
+ * Only the records of previous runs are held in memory (to be queried by the
+ * resumed run); records of the current run are just appended to the file.
+ * <p>
+ * The journal is a text file with one tab-separated record per line. Each
+ * record is flushed as it is written, so that it survives the JVM dying; a
+ * partial last line left by a crash is ignored when the journal is read.
+ * <p>
+ * The methods of this class are designed to be thread-safe.
+ */
+public class BackupJournal {
+
+	public static final String JOURNAL_FILE_NAME = ".backup-journal";
+
+	private static final String CHARSET = "UTF-8";
+	private static final String SEPARATOR = "\t";
+
+	// record types
+	private static final String FOLDER = "FOLDER";
+	private static final String SHEET = "SHEET";
+	private static final String SHEET_DONE = "SHEET_DONE";
+	private static final String ATTACHMENT = "ATTACHMENT";
+	private static final String ATTACHMENT_DONE = "ATTACHMENT_DONE";
+	private static final String USER_DONE = "USER_DONE";
+	private static final String RUN_COMPLETE = "RUN_COMPLETE";
+
+	/**
+	 * A file attachment whose download was started.
+	 */
+	public static class JournaledAttachment {
+		private final long attachmentId;
+		private final long sheetId;
+		private final String userEmail;
+		private final File file;
+
+		JournaledAttachment(long attachmentId, long sheetId, String userEmail, File file) {
+			this.attachmentId = attachmentId;
+			this.sheetId = sheetId;
+			this.userEmail = userEmail;
+			this.file = file;
+		}
+
+		public long getAttachmentId() {
+			return attachmentId;
+		}
+
+		public long getSheetId() {
+			return sheetId;
+		}
+
+		public String getUserEmail() {
+			return userEmail;
+		}
+
+		public File getFile() {
+			return file;
+		}
+	}
+
+	private final File backupFolder;
+	private final Writer writer; // null if the journal is disabled
+
+	private final Map<String, File> folders = new HashMap<String, File>();
+	private final Map<Long, File> sheets = new HashMap<Long, File>();
+	private final Set<Long> doneSheets = new HashSet<Long>();
+	private final Map<Long, JournaledAttachment> attachments = new HashMap<Long, JournaledAttachment>();
+	private final Map<Long, Set<String>> attachmentFileNames = new HashMap<Long, Set<String>>();
+	private final Set<Long> doneAttachments = new HashSet<Long>();
+	private final Set<String> doneUsers = new HashSet<String>();
+	private boolean runComplete;
+
+	private BackupJournal(File backupFolder, Writer writer) {
+		this.backupFolder = backupFolder;
+		this.writer = writer;
+	}
+
+	/**
+	 * @return a journal which records nothing and has nothing to resume, for
+	 *         when progress is not being journaled (e.g. when backing up to a
+	 *         temporary folder)
+	 */
+	public static BackupJournal disabled() {
+		return new BackupJournal(null, null);
+	}
+
+	/**
+	 * Opens the journal of a backup folder, reading any records left by a
+	 * previous (interrupted) run into memory and appending new records to it.
+	 * The backup folder is created if it doesn't exist.
+	 */
+	public static BackupJournal open(File backupFolder) throws IOException {
+		if (!backupFolder.isDirectory())
+			backupFolder.mkdirs();
+
+		File journalFile = new File(backupFolder, JOURNAL_FILE_NAME);
+		List<String[]> records = journalFile.isFile() ? readRecords(journalFile) : new ArrayList<String[]>();
+
+		BackupJournal journal = new BackupJournal(backupFolder, new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(journalFile, true /* append */), CHARSET)));
+		for (String[] record : records)
+			journal.replay(record);
+		return journal;
+	}
+
+	/**
+	 * @return {@code true} if the backup folder has a journal which shows that
+	 *         its backup was interrupted before it completed
+	 */
+	public static boolean isIncomplete(File backupFolder) throws IOException {
+		File journalFile = new File(backupFolder, JOURNAL_FILE_NAME);
+		if (!journalFile.isFile())
+			return false;
+
+		for (String[] record : readRecords(journalFile)) {
+			if (record[0].equals(RUN_COMPLETE))
+				return false;
+		}
+		return true;
+	}
+
+	public boolean isEnabled() {
+		return writer != null;
+	}
+
+	/**
+	 * @return {@code true} if the journal has records from a previous run
+	 */
+	public synchronized boolean isResuming() {
+		return !folders.isEmpty() || !sheets.isEmpty();
+	}
+
+	// folders (keyed by a caller-defined key which identifies the folder across runs)
+
+	public synchronized File getFolder(String key) {
+		return folders.get(key);
+	}
+
+	public synchronized void recordFolder(String key, File folder) throws IOException {
+		append(FOLDER, key, relativize(folder));
+	}
+
+	// sheets
+
+	public synchronized File getSheetFile(long sheetId) {
+		return sheets.get(sheetId);
+	}
+
+	public synchronized void recordSheet(long sheetId, File sheetFile) throws IOException {
+		append(SHEET, String.valueOf(sheetId), relativize(sheetFile));
+	}
+
+	public synchronized boolean isSheetDone(long sheetId) {
+		return doneSheets.contains(sheetId);
+	}
+
+	public synchronized void markSheetDone(long sheetId) throws IOException {
+		append(SHEET_DONE, String.valueOf(sheetId));
+	}
+
+	// attachments
+
+	public synchronized JournaledAttachment getAttachment(long attachmentId) {
+		return attachments.get(attachmentId);
+	}
+
+	/**
+	 * @return the names of the attachment files already assigned for a sheet,
+	 *         so that newly assigned names don't clash with them
+	 */
+	public synchronized Set<String> getAttachmentFileNames(long sheetId) {
+		Set<String> names = attachmentFileNames.get(sheetId);
+		return names == null ? new HashSet<String>() : new HashSet<String>(names);
+	}
+
+	public synchronized void recordAttachment(long attachmentId, long sheetId, String userEmail, File file)
+			throws IOException {
+		append(ATTACHMENT, String.valueOf(attachmentId), String.valueOf(sheetId), userEmail, relativize(file));
+	}
+
+	public synchronized boolean isAttachmentDone(long attachmentId) {
+		return doneAttachments.contains(attachmentId);
+	}
+
+	public synchronized void markAttachmentDone(long attachmentId) throws IOException {
+		append(ATTACHMENT_DONE, String.valueOf(attachmentId));
+	}
+
+	/**
+	 * @return the attachments of completed sheets whose downloads were started
+	 *         but not completed, which must be downloaded again since their
+	 *         sheets won't be revisited
+	 */
+	public synchronized List<JournaledAttachment> getPendingAttachments() {
+		List<JournaledAttachment> pending = new ArrayList<JournaledAttachment>();
+		for (JournaledAttachment attachment : attachments.values()) {
+			if (doneSheets.contains(attachment.getSheetId())
+					&& !doneAttachments.contains(attachment.getAttachmentId()))
+				pending.add(attachment);
+		}
+		return pending;
+	}
+
+	// users
+
+	public synchronized boolean isUserDone(String userEmail) {
+		return doneUsers.contains(userEmail);
+	}
+
+	public synchronized void markUserDone(String userEmail) throws IOException {
+		append(USER_DONE, userEmail);
+	}
+
+	// run
+
+	public synchronized boolean isRunComplete() {
+		return runComplete;
+	}
+
+	public synchronized void markRunComplete() throws IOException {
+		runComplete = true;
+		append(RUN_COMPLETE);
+	}
+
+	public synchronized void close() throws IOException {
+		if (writer != null)
+			writer.close();
+	}
+
+	// helpers
+
+	private void append(String... fields) throws IOException {
+		if (writer == null)
+			return;
+
+		StringBuilder line = new StringBuilder();
+		for (String field : fields) {
+			if (line.length() > 0)
+				line.append(SEPARATOR);
+			line.append(field == null ? "" : field.replace(SEPARATOR, " "));
+		}
+		writer.write(line.append('\n').toString());
+		// flush every record so it's in the OS (and survives the JVM dying)
+		// before any content is written for it
+		writer.flush();
+	}
+
+	private void replay(String[] record) {
+		String type = record[0];
+		try {
+			if (type.equals(FOLDER))
+				folders.put(record[1], resolve(record[2]));
+			else if (type.equals(SHEET))
+				sheets.put(Long.valueOf(record[1]), resolve(record[2]));
+			else if (type.equals(SHEET_DONE))
+				doneSheets.add(Long.valueOf(record[1]));
+			else if (type.equals(ATTACHMENT))
+				replayAttachment(new JournaledAttachment(Long.valueOf(record[1]), Long.valueOf(record[2]),
+						record[3].isEmpty() ? null : record[3], resolve(record[4])));
+			else if (type.equals(ATTACHMENT_DONE))
+				doneAttachments.add(Long.valueOf(record[1]));
+			else if (type.equals(USER_DONE))
+				doneUsers.add(record[1]);
+			else if (type.equals(RUN_COMPLETE))
+				runComplete = true;
+
+		} catch (RuntimeException e) {
+			// a record which can't be parsed is ignored, so its item is
+			// simply redone
+			ProgressWatcher.getInstance().notify("Ignoring unreadable backup journal record: " + type);
+		}
+	}
+
+	private void replayAttachment(JournaledAttachment attachment) {
+		attachments.put(attachment.getAttachmentId(), attachment);
+		Set<String> names = attachmentFileNames.get(attachment.getSheetId());
+		if (names == null) {
+			names = new HashSet<String>();
+			attachmentFileNames.put(attachment.getSheetId(), names);
+		}
+		names.add(attachment.getFile().getName());
+	}
+
+	private static List<String[]> readRecords(File journalFile) throws IOException {
+		List<String[]> records = new ArrayList<String[]>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), CHARSET));
+		try {
+			// read whole lines only, ignoring a last line left partially
+			// written by a crash (it has no line terminator)
+			StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = reader.read()) != -1) {
+				if (c == '\n') {
+					if (line.length() > 0)
+						records.add(line.toString().split(SEPARATOR, -1));
+					line.setLength(0);
+				} else
+					line.append((char) c);
+			}
+			return records;
+
+		} finally {
+			reader.close();
+		}
+	}
+
+	private String relativize(File file) {
+		String rootPath = backupFolder == null ? "" : backupFolder.getAbsolutePath();
+		String path = file.getAbsolutePath();
+		if (path.startsWith(rootPath + File.separator))
+			path = path.substring(rootPath.length() + 1);
+		return path.replace(File.separatorChar, '/');
+	}
+
+	private File resolve(String relativePath) {
+		return new File(backupFolder, relativePath.replace('/', File.separatorChar));
+	}
+}
@@ -0,0 +1,257 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.smartsheet.utils.ProgressWatcher;
+
+/**
+ * Keeps running totals of the work of a backup (users, sheets and attachments)
+ * as it's discovered and as it's done, and estimates from them how much of the
+ * backup is complete and when it will finish.
+ * <p>
+ * Work is measured in bytes: the size of each attachment as listed by the
+ * API, and for each sheet the average size of the sheets exported so far. The
+ * work of the users not yet started is estimated from the average work of
+ * those started, and the time left from the throughput measured since the
+ * backup started. The estimates hence improve as the backup progresses.
+ * <p>
+ * The methods of this class are thread-safe.
+ */
+public class BackupProgress {
+
+	/** The work assumed for a sheet until a sheet has been exported */
+	private static final long DEFAULT_SHEET_BYTES = 32 * 1024;
+
+	private final long startNanos = System.nanoTime();
+
+	private final AtomicLong usersPlanned = new AtomicLong();
+	private final AtomicLong usersStarted = new AtomicLong();
+	private final AtomicLong sheetsDiscovered = new AtomicLong();
+	private final AtomicLong sheetsDone = new AtomicLong();
+	private final AtomicLong sheetsExported = new AtomicLong();
+	private final AtomicLong sheetBytesDone = new AtomicLong();
+	private final AtomicLong attachmentsDiscovered = new AtomicLong();
+	private final AtomicLong attachmentsDone = new AtomicLong();
+	private final AtomicLong attachmentBytesDiscovered = new AtomicLong();
+	private final AtomicLong attachmentBytesDone = new AtomicLong();
+
+	// the work planned from an inventory (-1 if not known)
+	private volatile long sheetsPlanned = -1;
+	private volatile long attachmentBytesPlanned = -1;
+
+	private ScheduledExecutorService reporter;
+
+	/**
+	 * Sets the number of users to be backed up, once they're listed.
+	 */
+	public void planUsers(long users) {
+		usersPlanned.set(users);
+	}
+
+	/**
+	 * Sets the work of the whole backup, as counted by an inventory taken
+	 * beforehand, rather than estimating the work of the users not yet
+	 * started from those started.
+	 *
+	 * @param attachmentBytes
+	 *            the size of the file attachments, or -1 if not counted
+	 */
+	public void planWork(long sheets, long attachmentBytes) {
+		sheetsPlanned = sheets;
+		attachmentBytesPlanned = attachmentBytes;
+	}
+
+	/**
+	 * Records that the backup of a user (active or not) has started.
+	 */
+	public void userStarted() {
+		usersStarted.incrementAndGet();
+	}
+
+	public void sheetsDiscovered(long sheets) {
+		sheetsDiscovered.addAndGet(sheets);
+	}
+
+	/**
+	 * Records that a sheet has been backed up (or skipped).
+	 *
+	 * @param exportBytes
+	 *            the size of the exported sheet, or 0 if it wasn't exported
+	 */
+	public void sheetDone(long exportBytes) {
+		if (exportBytes > 0) {
+			sheetBytesDone.addAndGet(exportBytes);
+			sheetsExported.incrementAndGet();
+		}
+		sheetsDone.incrementAndGet();
+	}
+
+	public void attachmentDiscovered(long bytes) {
+		attachmentBytesDiscovered.addAndGet(bytes);
+		attachmentsDiscovered.incrementAndGet();
+	}
+
+	/**
+	 * Records that an attachment has been downloaded (or failed to).
+	 *
+	 * @param bytes
+	 *            the size of the attachment as discovered
+	 */
+	public void attachmentDone(long bytes) {
+		attachmentBytesDone.addAndGet(bytes);
+		attachmentsDone.incrementAndGet();
+	}
+
+	/**
+	 * @return the bytes backed up so far
+	 */
+	public long getBytesDone() {
+		return sheetBytesDone.get() + attachmentBytesDone.get();
+	}
+
+	/**
+	 * @return the estimated bytes left to back up
+	 */
+	public long getBytesRemaining() {
+		long sheetBytes = getAverageSheetBytes();
+		long sheetsLeft = Math.max(0, sheetsDiscovered.get() - sheetsDone.get());
+		long attachmentBytesLeft = Math.max(0, attachmentBytesDiscovered.get() - attachmentBytesDone.get());
+		long remaining = sheetsLeft * sheetBytes + attachmentBytesLeft;
+
+		// the work of the users not yet started is as planned, or else is
+		// assumed to be like that of the users started
+		long started = usersStarted.get();
+		long usersLeft = Math.max(0, usersPlanned.get() - started);
+		if (sheetsPlanned >= 0)
+			remaining += Math.max(0, sheetsPlanned - sheetsDiscovered.get()) * sheetBytes;
+		else if (started > 0)
+			remaining += usersLeft * (sheetsDiscovered.get() * sheetBytes / started);
+
+		if (attachmentBytesPlanned >= 0)
+			remaining += Math.max(0, attachmentBytesPlanned - attachmentBytesDiscovered.get());
+		else if (started > 0)
+			remaining += usersLeft * (attachmentBytesDiscovered.get() / started);
+		return remaining;
+	}
+
+	/**
+	 * @return the estimated percentage of the backup complete, from 0 to 100
+	 */
+	public double getPercentComplete() {
+		long done = getBytesDone();
+		long total = done + getBytesRemaining();
+		if (total == 0)
+			return usersPlanned.get() > 0 && usersStarted.get() >= usersPlanned.get() ? 100 : 0;
+
+		return 100.0 * done / total;
+	}
+
+	/**
+	 * @return the bytes backed up per second since the backup started
+	 */
+	public long getBytesPerSecond() {
+		long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+		return (long) (getBytesDone() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos);
+	}
+
+	/**
+	 * @return the estimated seconds until the backup finishes at the current
+	 *         throughput, or -1 if nothing has been backed up yet
+	 */
+	public long getSecondsRemaining() {
+		long bytesPerSecond = getBytesPerSecond();
+		if (bytesPerSecond == 0)
+			return -1;
+
+		return getBytesRemaining() / bytesPerSecond;
+	}
+
+	/**
+	 * @return a one-line report of the progress and the time left
+	 */
+	public String getReport() {
+		long secondsRemaining = getSecondsRemaining();
+		return String.format(
+				"*** Progress: %.1f%% complete - users %d of %d, sheets %d of %d, attachments %d of %d (%s of %s)"
+						+ " - %s/s - ETA %s ***",
+				getPercentComplete(), usersStarted.get(), usersPlanned.get(), sheetsDone.get(),
+				sheetsDiscovered.get(), attachmentsDone.get(), attachmentsDiscovered.get(),
+				formatBytes(attachmentBytesDone.get()), formatBytes(attachmentBytesDiscovered.get()),
+				formatBytes(getBytesPerSecond()),
+				secondsRemaining < 0 ? "unknown" : formatDuration(secondsRemaining));
+	}
+
+	/**
+	 * Starts reporting the progress through the {@link ProgressWatcher} at a
+	 * fixed interval, until {@link #stopReporting()} is called.
+	 */
+	public synchronized void startReporting(long intervalSeconds) {
+		if (reporter != null)
+			return;
+
+		reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "backup-progress");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		reporter.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				ProgressWatcher.getInstance().notify(getReport());
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stopReporting() {
+		if (reporter != null) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+	}
+
+	private long getAverageSheetBytes() {
+		long exported = sheetsExported.get();
+		return exported == 0 ? DEFAULT_SHEET_BYTES : sheetBytesDone.get() / exported;
+	}
+
+	static String formatBytes(long bytes) {
+		if (bytes < 1024)
+			return bytes + " B";
+		if (bytes < 1024 * 1024)
+			return String.format("%.1f KB", bytes / 1024.0);
+		if (bytes < 1024L * 1024 * 1024)
+			return String.format("%.1f MB", bytes / (1024.0 * 1024));
+		return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
+	}
+
+	static String formatDuration(long seconds) {
+		long hours = seconds / 3600;
+		long minutes = seconds / 60 % 60;
+		if (hours > 0)
+			return String.format("%dh %02dm", hours, minutes);
+		return String.format("%dm %02ds", minutes, seconds % 60);
+	}
+}
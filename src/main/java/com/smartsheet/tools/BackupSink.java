@@ -0,0 +1,96 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The destination which a backup is written to. Folders and files of the
+ * backup are identified by {@link File} paths under the backup folder, which
+ * the sink maps to its own storage (e.g. local files, or entries in an
+ * archive).
+ * <p>
+ * The methods of implementations are designed to be thread-safe.
+ */
+public interface BackupSink {
+
+	/**
+	 * Creates a folder (and any missing parent folders) unless it exists
+	 * already.
+	 */
+	void prepareFolder(File folder) throws IOException;
+
+	/**
+	 * Creates a new folder, failing if the name is already used.
+	 */
+	void createFolder(File folder) throws IOException;
+
+	/**
+	 * @return {@code true} if the name of a folder or file is already used
+	 */
+	boolean exists(File item);
+
+	/**
+	 * @return the names of the folders and files in a folder which existed
+	 *         before the backup started, or null if there are none (sinks
+	 *         which always start empty return null)
+	 */
+	String[] listExisting(File folder);
+
+	/**
+	 * @return {@code true} if names which differ only in case can be used
+	 *         for different items in the same folder
+	 */
+	boolean isCaseSensitive();
+
+	/**
+	 * Creates a new empty file (reserving its name), failing if the name is
+	 * already used.
+	 */
+	void createFile(File file) throws IOException;
+
+	/**
+	 * Writes the whole of a content stream to a file, replacing any previous
+	 * contents. The content is only committed if it was read completely,
+	 * otherwise the {@link IOException} is thrown and the write can be retried.
+	 * The content stream is not closed.
+	 *
+	 * @param mimeType
+	 *            The MIME type of the content if known (otherwise null), which
+	 *            a sink may use to decide how to store it.
+	 */
+	void write(File file, String mimeType, InputStream content) throws IOException;
+
+	/**
+	 * Opens a stream to write a file, replacing any previous contents. The
+	 * content is committed when the stream is closed.
+	 */
+	OutputStream newOutputStream(File file) throws IOException;
+
+	/**
+	 * @return a description of where a folder or file is stored, for logging
+	 */
+	String getLocation(File item);
+
+	/**
+	 * Completes the backup, waiting for any pending writes.
+	 */
+	void close() throws IOException;
+}
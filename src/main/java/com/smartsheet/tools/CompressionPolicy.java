@@ -0,0 +1,195 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Decides how each file written to an archive is compressed. Files which are
+ * compressed already (e.g. .xlsx exports, which are zip files, and JPEG, PDF
+ * or MP4 attachments) are stored as they are, since deflating them again costs
+ * CPU time for next to no gain.
+ * <p>
+ * The decision is made, in order of precedence, from the MIME type of the file
+ * (if known), its extension, and the entropy of a sample of its first bytes.
+ * The entropy catches compressed content which is not identified by its type
+ * or name.
+ */
+public class CompressionPolicy {
+
+	/** The number of leading bytes of a file which are sampled */
+	public static final int SAMPLE_SIZE = 4096;
+
+	/** Entropy (in bits per byte) above which content is taken as compressed */
+	private static final double COMPRESSED_ENTROPY = 7.5;
+	/** Entropy below which content deflates well enough to be worth more effort */
+	private static final double LOW_ENTROPY = 6.0;
+	/** Files smaller than this aren't worth deflating */
+	private static final int MIN_DEFLATE_SIZE = 64;
+
+	private static final Set<String> COMPRESSED_MIME_TYPES = new HashSet<String>(Arrays.asList(
+			"application/zip", "application/x-zip-compressed", "application/gzip", "application/x-gzip",
+			"application/x-7z-compressed", "application/x-rar-compressed", "application/vnd.rar",
+			"application/x-bzip2", "application/x-xz", "application/java-archive", "application/pdf",
+			"application/epub+zip", "application/vnd.ms-excel.sheet.macroenabled.12",
+			"image/jpeg", "image/pjpeg", "image/png", "image/gif", "image/webp", "image/heic", "image/heif"));
+
+	private static final String[] COMPRESSED_MIME_TYPE_PREFIXES = { "video/", "audio/",
+			"application/vnd.openxmlformats-officedocument.", "application/vnd.oasis.opendocument." };
+
+	private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList(
+			"xlsx", "xlsm", "docx", "docm", "pptx", "pptm", "odt", "ods", "odp", "zip", "gz", "tgz", "7z",
+			"rar", "bz2", "xz", "jar", "epub", "pdf", "jpg", "jpeg", "png", "gif", "webp", "heic", "heif",
+			"mp4", "m4v", "mov", "avi", "mkv", "wmv", "webm", "mp3", "m4a", "aac", "ogg", "wma", "flac"));
+
+	private static final Set<String> TEXT_EXTENSIONS = new HashSet<String>(Arrays.asList(
+			"csv", "txt", "json", "xml", "html", "htm", "log", "md", "sql", "eml", "rtf", "svg"));
+
+	/**
+	 * A policy which deflates everything at the default level, as archives
+	 * were compressed before there was a policy. Useful as a baseline.
+	 */
+	public static final CompressionPolicy DEFLATE_ALL = new CompressionPolicy() {
+		@Override
+		public Compression choose(String name, String mimeType, byte[] sample, int sampleLength) {
+			return Compression.DEFAULT;
+		}
+	};
+
+	/**
+	 * How to compress a file: its zip method and, if deflated, the level.
+	 */
+	public static class Compression {
+		public static final Compression STORED = new Compression(ZipEntry.STORED, 0);
+		public static final Compression FAST = new Compression(ZipEntry.DEFLATED, Deflater.BEST_SPEED);
+		public static final Compression DEFAULT = new Compression(ZipEntry.DEFLATED,
+				Deflater.DEFAULT_COMPRESSION);
+
+		private final int method;
+		private final int level;
+
+		private Compression(int method, int level) {
+			this.method = method;
+			this.level = level;
+		}
+
+		/**
+		 * @return {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+		 */
+		public int getMethod() {
+			return method;
+		}
+
+		/**
+		 * @return the {@link Deflater} level, if deflated
+		 */
+		public int getLevel() {
+			return level;
+		}
+
+		@Override
+		public String toString() {
+			return method == ZipEntry.STORED ? "STORED" : "DEFLATED(" + level + ")";
+		}
+	}
+
+	/**
+	 * Chooses how to compress a file.
+	 *
+	 * @param name
+	 *            The name (or path) of the file.
+	 * @param mimeType
+	 *            The MIME type of the file, or null if unknown.
+	 * @param sample
+	 *            The first bytes of the file.
+	 * @param sampleLength
+	 *            The number of bytes in the sample, which is less than
+	 *            {@link #SAMPLE_SIZE} only if that is the whole file.
+	 */
+	public Compression choose(String name, String mimeType, byte[] sample, int sampleLength) {
+		if (sampleLength < MIN_DEFLATE_SIZE)
+			return Compression.STORED;
+
+		if (mimeType != null) {
+			String type = mimeType.toLowerCase(Locale.ENGLISH);
+			int parameters = type.indexOf(';');
+			if (parameters != -1)
+				type = type.substring(0, parameters).trim();
+
+			if (isCompressedMimeType(type))
+				return Compression.STORED;
+			if (type.startsWith("text/") || type.endsWith("json") || type.endsWith("xml"))
+				return Compression.DEFAULT;
+		}
+
+		String extension = getExtension(name);
+		if (COMPRESSED_EXTENSIONS.contains(extension))
+			return Compression.STORED;
+		if (TEXT_EXTENSIONS.contains(extension))
+			return Compression.DEFAULT;
+
+		// the type is unknown, so judge by the content
+		double entropy = getEntropy(sample, sampleLength);
+		if (entropy > COMPRESSED_ENTROPY)
+			return Compression.STORED;
+		return entropy < LOW_ENTROPY ? Compression.DEFAULT : Compression.FAST;
+	}
+
+	/**
+	 * @return the Shannon entropy of a sample of bytes, in bits per byte (from
+	 *         0 for constant bytes to 8 for random ones)
+	 */
+	static double getEntropy(byte[] sample, int sampleLength) {
+		if (sampleLength == 0)
+			return 0;
+
+		int[] counts = new int[256];
+		for (int i = 0; i < sampleLength; i++)
+			counts[sample[i] & 0xFF]++;
+
+		double entropy = 0;
+		for (int count : counts) {
+			if (count > 0) {
+				double probability = (double) count / sampleLength;
+				entropy -= probability * Math.log(probability);
+			}
+		}
+		return entropy / Math.log(2);
+	}
+
+	private static boolean isCompressedMimeType(String type) {
+		if (COMPRESSED_MIME_TYPES.contains(type))
+			return true;
+		for (String prefix : COMPRESSED_MIME_TYPE_PREFIXES) {
+			if (type.startsWith(prefix))
+				return true;
+		}
+		return false;
+	}
+
+	private static String getExtension(String name) {
+		int lastDot = name.lastIndexOf('.');
+		if (lastDot == -1 || lastDot < name.lastIndexOf('/'))
+			return "";
+		return name.substring(lastDot + 1).toLowerCase(Locale.ENGLISH);
+	}
+}
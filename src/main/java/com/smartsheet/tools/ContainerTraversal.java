@@ -0,0 +1,412 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.smartsheet.restapi.model.SmartsheetFolder;
+import com.smartsheet.restapi.model.SmartsheetPagingwrapper;
+import com.smartsheet.restapi.model.SmartsheetWorkspace;
+import com.smartsheet.restapi.service.SmartsheetService;
+
+/**
+ * Walks the folders and workspaces of the home of a user container by
+ * container, rather than listing the whole home in one request. The folders at
+ * the top of the home and the workspaces are listed page by page, and then the
+ * contents of each (its sheets, and its folders without their contents) are
+ * fetched with a request of its own.
+ * <p>
+ * The contents are fetched concurrently, each by a clone of the API service
+ * (assuming the same user), and are taken by the caller of {@link #next()} as
+ * they arrive, a container always after the container it's in. At most a
+ * fixed number of containers are fetched ahead of those taken, so the memory
+ * used doesn't grow with the size of the home. If the API service can't be
+ * cloned, the contents are fetched one container at a time by the service
+ * itself, depth first, as they are taken.
+ * <p>
+ * {@link #next()} is meant to be called by a single thread.
+ */
+public class ContainerTraversal {
+
+	private static final int DEFAULT_THREADS = 4;
+	private static final int DEFAULT_MAX_FETCHED_AHEAD = 64;
+
+	/**
+	 * A workspace or folder reached by the traversal, with its contents.
+	 */
+	public static class Container {
+		private final SmartsheetFolder contents;
+		private final Container parent;
+		private File folder;
+		private String key;
+
+		Container(SmartsheetFolder contents, Container parent) {
+			this.contents = contents;
+			this.parent = parent;
+		}
+
+		/**
+		 * @return the workspace or folder, with its sheets and its folders
+		 *         (without their contents)
+		 */
+		public SmartsheetFolder getContents() {
+			return contents;
+		}
+
+		public boolean isWorkspace() {
+			return contents instanceof SmartsheetWorkspace;
+		}
+
+		/**
+		 * @return the container which this one is in, or null if it's at the
+		 *         top of the home
+		 */
+		public Container getParent() {
+			return parent;
+		}
+
+		/**
+		 * @return the folder which the container is backed up to, as set by
+		 *         the caller, or null if none was set
+		 */
+		public File getFolder() {
+			return folder;
+		}
+
+		public void setFolder(File folder) {
+			this.folder = folder;
+		}
+
+		/**
+		 * @return the key of the folder which the container is backed up to,
+		 *         as set by the caller
+		 */
+		public String getKey() {
+			return key;
+		}
+
+		public void setKey(String key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * A container to be fetched: as listed in the container it's in (or at
+	 * the top of the home), without its contents.
+	 */
+	private static class PendingContainer {
+		private final SmartsheetFolder listed;
+		private final Container parent;
+
+		PendingContainer(SmartsheetFolder listed, Container parent) {
+			this.listed = listed;
+			this.parent = parent;
+		}
+	}
+
+	/**
+	 * The result of fetching a container: the container, or the error
+	 * fetching it. The end of the traversal is marked by a result with
+	 * neither.
+	 */
+	private static class FetchResult {
+		private final Container container;
+		private final PendingContainer failed;
+		private final Exception error;
+
+		FetchResult(Container container, PendingContainer failed, Exception error) {
+			this.container = container;
+			this.failed = failed;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * The error fetching the contents of a workspace or folder, which is
+	 * skipped (with the containers in it).
+	 */
+	public static class ContainerFetchException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		private final SmartsheetFolder container;
+
+		ContainerFetchException(SmartsheetFolder container, Exception cause) {
+			super(cause.getMessage(), cause);
+			this.container = container;
+		}
+
+		/**
+		 * @return the workspace or folder, as listed (without its contents)
+		 */
+		public SmartsheetFolder getContainer() {
+			return container;
+		}
+
+		/**
+		 * @return the error fetching the contents
+		 */
+		public Exception getError() {
+			return (Exception) getCause();
+		}
+	}
+
+	private static final FetchResult END = new FetchResult(null, null, null);
+
+	private final SmartsheetService apiService;
+
+	// the containers fetched concurrently (null if fetching one at a time)
+	private final ExecutorService executor;
+	private final BlockingQueue<SmartsheetService> idleServices;
+	private final BlockingQueue<FetchResult> fetched;
+	private final Semaphore fetchedAhead;
+	private final AtomicInteger unfinished = new AtomicInteger();
+	private FetchResult taken; // the permit of which is released by the next take
+	private boolean ended;
+
+	// the containers left to fetch one at a time, depth first
+	private final Deque<PendingContainer> pending = new ArrayDeque<PendingContainer>();
+
+	/**
+	 * Walks the home with a default number of threads and of containers
+	 * fetched ahead.
+	 *
+	 * @see #ContainerTraversal(SmartsheetService, int, int)
+	 */
+	public ContainerTraversal(SmartsheetService apiService) throws Exception {
+		this(apiService, DEFAULT_THREADS, DEFAULT_MAX_FETCHED_AHEAD);
+	}
+
+	/**
+	 * Lists the folders at the top of the home and the workspaces, and starts
+	 * fetching their contents.
+	 *
+	 * @param apiService
+	 *            the API service, assuming the user whose home is walked
+	 * @param threads
+	 *            the number of threads fetching contents
+	 * @param maxFetchedAhead
+	 *            the number of containers which may be fetched (or being
+	 *            fetched) but not yet taken
+	 */
+	public ContainerTraversal(SmartsheetService apiService, int threads, int maxFetchedAhead) throws Exception {
+		if (threads < 1 || maxFetchedAhead < 1)
+			throw new IllegalArgumentException("threads and maxFetchedAhead must be at least 1");
+
+		this.apiService = apiService;
+		List<PendingContainer> topContainers = new ArrayList<PendingContainer>();
+		for (SmartsheetFolder folder : listHomeFolders())
+			topContainers.add(new PendingContainer(folder, null));
+		for (SmartsheetWorkspace workspace : listWorkspaces())
+			topContainers.add(new PendingContainer(workspace, null));
+
+		List<SmartsheetService> clones = cloneServices(threads);
+		if (clones == null) {
+			executor = null;
+			idleServices = null;
+			fetched = null;
+			fetchedAhead = null;
+			for (int i = topContainers.size() - 1; i >= 0; i--)
+				pending.push(topContainers.get(i));
+			return;
+		}
+
+		idleServices = new LinkedBlockingQueue<SmartsheetService>(clones);
+		fetched = new LinkedBlockingQueue<FetchResult>();
+		fetchedAhead = new Semaphore(maxFetchedAhead);
+		executor = Executors.newFixedThreadPool(clones.size(), new ThreadFactory() {
+			private int threadNumber;
+
+			@Override
+			public synchronized Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "container-traversal-" + ++threadNumber);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		if (topContainers.isEmpty()) {
+			fetched.add(END);
+			return;
+		}
+		unfinished.set(topContainers.size());
+		for (PendingContainer topContainer : topContainers)
+			post(topContainer);
+	}
+
+	/**
+	 * Takes the next container, waiting for its contents to arrive if needed.
+	 * When the contents of a workspace or folder can't be fetched, it's skipped
+	 * (with the containers in it) after throwing the error, and the traversal
+	 * carries on with the next call.
+	 *
+	 * @return the next container, or null when all have been taken
+	 *
+	 * @throws ContainerFetchException
+	 *             the error fetching a container
+	 */
+	public Container next() throws ContainerFetchException, InterruptedException {
+		if (executor == null)
+			return nextInTurn();
+
+		// the previous container has been dealt with, making room for another
+		// to be fetched
+		if (taken != null) {
+			fetchedAhead.release();
+			taken = null;
+		}
+		if (ended)
+			return null;
+
+		FetchResult result = fetched.take();
+		if (result == END) {
+			ended = true;
+			return null;
+		}
+
+		taken = result;
+		if (result.error != null)
+			throw new ContainerFetchException(result.failed.listed, result.error);
+		return result.container;
+	}
+
+	/**
+	 * Stops fetching containers. The containers already taken aren't
+	 * affected.
+	 */
+	public void close() {
+		if (executor != null)
+			executor.shutdownNow();
+	}
+
+	private Container nextInTurn() throws ContainerFetchException {
+		PendingContainer next = pending.poll();
+		if (next == null)
+			return null;
+
+		Container container;
+		try {
+			container = fetch(apiService, next);
+		} catch (Exception e) {
+			throw new ContainerFetchException(next.listed, e);
+		}
+
+		List<SmartsheetFolder> subfolders = container.getContents().getFolders();
+		for (int i = subfolders.size() - 1; i >= 0; i--)
+			pending.push(new PendingContainer(subfolders.get(i), container));
+		return container;
+	}
+
+	/**
+	 * Posts the fetch of a container. Once it's fetched, the fetches of the
+	 * folders in it are posted before it's marked finished, so the traversal
+	 * only ends once every container has been fetched.
+	 */
+	private void post(final PendingContainer pendingContainer) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					fetchedAhead.acquire();
+				} catch (InterruptedException e) {
+					return; // closed
+				}
+
+				SmartsheetService service = idleServices.poll();
+				try {
+					Container container = fetch(service, pendingContainer);
+					fetched.add(new FetchResult(container, null, null));
+
+					List<SmartsheetFolder> subfolders = container.getContents().getFolders();
+					unfinished.addAndGet(subfolders.size());
+					for (SmartsheetFolder subfolder : subfolders)
+						post(new PendingContainer(subfolder, container));
+
+				} catch (Exception e) {
+					fetched.add(new FetchResult(null, pendingContainer, e));
+				} finally {
+					idleServices.add(service);
+					if (unfinished.decrementAndGet() == 0)
+						fetched.add(END);
+				}
+			}
+		});
+	}
+
+	private static Container fetch(SmartsheetService service, PendingContainer pendingContainer) throws Exception {
+		SmartsheetFolder listed = pendingContainer.listed;
+		SmartsheetFolder contents = listed instanceof SmartsheetWorkspace
+				? service.getWorkspace(listed.getName(), listed.getId())
+				: service.getFolder(listed.getName(), listed.getId());
+		return new Container(contents, pendingContainer.parent);
+	}
+
+	private List<SmartsheetFolder> listHomeFolders() throws Exception {
+		List<SmartsheetFolder> folders = new ArrayList<SmartsheetFolder>();
+		int pageNumber = 1;
+		int noofpages = 1;
+		while (pageNumber <= noofpages) {
+			SmartsheetPagingwrapper<SmartsheetFolder> foldersPagingWrapper = apiService.getHomeFolders(pageNumber);
+			folders.addAll(foldersPagingWrapper.getData());
+			pageNumber = foldersPagingWrapper.getPageNumber() + 1;
+			noofpages = foldersPagingWrapper.getTotalPages();
+		}
+		return folders;
+	}
+
+	private List<SmartsheetWorkspace> listWorkspaces() throws Exception {
+		List<SmartsheetWorkspace> workspaces = new ArrayList<SmartsheetWorkspace>();
+		int pageNumber = 1;
+		int noofpages = 1;
+		while (pageNumber <= noofpages) {
+			SmartsheetPagingwrapper<SmartsheetWorkspace> workspacesPagingWrapper = apiService
+					.getWorkspaces(pageNumber);
+			workspaces.addAll(workspacesPagingWrapper.getData());
+			pageNumber = workspacesPagingWrapper.getPageNumber() + 1;
+			noofpages = workspacesPagingWrapper.getTotalPages();
+		}
+		return workspaces;
+	}
+
+	/**
+	 * @return clones of the API service, assuming the same user, or null if
+	 *         it can't be cloned
+	 */
+	private List<SmartsheetService> cloneServices(int count) {
+		List<SmartsheetService> clones = new ArrayList<SmartsheetService>(count);
+		try {
+			for (int i = 0; i < count; i++) {
+				SmartsheetService clone = (SmartsheetService) apiService.clone();
+				clone.assumeUser(apiService.getAssumedUser());
+				clones.add(clone);
+			}
+		} catch (CloneNotSupportedException e) {
+			return null;
+		}
+		return clones;
+	}
+}
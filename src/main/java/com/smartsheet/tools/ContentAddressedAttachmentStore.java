@@ -0,0 +1,242 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.smartsheet.exceptions.CreateFileSystemItemException;
+import com.smartsheet.utils.HttpUtils;
+
+/**
+ * A store of attachment contents addressed by their SHA-256 hash, so that
+ * identical attachments (the same file attached to many rows or sheets, or
+ * unchanged between backups sharing the store) are only stored once.
+ * <p>
+ * Contents are hashed while they are streamed into the store and kept as
+ * "blobs" under {@code <store folder>/sha256/<ab>/<cd>/<hash>}. The file in the
+ * backup folder is then created as a hard link to the blob, or, where the file
+ * system does not support hard links (e.g. the store is on another volume), as
+ * a small pointer file named {@code <file name>.blobref} which holds the hash
+ * and the path of the blob. Hard links are made with {@code java.nio.file}
+ * where the JVM has it (Java 7 and later), so pointer files are always used
+ * on a Java 6 JVM.
+ * <p>
+ * The methods of this class are designed to be thread-safe.
+ */
+public class ContentAddressedAttachmentStore {
+
+	private static final String HASH_ALGORITHM = "SHA-256";
+	private static final String BLOBS_FOLDER = "sha256";
+	private static final String INCOMING_FOLDER = "incoming";
+	public static final String POINTER_FILE_EXTENSION = ".blobref";
+	private static final int BUFFER_SIZE = 64 * 1024; // 64K
+
+	/** Files.createLink(Path, Path) and File.toPath(), or null before Java 7 */
+	private static final Method CREATE_LINK;
+	private static final Method TO_PATH;
+
+	static {
+		Method createLink = null;
+		Method toPath = null;
+		try {
+			Class<?> pathClass = Class.forName("java.nio.file.Path");
+			createLink = Class.forName("java.nio.file.Files").getMethod("createLink", pathClass, pathClass);
+			toPath = File.class.getMethod("toPath");
+		} catch (Exception e) {
+			createLink = null; // no hard links, just pointer files
+		}
+		CREATE_LINK = createLink;
+		TO_PATH = toPath;
+	}
+
+	private final File storeFolder;
+	private final File incomingFolder;
+
+	/** The number of contents stored as new blobs */
+	private final AtomicInteger newBlobs = new AtomicInteger();
+	/** The number of contents which matched an existing blob */
+	private final AtomicInteger duplicateBlobs = new AtomicInteger();
+	/** The number of bytes not written thanks to duplicate blobs */
+	private final AtomicLong bytesSaved = new AtomicLong();
+
+	/**
+	 * @param storeFolder
+	 *            The folder holding the blobs. Created if it doesn't exist. The
+	 *            same folder should be shared by successive backups so that
+	 *            unchanged attachments are not stored again.
+	 */
+	public ContentAddressedAttachmentStore(File storeFolder) throws IOException {
+		this.storeFolder = storeFolder;
+		this.incomingFolder = new File(storeFolder, INCOMING_FOLDER);
+		if (!incomingFolder.isDirectory() && !incomingFolder.mkdirs())
+			throw new CreateFileSystemItemException(incomingFolder);
+	}
+
+	public File getStoreFolder() {
+		return storeFolder;
+	}
+
+	/**
+	 * Stores content to a file in the backup folder, reading the content just
+	 * once.
+	 *
+	 * @param content
+	 *            The content to store (not closed by this method).
+	 * @param targetFile
+	 *            The file in the backup folder which should present the
+	 *            content. Overwritten if it exists.
+	 * @return the file actually created, which is either the target file (a
+	 *         hard link) or a pointer file next to it
+	 */
+	public File store(InputStream content, File targetFile) throws IOException {
+		File blob = storeBlob(content);
+		return link(blob, targetFile);
+	}
+
+	/**
+	 * Streams content into the store, returning the blob which holds it.
+	 */
+	File storeBlob(InputStream content) throws IOException {
+		MessageDigest digest = newDigest();
+		File incoming = File.createTempFile("blob-", ".tmp", incomingFolder);
+		try {
+			OutputStream outStream = new DigestOutputStream(
+					new BufferedOutputStream(new FileOutputStream(incoming), BUFFER_SIZE), digest);
+			HttpUtils.copyAndClose(content, outStream);
+
+			String hash = toHex(digest.digest());
+			File blob = getBlobFile(hash);
+			if (blob.isFile()) {
+				duplicateBlobs.incrementAndGet();
+				bytesSaved.addAndGet(incoming.length());
+				return blob;
+			}
+
+			File blobFolder = blob.getParentFile();
+			if (!blobFolder.isDirectory() && !blobFolder.mkdirs() && !blobFolder.isDirectory())
+				throw new CreateFileSystemItemException(blobFolder);
+
+			// the rename is atomic within the store, so a blob is never seen
+			// partially written; if another thread stored the same content in
+			// the meantime, the rename just replaces it with identical bytes
+			if (!incoming.renameTo(blob) && !blob.isFile())
+				throw new CreateFileSystemItemException(blob);
+
+			newBlobs.incrementAndGet();
+			return blob;
+
+		} finally {
+			if (incoming.exists())
+				incoming.delete();
+		}
+	}
+
+	/**
+	 * Makes a blob appear as the target file, preferably as a hard link.
+	 */
+	File link(File blob, File targetFile) throws IOException {
+		if (targetFile.exists())
+			targetFile.delete();
+
+		if (createLink(blob, targetFile))
+			return targetFile;
+
+		File pointerFile = new File(targetFile.getParentFile(), targetFile.getName() + POINTER_FILE_EXTENSION);
+		PrintWriter writer = new PrintWriter(pointerFile, "UTF-8");
+		try {
+			writer.println(HASH_ALGORITHM.toLowerCase().replace("-", "") + ":" + blob.getName());
+			writer.println(blob.getAbsolutePath());
+
+		} finally {
+			writer.close();
+		}
+		if (writer.checkError())
+			throw new CreateFileSystemItemException(pointerFile);
+
+		return pointerFile;
+	}
+
+	/**
+	 * Creates a hard link to a blob, if the JVM and the file system support
+	 * it.
+	 */
+	private static boolean createLink(File blob, File targetFile) {
+		if (CREATE_LINK == null)
+			return false;
+
+		try {
+			CREATE_LINK.invoke(null, TO_PATH.invoke(targetFile), TO_PATH.invoke(blob));
+			return true;
+
+		} catch (InvocationTargetException e) {
+			// e.g. an IOException or UnsupportedOperationException from the
+			// file system: fall through to a pointer file
+			return false;
+		} catch (IllegalAccessException e) {
+			return false;
+		}
+	}
+
+	private File getBlobFile(String hash) {
+		File blobsRoot = new File(storeFolder, BLOBS_FOLDER);
+		File folder = new File(new File(blobsRoot, hash.substring(0, 2)), hash.substring(2, 4));
+		return new File(folder, hash);
+	}
+
+	public int getNewBlobs() {
+		return newBlobs.get();
+	}
+
+	public int getDuplicateBlobs() {
+		return duplicateBlobs.get();
+	}
+
+	public long getBytesSaved() {
+		return bytesSaved.get();
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+}
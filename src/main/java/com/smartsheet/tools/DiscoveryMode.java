@@ -0,0 +1,47 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools;
+
+/**
+ * The ways in which the sheets of a user, and the folders and workspaces they
+ * are in, are discovered by a backup.
+ */
+public enum DiscoveryMode {
+
+	/**
+	 * The whole home of the user is listed, including the sheets shared with
+	 * them, and every folder and workspace in it is backed up (even if it
+	 * holds no sheets they own).
+	 */
+	HOME,
+
+	/**
+	 * The sheets the user owns are listed first, page by page. The home is
+	 * only listed if they own any, and only the folders and workspaces
+	 * holding sheets they own are backed up.
+	 */
+	OWNED_SHEETS,
+
+	/**
+	 * The home of the user is walked workspace by workspace and folder by
+	 * folder, fetching the contents of several at once, and the sheets in each
+	 * are backed up as it arrives. The sheets at the top of the home are then
+	 * found by listing the sheets the user owns. Suited to homes too large to
+	 * list in one response.
+	 */
+	CONTAINERS
+}
@@ -0,0 +1,74 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools;
+
+/**
+ * The formats which sheets are saved in by a backup.
+ */
+public enum ExportFormat {
+
+	/**
+	 * An Excel workbook, exported by the API. The slowest for the API to
+	 * produce, but the closest to the sheet as seen in Smartsheet (formatting
+	 * included).
+	 */
+	XLSX(".xlsx", "application/vnd.ms-excel",
+			"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet"),
+
+	/**
+	 * A CSV file of the cell values, exported by the API.
+	 */
+	CSV(".csv", "text/csv", "text/csv"),
+
+	/**
+	 * A snapshot of the sheet as returned by the API in JSON (its columns, and
+	 * its rows with their cells), read page of rows by page of rows and
+	 * written as the pages arrive.
+	 */
+	JSON(".json", "application/json", "application/json");
+
+	private final String extension;
+	private final String acceptType;
+	private final String mimeType;
+
+	private ExportFormat(String extension, String acceptType, String mimeType) {
+		this.extension = extension;
+		this.acceptType = acceptType;
+		this.mimeType = mimeType;
+	}
+
+	/**
+	 * @return the extension of the files which sheets are saved to
+	 */
+	public String getExtension() {
+		return extension;
+	}
+
+	/**
+	 * @return the type which the sheet is requested as from the API
+	 */
+	public String getAcceptType() {
+		return acceptType;
+	}
+
+	/**
+	 * @return the MIME type of the files which sheets are saved to
+	 */
+	public String getMimeType() {
+		return mimeType;
+	}
+}
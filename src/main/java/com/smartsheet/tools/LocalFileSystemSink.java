@@ -0,0 +1,122 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+import com.smartsheet.exceptions.CreateFileSystemItemException;
+import com.smartsheet.utils.HttpUtils;
+
+/**
+ * A {@link BackupSink} which writes the backup to local folders and files.
+ */
+public class LocalFileSystemSink implements BackupSink {
+
+	private static final int BUFFER_SIZE = 64 * 1024; // 64K
+
+	private volatile Boolean caseSensitive;
+
+	@Override
+	public void prepareFolder(File folder) throws IOException {
+		if (folder.exists() && !folder.isDirectory())
+			throw new IllegalArgumentException(folder.getAbsolutePath() + " is not a directory");
+		else if (!folder.exists() && !folder.mkdirs())
+			throw new CreateFileSystemItemException(folder);
+
+		// the first folder prepared is the backup folder, whose file system
+		// is probed for case sensitivity
+		if (caseSensitive == null)
+			caseSensitive = probeCaseSensitivity(folder);
+	}
+
+	@Override
+	public void createFolder(File folder) throws IOException {
+		if (!folder.mkdir())
+			throw new CreateFileSystemItemException(folder);
+	}
+
+	@Override
+	public boolean exists(File item) {
+		return item.exists();
+	}
+
+	@Override
+	public String[] listExisting(File folder) {
+		return folder.list();
+	}
+
+	@Override
+	public boolean isCaseSensitive() {
+		if (caseSensitive == null)
+			caseSensitive = probeCaseSensitivity(new File(System.getProperty("java.io.tmpdir")));
+		return caseSensitive;
+	}
+
+	/**
+	 * Checks whether a file system is case-sensitive by creating a temporary
+	 * file in a folder and looking for it under its upper-case name. If the
+	 * probe fails the file system is assumed to be case-insensitive, which at
+	 * worst gives some names a number suffix they didn't need.
+	 */
+	private static boolean probeCaseSensitivity(File folder) {
+		try {
+			File probe = File.createTempFile("case-probe", ".tmp", folder);
+			try {
+				return !new File(folder, probe.getName().toUpperCase(Locale.ROOT)).exists();
+			} finally {
+				probe.delete();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void createFile(File file) throws IOException {
+		if (!file.createNewFile())
+			throw new CreateFileSystemItemException(file);
+	}
+
+	@Override
+	public void write(File file, String mimeType, InputStream content) throws IOException {
+		HttpUtils.copyAndClose(content, newOutputStream(file));
+	}
+
+	@Override
+	public OutputStream newOutputStream(File file) throws IOException {
+		if (file.exists())
+			file.delete();
+
+		return new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+	}
+
+	@Override
+	public String getLocation(File item) {
+		return item.getAbsolutePath();
+	}
+
+	@Override
+	public void close() {
+		// nothing pending, since files are written synchronously
+	}
+}
@@ -0,0 +1,154 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Assigns the names of the folders and files of a backup, keeping track in
+ * memory of the names used in each folder so that a unique name is found
+ * without probing the {@link BackupSink} for every candidate. The names
+ * already in a folder are listed from the sink once, the first time a name is
+ * assigned in the folder.
+ * <p>
+ * Names are compared case-insensitively unless the sink is case-sensitive, so
+ * that "Budget" and "budget" are never both assigned in a folder where they
+ * would clash.
+ * <p>
+ * The methods are thread-safe; assignments in different folders don't
+ * contend with each other.
+ */
+public class NameRegistry {
+
+	private final BackupSink sink;
+	private final ConcurrentMap<String, FolderNames> folders = new ConcurrentHashMap<String, FolderNames>();
+	private volatile Boolean caseSensitive;
+
+	public NameRegistry(BackupSink sink) {
+		this.sink = sink;
+	}
+
+	/**
+	 * Reserves an exact name in a folder.
+	 *
+	 * @return {@code false} if the name is already used in the folder
+	 */
+	public boolean reserve(File folder, String name) {
+		return getFolderNames(folder).reserve(name);
+	}
+
+	/**
+	 * Reserves a unique name in a folder, appending a number suffix starting
+	 * from 2 if the name is already used (as in "name (2).ext", "name
+	 * (3).ext", etc.)
+	 *
+	 * @param extension
+	 *            the extension (including the dot) which follows the number
+	 *            suffix, or an empty string
+	 * @return the name reserved
+	 */
+	public String reserveUnique(File folder, String baseName, String extension) {
+		return reserveUnique(folder, baseName, extension, 2);
+	}
+
+	/**
+	 * Reserves a unique name in a folder, appending a number suffix starting
+	 * from a specified number if the name is already used. The numbers tried
+	 * for a name are remembered, so reserving many duplicates of a name takes
+	 * time proportional to their number rather than its square.
+	 *
+	 * @return the name reserved
+	 */
+	public String reserveUnique(File folder, String baseName, String extension, int firstSuffix) {
+		String name = baseName + extension;
+		if (name.length() == 0)
+			throw new IllegalStateException("Name " + name + " results in an empty name!");
+
+		return getFolderNames(folder).reserveUnique(baseName, extension, firstSuffix);
+	}
+
+	private FolderNames getFolderNames(File folder) {
+		String key = folder.getPath();
+		FolderNames names = folders.get(key);
+		if (names == null) {
+			FolderNames newNames = new FolderNames(folder);
+			names = folders.putIfAbsent(key, newNames);
+			if (names == null)
+				names = newNames;
+		}
+		return names;
+	}
+
+	private String normalize(String name) {
+		if (caseSensitive == null)
+			caseSensitive = sink.isCaseSensitive();
+
+		return caseSensitive ? name : name.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * The names used in a folder, and the next number suffix to try for each
+	 * name which has duplicates.
+	 */
+	private class FolderNames {
+		private final File folder;
+		private Set<String> used;
+		private final Map<String, Integer> nextSuffixes = new HashMap<String, Integer>();
+
+		FolderNames(File folder) {
+			this.folder = folder;
+		}
+
+		synchronized boolean reserve(String name) {
+			return getUsed().add(normalize(name));
+		}
+
+		synchronized String reserveUnique(String baseName, String extension, int firstSuffix) {
+			String name = baseName + extension;
+			if (getUsed().add(normalize(name)))
+				return name;
+
+			String key = normalize(name);
+			Integer nextSuffix = nextSuffixes.get(key);
+			int suffix = nextSuffix != null ? nextSuffix : firstSuffix;
+			do {
+				name = baseName + " (" + suffix++ + ")" + extension;
+			} while (!used.add(normalize(name)));
+
+			nextSuffixes.put(key, suffix);
+			return name;
+		}
+
+		private Set<String> getUsed() {
+			if (used == null) {
+				used = new HashSet<String>();
+				String[] existing = sink.listExisting(folder);
+				if (existing != null)
+					for (String name : existing)
+						used.add(normalize(name));
+			}
+			return used;
+		}
+	}
+}
@@ -0,0 +1,567 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+
+import com.smartsheet.exceptions.CreateFileSystemItemException;
+import com.smartsheet.exceptions.ServiceUnavailableException;
+import com.smartsheet.utils.ProgressWatcher;
+
+/**
+ * A {@link BackupSink} which uploads the backup to a bucket of an
+ * S3-compatible object store, so that it never lands on local disk. Each file
+ * becomes an object keyed by a prefix and the path of the file relative to the
+ * backup folder; folders are implied by the keys.
+ * <p>
+ * Files are streamed to the store in parts as they are written: a file which
+ * fits in one part is uploaded with a single PUT, and a larger one with a
+ * multipart upload, so that only one part of each file is held in memory (and
+ * no more of it than has been written). An upload which fails part way through
+ * is aborted, so nothing is committed. Requests share a pool of connections,
+ * which is released when the sink is closed.
+ * <p>
+ * Requests are path-style ({@code <endpoint>/<bucket>/<key>}) and signed with
+ * AWS Signature Version 4, which S3 and compatible stores accept.
+ */
+public class ObjectStoreSink implements BackupSink {
+
+	public static final int MIN_PART_SIZE = 5 * 1024 * 1024; // 5M, the S3 minimum
+
+	private static final String CHARSET = "UTF-8";
+	private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+	private static final String SERVICE = "s3";
+	private static final String SIGNED_HEADERS = "host;x-amz-content-sha256;x-amz-date";
+	private static final int MAX_ATTEMPTS = 3;
+	private static final int RETRY_BASE_DELAY_SECS = 2; // doubled for each retry
+	private static final int MAX_CONNECTIONS = 64; // more than the download threads
+	private static final int INITIAL_PART_BUFFER_SIZE = 64 * 1024; // grown up to the part size
+
+	private final File rootFolder;
+	private final URI endpoint;
+	private final String bucket;
+	private final String keyPrefix;
+	private final String region;
+	private final String accessKey;
+	private final String secretKey;
+	private final int partSize;
+	private final CloseableHttpClient httpClient;
+
+	/** The keys of the files uploaded or reserved, and of the folders created */
+	private final Set<String> names = new HashSet<String>();
+
+	/**
+	 * @param rootFolder
+	 *            The backup folder, which the paths of the folders and files of
+	 *            the backup are relative to. Nothing is written to it.
+	 * @param endpoint
+	 *            The base URL of the object store (e.g.
+	 *            "https://s3.us-east-1.amazonaws.com").
+	 * @param bucket
+	 *            The bucket to upload to.
+	 * @param keyPrefix
+	 *            The prefix of the keys of the objects (e.g. the name of the
+	 *            backup folder, ending with '/'), or an empty string.
+	 * @param region
+	 *            The region of the bucket, used in request signatures.
+	 * @param accessKey
+	 *            The access key ID to sign requests with.
+	 * @param secretKey
+	 *            The secret access key to sign requests with.
+	 * @param partSize
+	 *            The size of the parts of multipart uploads, at least
+	 *            {@link #MIN_PART_SIZE}.
+	 */
+	public ObjectStoreSink(File rootFolder, String endpoint, String bucket, String keyPrefix, String region,
+			String accessKey, String secretKey, int partSize) {
+		if (partSize < MIN_PART_SIZE)
+			throw new IllegalArgumentException("Part size (" + partSize + ") cannot be less than " + MIN_PART_SIZE);
+
+		this.rootFolder = rootFolder;
+		this.endpoint = URI.create(endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint);
+		this.bucket = bucket;
+		this.keyPrefix = keyPrefix;
+		this.region = region;
+		this.accessKey = accessKey;
+		this.secretKey = secretKey;
+		this.partSize = partSize;
+		this.httpClient = HttpClientBuilder.create().setMaxConnTotal(MAX_CONNECTIONS)
+				.setMaxConnPerRoute(MAX_CONNECTIONS).build();
+	}
+
+	@Override
+	public void prepareFolder(File folder) {
+		synchronized (names) {
+			names.add(getKey(folder) + "/");
+		}
+	}
+
+	@Override
+	public void createFolder(File folder) throws IOException {
+		reserve(getKey(folder) + "/", folder);
+	}
+
+	@Override
+	public boolean exists(File item) {
+		String key = getKey(item);
+		synchronized (names) {
+			return names.contains(key) || names.contains(key + "/");
+		}
+	}
+
+	@Override
+	public String[] listExisting(File folder) {
+		return null; // the key prefix is new
+	}
+
+	@Override
+	public boolean isCaseSensitive() {
+		return true; // object keys are
+	}
+
+	@Override
+	public void createFile(File file) throws IOException {
+		reserve(getKey(file), file);
+	}
+
+	@Override
+	public void write(File file, String mimeType, InputStream content) throws IOException {
+		Upload upload = new Upload(getKey(file), mimeType);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int bytesRead;
+			while ((bytesRead = content.read(buffer)) != -1)
+				upload.write(buffer, 0, bytesRead);
+
+		} catch (IOException e) {
+			// the content is incomplete, so it must not be committed
+			upload.abort();
+			throw e;
+		}
+		upload.close();
+	}
+
+	@Override
+	public OutputStream newOutputStream(File file) {
+		return new Upload(getKey(file), null);
+	}
+
+	@Override
+	public String getLocation(File item) {
+		return endpoint + "/" + bucket + "/" + getKey(item);
+	}
+
+	@Override
+	public void close() throws IOException {
+		// nothing pending, since files are uploaded as they are written
+		httpClient.close();
+	}
+
+	// helpers
+
+	private void reserve(String key, File item) throws CreateFileSystemItemException {
+		synchronized (names) {
+			String fileKey = key.endsWith("/") ? key.substring(0, key.length() - 1) : key;
+			if (names.contains(fileKey) || names.contains(fileKey + "/"))
+				throw new CreateFileSystemItemException(item);
+			names.add(key);
+		}
+	}
+
+	/**
+	 * @return the object key of an item, i.e. the prefix followed by the path
+	 *         of the item relative to the root folder, using '/' as the
+	 *         separator
+	 */
+	private String getKey(File item) {
+		String rootPath = rootFolder.getAbsolutePath();
+		String path = item.getAbsolutePath();
+		if (path.equals(rootPath))
+			return keyPrefix.endsWith("/") ? keyPrefix.substring(0, keyPrefix.length() - 1) : keyPrefix;
+		if (!path.startsWith(rootPath + File.separator))
+			throw new IllegalArgumentException(path + " is not in the backup folder " + rootPath);
+
+		return keyPrefix + path.substring(rootPath.length() + 1).replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Streams the content of a file to the store, one part at a time. Closing
+	 * the upload commits it.
+	 */
+	private class Upload extends OutputStream {
+		private final String key;
+		private final String mimeType;
+		private byte[] part = new byte[0]; // grown as it's filled
+		private int partLength;
+		private String uploadId; // null until a multipart upload is started
+		private final List<String> partETags = new ArrayList<String>();
+		private boolean closed;
+
+		Upload(String key, String mimeType) {
+			this.key = key;
+			this.mimeType = mimeType;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			while (length > 0) {
+				if (partLength == partSize)
+					uploadPart();
+				if (partLength == part.length)
+					growPart(partLength + length);
+
+				int copied = Math.min(length, part.length - partLength);
+				System.arraycopy(bytes, offset, part, partLength, copied);
+				partLength += copied;
+				offset += copied;
+				length -= copied;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+
+			try {
+				if (uploadId == null) {
+					// small enough for a single request
+					HttpPut put = new HttpPut(getObjectUri(""));
+					if (mimeType != null)
+						put.addHeader("Content-Type", mimeType);
+					execute(put, part, partLength);
+				} else {
+					if (partLength > 0)
+						uploadPart();
+					completeMultipartUpload();
+				}
+				synchronized (names) {
+					names.add(key);
+				}
+
+			} catch (IOException e) {
+				abort();
+				throw e;
+			}
+		}
+
+		void abort() {
+			closed = true;
+			if (uploadId == null)
+				return;
+
+			try {
+				execute(new HttpDelete(getObjectUri("?uploadId=" + encode(uploadId))), new byte[0], 0);
+			} catch (IOException e) {
+				// the store expires incomplete uploads according to its
+				// lifecycle rules
+			}
+			uploadId = null;
+		}
+
+		private void uploadPart() throws IOException {
+			if (uploadId == null) {
+				HttpPost post = new HttpPost(getObjectUri("?uploads"));
+				if (mimeType != null)
+					post.addHeader("Content-Type", mimeType);
+				uploadId = getXmlElement(execute(post, new byte[0], 0), "UploadId");
+			}
+
+			int partNumber = partETags.size() + 1;
+			HttpPut put = new HttpPut(getObjectUri("?partNumber=" + partNumber + "&uploadId=" + encode(uploadId)));
+			HttpResponse response = executeForResponse(put, part, partLength);
+			if (response.getFirstHeader("ETag") == null)
+				throw new IOException("Object store returned no ETag for part " + partNumber + " of " + key);
+			partETags.add(response.getFirstHeader("ETag").getValue());
+			partLength = 0;
+		}
+
+		private void completeMultipartUpload() throws IOException {
+			StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+			for (int i = 0; i < partETags.size(); i++)
+				xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+						.append(partETags.get(i)).append("</ETag></Part>");
+			xml.append("</CompleteMultipartUpload>");
+
+			byte[] body = xml.toString().getBytes(CHARSET);
+			String result = execute(new HttpPost(getObjectUri("?uploadId=" + encode(uploadId))), body,
+					body.length);
+			// a completion can fail after the response has started
+			if (result.contains("<Error>"))
+				throw new IOException("Upload of " + key + " failed: " + result);
+			uploadId = null;
+		}
+
+		/**
+		 * Grows the buffer of the part towards a size needed (doubling it, up
+		 * to the part size), so that small files only take what they need.
+		 */
+		private void growPart(int needed) {
+			int size = Math.max(INITIAL_PART_BUFFER_SIZE, part.length * 2);
+			while (size < needed && size < partSize)
+				size *= 2;
+			byte[] grown = new byte[Math.min(size, partSize)];
+			System.arraycopy(part, 0, grown, 0, partLength);
+			part = grown;
+		}
+
+		private URI getObjectUri(String query) throws UnsupportedEncodingException {
+			return URI.create(endpoint + "/" + encode(bucket) + "/" + encodeKey(key) + query);
+		}
+	}
+
+	// requests
+
+	/**
+	 * Executes a signed request, retrying if the store is unavailable.
+	 *
+	 * @param body
+	 *            the buffer holding the body of the request, which is the
+	 *            first length bytes of it
+	 * @return the body of the response
+	 */
+	private String execute(HttpRequestBase request, byte[] body, int length) throws IOException {
+		HttpResponse response = executeForResponse(request, body, length);
+		return response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), CHARSET);
+	}
+
+	private HttpResponse executeForResponse(HttpRequestBase request, byte[] body, int length) throws IOException {
+		IOException finalException = null;
+		for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+			sign(request, body, length);
+			if (request instanceof HttpEntityEnclosingRequestBase)
+				((HttpEntityEnclosingRequestBase) request).setEntity(new ByteArrayEntity(body, 0, length));
+
+			IOException clientError = null;
+			try {
+				HttpResponse response = httpClient.execute(request);
+				int statusCode = response.getStatusLine().getStatusCode();
+				if (statusCode >= 200 && statusCode < 300) {
+					if (response.getEntity() != null)
+						response.setEntity(new ByteArrayEntity(EntityUtils.toByteArray(response.getEntity())));
+					return response;
+				}
+
+				if (statusCode >= 500) {
+					finalException = new ServiceUnavailableException(request.getURI().toString());
+				} else {
+					// a client error, which won't go away on retry
+					String error = response.getEntity() == null ? ""
+							: EntityUtils.toString(response.getEntity(), CHARSET);
+					clientError = new IOException(request.getMethod() + " " + request.getURI() + " returned: "
+							+ statusCode + " - " + response.getStatusLine().getReasonPhrase() + " " + error);
+				}
+
+			} catch (IOException e) {
+				finalException = e;
+			} finally {
+				request.releaseConnection();
+			}
+			if (clientError != null)
+				throw clientError;
+
+			if (attempt < MAX_ATTEMPTS)
+				sleepBeforeRetry(attempt, request, finalException);
+		}
+		throw finalException;
+	}
+
+	/**
+	 * Backs off exponentially before retrying a request which failed.
+	 */
+	private static void sleepBeforeRetry(int attempt, HttpRequestBase request, IOException failure)
+			throws IOException {
+		int sleepSecs = RETRY_BASE_DELAY_SECS << (attempt - 1);
+		ProgressWatcher.getInstance().notify("Object store request %s %s failed (%s) - sleep %d secs before retry...",
+				request.getMethod(), request.getURI(), failure.getMessage(), sleepSecs);
+		try {
+			Thread.sleep(TimeUnit.SECONDS.toMillis(sleepSecs));
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while uploading to " + request.getURI());
+		}
+	}
+
+	/**
+	 * Adds the headers of an AWS Signature Version 4 to a request.
+	 */
+	private void sign(HttpRequestBase request, byte[] body, int length) throws IOException {
+		SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+		timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		String timestamp = timestampFormat.format(new Date());
+		String date = timestamp.substring(0, 8);
+		String payloadHash = toHex(sha256(body, 0, length));
+
+		URI uri = request.getURI();
+		String host = uri.getHost() + (uri.getPort() == -1 ? "" : ":" + uri.getPort());
+		request.removeHeaders("x-amz-date");
+		request.removeHeaders("x-amz-content-sha256");
+		request.removeHeaders("Authorization");
+		request.setHeader("x-amz-date", timestamp);
+		request.setHeader("x-amz-content-sha256", payloadHash);
+		request.setHeader("User-Agent", "Smartsheet Org Backup Tool/" + SmartsheetBackupTool.VERSION);
+
+		String canonicalRequest = request.getMethod() + "\n"
+				+ uri.getRawPath() + "\n"
+				+ getCanonicalQuery(uri.getRawQuery()) + "\n"
+				+ "host:" + host + "\n"
+				+ "x-amz-content-sha256:" + payloadHash + "\n"
+				+ "x-amz-date:" + timestamp + "\n\n"
+				+ SIGNED_HEADERS + "\n"
+				+ payloadHash;
+
+		String scope = date + "/" + region + "/" + SERVICE + "/aws4_request";
+		String stringToSign = ALGORITHM + "\n" + timestamp + "\n" + scope + "\n"
+				+ toHex(sha256(canonicalRequest.getBytes(CHARSET)));
+
+		byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(CHARSET), date);
+		signingKey = hmac(signingKey, region);
+		signingKey = hmac(signingKey, SERVICE);
+		signingKey = hmac(signingKey, "aws4_request");
+		String signature = toHex(hmac(signingKey, stringToSign));
+
+		request.setHeader("Authorization", ALGORITHM + " Credential=" + accessKey + "/" + scope
+				+ ", SignedHeaders=" + SIGNED_HEADERS + ", Signature=" + signature);
+	}
+
+	/**
+	 * @return the query parameters sorted by name, each with a value (even if
+	 *         empty), as signatures require
+	 */
+	private static String getCanonicalQuery(String rawQuery) {
+		if (rawQuery == null || rawQuery.isEmpty())
+			return "";
+
+		List<String> parameters = new ArrayList<String>();
+		for (String parameter : rawQuery.split("&"))
+			parameters.add(parameter.contains("=") ? parameter : parameter + "=");
+		Collections.sort(parameters);
+
+		StringBuilder query = new StringBuilder();
+		for (String parameter : parameters) {
+			if (query.length() > 0)
+				query.append('&');
+			query.append(parameter);
+		}
+		return query.toString();
+	}
+
+	private static String getXmlElement(String xml, String element) throws IOException {
+		int start = xml.indexOf("<" + element + ">");
+		int end = xml.indexOf("</" + element + ">");
+		if (start == -1 || end == -1)
+			throw new IOException("Unexpected response from object store: " + xml);
+		return xml.substring(start + element.length() + 2, end);
+	}
+
+	/**
+	 * URI-encodes a value as signatures require (only unreserved characters
+	 * are left as they are).
+	 */
+	private static String encode(String value) throws UnsupportedEncodingException {
+		StringBuilder encoded = new StringBuilder();
+		for (byte b : value.getBytes(CHARSET)) {
+			char c = (char) (b & 0xFF);
+			if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_'
+					|| c == '.' || c == '~')
+				encoded.append(c);
+			else
+				encoded.append('%').append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16)))
+						.append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+		}
+		return encoded.toString();
+	}
+
+	private static String encodeKey(String key) throws UnsupportedEncodingException {
+		StringBuilder encoded = new StringBuilder();
+		for (String segment : key.split("/", -1)) {
+			if (encoded.length() > 0)
+				encoded.append('/');
+			encoded.append(encode(segment));
+		}
+		return encoded.toString();
+	}
+
+	private static byte[] sha256(byte[] bytes) {
+		return sha256(bytes, 0, bytes.length);
+	}
+
+	private static byte[] sha256(byte[] bytes, int offset, int length) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(bytes, offset, length);
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // every JVM supports SHA-256
+		}
+	}
+
+	private static byte[] hmac(byte[] key, String data) throws IOException {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(key, "HmacSHA256"));
+			return mac.doFinal(data.getBytes(CHARSET));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e); // every JVM supports HmacSHA256
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+}
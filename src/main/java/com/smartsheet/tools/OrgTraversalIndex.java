@@ -0,0 +1,87 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.smartsheet.restapi.model.SmartsheetFolder;
+import com.smartsheet.restapi.model.SmartsheetWorkspace;
+
+/**
+ * An index of the workspaces, folders and sheets visited by a backup of an
+ * organization, across all its users. A workspace shared by several users is
+ * in the home of each of them; with the index, only the first user to visit it
+ * creates its whole folder structure, and later users only create the parts
+ * holding sheets they own. Each sheet is backed up (exported and its
+ * attachments scanned) at most once, by the first owner to visit it.
+ * <p>
+ * The methods of this class are thread-safe.
+ */
+public class OrgTraversalIndex {
+
+	/** The folders backed up for the workspaces and folders visited, by key */
+	private final ConcurrentMap<String, File> containers = new ConcurrentHashMap<String, File>();
+	/** The users who claimed the sheets backed up, by sheet ID */
+	private final ConcurrentMap<Long, String> sheets = new ConcurrentHashMap<Long, String>();
+
+	/**
+	 * Records that a workspace or folder has been visited and backed up to a
+	 * folder, unless it was visited before.
+	 *
+	 * @return the folder which it was first backed up to, or null if this is
+	 *         the first visit
+	 */
+	public File visitContainer(SmartsheetFolder container, File backupFolder) {
+		return containers.putIfAbsent(getKey(container), backupFolder);
+	}
+
+	/**
+	 * @return the folder which a workspace or folder was first backed up to,
+	 *         or null if it hasn't been visited
+	 */
+	public File getContainerFolder(SmartsheetFolder container) {
+		return containers.get(getKey(container));
+	}
+
+	/**
+	 * Claims a sheet for backing up by a user, unless another user (or the
+	 * same user elsewhere in their home) claimed it before.
+	 *
+	 * @return whether the sheet was claimed by this call
+	 */
+	public boolean claimSheet(long sheetId, String userEmail) {
+		return sheets.putIfAbsent(sheetId, String.valueOf(userEmail)) == null;
+	}
+
+	public boolean isSheetClaimed(long sheetId) {
+		return sheets.containsKey(sheetId);
+	}
+
+	/**
+	 * @return the user who claimed a sheet, or null if it's unclaimed
+	 */
+	public String getSheetClaimer(long sheetId) {
+		return sheets.get(sheetId);
+	}
+
+	// workspaces and folders are numbered separately by the API
+	private static String getKey(SmartsheetFolder container) {
+		return (container instanceof SmartsheetWorkspace ? "workspace/" : "folder/") + container.getId();
+	}
+}
@@ -16,15 +16,19 @@
  **/
 package com.smartsheet.tools;
 
-import static com.smartsheet.utils.HttpUtils.saveUrlToFile;
-
 import java.io.File;
-import java.util.concurrent.ExecutorService;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import com.smartsheet.utils.HttpUtils;
+import com.smartsheet.utils.MeteredInputStream;
+import com.smartsheet.utils.MetricsRegistry;
 import com.smartsheet.utils.ProgressWatcher;
+import com.smartsheet.utils.StripedCounter;
 
 /**
  * A service which downloads files from the Internet in parallel (i.e.,
@@ -32,7 +36,9 @@ import com.smartsheet.utils.ProgressWatcher;
  */
 public class ParallelDownloadService {
 
-	private final ExecutorService executor;
+	private static final StripedCounter ATTACHMENT_BYTES = MetricsRegistry.getInstance().counter("attachment.bytes");
+
+	private final ThreadPoolExecutor executor;
 
 	/** The number of posted jobs */
 	private final AtomicInteger posts = new AtomicInteger();
@@ -41,6 +47,36 @@ public class ParallelDownloadService {
 	/** The number of failed jobs */
 	private final AtomicInteger failures = new AtomicInteger();
 
+	/** The store to deduplicate downloads with (null if not deduplicating) */
+	private ContentAddressedAttachmentStore attachmentStore;
+
+	/** The journal which completed downloads are recorded in */
+	private BackupJournal journal = BackupJournal.disabled();
+
+	/** The sink which downloaded files are written to */
+	private BackupSink sink = new LocalFileSystemSink();
+
+	/** The progress which finished downloads are counted in */
+	private BackupProgress progress = new BackupProgress();
+
+	/**
+	 * Follows the download jobs posted with it, e.g. to tell when all those
+	 * of a user have finished.
+	 */
+	public interface JobListener {
+
+		/** Called when a job is posted, on the posting thread */
+		void jobPosted();
+
+		/**
+		 * Called when a job has finished, on the thread which ran it.
+		 *
+		 * @param succeeded
+		 *            whether the job completed successfully
+		 */
+		void jobFinished(boolean succeeded);
+	}
+
 	/**
 	 * @param numberOfThreads
 	 *            The number of threads to allocate for parallel downloading. It
@@ -51,7 +87,54 @@ public class ParallelDownloadService {
 	 */
 	public ParallelDownloadService(int numberOfThreads) throws IllegalArgumentException {
 
-		executor = Executors.newFixedThreadPool(numberOfThreads);
+		executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(numberOfThreads);
+
+		MetricsRegistry metrics = MetricsRegistry.getInstance();
+		metrics.gauge("downloads.queueDepth", new MetricsRegistry.Gauge() {
+			@Override
+			public long getValue() {
+				return executor.getQueue().size();
+			}
+		});
+		metrics.gauge("downloads.activeThreads", new MetricsRegistry.Gauge() {
+			@Override
+			public long getValue() {
+				return executor.getActiveCount();
+			}
+		});
+	}
+
+	/**
+	 * Sets a store which downloaded files are deduplicated into, in which case
+	 * the target files of the jobs are created as links to the stored contents.
+	 */
+	public void setAttachmentStore(ContentAddressedAttachmentStore attachmentStore) {
+		this.attachmentStore = attachmentStore;
+	}
+
+	/**
+	 * Sets the sink which downloaded files are written to (by default, local
+	 * files). Deduplication into an attachment store only applies to local
+	 * files.
+	 */
+	public void setSink(BackupSink sink) {
+		this.sink = sink;
+	}
+
+	/**
+	 * Sets the journal which completed downloads are recorded in, so that they
+	 * are not downloaded again if an interrupted backup is resumed.
+	 */
+	public void setJournal(BackupJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Sets the progress which finished downloads (successful or not) are
+	 * counted in.
+	 */
+	public void setProgress(BackupProgress progress) {
+		this.progress = progress;
 	}
 
 	/**
@@ -77,8 +160,25 @@ public class ParallelDownloadService {
 	public void postAsynchronousDownloadJob(final InternetContentSource source,
 			final String postedMessage, final String errorContext,
 			final String folder, final String targetFile) {
+		postAsynchronousDownloadJob(source, postedMessage, errorContext, folder, targetFile, null);
+	}
+
+	/**
+	 * Posts an asynchronous ("parallel") download job, as
+	 * {@link #postAsynchronousDownloadJob(InternetContentSource, String, String, String, String)}
+	 * does, notifying a listener of the job.
+	 *
+	 * @param listener
+	 *            notified when the job is posted and when it has finished
+	 *            (null for none)
+	 */
+	public void postAsynchronousDownloadJob(final InternetContentSource source,
+			final String postedMessage, final String errorContext,
+			final String folder, final String targetFile, final JobListener listener) {
 
 		ProgressWatcher.getInstance().notify(postedMessage);
+		if (listener != null)
+			listener.jobPosted();
 
 		// Submit a new job, returning immediately. The job will be queued until
 		// a thread in the pool becomes available to handle it.
@@ -90,22 +190,29 @@ public class ParallelDownloadService {
 			public void run() {
 				// Create the file and get the name for the file
 				String sourceUrl = "";
+				boolean succeeded = false;
 				try {
 					// targetFile =
 					// SheetSaver.createFileFor(source.getAttachment(), folder,
 					// null);
-					String completedMessage = String.format(
-							"...%s Attachment [%s] downloaded as [%s]", source
-									.getAttachment().getAttachmentType(),
-							source.getAttachment().getName(), targetFile);
-
 					sourceUrl = source.getURL();
 
-					saveUrlToFile(sourceUrl, new File(folder, targetFile));
+					File file = new File(folder, targetFile);
+					if (attachmentStore == null)
+						saveUrlToSink(sourceUrl, file, source.getAttachment().getMimeType());
+					else
+						saveUrlToStore(sourceUrl, file);
 
-					ProgressWatcher.getInstance().notify(completedMessage);
+					journal.markAttachmentDone(source.getAttachment().getId());
+					SheetSaver.FILES_CREATED.increment();
+
+					ProgressWatcher.getInstance().notify(
+							"...%s Attachment [%s] downloaded as [%s]", source
+									.getAttachment().getAttachmentType(),
+							source.getAttachment().getName(), targetFile);
 
 					completions.incrementAndGet();
+					succeeded = true;
 
 				} catch (Exception e) {
 					failures.incrementAndGet();
@@ -118,6 +225,10 @@ public class ParallelDownloadService {
 											e.getClass().getSimpleName(),
 											e.getLocalizedMessage(), sourceUrl,
 											targetFile, errorContext), e);
+				} finally {
+					progress.attachmentDone(source.getAttachment().getSizeInKb() * 1024);
+					if (listener != null)
+						listener.jobFinished(succeeded);
 				}
 			}
 		});
@@ -126,6 +237,24 @@ public class ParallelDownloadService {
 		posts.incrementAndGet();
 	}
 
+	private void saveUrlToSink(String sourceUrl, final File file, final String mimeType) throws InterruptedException, IOException {
+		HttpUtils.saveUrlTo(sourceUrl, null, null, null, new HttpUtils.ContentHandler() {
+			@Override
+			public void handle(InputStream content) throws IOException {
+				sink.write(file, mimeType, new MeteredInputStream(content, ATTACHMENT_BYTES));
+			}
+		}, sink.getLocation(file));
+	}
+
+	private void saveUrlToStore(String sourceUrl, final File file) throws InterruptedException, IOException {
+		HttpUtils.saveUrlTo(sourceUrl, null, null, null, new HttpUtils.ContentHandler() {
+			@Override
+			public void handle(InputStream content) throws IOException {
+				attachmentStore.store(new MeteredInputStream(content, ATTACHMENT_BYTES), file);
+			}
+		}, file.getAbsolutePath());
+	}
+
 	/**
 	 * @return {@code true} if all jobs were "done" (completed successfully);
 	 *         otherwise {@code false}
@@ -0,0 +1,234 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+import com.smartsheet.restapi.model.SmartsheetPagingwrapper;
+import com.smartsheet.restapi.model.SmartsheetUser;
+import com.smartsheet.restapi.service.SmartsheetService;
+
+/**
+ * Lists the users of an organization page by page, handing out each user as
+ * soon as the page it is on has arrived rather than after all pages have been
+ * listed.
+ * <p>
+ * The first page is fetched when the lister is created, which reveals the
+ * number of pages. The remaining pages are then fetched concurrently, each by
+ * a clone of the API service, while the users of the pages already arrived are
+ * taken (in the order of their pages) by the caller of {@link #next()}. If the
+ * API service can't be cloned, the remaining pages are fetched one at a time
+ * by the service itself, each when the users of the previous page have been
+ * taken.
+ * <p>
+ * {@link #next()} is meant to be called by a single thread.
+ */
+public class ParallelUserLister {
+
+	private static final int DEFAULT_THREADS = 4;
+
+	/** The result of fetching a page: its users, or the error fetching it */
+	private static class PageResult {
+		private final SmartsheetPagingwrapper<SmartsheetUser> page;
+		private final Exception error;
+
+		PageResult(SmartsheetPagingwrapper<SmartsheetUser> page, Exception error) {
+			this.page = page;
+			this.error = error;
+		}
+	}
+
+	private final SmartsheetService apiService;
+	private final int totalPages;
+	private final int totalCount;
+	private final Queue<SmartsheetUser> users = new ArrayDeque<SmartsheetUser>();
+
+	/** The pages fetched concurrently (null if fetching them one at a time) */
+	private final BlockingQueue<PageResult> fetchedPages;
+	private final ExecutorService executor;
+
+	private int nextPageNumber; // of the pages fetched one at a time
+	private int pagesPending; // to be taken from the fetched pages
+
+	/**
+	 * Lists the users with a default number of threads.
+	 *
+	 * @see #ParallelUserLister(SmartsheetService, int)
+	 */
+	public ParallelUserLister(SmartsheetService apiService) throws Exception {
+		this(apiService, DEFAULT_THREADS);
+	}
+
+	/**
+	 * Fetches the first page of users, and starts fetching the remaining
+	 * pages.
+	 *
+	 * @param apiService
+	 *            the API service of the account administrator, which must not
+	 *            be assuming another user while the first page is fetched
+	 * @param threads
+	 *            the number of threads fetching the remaining pages
+	 */
+	public ParallelUserLister(SmartsheetService apiService, int threads) throws Exception {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be at least 1");
+
+		this.apiService = apiService;
+		SmartsheetPagingwrapper<SmartsheetUser> firstPage = apiService.getUsers(1);
+		totalPages = firstPage.getTotalPages();
+		totalCount = firstPage.getTotalCount();
+		users.addAll(firstPage.getData());
+
+		// the page number returned is that of the page actually listed
+		nextPageNumber = firstPage.getPageNumber() + 1;
+		int remainingPages = Math.max(0, totalPages - nextPageNumber + 1);
+		if (remainingPages == 0) {
+			fetchedPages = null;
+			executor = null;
+			return;
+		}
+
+		SmartsheetService[] clones = cloneServices(Math.min(threads, remainingPages));
+		if (clones == null) {
+			fetchedPages = null;
+			executor = null;
+			return;
+		}
+
+		fetchedPages = new LinkedBlockingQueue<PageResult>();
+		executor = Executors.newFixedThreadPool(clones.length, new ThreadFactory() {
+			private int threadNumber;
+
+			@Override
+			public synchronized Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "user-lister-" + ++threadNumber);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		// the pages are fetched in order, each thread taking the next page
+		// left, so that pages tend to arrive in the order they're taken in
+		final BlockingQueue<Integer> pageNumbers = new LinkedBlockingQueue<Integer>();
+		for (int pageNumber = nextPageNumber; pageNumber <= totalPages; pageNumber++)
+			pageNumbers.add(pageNumber);
+		pagesPending = remainingPages;
+
+		for (final SmartsheetService clone : clones) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					Integer pageNumber;
+					while ((pageNumber = pageNumbers.poll()) != null
+							&& !Thread.currentThread().isInterrupted()) {
+						try {
+							fetchedPages.add(new PageResult(clone.getUsers(pageNumber), null));
+						} catch (Exception e) {
+							fetchedPages.add(new PageResult(null, e));
+						}
+					}
+				}
+			});
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * @return the number of pages which the users are listed in
+	 */
+	public int getTotalPages() {
+		return totalPages;
+	}
+
+	/**
+	 * @return the number of users in the organization, as reported with the
+	 *         first page
+	 */
+	public int getTotalCount() {
+		return totalCount;
+	}
+
+	/**
+	 * Takes the next user, waiting for a page of users to arrive if needed.
+	 * The users of a page are taken in their order in the page, but pages
+	 * fetched concurrently are taken in the order they arrive in.
+	 *
+	 * @return the next user, or null when all users have been taken
+	 *
+	 * @throws Exception
+	 *             the error fetching a page, in which case the lister is
+	 *             closed
+	 */
+	public SmartsheetUser next() throws Exception {
+		while (users.isEmpty()) {
+			if (fetchedPages != null) {
+				if (pagesPending == 0)
+					return null;
+
+				PageResult result = fetchedPages.take();
+				pagesPending--;
+				if (result.error != null) {
+					close();
+					throw result.error;
+				}
+				users.addAll(result.page.getData());
+
+			} else {
+				if (nextPageNumber > totalPages)
+					return null;
+
+				// list as the administrator, not as the user backed up last
+				apiService.assumeUser(null);
+				SmartsheetPagingwrapper<SmartsheetUser> page = apiService.getUsers(nextPageNumber);
+				nextPageNumber = page.getPageNumber() + 1;
+				users.addAll(page.getData());
+			}
+		}
+		return users.poll();
+	}
+
+	/**
+	 * Stops fetching pages. The users already taken aren't affected.
+	 */
+	public void close() {
+		if (executor != null)
+			executor.shutdownNow();
+	}
+
+	/**
+	 * @return clones of the API service, not assuming any user, or null if it
+	 *         can't be cloned
+	 */
+	private SmartsheetService[] cloneServices(int count) {
+		SmartsheetService[] clones = new SmartsheetService[count];
+		try {
+			for (int i = 0; i < count; i++) {
+				clones[i] = (SmartsheetService) apiService.clone();
+				clones[i].assumeUser(null);
+			}
+		} catch (CloneNotSupportedException e) {
+			return null;
+		}
+		return clones;
+	}
+}
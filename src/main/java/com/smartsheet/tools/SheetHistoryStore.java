@@ -0,0 +1,643 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+import org.codehaus.jackson.util.TokenBuffer;
+
+import com.smartsheet.exceptions.CreateFileSystemItemException;
+
+/**
+ * A store of the history of the JSON snapshots of sheets (as written by
+ * {@link SheetSnapshotWriter}), which keeps a full "base" snapshot of each
+ * sheet and, for the snapshots taken after it, only the rows which were added,
+ * changed or removed since the base.
+ * <p>
+ * The snapshots of a sheet are kept under {@code <store folder>/<sheet id>/}
+ * as {@code base-<time>.json} and {@code delta-<time>.json}, where the time
+ * (UTC) is when the snapshot was taken. Rows are matched by their id, and a row
+ * is changed if its JSON differs from that in the base, apart from the fields
+ * which only give its position (such as its row number, which changes for every
+ * row below one inserted). A delta holds the other fields of the sheet, the ids
+ * of all its rows in order, the rows added or changed, and the new positional
+ * fields of the other rows which moved; since every delta is against the base
+ * (rather than the previous delta), any snapshot is rebuilt from at most two
+ * files. A new base is stored once a base has {@link #DEFAULT_REBASE_EVERY}
+ * deltas (by default), or when more than half of the rows differ from it.
+ * <p>
+ * The methods of this class are designed to be thread-safe; snapshots of the
+ * same sheet are recorded one at a time.
+ */
+public class SheetHistoryStore {
+
+	/** The number of deltas stored against a base before a new base, by default */
+	public static final int DEFAULT_REBASE_EVERY = 7;
+	public static final String POINTER_FILE_EXTENSION = ".snapref";
+
+	private static final String INCOMING_FOLDER = "incoming";
+	private static final String BASE_PREFIX = "base-";
+	private static final String DELTA_PREFIX = "delta-";
+	private static final String SNAPSHOT_EXTENSION = ".json";
+	private static final String TIME_FORMAT = "yyyyMMdd-HHmmss-SSS";
+	private static final String HASH_ALGORITHM = "SHA-256";
+	private static final int BUFFER_SIZE = 64 * 1024; // 64K
+
+	/** The fields of a row which only give its position in the sheet */
+	private static final List<String> POSITIONAL_FIELDS = Arrays.asList("rowNumber", "parentRowNumber",
+			"siblingId");
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+	private static final JsonFactory factory = mapper.getJsonFactory();
+
+	private final File storeFolder;
+	private final File incomingFolder;
+	private final int rebaseEvery;
+	private final ConcurrentMap<Long, Object> sheetLocks = new ConcurrentHashMap<Long, Object>();
+
+	/** The number of snapshots stored as bases */
+	private final AtomicInteger bases = new AtomicInteger();
+	/** The number of snapshots stored as deltas */
+	private final AtomicInteger deltas = new AtomicInteger();
+	/** The number of bytes not written thanks to deltas */
+	private final AtomicLong bytesSaved = new AtomicLong();
+
+	/**
+	 * The changes of a snapshot from its base.
+	 */
+	private static class RowChanges {
+		private final TokenBuffer fields = new TokenBuffer(null);
+		private final List<Long> rowIds = new ArrayList<Long>();
+		private final Set<Long> added = new HashSet<Long>();
+		private final Set<Long> changed = new HashSet<Long>();
+		private final List<Long> removed = new ArrayList<Long>();
+		/** The positional fields of the other rows, where they moved */
+		private final Map<Long, JsonNode> moved = new LinkedHashMap<Long, JsonNode>();
+		private boolean keyed = true; // false if a row has no id
+
+		private int count() {
+			return added.size() + changed.size() + removed.size();
+		}
+	}
+
+	/**
+	 * @param storeFolder
+	 *            The folder holding the snapshots. Created if it doesn't exist.
+	 *            The same folder should be shared by successive backups so that
+	 *            their snapshots are stored as deltas.
+	 * @param rebaseEvery
+	 *            the number of deltas stored against a base before a new base
+	 */
+	public SheetHistoryStore(File storeFolder, int rebaseEvery) throws IOException {
+		if (rebaseEvery < 1)
+			throw new IllegalArgumentException("rebaseEvery must be at least 1");
+
+		this.storeFolder = storeFolder;
+		this.rebaseEvery = rebaseEvery;
+		this.incomingFolder = new File(storeFolder, INCOMING_FOLDER);
+		if (!incomingFolder.isDirectory() && !incomingFolder.mkdirs())
+			throw new CreateFileSystemItemException(incomingFolder);
+	}
+
+	public File getStoreFolder() {
+		return storeFolder;
+	}
+
+	/**
+	 * Creates a temporary file in the store which a snapshot can be written to
+	 * before it's recorded.
+	 */
+	public File newIncomingFile() throws IOException {
+		return File.createTempFile("snapshot-", ".tmp", incomingFolder);
+	}
+
+	/**
+	 * Records a snapshot of a sheet, as a base or as a delta against the
+	 * latest base taken before it.
+	 *
+	 * @param snapshot
+	 *            the snapshot, a file from {@link #newIncomingFile()} which is
+	 *            moved into the store (or deleted)
+	 * @param takenAt
+	 *            when the snapshot was taken
+	 * @return the file the snapshot was stored as
+	 */
+	public File record(long sheetId, File snapshot, long takenAt) throws IOException {
+		synchronized (getSheetLock(sheetId)) {
+			try {
+				File sheetFolder = new File(storeFolder, String.valueOf(sheetId));
+				if (!sheetFolder.isDirectory() && !sheetFolder.mkdirs() && !sheetFolder.isDirectory())
+					throw new CreateFileSystemItemException(sheetFolder);
+
+				String time = formatTime(takenAt);
+				File base = null;
+				int baseDeltas = 0;
+				for (File stored : listSnapshots(sheetFolder)) {
+					if (getTime(stored).compareTo(time) >= 0)
+						break;
+					if (stored.getName().startsWith(BASE_PREFIX)) {
+						base = stored;
+						baseDeltas = 0;
+					} else {
+						baseDeltas++;
+					}
+				}
+
+				if (base != null && baseDeltas < rebaseEvery) {
+					RowChanges changes = diff(base, snapshot);
+					if (changes.keyed && changes.count() * 2 <= changes.rowIds.size()) {
+						File delta = new File(sheetFolder, DELTA_PREFIX + time + SNAPSHOT_EXTENSION);
+						writeDelta(base, snapshot, changes, takenAt, delta);
+						deltas.incrementAndGet();
+						bytesSaved.addAndGet(Math.max(0, snapshot.length() - delta.length()));
+						return delta;
+					}
+				}
+
+				File newBase = new File(sheetFolder, BASE_PREFIX + time + SNAPSHOT_EXTENSION);
+				if (newBase.exists())
+					newBase.delete();
+				if (!snapshot.renameTo(newBase))
+					throw new CreateFileSystemItemException(newBase);
+				bases.incrementAndGet();
+				return newBase;
+
+			} finally {
+				if (snapshot.exists())
+					snapshot.delete();
+			}
+		}
+	}
+
+	/**
+	 * Writes a sheet as it was at a point in time, that is its latest snapshot
+	 * taken at or before then.
+	 *
+	 * @param out
+	 *            the stream to write the snapshot to, which is left open
+	 * @return false if the sheet has no snapshot at or before then
+	 */
+	public boolean reconstruct(long sheetId, long pointInTime, OutputStream out) throws IOException {
+		String time = formatTime(pointInTime);
+		File latest = null;
+		for (File stored : listSnapshots(new File(storeFolder, String.valueOf(sheetId)))) {
+			if (getTime(stored).compareTo(time) > 0)
+				break;
+			latest = stored;
+		}
+		if (latest == null)
+			return false;
+
+		reconstruct(latest, out);
+		return true;
+	}
+
+	/**
+	 * Writes a snapshot from a file of the store, which is either a base
+	 * (copied as it is) or a delta (merged with its base).
+	 *
+	 * @param out
+	 *            the stream to write the snapshot to, which is left open
+	 */
+	public static void reconstruct(File stored, OutputStream out) throws IOException {
+		if (stored.getName().startsWith(BASE_PREFIX)) {
+			InputStream in = new FileInputStream(stored);
+			try {
+				IOUtils.copy(in, out);
+			} finally {
+				in.close();
+			}
+			return;
+		}
+
+		// the rows of the delta replace those of the base
+		TokenBuffer fields = new TokenBuffer(null);
+		String baseName = null;
+		List<Long> rowIds = new ArrayList<Long>();
+		Map<Long, TokenBuffer> rows = new HashMap<Long, TokenBuffer>();
+		Map<Long, JsonNode> moved = new HashMap<Long, JsonNode>();
+		Set<Long> removed = new HashSet<Long>();
+		JsonParser parser = newParser(stored);
+		try {
+			expect(parser.nextToken(), JsonToken.START_OBJECT, parser);
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if (field.equals("base")) {
+					baseName = parser.getText();
+				} else if (field.equals("sheet")) {
+					fields.copyCurrentStructure(parser);
+				} else if (field.equals("rowIds")) {
+					expect(value, JsonToken.START_ARRAY, parser);
+					while (parser.nextToken() != JsonToken.END_ARRAY)
+						rowIds.add(parser.getLongValue());
+				} else if (field.equals("rows")) {
+					expect(value, JsonToken.START_ARRAY, parser);
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						TokenBuffer row = new TokenBuffer(null);
+						row.copyCurrentStructure(parser);
+						rows.put(getRowId(row), row);
+					}
+				} else if (field.equals("removed")) {
+					expect(value, JsonToken.START_ARRAY, parser);
+					while (parser.nextToken() != JsonToken.END_ARRAY)
+						removed.add(parser.getLongValue());
+				} else if (field.equals("moved")) {
+					expect(value, JsonToken.START_OBJECT, parser);
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						long rowId = Long.parseLong(parser.getCurrentName());
+						parser.nextToken();
+						moved.put(rowId, parser.readValueAsTree());
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+		} finally {
+			parser.close();
+		}
+		if (baseName == null)
+			throw new IOException("Delta names no base: " + stored.getAbsolutePath());
+
+		JsonGenerator generator = factory.createJsonGenerator(out, JsonEncoding.UTF8);
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		generator.writeStartObject();
+		JsonParser fieldsParser = fields.asParser();
+		expect(fieldsParser.nextToken(), JsonToken.START_OBJECT, fieldsParser);
+		while (fieldsParser.nextToken() == JsonToken.FIELD_NAME)
+			generator.copyCurrentStructure(fieldsParser); // the name and value
+		generator.writeFieldName("rows");
+		generator.writeStartArray();
+
+		// the base is read in step with the rows of the delta, which are
+		// mostly in the same order; only rows met out of order are held, and
+		// the rows removed or replaced by the delta are dropped as they're met
+		JsonParser baseParser = newParser(new File(stored.getParentFile(), baseName));
+		try {
+			advanceToRows(baseParser);
+			boolean baseRowsLeft = true;
+			Map<Long, TokenBuffer> aheadRows = new HashMap<Long, TokenBuffer>();
+			for (Long rowId : rowIds) {
+				TokenBuffer row = rows.get(rowId);
+				if (row == null)
+					row = aheadRows.remove(rowId);
+				while (row == null && baseRowsLeft) {
+					if (baseParser.nextToken() != JsonToken.START_OBJECT) {
+						baseRowsLeft = false;
+						break;
+					}
+					TokenBuffer baseRow = new TokenBuffer(null);
+					baseRow.copyCurrentStructure(baseParser);
+					long baseRowId = getRowId(baseRow);
+					if (baseRowId == rowId)
+						row = baseRow;
+					else if (!rows.containsKey(baseRowId) && !removed.contains(baseRowId))
+						aheadRows.put(baseRowId, baseRow); // until its turn
+				}
+				if (row == null)
+					throw new IOException("Row " + rowId + " is in neither the delta nor its base: "
+							+ stored.getAbsolutePath());
+				JsonNode positions = moved.get(rowId);
+				if (positions != null)
+					mapper.writeTree(generator, moveRow(mapper.readTree(row.asParser()), positions));
+				else
+					row.serialize(generator);
+			}
+		} finally {
+			baseParser.close();
+		}
+
+		generator.writeEndArray();
+		generator.writeEndObject();
+		generator.close();
+	}
+
+	/**
+	 * Gets the file of this store which a pointer file (written next to the
+	 * sheets of a backup) names.
+	 */
+	public File resolvePointer(File pointerFile) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(pointerFile), "UTF-8"));
+		try {
+			reader.readLine(); // the sheet id and snapshot name
+			String path = reader.readLine();
+			if (path == null)
+				throw new IOException("Not a snapshot pointer file: " + pointerFile.getAbsolutePath());
+			return new File(storeFolder, path.replace('/', File.separatorChar));
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Gets the contents of a pointer file to a snapshot of the store, which
+	 * names the snapshot by its path relative to the store folder (so the
+	 * store can be moved along with the backups).
+	 */
+	public static String getPointer(long sheetId, File stored) {
+		return sheetId + ":" + stored.getName() + "\n" + sheetId + "/" + stored.getName() + "\n";
+	}
+
+	public int getBases() {
+		return bases.get();
+	}
+
+	public int getDeltas() {
+		return deltas.get();
+	}
+
+	public long getBytesSaved() {
+		return bytesSaved.get();
+	}
+
+	/**
+	 * Compares the rows of a snapshot with those of its base, by their id and
+	 * the hash of their JSON.
+	 */
+	private static RowChanges diff(File base, File snapshot) throws IOException {
+		Map<Long, byte[]> baseHashes = new LinkedHashMap<Long, byte[]>();
+		Map<Long, JsonNode> basePositions = new HashMap<Long, JsonNode>();
+		RowChanges changes = new RowChanges();
+		readSnapshot(base, null, baseHashes, basePositions, changes);
+		if (!changes.keyed)
+			return changes;
+
+		Map<Long, byte[]> hashes = new LinkedHashMap<Long, byte[]>();
+		Map<Long, JsonNode> positions = new HashMap<Long, JsonNode>();
+		readSnapshot(snapshot, changes.fields, hashes, positions, changes);
+		for (Map.Entry<Long, byte[]> entry : hashes.entrySet()) {
+			Long rowId = entry.getKey();
+			changes.rowIds.add(rowId);
+			byte[] baseHash = baseHashes.remove(rowId);
+			if (baseHash == null)
+				changes.added.add(rowId);
+			else if (!Arrays.equals(baseHash, entry.getValue()))
+				changes.changed.add(rowId);
+			else if (!basePositions.get(rowId).equals(positions.get(rowId)))
+				changes.moved.put(rowId, positions.get(rowId));
+		}
+		changes.removed.addAll(baseHashes.keySet());
+		return changes;
+	}
+
+	/**
+	 * Reads the hashes of the rows of a snapshot (leaving out their positional
+	 * fields, which are read separately), and its other fields if requested.
+	 */
+	private static void readSnapshot(File snapshot, TokenBuffer fields, Map<Long, byte[]> hashes,
+			Map<Long, JsonNode> positions, RowChanges changes) throws IOException {
+		MessageDigest digest = newDigest();
+		JsonParser parser = newParser(snapshot);
+		try {
+			expect(parser.nextToken(), JsonToken.START_OBJECT, parser);
+			if (fields != null)
+				fields.writeStartObject();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if (field.equals("rows") && value == JsonToken.START_ARRAY) {
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						JsonNode row = parser.readValueAsTree();
+						JsonNode id = row.get("id");
+						if (id == null || !id.isIntegralNumber()) {
+							changes.keyed = false;
+							return;
+						}
+						ObjectNode rowPositions = mapper.createObjectNode();
+						for (String positional : POSITIONAL_FIELDS) {
+							JsonNode position = ((ObjectNode) row).remove(positional);
+							if (position != null)
+								rowPositions.put(positional, position);
+						}
+						positions.put(id.getLongValue(), rowPositions);
+						hashes.put(id.getLongValue(), digest.digest(mapper.writeValueAsBytes(row)));
+					}
+				} else if (fields != null) {
+					fields.writeFieldName(field);
+					fields.copyCurrentStructure(parser);
+				} else {
+					parser.skipChildren();
+				}
+			}
+			if (fields != null)
+				fields.writeEndObject();
+
+		} finally {
+			parser.close();
+		}
+	}
+
+	private static void writeDelta(File base, File snapshot, RowChanges changes, long takenAt, File delta)
+			throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(delta), BUFFER_SIZE);
+		JsonGenerator generator = factory.createJsonGenerator(out, JsonEncoding.UTF8);
+		try {
+			generator.writeStartObject();
+			generator.writeStringField("base", base.getName());
+			generator.writeNumberField("takenAt", takenAt);
+			generator.writeFieldName("sheet");
+			changes.fields.serialize(generator);
+			writeIds(generator, "rowIds", changes.rowIds);
+			writeIds(generator, "added", changes.added);
+			writeIds(generator, "changed", changes.changed);
+			writeIds(generator, "removed", changes.removed);
+			generator.writeFieldName("moved");
+			generator.writeStartObject();
+			for (Map.Entry<Long, JsonNode> entry : changes.moved.entrySet()) {
+				generator.writeFieldName(String.valueOf(entry.getKey()));
+				mapper.writeTree(generator, entry.getValue());
+			}
+			generator.writeEndObject();
+
+			// the rows added or changed are copied from the snapshot as they are
+			generator.writeFieldName("rows");
+			generator.writeStartArray();
+			JsonParser parser = newParser(snapshot);
+			try {
+				advanceToRows(parser);
+				while (parser.nextToken() == JsonToken.START_OBJECT) {
+					TokenBuffer row = new TokenBuffer(null);
+					row.copyCurrentStructure(parser);
+					long rowId = getRowId(row);
+					if (changes.added.contains(rowId) || changes.changed.contains(rowId))
+						row.serialize(generator);
+				}
+			} finally {
+				parser.close();
+			}
+			generator.writeEndArray();
+			generator.writeEndObject();
+
+		} finally {
+			generator.close();
+		}
+	}
+
+	private static void writeIds(JsonGenerator generator, String field, Iterable<Long> ids) throws IOException {
+		generator.writeFieldName(field);
+		generator.writeStartArray();
+		for (Long id : ids)
+			generator.writeNumber(id);
+		generator.writeEndArray();
+	}
+
+	/**
+	 * Replaces the positional fields of a row of a base with those it has in a
+	 * later snapshot, keeping the order of its fields.
+	 */
+	private static JsonNode moveRow(JsonNode row, JsonNode positions) {
+		ObjectNode moved = (ObjectNode) row;
+		for (String positional : POSITIONAL_FIELDS) {
+			JsonNode position = positions.get(positional);
+			if (position != null)
+				moved.put(positional, position);
+			else
+				moved.remove(positional);
+		}
+		return moved;
+	}
+
+	/**
+	 * Moves a parser of a snapshot to the start of the array of its rows.
+	 */
+	private static void advanceToRows(JsonParser parser) throws IOException {
+		expect(parser.nextToken(), JsonToken.START_OBJECT, parser);
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			if (field.equals("rows") && value == JsonToken.START_ARRAY)
+				return;
+			parser.skipChildren();
+		}
+		throw new JsonParseException("Snapshot has no rows", parser.getCurrentLocation());
+	}
+
+	private static long getRowId(TokenBuffer row) throws IOException {
+		JsonParser parser = row.asParser();
+		try {
+			expect(parser.nextToken(), JsonToken.START_OBJECT, parser);
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if (field.equals("id"))
+					return parser.getLongValue();
+				parser.skipChildren();
+			}
+			throw new JsonParseException("Row has no id", parser.getCurrentLocation());
+		} finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * Lists the snapshots of a sheet in the order they were taken.
+	 */
+	private static List<File> listSnapshots(File sheetFolder) {
+		List<File> snapshots = new ArrayList<File>();
+		File[] files = sheetFolder.listFiles();
+		if (files == null)
+			return snapshots;
+
+		for (File file : files) {
+			String name = file.getName();
+			if ((name.startsWith(BASE_PREFIX) || name.startsWith(DELTA_PREFIX)) && name.endsWith(SNAPSHOT_EXTENSION))
+				snapshots.add(file);
+		}
+		Collections.sort(snapshots, new Comparator<File>() {
+			@Override
+			public int compare(File file1, File file2) {
+				return getTime(file1).compareTo(getTime(file2));
+			}
+		});
+		return snapshots;
+	}
+
+	private static String getTime(File snapshot) {
+		String name = snapshot.getName();
+		String prefix = name.startsWith(BASE_PREFIX) ? BASE_PREFIX : DELTA_PREFIX;
+		return name.substring(prefix.length(), name.length() - SNAPSHOT_EXTENSION.length());
+	}
+
+	private static String formatTime(long time) {
+		SimpleDateFormat format = new SimpleDateFormat(TIME_FORMAT);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(new Date(time));
+	}
+
+	private Object getSheetLock(long sheetId) {
+		Object lock = new Object();
+		Object existing = sheetLocks.putIfAbsent(sheetId, lock);
+		return existing != null ? existing : lock;
+	}
+
+	private static JsonParser newParser(File file) throws IOException {
+		return factory.createJsonParser(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+	}
+
+	private static void expect(JsonToken token, JsonToken expected, JsonParser parser) throws JsonParseException {
+		if (token != expected)
+			throw new JsonParseException("Expected " + expected + " but found " + token,
+					parser.getCurrentLocation());
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -16,16 +16,17 @@
 **/
 package com.smartsheet.tools;
 
-import static com.smartsheet.utils.FileUtils.fileNameExistsInFolder;
-import static com.smartsheet.utils.HttpUtils.saveUrlToFile;
-
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.input.CountingInputStream;
 
-import com.smartsheet.exceptions.CreateFileSystemItemException;
 import com.smartsheet.exceptions.SmartsheetGetSheetDetailsException;
 import com.smartsheet.restapi.model.SmartsheetAttachment;
 import com.smartsheet.restapi.model.SmartsheetNamedEntity;
@@ -34,21 +35,90 @@ import com.smartsheet.restapi.service.ErrorContextualizingSmartsheetService;
 import com.smartsheet.restapi.service.RestfulSmartsheetService;
 import com.smartsheet.restapi.service.RetryingSmartsheetService;
 import com.smartsheet.restapi.service.SmartsheetService;
+import com.smartsheet.utils.HttpUtils;
+import com.smartsheet.utils.MeteredInputStream;
+import com.smartsheet.utils.MetricsRegistry;
+import com.smartsheet.utils.ParallelPageReader;
 import com.smartsheet.utils.ProgressWatcher;
+import com.smartsheet.utils.StripedCounter;
 
 /**
- * Saves a Smartsheet sheet/attachment (file/non-file) to a local directory.
+ * Saves a Smartsheet sheet/attachment (file/non-file) to a folder of a
+ * {@link BackupSink}.
  */
 public class SheetSaver {
 
-	private static final String XLSX_EXTENSION = ".xlsx";
+	private static final String GZIP_EXTENSION = ".gz";
+	private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+	private static final StripedCounter EXPORT_BYTES = MetricsRegistry.getInstance().counter("export.bytes");
+	static final StripedCounter FILES_CREATED = MetricsRegistry.getInstance().counter("files.created");
 
 	private final SmartsheetService apiService;
 	private final ParallelDownloadService parallelDownloadService;
-
-	public SheetSaver(SmartsheetService apiService, ParallelDownloadService parallelDownloadService) {
+	private final BackupSink sink;
+	private final NameRegistry names;
+	private ExportFormat exportFormat = ExportFormat.XLSX;
+	private boolean gzipJson;
+	private int rowsPageSize = RestfulSmartsheetService.DEFAULT_ROWS_PAGE_SIZE;
+	private ParallelPageReader pageReader = new ParallelPageReader(1);
+	private SheetHistoryStore historyStore; // null unless storing history
+	private ParallelDownloadService.JobListener downloadListener; // null if none
+
+	public SheetSaver(SmartsheetService apiService, ParallelDownloadService parallelDownloadService,
+			BackupSink sink, NameRegistry names) {
 		this.apiService = apiService;
 		this.parallelDownloadService = parallelDownloadService;
+		this.sink = sink;
+		this.names = names;
+	}
+
+	/**
+	 * Sets the format which sheets are saved in ({@link ExportFormat#XLSX} by
+	 * default).
+	 */
+	public void setExportFormat(ExportFormat exportFormat) {
+		this.exportFormat = exportFormat;
+	}
+
+	/**
+	 * Sets whether sheets saved as JSON snapshots are gzip-compressed (not by
+	 * default).
+	 */
+	public void setGzipJson(boolean gzipJson) {
+		this.gzipJson = gzipJson;
+	}
+
+	/**
+	 * Sets the number of rows requested per page for JSON snapshots.
+	 */
+	public void setRowsPageSize(int rowsPageSize) {
+		this.rowsPageSize = rowsPageSize;
+	}
+
+	/**
+	 * Sets the reader of the pages of rows for JSON snapshots after the first,
+	 * which reads them one at a time by default.
+	 */
+	public void setPageReader(ParallelPageReader pageReader) {
+		this.pageReader = pageReader;
+	}
+
+	/**
+	 * Sets a store which JSON snapshots are recorded into, in which case the
+	 * file of each sheet is a pointer to its snapshot in the store (and isn't
+	 * gzip-compressed).
+	 */
+	public void setHistoryStore(SheetHistoryStore historyStore) {
+		this.historyStore = historyStore;
+	}
+
+	/**
+	 * Sets the listener of the download jobs posted by
+	 * {@link #saveAsynchronously} from now on (null for none).
+	 */
+	public void setDownloadListener(ParallelDownloadService.JobListener downloadListener) {
+		this.downloadListener = downloadListener;
 	}
 
 	/**
@@ -62,19 +132,123 @@ public class SheetSaver {
 	 * @throws Exception
 	 */
 	public File save(SmartsheetSheet sheet, File folder) throws Exception {
-		File sheetFile = createFileFor(sheet, folder.getAbsolutePath(), XLSX_EXTENSION);
+		File sheetFile = createSheetFile(sheet, folder);
+		saveTo(sheet, sheetFile);
+		return sheetFile;
+	}
+
+	/**
+	 * Creates the (empty) file which a sheet will be saved to in a local
+	 * folder, with a name which is unique in the folder.
+	 */
+	public File createSheetFile(SmartsheetSheet sheet, File folder) throws IOException {
+		String extension = exportFormat.getExtension();
+		if (isRecordedInStore())
+			extension += SheetHistoryStore.POINTER_FILE_EXTENSION;
+		else if (isGzipped())
+			extension += GZIP_EXTENSION;
+		return createFileFor(sheet, folder, extension);
+	}
+
+	/**
+	 * Saves a sheet to a specified file, overwriting any previous contents.
+	 *
+	 * @return the size of the exported sheet
+	 */
+	public long saveTo(SmartsheetSheet sheet, final File sheetFile) throws Exception {
+		if (isRecordedInStore())
+			return recordSnapshot(sheet, sheetFile);
+		if (exportFormat == ExportFormat.JSON)
+			return saveSnapshotTo(sheet, sheetFile);
+
 		String url = apiService.getApiBaseUrl() + "sheets/" + sheet.getId();
 		String accessToken = apiService.getAccessToken();
 		String userToAssume = apiService.getAssumedUser();
+		final String mimeType = exportFormat.getMimeType();
+		final long[] exportBytes = new long[1];
+		try {
+			HttpUtils.saveUrlTo(url, accessToken, exportFormat.getAcceptType(), userToAssume,
+					new HttpUtils.ContentHandler() {
+						@Override
+						public void handle(InputStream content) throws IOException {
+							// counted afresh if the download is retried
+							CountingInputStream counted = new CountingInputStream(
+									new MeteredInputStream(content, EXPORT_BYTES));
+							sink.write(sheetFile, mimeType, counted);
+							exportBytes[0] = counted.getByteCount();
+						}
+					}, sink.getLocation(sheetFile));
+			return exportBytes[0];
+
+		} catch (Exception e) {
+			throw new SmartsheetGetSheetDetailsException(e, sheet.getName(), sheet.getId());
+		}
+	}
+
+	/**
+	 * Saves a JSON snapshot of a sheet to a file, streaming it page of rows
+	 * by page of rows (and compressing it as it's written, if configured).
+	 */
+	private long saveSnapshotTo(SmartsheetSheet sheet, File sheetFile) throws Exception {
+		try {
+			OutputStream out = sink.newOutputStream(sheetFile);
+			try {
+				if (gzipJson)
+					out = new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+				return new SheetSnapshotWriter(apiService, rowsPageSize, pageReader).write(sheet, out,
+						sink.getLocation(sheetFile));
+			} finally {
+				out.close();
+			}
+
+		} catch (Exception e) {
+			throw new SmartsheetGetSheetDetailsException(e, sheet.getName(), sheet.getId());
+		}
+	}
+
+	/**
+	 * Records a JSON snapshot of a sheet into the history store, writing a
+	 * pointer to it to a file.
+	 */
+	private long recordSnapshot(SmartsheetSheet sheet, File pointerFile) throws Exception {
 		try {
-			saveUrlToFile(url, sheetFile, accessToken, "application/vnd.ms-excel", userToAssume);
-			return sheetFile;
+			long takenAt = System.currentTimeMillis();
+			File incoming = historyStore.newIncomingFile();
+			long jsonBytes;
+			File stored;
+			try {
+				OutputStream out = new BufferedOutputStream(new FileOutputStream(incoming), GZIP_BUFFER_SIZE);
+				try {
+					jsonBytes = new SheetSnapshotWriter(apiService, rowsPageSize, pageReader).write(sheet, out,
+							sink.getLocation(pointerFile));
+				} finally {
+					out.close();
+				}
+				stored = historyStore.record(sheet.getId(), incoming, takenAt);
+
+			} finally {
+				// moved into the store, unless the snapshot failed
+				if (incoming.exists())
+					incoming.delete();
+			}
+
+			sink.write(pointerFile, "text/plain", new ByteArrayInputStream(
+					SheetHistoryStore.getPointer(sheet.getId(), stored).getBytes("UTF-8")));
+			return jsonBytes;
 
 		} catch (Exception e) {
 			throw new SmartsheetGetSheetDetailsException(e, sheet.getName(), sheet.getId());
 		}
 	}
 
+	private boolean isGzipped() {
+		return gzipJson && exportFormat == ExportFormat.JSON;
+	}
+
+	private boolean isRecordedInStore() {
+		return historyStore != null && exportFormat == ExportFormat.JSON;
+	}
+
 	/**
 	 * Saves a file attachment to a local folder asynchronously. The method
 	 * hence returns immediately.
@@ -111,38 +285,31 @@ public class SheetSaver {
 
 		parallelDownloadService.postAsynchronousDownloadJob(new SmartsheetAttachmentContentSource(clonedService,
 				(SmartsheetAttachment) attachment.clone(), sheetName, sheetId), postedMessage, errorContext,
-				folder.getAbsolutePath(), targetFile);
+				folder.getAbsolutePath(), targetFile, downloadListener);
 	}
 
 	/**
-	 * Saves a summary of a non-file attachment to a well-known named CSV file
-	 * in a local folder.
+	 * Opens a writer for the summary of the non-file attachments of a sheet,
+	 * which is saved to a well-known named CSV file in a folder. The file is
+	 * created with the first summary written, and completed when the writer is
+	 * closed.
 	 *
-	 * @param attachment
-	 *            the non-file attachment
 	 * @param sheet
-	 *            the sheet which the non-file attachment belongs to
+	 *            the sheet which the non-file attachments belong to
 	 * @param folder
-	 *            the existing local folder to save the summary of the non-file
-	 *            attachment to
-	 * @return the CSV {@link File} where the summary was saved to
-	 * @throws IOException
-	 */
-	public File saveSummary(SmartsheetAttachment attachment, SmartsheetSheet sheet, File folder) throws IOException {
-		File summariesFile = new File(folder, scrubName(sheet.getName()) + " - non-file attachments.csv");
-		boolean writeHeader = !summariesFile.exists();
-		PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(summariesFile, true /* append */)));
-		try {
-			if (writeHeader)
-				writer.println("Name,URL,AttachmentType");
-
-			writer.println(escapeCommas(attachment.getName()) + "," + attachment.getUrl() + ","
-					+ attachment.getAttachmentType());
+	 *            the existing folder to save the summary of the non-file
+	 *            attachments to
+	 */
+	public AttachmentSummaryWriter openSummaryWriter(SmartsheetSheet sheet, File folder) {
+		return new AttachmentSummaryWriter(sink, getSummaryFile(sheet, folder));
+	}
 
-		} finally {
-			writer.close();
-		}
-		return summariesFile;
+	/**
+	 * @return the well-known named CSV file which summarizes the non-file
+	 *         attachments of a sheet in a local folder
+	 */
+	public File getSummaryFile(SmartsheetSheet sheet, File folder) {
+		return new File(folder, scrubName(sheet.getName()) + " - non-file attachments.csv");
 	}
 
 	/**
@@ -155,24 +322,20 @@ public class SheetSaver {
 	 * also be specified (for example when you want to use ".xlsx" as the
 	 * extension of the file which a sheet is saved to.
 	 */
-	public static File createFileFor(SmartsheetNamedEntity item, String folder, String extension) throws IOException {
-		int numberSuffix = 2;
-		String fileName = getUniqueFileNameForItemInFolder(item, folder, numberSuffix, extension);
+	public File createFileFor(SmartsheetNamedEntity item, File folder, String extension) throws IOException {
+		String fileName = getUniqueFileNameForItemInFolder(item, folder, extension);
 
 		File newFile = new File(folder, fileName);
-		ProgressWatcher.getInstance().notify(String.format("Creating new file: [%s]", newFile.getCanonicalPath()));
-		if (!newFile.createNewFile()) {
-			throw new CreateFileSystemItemException(newFile);
-		}
+		ProgressWatcher.getInstance().debug("Creating new file: [%s]", sink.getLocation(newFile));
+		sink.createFile(newFile);
+		FILES_CREATED.increment();
 		return newFile;
 	}
 
 	/**
-	 * Gets a unique file name for an item in a folder, recursively trying a
-	 * number suffix until a unique file name is found.
+	 * Gets (and reserves) a unique file name for an item in a folder.
 	 */
-	public static String getUniqueFileNameForItemInFolder(SmartsheetNamedEntity item, String folder, int numberSuffix,
-			String extension) {
+	public String getUniqueFileNameForItemInFolder(SmartsheetNamedEntity item, File folder, String extension) {
 
 		String itemName = item.getName();
 
@@ -192,34 +355,12 @@ public class SheetSaver {
 			}
 		}
 		fileNamePart = scrubName(fileNamePart);
-		String fullFileName = fileNamePart + extensionPart;
-
-		if (fullFileName.length() == 0)
-			throw new IllegalStateException("File Name " + fullFileName + " results in a empty fileName!");
-
-		if (!fileNameExistsInFolder(fullFileName, folder))
-			return fullFileName;
-
-		fullFileName = fileNamePart + " (" + numberSuffix + ")" + extensionPart;
-		if (!fileNameExistsInFolder(fullFileName, folder))
-			return fullFileName;
 
-		// recursive call with incremented number suffix
-		return getUniqueFileNameForItemInFolder(item, folder, numberSuffix + 1, extension);
+		return names.reserveUnique(folder, fileNamePart, extensionPart);
 	}
 
 	public static String scrubName(String fileName) {
 
 		return fileName.replaceAll("[\\\\/:\\*?\"<>|]+", "_");
 	}
-
-	/**
-	 * Escape commas in a string to be added as a "column" in a CSV file.
-	 */
-	private static String escapeCommas(String string) {
-		if (string.contains(","))
-			return '"' + string + '"';
-
-		return string;
-	}
 }
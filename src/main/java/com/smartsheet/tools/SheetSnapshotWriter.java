@@ -0,0 +1,210 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.util.TokenBuffer;
+
+import com.smartsheet.restapi.model.SmartsheetSheet;
+import com.smartsheet.restapi.service.JsonDeserializer;
+import com.smartsheet.restapi.service.SmartsheetService;
+import com.smartsheet.utils.HttpUtils;
+import com.smartsheet.utils.MeteredInputStream;
+import com.smartsheet.utils.MetricsRegistry;
+import com.smartsheet.utils.ParallelPageReader;
+import com.smartsheet.utils.StripedCounter;
+
+/**
+ * Writes a JSON snapshot of a sheet: the sheet as returned by the API (its
+ * columns, and its rows with their cells), read a page of rows at a time. The
+ * snapshot is a single JSON object, the fields of the sheet followed by all its
+ * rows in order, written out as the pages arrive.
+ * <p>
+ * Each page is read completely before any of it is written, so a page whose
+ * request is retried (on its own, by {@link HttpUtils}) is written once. Only
+ * the pages being read ahead, one per thread of the page reader, are held in
+ * memory.
+ */
+public class SheetSnapshotWriter {
+
+	private static final StripedCounter EXPORT_BYTES = MetricsRegistry.getInstance().counter("export.bytes");
+	private static final JsonFactory factory = new JsonFactory();
+
+	private final SmartsheetService apiService;
+	private final int rowsPageSize;
+	private final ParallelPageReader pageReader;
+
+	/**
+	 * A page of the rows of a sheet, with the other fields of the sheet if
+	 * requested.
+	 */
+	private static class SheetPage {
+		private TokenBuffer fields; // null unless requested
+		private final TokenBuffer rows = new TokenBuffer(null);
+		private int rowCount;
+		private int totalRowCount = -1; // -1 if not given
+		private long bytes;
+	}
+
+	/**
+	 * @param pageReader
+	 *            reads the pages of rows after the first, several at a time if
+	 *            it has several threads
+	 */
+	public SheetSnapshotWriter(SmartsheetService apiService, int rowsPageSize, ParallelPageReader pageReader) {
+		if (rowsPageSize < 1)
+			throw new IllegalArgumentException("rowsPageSize must be at least 1");
+
+		this.apiService = apiService;
+		this.rowsPageSize = rowsPageSize;
+		this.pageReader = pageReader;
+	}
+
+	/**
+	 * Writes the snapshot of a sheet to a stream, which is left open.
+	 *
+	 * @param target
+	 *            describes where the snapshot is written to in log messages
+	 * @return the size of the JSON read from the API
+	 */
+	public long write(final SmartsheetSheet sheet, OutputStream out, final String target) throws Exception {
+		final JsonGenerator generator = factory.createJsonGenerator(out, JsonEncoding.UTF8);
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+		// the first page gives the other fields of the sheet, and its number
+		// of rows (hence of pages)
+		SheetPage page = fetchPage(sheet, 1, true, target);
+		final long[] bytes = { page.bytes };
+		page.fields.serialize(generator);
+		generator.writeFieldName("rows");
+		generator.writeStartArray();
+		page.rows.serialize(generator);
+
+		if (page.totalRowCount >= 0) {
+			// the other pages are read several at a time, and written in order
+			int totalPages = (page.totalRowCount + rowsPageSize - 1) / rowsPageSize;
+			pageReader.read(2, totalPages, new ParallelPageReader.PageSource<SheetPage>() {
+				@Override
+				public SheetPage read(int pageNumber) throws Exception {
+					return fetchPage(sheet, pageNumber, false, target);
+				}
+			}, new ParallelPageReader.PageHandler<SheetPage>() {
+				@Override
+				public void handle(SheetPage rowsPage) throws Exception {
+					bytes[0] += rowsPage.bytes;
+					rowsPage.rows.serialize(generator);
+				}
+			});
+
+		} else {
+			// without the number of rows, pages are read until one isn't full
+			for (int pageNumber = 2; page.rowCount == rowsPageSize; pageNumber++) {
+				page = fetchPage(sheet, pageNumber, false, target);
+				bytes[0] += page.bytes;
+				page.rows.serialize(generator);
+			}
+		}
+
+		generator.writeEndArray();
+		generator.writeEndObject();
+		generator.close();
+		return bytes[0];
+	}
+
+	private SheetPage fetchPage(SmartsheetSheet sheet, int pageNumber, final boolean withFields, String target)
+			throws Exception {
+		String url = apiService.getApiBaseUrl() + "sheets/" + sheet.getId() + "?page=" + pageNumber + "&pageSize="
+				+ rowsPageSize;
+		final SheetPage[] page = new SheetPage[1];
+		HttpUtils.saveUrlTo(url, apiService.getAccessToken(), ExportFormat.JSON.getAcceptType(),
+				apiService.getAssumedUser(), new HttpUtils.ContentHandler() {
+					@Override
+					public void handle(InputStream content) throws IOException {
+						// read afresh if the request is retried
+						CountingInputStream counted = new CountingInputStream(
+								new MeteredInputStream(content, EXPORT_BYTES));
+						page[0] = readPage(counted, withFields);
+						page[0].bytes = counted.getByteCount();
+					}
+				}, target);
+		if (page[0] == null)
+			// HttpUtils ignores a 403 (Forbidden) to a request without an
+			// access token, returning no content rather than failing
+			throw new IOException(String.format(
+					"Page %d of the rows of sheet [%s] was refused (403 Forbidden) to a request without an access token",
+					pageNumber, sheet.getName()));
+
+		return page[0];
+	}
+
+	private static SheetPage readPage(InputStream json, boolean withFields) throws IOException {
+		SheetPage page = new SheetPage();
+		if (withFields) {
+			page.fields = new TokenBuffer(null);
+			page.fields.writeStartObject(); // ended once the rows are written
+		}
+
+		JsonParser parser = JsonDeserializer.newParser(json);
+		try {
+			expect(parser.nextToken(), JsonToken.START_OBJECT, parser);
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if (field.equals("rows")) {
+					if (value == JsonToken.VALUE_NULL)
+						continue;
+
+					expect(value, JsonToken.START_ARRAY, parser);
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						page.rows.copyCurrentStructure(parser);
+						page.rowCount++;
+					}
+
+				} else {
+					if (field.equals("totalRowCount") && value == JsonToken.VALUE_NUMBER_INT)
+						page.totalRowCount = parser.getIntValue();
+					if (withFields) {
+						page.fields.writeFieldName(field);
+						page.fields.copyCurrentStructure(parser);
+					} else {
+						parser.skipChildren();
+					}
+				}
+			}
+
+		} finally {
+			parser.close();
+		}
+		return page;
+	}
+
+	private static void expect(JsonToken token, JsonToken expected, JsonParser parser) throws JsonParseException {
+		if (token != expected)
+			throw new JsonParseException("Expected " + expected + " but found " + token,
+					parser.getCurrentLocation());
+	}
+}
@@ -16,38 +16,40 @@
 **/
 package com.smartsheet.tools;
 
-import static com.smartsheet.utils.FileUtils.fileNameExistsInFolder;
-import static com.smartsheet.utils.FileUtils.folderNameExistsInParentFolder;
 import static com.smartsheet.utils.FileUtils.stripExtension;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.io.FilenameUtils;
 
 import com.smartsheet.exceptions.CreateFileSystemItemException;
-import com.smartsheet.exceptions.FileSystemItemException;
 import com.smartsheet.restapi.model.SmartsheetAttachment;
-import com.smartsheet.restapi.model.SmartsheetDiscussion;
 import com.smartsheet.restapi.model.SmartsheetFolder;
 import com.smartsheet.restapi.model.SmartsheetHome;
 import com.smartsheet.restapi.model.SmartsheetNamedEntity;
 import com.smartsheet.restapi.model.SmartsheetPagingwrapper;
-import com.smartsheet.restapi.model.SmartsheetRow;
 import com.smartsheet.restapi.model.SmartsheetSheet;
 import com.smartsheet.restapi.model.SmartsheetUser;
 import com.smartsheet.restapi.model.SmartsheetWorkspace;
 import com.smartsheet.restapi.service.SmartsheetService;
+import com.smartsheet.tools.BackupJournal.JournaledAttachment;
 import com.smartsheet.utils.ErrorHandler;
+import com.smartsheet.utils.MetricsRegistry;
+import com.smartsheet.utils.ParallelPageReader;
 import com.smartsheet.utils.ProgressWatcher;
+import com.smartsheet.utils.StripedCounter;
 
 /**
  * Backs up the Smartsheet sheets of either the current user or all users to a
- * local directory, maintaining the folder / workspace hierarchy from
- * Smartsheet.
+ * local directory (or another {@link BackupSink}), maintaining the folder /
+ * workspace hierarchy from Smartsheet.
  */
 public class SmartsheetBackupService {
 
@@ -56,12 +58,191 @@ public class SmartsheetBackupService {
 	private static final String OWNER_ACCESS = "OWNER";
 	private static final String FILE_ATTACHMENT_TYPE = "FILE";
 
+	private static final StripedCounter FOLDERS_CREATED = MetricsRegistry.getInstance().counter("folders.created");
+	private static final StripedCounter FOLDERS_SKIPPED = MetricsRegistry.getInstance().counter("folders.skipped");
+
 	private final SmartsheetService apiService;
 	private final SheetSaver sheetSaver;
+	private final BackupSink sink;
+	private final NameRegistry names;
+	private BackupJournal journal = BackupJournal.disabled();
+	private BackupProgress progress = new BackupProgress();
+	private BackupInventory inventory; // null if listing users and homes afresh
+	private OrgTraversalIndex traversalIndex; // null if not deduplicating shared content
+	private DiscoveryMode discoveryMode = DiscoveryMode.HOME;
 
 	public SmartsheetBackupService(SmartsheetService apiService, ParallelDownloadService parallelDownloadService) {
+		this(apiService, parallelDownloadService, new LocalFileSystemSink());
+	}
+
+	/**
+	 * @param sink
+	 *            The sink which the backup is written to. The same sink must be
+	 *            set on the parallel download service.
+	 */
+	public SmartsheetBackupService(SmartsheetService apiService, ParallelDownloadService parallelDownloadService,
+			BackupSink sink) {
 		this.apiService = apiService;
-		this.sheetSaver = new SheetSaver(apiService, parallelDownloadService);
+		this.sink = sink;
+		this.names = new NameRegistry(sink);
+		this.sheetSaver = new SheetSaver(apiService, parallelDownloadService, sink, names);
+	}
+
+	/**
+	 * Sets the journal which the progress of the backup is recorded in. If the
+	 * journal holds the records of an interrupted backup to the same folder,
+	 * that backup is resumed: completed users, sheets and attachments are
+	 * skipped and the names assigned by the interrupted backup are reused.
+	 */
+	public void setJournal(BackupJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Sets the progress which the users, sheets and attachments are counted
+	 * in as they are discovered and backed up. The same progress should be set
+	 * on the parallel download service.
+	 */
+	public void setProgress(BackupProgress progress) {
+		this.progress = progress;
+	}
+
+	/**
+	 * Sets an inventory taken by a dry run, whose users and homes are backed
+	 * up rather than listing them again. The home of any user missing from the
+	 * inventory is listed as usual.
+	 */
+	public void setInventory(BackupInventory inventory) {
+		this.inventory = inventory;
+	}
+
+	/**
+	 * Sets an index of the workspaces, folders and sheets visited, shared by
+	 * the backups of all users, so that a workspace or folder shared by
+	 * several users is only backed up in full under the first of them, and
+	 * each sheet is only backed up once. Later users only get the folders
+	 * leading to the sheets they own which weren't backed up already.
+	 */
+	public void setTraversalIndex(OrgTraversalIndex traversalIndex) {
+		this.traversalIndex = traversalIndex;
+	}
+
+	/**
+	 * Sets how the sheets of each user, and the folders and workspaces they
+	 * are in, are discovered ({@link DiscoveryMode#HOME} by default).
+	 */
+	public void setDiscoveryMode(DiscoveryMode discoveryMode) {
+		this.discoveryMode = discoveryMode;
+	}
+
+	/**
+	 * Sets the format which sheets are saved in ({@link ExportFormat#XLSX} by
+	 * default), and whether JSON snapshots are gzip-compressed.
+	 */
+	public void setExportFormat(ExportFormat exportFormat, boolean gzipJson) {
+		sheetSaver.setExportFormat(exportFormat);
+		sheetSaver.setGzipJson(gzipJson);
+	}
+
+	/**
+	 * Sets the number of rows requested per page when saving sheets as JSON
+	 * snapshots.
+	 */
+	public void setRowsPageSize(int rowsPageSize) {
+		sheetSaver.setRowsPageSize(rowsPageSize);
+	}
+
+	/**
+	 * Sets the reader of the pages of rows after the first when saving sheets
+	 * as JSON snapshots, which reads them one at a time by default.
+	 */
+	public void setPageReader(ParallelPageReader pageReader) {
+		sheetSaver.setPageReader(pageReader);
+	}
+
+	/**
+	 * Sets a store which JSON snapshots of sheets are recorded into, as bases
+	 * and row-level deltas, instead of being saved in full to each backup.
+	 */
+	public void setHistoryStore(SheetHistoryStore historyStore) {
+		sheetSaver.setHistoryStore(historyStore);
+	}
+
+	/**
+	 * Takes an inventory of what {@link #backupOrgTo(File)} would back up,
+	 * without downloading any content: lists the users of the organization and
+	 * the home of each active user, counting the sheets they own.
+	 *
+	 * @param withAttachments
+	 *            whether to also count the file attachments of the owned sheets
+	 *            and their sizes, which takes a request per sheet
+	 */
+	public BackupInventory takeInventory(boolean withAttachments) throws Exception {
+		BackupInventory newInventory = new BackupInventory();
+		ParallelUserLister userLister = new ParallelUserLister(apiService);
+		newInventory.setUserPages(userLister.getTotalPages());
+		newInventory.setAttachmentsInventoried(withAttachments);
+
+		int listedUsers = 0;
+		try {
+			SmartsheetUser user;
+			while ((user = userLister.next()) != null) {
+				listedUsers++;
+				BackupInventory.UserInventory userInventory = new BackupInventory.UserInventory();
+				userInventory.setEmail(user.getEmail());
+				userInventory.setStatus(user.getStatus());
+				newInventory.addUser(userInventory);
+
+				if (!USER_ACTIVE_STATUS.equals(user.getStatus()))
+					continue;
+
+				ProgressWatcher.getInstance().notify("Taking inventory of user [%d of %d]: %s", listedUsers,
+						Math.max(listedUsers, userLister.getTotalCount()), user.getEmail());
+				try {
+					apiService.assumeUser(user.getEmail());
+					takeInventory(userInventory, apiService.getHome(), withAttachments);
+				} catch (Exception e) {
+					ErrorHandler.handle(e, user.getEmail());
+				}
+			}
+
+		} finally {
+			userLister.close();
+			apiService.assumeUser(null); // revert to self before returning
+		}
+		return newInventory;
+	}
+
+	private void takeInventory(BackupInventory.UserInventory userInventory, SmartsheetHome home,
+			boolean withAttachments) throws Exception {
+		List<SmartsheetSheet> ownedSheets = listOwnedSheets(home);
+		userInventory.setOwnedSheets(ownedSheets.size());
+
+		if (withAttachments) {
+			final long[] fileAttachments = new long[1];
+			final long[] fileAttachmentBytes = new long[1];
+			for (SmartsheetSheet sheet : ownedSheets) {
+				try {
+					apiService.getSheetAttachments(sheet.getName(), sheet.getId(),
+							new SmartsheetService.AttachmentHandler() {
+								@Override
+								public void handle(SmartsheetAttachment attachment) {
+									if (FILE_ATTACHMENT_TYPE.equals(attachment.getAttachmentType())) {
+										fileAttachments[0]++;
+										fileAttachmentBytes[0] += attachment.getSizeInKb() * 1024;
+									}
+								}
+							});
+				} catch (Exception e) {
+					ErrorHandler.handle(e, userInventory.getEmail());
+				}
+			}
+			userInventory.setFileAttachments((int) fileAttachments[0]);
+			userInventory.setFileAttachmentBytes(fileAttachmentBytes[0]);
+		}
+
+		// set last, so a user whose home is in the inventory was inventoried
+		userInventory.setHome(home);
 	}
 
 	/**
@@ -84,46 +265,71 @@ public class SmartsheetBackupService {
 	 * @throws Exception
 	 */
 	public int backupOrgTo(File backupFolder) throws Exception {
-		// get all users in the organization and prepare the backup folder
-		List<SmartsheetUser> users = new ArrayList<SmartsheetUser>();
-		int pageNumber = 1;
-		int noofpages = 1;
-		SmartsheetPagingwrapper<SmartsheetUser> usersPagingWrapper = null;
-
-		while (pageNumber <= noofpages) {
-			usersPagingWrapper = apiService.getUsers(pageNumber);
-			pageNumber = usersPagingWrapper.getPageNumber();
-			noofpages = usersPagingWrapper.getTotalPages();
-			users.addAll(usersPagingWrapper.getData());
-			pageNumber++;
-		}
-
-		prepareBackupFolder(backupFolder, true);
+		// start listing the users in the organization (unless inventoried)
+		// and prepare the backup folder; each user is backed up as soon as
+		// the page listing them has arrived
+		List<SmartsheetUser> inventoriedUsers = inventory != null ? inventory.getSmartsheetUsers() : null;
+		ParallelUserLister userLister = inventoriedUsers != null ? null : new ParallelUserLister(apiService);
+		int plannedUsers = inventoriedUsers != null ? inventoriedUsers.size() : userLister.getTotalCount();
 
 		// iterate through the users, backing up the active ones
-		int numberUsers = users.size();
+		int numberUsers = 0;
 		int skippedUsers = 0;
 		try {
-			for (int i = 0; i < numberUsers; i++) {
-				SmartsheetUser user = users.get(i);
+			sink.prepareFolder(backupFolder);
+			progress.planUsers(plannedUsers);
+			resumePendingDownloads();
+
+			while (true) {
+				SmartsheetUser user;
+				if (inventoriedUsers != null)
+					user = numberUsers < inventoriedUsers.size() ? inventoriedUsers.get(numberUsers) : null;
+				else
+					user = userLister.next();
+				if (user == null)
+					break;
+
+				numberUsers++;
+				if (numberUsers > plannedUsers) {
+					// more users than reported with the first page
+					plannedUsers = numberUsers;
+					progress.planUsers(plannedUsers);
+				}
+
 				String email = user.getEmail();
 				String status = user.getStatus();
+				progress.userStarted();
 
 				// for each active user, assume the identity of the user to
 				// backup that user's sheets in the user's context (e.g., what
 				// sheets they own, the hierarchy they see in Smartsheet, etc.)
 				if (status != null && status.equals(USER_ACTIVE_STATUS)) {
 
+					if (journal.isUserDone(email)) {
+						ProgressWatcher.getInstance()
+								.notify("--------------------SKIP backup for user [%d of %d]: %s (already backed up)--------------------",
+										numberUsers, plannedUsers, email);
+						continue;
+					}
+
 					ProgressWatcher.getInstance()
-							.notify(String.format(
-									"--------------------Start backup for user [%d of %d]: %s--------------------",
-									i + 1, numberUsers, email));
+							.notify("--------------------Start backup for user [%d of %d]: %s--------------------",
+									numberUsers, plannedUsers, email);
+					// the user is only done once nothing was skipped due to an
+					// error, in the backup or in any of the user's downloads,
+					// so a resumed backup retries what was skipped
+					UserCompletion completion = new UserCompletion(email);
+					sheetSaver.setDownloadListener(completion);
+					int errorsBeforeUser = ProgressWatcher.getInstance().getThreadErrorCount();
 					try {
 						assumeUserAndBackup(backupFolder, email);
+						completion.backedUp(ProgressWatcher.getInstance().getThreadErrorCount() == errorsBeforeUser);
 
 					} catch (Exception e) {
 						ErrorHandler.handle(e, email);
 						skippedUsers++;
+					} finally {
+						sheetSaver.setDownloadListener(null);
 					}
 
 				} else {
@@ -131,14 +337,15 @@ public class SmartsheetBackupService {
 					// if try to assume their identity, so skip...
 					status = (status != null) ? status : "status unknown";
 					ProgressWatcher.getInstance()
-							.notify(String.format(
-									"--------------------SKIP backup for user [%d of %d]: %s (%s)--------------------",
-									i + 1, numberUsers, email, status.toLowerCase()));
+							.notify("--------------------SKIP backup for user [%d of %d]: %s (%s)--------------------",
+									numberUsers, plannedUsers, email, status.toLowerCase());
 					skippedUsers++;
 				}
 			}
 
 		} finally {
+			if (userLister != null)
+				userLister.close();
 			apiService.assumeUser(null); // revert to self before returning
 		}
 
@@ -156,7 +363,7 @@ public class SmartsheetBackupService {
 	 * folder name.
 	 */
 	private void assumeUserAndBackup(File backupFolder, String userEmail) throws Exception {
-		File userFolder = createNewFolderQuietly(backupFolder, userEmail);
+		File userFolder = createNewFolderQuietly(userEmail, backupFolder, userEmail);
 		apiService.assumeUser(userEmail);
 		backupTo(userFolder, userEmail);
 	}
@@ -171,17 +378,43 @@ public class SmartsheetBackupService {
 	 * @throws Exception
 	 */
 	public void backupTo(File backupFolder, String userEmail) throws Exception {
-		SmartsheetHome home = apiService.getHome();
+		SmartsheetHome home = inventory != null ? inventory.getHome(userEmail) : null;
+		if (home == null && discoveryMode == DiscoveryMode.CONTAINERS) {
+			backupByContainersTo(backupFolder, userEmail);
+			return;
+		}
+
+		boolean ownedOnly = discoveryMode == DiscoveryMode.OWNED_SHEETS;
+		if (ownedOnly) {
+			// the home is only listed for users who own sheets, and only the
+			// parts of it holding those sheets are backed up
+			List<SmartsheetSheet> ownedSheets = home != null ? listOwnedSheets(home) : listOwnedSheetsByPage();
+			if (ownedSheets.isEmpty()) {
+				sink.prepareFolder(backupFolder);
+				ProgressWatcher.getInstance().notify("User [%s] owns no sheets - nothing to back up",
+						userEmail);
+				return;
+			}
+			home = pruneHome(home != null ? home : apiService.getHome(), ownedSheets);
+
+		} else if (home == null) {
+			home = apiService.getHome();
+		}
 		List<SmartsheetSheet> sheets = home.getSheets();
 		List<SmartsheetFolder> folders = home.getFolders();
 		List<SmartsheetWorkspace> workspaces = home.getWorkspaces();
 
-		prepareBackupFolder(backupFolder, false);
+		sink.prepareFolder(backupFolder);
+		progress.sheetsDiscovered(listOwnedSheets(home).size());
 
 		// first create the two "root" folders of the Smartsheet hierarchy to
-		// mimic the Home UI
-		File sheetsRoot = createNewFolder(backupFolder, "Sheets");
-		File workspacesRoot = createNewFolder(backupFolder, "Workspaces");
+		// mimic the Home UI (unless they'd be empty, when only backing up
+		// the parts of the home holding owned sheets)
+		String userKey = String.valueOf(userEmail);
+		File sheetsRoot = ownedOnly && sheets.isEmpty() && folders.isEmpty() ? null
+				: createNewFolder(userKey + "/Sheets", backupFolder, "Sheets");
+		File workspacesRoot = ownedOnly && workspaces.isEmpty() ? null
+				: createNewFolder(userKey + "/Workspaces", backupFolder, "Workspaces");
 
 		// and save the top-level sheets
 		for (SmartsheetSheet sheet : sheets) {
@@ -194,133 +427,502 @@ public class SmartsheetBackupService {
 
 		// then create and save the rest of the hierarchy with contained sheets
 		// and attachments
-		createFoldersRecursively(sheetsRoot, folders);
-		createFoldersRecursively(workspacesRoot, workspaces);
+		createFoldersRecursively(sheetsRoot, userKey + "/Sheets", folders);
+		createFoldersRecursively(workspacesRoot, userKey + "/Workspaces", workspaces);
 	}
 
 	/**
-	 * Prepares the backup folder by creating it if it doesn't exist, and
-	 * clearing its contents if it does.
-	 *
-	 * @param backupFolder
-	 * @throws FileSystemItemException
+	 * Backs up the sheets of the current user walking their home container by
+	 * container, saving the sheets in each workspace and folder as it arrives.
 	 */
-	private static void prepareBackupFolder(File backupFolder, boolean isRootFolder) throws FileSystemItemException {
+	private void backupByContainersTo(File backupFolder, String userEmail) throws Exception {
+		sink.prepareFolder(backupFolder);
+		String userKey = String.valueOf(userEmail);
+		File sheetsRoot = createNewFolder(userKey + "/Sheets", backupFolder, "Sheets");
+		File workspacesRoot = createNewFolder(userKey + "/Workspaces", backupFolder, "Workspaces");
+
+		Set<Long> containedSheetIds = new HashSet<Long>();
+		ContainerTraversal traversal = new ContainerTraversal(apiService);
+		try {
+			while (true) {
+				ContainerTraversal.Container container;
+				try {
+					container = traversal.next();
+				} catch (ContainerTraversal.ContainerFetchException e) {
+					// the container is skipped, with the folders in it
+					ErrorHandler.handle(e.getError(), userEmail);
+					continue;
+				}
+				if (container == null)
+					break;
 
-		if (backupFolder.exists() && !backupFolder.isDirectory()) {
-			throw new IllegalArgumentException(backupFolder.getAbsolutePath() + " is not a directory");
-		} else if (backupFolder.exists()) {
-			return;
+				backupContainer(container, sheetsRoot, workspacesRoot, userKey, containedSheetIds);
+			}
+		} finally {
+			traversal.close();
+		}
+
+		// the sheets at the top of the home aren't in any container, so they
+		// are the owned sheets not found in one (which also picks up the
+		// sheets of a container which couldn't be fetched)
+		for (SmartsheetSheet sheet : listOwnedSheetsByPage()) {
+			if (containedSheetIds.contains(sheet.getId()))
+				continue;
+
+			progress.sheetsDiscovered(1);
+			try {
+				saveSheetToFolder(sheet, sheetsRoot);
+			} catch (Exception ex) {
+				ErrorHandler.handle(ex, userEmail);
+			}
 		}
+	}
 
-		if (!backupFolder.mkdirs()) {
-			throw new CreateFileSystemItemException(backupFolder);
+	private void backupContainer(ContainerTraversal.Container container, File sheetsRoot, File workspacesRoot,
+			String userKey, Set<Long> containedSheetIds) throws Exception {
+		SmartsheetFolder contents = container.getContents();
+		ContainerTraversal.Container parent = container.getParent();
+		String parentKey = parent != null ? parent.getKey()
+				: userKey + (container.isWorkspace() ? "/Workspaces" : "/Sheets");
+		container.setKey(parentKey + "/" + contents.getId());
+
+		List<SmartsheetSheet> ownedSheets = new ArrayList<SmartsheetSheet>();
+		collectOwnedSheets(contents.getSheets(), ownedSheets);
+		for (SmartsheetSheet sheet : ownedSheets)
+			containedSheetIds.add(sheet.getId());
+		progress.sheetsDiscovered(ownedSheets.size());
+
+		// a workspace or folder backed up already for another user is only
+		// created if it (or a folder in it, arriving later) holds sheets of
+		// this user not backed up yet
+		File visitedFolder = traversalIndex != null ? traversalIndex.getContainerFolder(contents) : null;
+		if (visitedFolder == null) {
+			createContainerFolder(container, sheetsRoot, workspacesRoot);
+		} else {
+			ProgressWatcher.getInstance().notify("Folder [%s] already backed up as [%s] - skipped",
+					contents.getName(), sink.getLocation(visitedFolder));
+			FOLDERS_SKIPPED.increment();
+		}
+
+		for (SmartsheetSheet sheet : ownedSheets) {
+			File folder = traversalIndex != null && traversalIndex.isSheetClaimed(sheet.getId())
+					? container.getFolder()
+					: createContainerFolder(container, sheetsRoot, workspacesRoot);
+			saveSheetToFolder(sheet, folder);
+		}
+	}
+
+	/**
+	 * @return the folder of a container, created (with the folders of the
+	 *         containers it's in) unless it was created already
+	 */
+	private File createContainerFolder(ContainerTraversal.Container container, File sheetsRoot,
+			File workspacesRoot) throws IOException {
+		if (container.getFolder() != null)
+			return container.getFolder();
+
+		ContainerTraversal.Container parent = container.getParent();
+		File parentFolder = parent != null ? createContainerFolder(parent, sheetsRoot, workspacesRoot)
+				: container.isWorkspace() ? workspacesRoot : sheetsRoot;
+		SmartsheetFolder contents = container.getContents();
+		File newFolder = createNewFolder(container.getKey(), parentFolder, contents.getName(), contents.getName(),
+				true);
+		if (traversalIndex != null)
+			traversalIndex.visitContainer(contents, newFolder);
+		container.setFolder(newFolder);
+		return newFolder;
+	}
+
+	/**
+	 * Posts again the attachment downloads which an interrupted backup started
+	 * but didn't complete, for sheets which won't be revisited since they were
+	 * otherwise completed.
+	 */
+	private void resumePendingDownloads() throws Exception {
+		List<JournaledAttachment> pendingAttachments = journal.getPendingAttachments();
+		if (pendingAttachments.isEmpty())
+			return;
+
+		ProgressWatcher.getInstance().notify(
+				"Resuming %d attachment downloads left incomplete by the interrupted backup",
+				pendingAttachments.size());
+		for (JournaledAttachment pendingAttachment : pendingAttachments) {
+			File file = pendingAttachment.getFile();
+			SmartsheetAttachment attachment = new SmartsheetAttachment();
+			attachment.setId(pendingAttachment.getAttachmentId());
+			attachment.setName(file.getName());
+			attachment.setAttachmentType(FILE_ATTACHMENT_TYPE);
+
+			File sheetFile = journal.getSheetFile(pendingAttachment.getSheetId());
+			String sheetName = sheetFile != null ? stripExtension(sheetFile.getName())
+					: String.valueOf(pendingAttachment.getSheetId());
+
+			// the download must be requested as the user who owns the sheet
+			apiService.assumeUser(pendingAttachment.getUserEmail());
+			sheetSaver.saveAsynchronously(attachment, file.getParentFile(), sheetName,
+					pendingAttachment.getSheetId(), file.getName());
 		}
 	}
 
 	private void saveSheetToFolder(SmartsheetSheet sheet, File folder) throws Exception {
 		// only sheets owned by the current user are backed up
-		if (!sheet.getAccessLevel().equals(OWNER_ACCESS))
+		if (!isOwned(sheet))
 			return;
 
-		File sheetFile = sheetSaver.save(sheet, folder);
+		// the sheet is done even if it fails, so the progress reaches 100%
+		long exportBytes = 0;
+		try {
+			if (traversalIndex != null && !traversalIndex.claimSheet(sheet.getId(), apiService.getAssumedUser())) {
+				ProgressWatcher.getInstance().notify("Sheet [%s] already backed up for [%s] - skipped",
+						sheet.getName(), traversalIndex.getSheetClaimer(sheet.getId()));
+				return;
+			}
+			exportBytes = saveOwnedSheetToFolder(sheet, folder);
+		} finally {
+			progress.sheetDone(exportBytes);
+		}
+	}
+
+	/**
+	 * @return the size of the exported sheet, or 0 if it was skipped
+	 */
+	private long saveOwnedSheetToFolder(SmartsheetSheet sheet, File folder) throws Exception {
+		if (journal.isSheetDone(sheet.getId())) {
+			ProgressWatcher.getInstance().notify("Sheet [%s] already backed up as [%s] - skipped",
+					sheet.getName(), sink.getLocation(journal.getSheetFile(sheet.getId())));
+			return 0;
+		}
+
+		// a sheet started by an interrupted backup is saved again to the same
+		// file, otherwise a new file is created (and journaled) for it
+		File sheetFile = journal.getSheetFile(sheet.getId());
+		if (sheetFile == null) {
+			sheetFile = sheetSaver.createSheetFile(sheet, folder);
+			journal.recordSheet(sheet.getId(), sheetFile);
+		}
+		long exportBytes = sheetSaver.saveTo(sheet, sheetFile);
 		ProgressWatcher.getInstance()
-				.notify(String.format("Sheet [%s] saved as [%s]", sheet.getName(), sheetFile.getAbsolutePath()));
-
-		// get sheet details and...
-		sheet = this.apiService.getSheetDetails(sheet.getName(), sheet.getId());
-		// 1. collect sheet attachments
-		List<SmartsheetAttachment> attachments = new ArrayList<SmartsheetAttachment>(sheet.getAttachments());
-		// 2. collect sheet discussion attachments
-		for (SmartsheetDiscussion discussion : sheet.getDiscussions()) {
-			attachments.addAll(discussion.getCommentAttachments());
-		}
-
-		// iterate rows and...
-		for (SmartsheetRow row : sheet.getRows()) {
-			// 1. collect row attachments
-			attachments.addAll(row.getAttachments());
-			// 2. collect row discussion attachments
-			for (SmartsheetDiscussion discussion : row.getDiscussions()) {
-				attachments.addAll(discussion.getCommentAttachments());
+				.notify("Sheet [%s] saved as [%s]", sheet.getName(), sink.getLocation(sheetFile));
+
+		// read the attachments of the sheet, saving each as soon as it's read
+		// (rather than building the whole sheet first)
+		SheetAttachmentSaver attachmentSaver = new SheetAttachmentSaver(sheet, folder, sheetFile);
+		try {
+			apiService.getSheetAttachments(sheet.getName(), sheet.getId(), attachmentSaver);
+		} finally {
+			attachmentSaver.close();
+		}
+
+		journal.markSheetDone(sheet.getId());
+		return exportBytes;
+	}
+
+	private static boolean isOwned(SmartsheetSheet sheet) {
+		return OWNER_ACCESS.equals(sheet.getAccessLevel());
+	}
+
+	/**
+	 * @return the sheets owned by the current user, as listed page by page
+	 *         (without their location in the home)
+	 */
+	private List<SmartsheetSheet> listOwnedSheetsByPage() throws Exception {
+		List<SmartsheetSheet> ownedSheets = new ArrayList<SmartsheetSheet>();
+		int pageNumber = 1;
+		int noofpages = 1;
+		while (pageNumber <= noofpages) {
+			SmartsheetPagingwrapper<SmartsheetSheet> sheetsPagingWrapper = apiService.getSheets(pageNumber);
+			collectOwnedSheets(sheetsPagingWrapper.getData(), ownedSheets);
+			pageNumber = sheetsPagingWrapper.getPageNumber() + 1;
+			noofpages = sheetsPagingWrapper.getTotalPages();
+		}
+		return ownedSheets;
+	}
+
+	/**
+	 * @return a copy of a home holding only the given owned sheets, and the
+	 *         folders and workspaces leading to them. Owned sheets missing
+	 *         from the home (such as sheets created since it was listed) are
+	 *         put at its top.
+	 */
+	private static SmartsheetHome pruneHome(SmartsheetHome home, List<SmartsheetSheet> ownedSheets) {
+		Map<Long, SmartsheetSheet> unplacedSheets = new LinkedHashMap<Long, SmartsheetSheet>();
+		for (SmartsheetSheet sheet : ownedSheets)
+			unplacedSheets.put(sheet.getId(), sheet);
+
+		SmartsheetHome prunedHome = new SmartsheetHome();
+		List<SmartsheetSheet> sheets = pruneSheets(home.getSheets(), unplacedSheets);
+		prunedHome.setFolders(pruneFolders(home.getFolders(), unplacedSheets));
+		prunedHome.setWorkspaces(pruneFolders(home.getWorkspaces(), unplacedSheets));
+		sheets.addAll(unplacedSheets.values());
+		prunedHome.setSheets(sheets);
+		return prunedHome;
+	}
+
+	private static List<SmartsheetSheet> pruneSheets(List<SmartsheetSheet> sheets,
+			Map<Long, SmartsheetSheet> unplacedSheets) {
+		List<SmartsheetSheet> prunedSheets = new ArrayList<SmartsheetSheet>();
+		for (SmartsheetSheet sheet : sheets) {
+			if (isOwned(sheet) && unplacedSheets.remove(sheet.getId()) != null)
+				prunedSheets.add(sheet);
+		}
+		return prunedSheets;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <F extends SmartsheetFolder> List<F> pruneFolders(List<F> folders,
+			Map<Long, SmartsheetSheet> unplacedSheets) {
+		List<F> prunedFolders = new ArrayList<F>();
+		for (F folder : folders) {
+			List<SmartsheetSheet> sheets = pruneSheets(folder.getSheets(), unplacedSheets);
+			List<SmartsheetFolder> subfolders = pruneFolders(folder.getFolders(), unplacedSheets);
+			if (sheets.isEmpty() && subfolders.isEmpty())
+				continue;
+
+			F prunedFolder;
+			if (folder instanceof SmartsheetWorkspace) {
+				SmartsheetWorkspace workspace = new SmartsheetWorkspace();
+				workspace.setAccessLevel(((SmartsheetWorkspace) folder).getAccessLevel());
+				prunedFolder = (F) workspace;
+			} else {
+				prunedFolder = (F) new SmartsheetFolder();
 			}
+			prunedFolder.setId(folder.getId());
+			prunedFolder.setName(folder.getName());
+			prunedFolder.setSheets(sheets);
+			prunedFolder.setFolders(subfolders);
+			prunedFolders.add(prunedFolder);
 		}
+		return prunedFolders;
+	}
 
-		// create a new folder for attachments, if any
-		if (!attachments.isEmpty())
-			folder = createNewFolder(folder, stripExtension(sheetFile.getName()) + " - attachments");
+	/**
+	 * @return the sheets owned by the current user in their home, including
+	 *         those in folders and workspaces
+	 */
+	private static List<SmartsheetSheet> listOwnedSheets(SmartsheetHome home) {
+		List<SmartsheetSheet> ownedSheets = new ArrayList<SmartsheetSheet>();
+		collectOwnedSheets(home.getSheets(), ownedSheets);
+		collectOwnedSheetsIn(home.getFolders(), ownedSheets);
+		collectOwnedSheetsIn(home.getWorkspaces(), ownedSheets);
+		return ownedSheets;
+	}
 
-		Set<String> usedFiles = new HashSet<String>();
+	private static void collectOwnedSheets(List<? extends SmartsheetSheet> sheets, List<SmartsheetSheet> ownedSheets) {
+		for (SmartsheetSheet sheet : sheets) {
+			if (isOwned(sheet))
+				ownedSheets.add(sheet);
+		}
+	}
+
+	private static void collectOwnedSheetsIn(List<? extends SmartsheetFolder> folders,
+			List<SmartsheetSheet> ownedSheets) {
+		for (SmartsheetFolder folder : folders) {
+			collectOwnedSheets(folder.getSheets(), ownedSheets);
+			collectOwnedSheetsIn(folder.getFolders(), ownedSheets);
+		}
+	}
+
+	/**
+	 * Marks a user done in the journal once the backup of the user and all of
+	 * the user's downloads have finished without errors. The downloads finish
+	 * on the threads of the download service, possibly after the next user's
+	 * backup has started.
+	 */
+	private class UserCompletion implements ParallelDownloadService.JobListener {
+		private final String userEmail;
+		private int pendingDownloads;
+		private boolean failed;
+		private boolean backedUp;
+
+		UserCompletion(String userEmail) {
+			this.userEmail = userEmail;
+		}
+
+		@Override
+		public synchronized void jobPosted() {
+			pendingDownloads++;
+		}
+
+		@Override
+		public void jobFinished(boolean succeeded) {
+			synchronized (this) {
+				pendingDownloads--;
+				failed |= !succeeded;
+				if (!isDone())
+					return;
+			}
+			markDone();
+		}
+
+		/**
+		 * Called once the backup of the user (other than its downloads) has
+		 * finished.
+		 *
+		 * @param withoutErrors
+		 *            whether it finished without errors
+		 */
+		void backedUp(boolean withoutErrors) {
+			synchronized (this) {
+				backedUp = true;
+				failed |= !withoutErrors;
+				if (!isDone())
+					return;
+			}
+			markDone();
+		}
+
+		// true at most once, as no download is posted after the backup
+		private boolean isDone() {
+			return backedUp && pendingDownloads == 0 && !failed;
+		}
+
+		private void markDone() {
+			try {
+				journal.markUserDone(userEmail);
+			} catch (IOException e) {
+				ProgressWatcher.getInstance().notifyError(
+						String.format("[%s: %s] recording user [%s] as backed up in the journal",
+								e.getClass().getSimpleName(), e.getLocalizedMessage(), userEmail), e);
+			}
+		}
+	}
+
+	/**
+	 * Saves the attachments of a sheet as they are read: file attachments are
+	 * downloaded asynchronously, and the others are recorded in a summary file
+	 * which is kept open for the sheet. The folder for the attachments is
+	 * created with the first attachment, so a sheet without attachments has
+	 * none.
+	 */
+	private class SheetAttachmentSaver implements SmartsheetService.AttachmentHandler {
+		private final SmartsheetSheet sheet;
+		private final File sheetFolder;
+		private final File sheetFile;
+		private final String userEmail;
+		private File folder;
+		private AttachmentSummaryWriter summaries;
+
+		SheetAttachmentSaver(SmartsheetSheet sheet, File sheetFolder, File sheetFile) {
+			this.sheet = sheet;
+			this.sheetFolder = sheetFolder;
+			this.sheetFile = sheetFile;
+			this.userEmail = apiService.getAssumedUser();
+		}
+
+		@Override
+		public void handle(SmartsheetAttachment attachment) throws Exception {
+			if (folder == null)
+				createFolder();
 
-		// save each attachment appropriately, either as a file or as a summary
-		// for non-files
-		for (SmartsheetAttachment attachment : attachments) {
 			String attachmentType = attachment.getAttachmentType();
 			if (attachmentType.equals(FILE_ATTACHMENT_TYPE)) {
 				// The api shouldn't return an empty name
 				if (attachment.getName() == null || attachment.getName().isEmpty()) {
-					continue;
+					return;
 				}
 
-				// Rebuild filename with the base name scrubed.
-				String targetFile = SheetSaver.scrubName(FilenameUtils.getBaseName(attachment.getName()));
-				if (!FilenameUtils.getExtension(attachment.getName()).isEmpty()) {
-					targetFile += "." + FilenameUtils.getExtension(attachment.getName());
-				}
-
-				// Get a unique filename
-				for (int i = 1; usedFiles.contains(targetFile); i++) {
-					String basename = FilenameUtils.getBaseName(targetFile);
-					String extension = FilenameUtils.getExtension(targetFile);
-
-					if (i > 1) {
-						targetFile = basename.replaceAll("\\([0-9]+\\)$", "(" + i + ")");
-					} else {
-						targetFile = basename + " (" + i + ")";
-					}
-
-					if (!extension.isEmpty()) {
-						targetFile += "." + extension;
+				// an attachment started by an interrupted backup is downloaded
+				// again to the same file, unless it was completed
+				JournaledAttachment journaled = journal.getAttachment(attachment.getId());
+				if (journaled != null) {
+					if (!journal.isAttachmentDone(attachment.getId())) {
+						progress.attachmentDiscovered(attachment.getSizeInKb() * 1024);
+						sheetSaver.saveAsynchronously(attachment, journaled.getFile().getParentFile(),
+								sheet.getName(), sheet.getId(), journaled.getFile().getName());
 					}
+					return;
 				}
 
-				// Keep running list of files processed
-				usedFiles.add(targetFile);
+				// Rebuild filename with the base name scrubed, and get a
+				// unique filename (numbering duplicates from 1)
+				String baseName = SheetSaver.scrubName(FilenameUtils.getBaseName(attachment.getName()));
+				String extension = FilenameUtils.getExtension(attachment.getName());
+				String targetFile = names.reserveUnique(folder, baseName,
+						extension.isEmpty() ? "" : "." + extension, 1);
+				journal.recordAttachment(attachment.getId(), sheet.getId(), userEmail, new File(folder, targetFile));
 
+				progress.attachmentDiscovered(attachment.getSizeInKb() * 1024);
 				sheetSaver.saveAsynchronously(attachment, folder, sheet.getName(), sheet.getId(), targetFile);
 			} else {
-				File summariesFile = sheetSaver.saveSummary(attachment, sheet, folder);
-				ProgressWatcher.getInstance().notify(String.format("%s Attachment [%s] recorded in [%s]",
-						attachmentType, attachment.getName(), summariesFile.getAbsolutePath()));
+				summaries.write(attachment);
+				ProgressWatcher.getInstance().notify("%s Attachment [%s] recorded in [%s]", attachmentType,
+						attachment.getName(), sink.getLocation(summaries.getFile()));
 			}
 		}
+
+		private void createFolder() throws IOException {
+			folder = createNewFolder("sheet/" + sheet.getId() + "/attachments", sheetFolder,
+					stripExtension(sheetFile.getName()) + " - attachments", null, true);
+
+			// names assigned by an interrupted backup are taken already (even
+			// if their files weren't created yet)
+			for (String usedFile : journal.getAttachmentFileNames(sheet.getId()))
+				names.reserve(folder, usedFile);
+
+			summaries = sheetSaver.openSummaryWriter(sheet, folder);
+		}
+
+		/**
+		 * Completes the summary file, if any.
+		 */
+		void close() throws IOException {
+			if (summaries != null)
+				summaries.close();
+		}
 	}
 
-	// The following are helper methods for creating local folders, with and
+	// The following are helper methods for creating backup folders, with and
 	// without notification (logging).
 
-	private static File createNewFolder(File parentFolder, String newFolderName) throws FileSystemItemException {
-		return createNewFolder(parentFolder, newFolderName, null);
+	// Folders are identified across runs by a key, so that a resumed backup
+	// reuses the folders created by the interrupted one.
+
+	private File createNewFolder(String key, File parentFolder, String newFolderName) throws IOException {
+		return createNewFolder(key, parentFolder, newFolderName, null, false);
 	}
 
-	private static File createNewFolder(File parentFolder, String newFolderName, String origFolderName)
-			throws FileSystemItemException {
-		File newFolder = createNewFolderQuietly(parentFolder, newFolderName);
+	private File createNewFolder(String key, File parentFolder, String newFolderName, String origFolderName,
+			boolean makeUnique) throws IOException {
+		File newFolder = createNewFolderQuietly(key, parentFolder, newFolderName, makeUnique);
 
 		if (origFolderName == null)
 			origFolderName = newFolderName;
 
 		ProgressWatcher.getInstance()
-				.notify(String.format("Folder [%s] created as [%s]", origFolderName, newFolder.getAbsolutePath()));
+				.notify("Folder [%s] created as [%s]", origFolderName, sink.getLocation(newFolder));
 		return newFolder;
 	}
 
-	private static File createNewFolderQuietly(File parentFolder, String newFolderName)
-			throws CreateFileSystemItemException {
-		File newFolder = new File(parentFolder, SheetSaver.scrubName(newFolderName));
+	private File createNewFolderQuietly(String key, File parentFolder, String newFolderName) throws IOException {
+		return createNewFolderQuietly(key, parentFolder, newFolderName, false);
+	}
 
-		if (!newFolder.mkdir())
-			throw new CreateFileSystemItemException(newFolder);
+	/**
+	 * @param makeUnique
+	 *            whether to append a number suffix to the name if it's
+	 *            already used in the parent folder, rather than failing
+	 */
+	private File createNewFolderQuietly(String key, File parentFolder, String newFolderName, boolean makeUnique)
+			throws IOException {
+		File resumedFolder = journal.getFolder(key);
+		if (resumedFolder != null) {
+			sink.prepareFolder(resumedFolder);
+			return resumedFolder;
+		}
+
+		String scrubbedName = SheetSaver.scrubName(newFolderName);
+		File newFolder;
+		if (makeUnique) {
+			newFolder = new File(parentFolder, names.reserveUnique(parentFolder, scrubbedName, ""));
+		} else {
+			newFolder = new File(parentFolder, scrubbedName);
+			if (!names.reserve(parentFolder, scrubbedName))
+				throw new CreateFileSystemItemException(newFolder);
+		}
+
+		sink.createFolder(newFolder);
+		FOLDERS_CREATED.increment();
+		journal.recordFolder(key, newFolder);
 		return newFolder;
 	}
 
@@ -330,12 +932,24 @@ public class SmartsheetBackupService {
 	// in a local folder where this is not permitted are resolved using a number
 	// suffix starting from 2 (as in "folder name (2)", "folder name (3)", etc.)
 
-	private void createFoldersRecursively(File parentFolder, List<? extends SmartsheetFolder> folders)
-			throws Exception {
+	private void createFoldersRecursively(File parentFolder, String parentKey,
+			List<? extends SmartsheetFolder> folders) throws Exception {
 		for (SmartsheetFolder folder : folders) {
+			// a workspace or folder backed up already for another user is
+			// skipped unless it holds sheets of this user not backed up yet
+			File visitedFolder = traversalIndex != null ? traversalIndex.getContainerFolder(folder) : null;
+			if (visitedFolder != null && !holdsUnclaimedOwnedSheets(folder)) {
+				ProgressWatcher.getInstance().notify("Folder [%s] already backed up as [%s] - skipped",
+						folder.getName(), sink.getLocation(visitedFolder));
+				FOLDERS_SKIPPED.increment();
+				continue;
+			}
+
 			// create folder
-			String folderName = findNonDupeFolderName(parentFolder, folder.getName());
-			File newFolder = createNewFolder(parentFolder, folderName, folder.getName());
+			String key = parentKey + "/" + folder.getId();
+			File newFolder = createNewFolder(key, parentFolder, folder.getName(), folder.getName(), true);
+			if (traversalIndex != null)
+				traversalIndex.visitContainer(folder, newFolder);
 
 			// save sheets in folder
 			List<SmartsheetSheet> sheets = folder.getSheets();
@@ -344,22 +958,24 @@ public class SmartsheetBackupService {
 			}
 
 			// create subfolders and save their sheets
-			createFoldersRecursively(newFolder, folder.getFolders());
+			createFoldersRecursively(newFolder, key, folder.getFolders());
 		}
 	}
 
-	private static String findNonDupeFolderName(File parentFolder, String baseFolderName) {
-		String candidateFolderName = baseFolderName;
-		int numberSuffix = 2;
-		while (true) { // keep looping until get a non duplicate folder name
-			if (!folderNameExistsInParentFolder(candidateFolderName, parentFolder.getAbsolutePath()))
-				return candidateFolderName; // this name is not used in the
-											// parent folder
-
-			// otherwise try another name by appending an incrementing number
-			// suffix
-			candidateFolderName = baseFolderName + " (" + numberSuffix + ")";
-			numberSuffix++;
+	/**
+	 * @return whether a workspace or folder (or any folder in it) holds sheets
+	 *         owned by the current user which haven't been claimed for backing
+	 *         up
+	 */
+	private boolean holdsUnclaimedOwnedSheets(SmartsheetFolder folder) {
+		for (SmartsheetSheet sheet : folder.getSheets()) {
+			if (isOwned(sheet) && !traversalIndex.isSheetClaimed(sheet.getId()))
+				return true;
+		}
+		for (SmartsheetFolder subfolder : folder.getFolders()) {
+			if (holdsUnclaimedOwnedSheets(subfolder))
+				return true;
 		}
+		return false;
 	}
 }
@@ -16,15 +16,14 @@
  **/
 package com.smartsheet.tools;
 
-import static com.smartsheet.utils.FileUtils.deleteFolder;
-import static com.smartsheet.utils.FileUtils.zipDirectory;
-
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 
@@ -33,6 +32,10 @@ import com.smartsheet.restapi.service.RestfulSmartsheetService;
 import com.smartsheet.restapi.service.RetryingSmartsheetService;
 import com.smartsheet.restapi.service.SmartsheetService;
 import com.smartsheet.utils.ConfigHolder;
+import com.smartsheet.utils.HttpUtils;
+import com.smartsheet.utils.LogLevel;
+import com.smartsheet.utils.MetricsRegistry;
+import com.smartsheet.utils.ParallelPageReader;
 import com.smartsheet.utils.ProgressWatcher;
 
 /**
@@ -45,6 +48,32 @@ public class SmartsheetBackupTool {
 	private final static int DEFAULT_DOWNLOAD_THREADS = 4; // optimal if 4 cores
 	private static final boolean DEFAULT_ZIP_OUTPUT_DIR_FLAG = false;
 	private static final boolean DEFAULT_CONTINUE_ON_ERROR_FLAG = false;
+	private static final boolean DEFAULT_DEDUPE_ATTACHMENTS_FLAG = false;
+	private static final boolean DEFAULT_DEDUPE_SHARED_FOLDERS_FLAG = false;
+	private static final String DEFAULT_ATTACHMENT_STORE_FOLDER = "attachment-store";
+	private static final boolean DEFAULT_RESUME_FLAG = false;
+	private static final int DEFAULT_ZIP_VOLUME_SIZE_MB = 0; // no volumes
+	private static final boolean DEFAULT_ZIP_PER_USER_FLAG = false;
+	private static final String DEFAULT_OBJECT_STORE_REGION = "us-east-1";
+	private static final int DEFAULT_OBJECT_STORE_PART_SIZE_MB = 8;
+	private static final int MIN_OBJECT_STORE_PART_SIZE_MB = ObjectStoreSink.MIN_PART_SIZE / (1024 * 1024);
+	private static final LogLevel DEFAULT_LOG_LEVEL = LogLevel.INFO;
+	private static final DiscoveryMode DEFAULT_DISCOVERY_MODE = DiscoveryMode.HOME;
+	private static final ExportFormat DEFAULT_EXPORT_FORMAT = ExportFormat.XLSX;
+	private static final boolean DEFAULT_GZIP_JSON_EXPORTS_FLAG = false;
+	private static final int DEFAULT_ROW_PAGE_THREADS = 4;
+	private static final boolean DEFAULT_STORE_SNAPSHOT_DELTAS_FLAG = false;
+	private static final String DEFAULT_SNAPSHOT_STORE_FOLDER = "snapshot-store";
+	private static final int DEFAULT_LOG_FILE_MAX_SIZE_MB = 10;
+	private static final int LOG_FILE_BACKUPS = 5;
+	private static final int DEFAULT_PROGRESS_INTERVAL_SECONDS = 60;
+	private static final boolean DEFAULT_DRY_RUN_FLAG = false;
+	private static final boolean DEFAULT_DRY_RUN_ATTACHMENTS_FLAG = false;
+	private static final boolean DEFAULT_USE_INVENTORY_FLAG = false;
+	private static final String DEFAULT_INVENTORY_FILE = "smartsheet-backup-inventory.json";
+	private static final int DEFAULT_API_REQUESTS_PER_MINUTE = 300; // the published Smartsheet API rate limit
+	private static final double DEFAULT_API_REQUEST_SECONDS = 0.5; // if no requests were measured
+	private static final int DEFAULT_USERS_PAGE_SIZE = 1000;
 
 	private static final int SUCCESS_EXIT_CODE = 0;
 	private static final int FAILURE_EXIT_CODE = -1;
@@ -68,17 +97,54 @@ public class SmartsheetBackupTool {
 	 */
 	public static void main(String[] args) {
 		int exitCode = SUCCESS_EXIT_CODE;
+		String metricsFile = null; // none unless set
 
 		try {
 			// 1. read properties
 			Properties props = readPropertiesFile(args);
+			progressWatcher.setLogLevel(getLogLevelProp(props, "logLevel"));
+			String logFile = getOptionalProp(props, "logFile");
+			if (logFile != null) {
+				int logFileMaxSizeMb = getOptionalProp(props, "logFileMaxSizeMb",
+						DEFAULT_LOG_FILE_MAX_SIZE_MB, 1);
+				progressWatcher.setJsonLogFile(new File(logFile),
+						logFileMaxSizeMb * 1024L * 1024L, LOG_FILE_BACKUPS);
+			}
+			metricsFile = getOptionalProp(props, "metricsFile");
+			MetricsRegistry.getInstance().registerMBean();
 			String accessToken = getRequiredProp(props, "accessToken");
-			String outputDir = getRequiredProp(props, "outputDir")
+			String baseOutputDir = getRequiredProp(props, "outputDir");
+			boolean zipOutputDir = getOptionalProp(props, "zipOutputDir",
+					DEFAULT_ZIP_OUTPUT_DIR_FLAG);
+			int compressionThreads = getOptionalProp(props, "compressionThreads",
+					Runtime.getRuntime().availableProcessors(), 1);
+			int zipVolumeSizeMb = getOptionalProp(props, "zipVolumeSizeMb",
+					DEFAULT_ZIP_VOLUME_SIZE_MB, 0);
+			boolean zipPerUser = getOptionalProp(props, "zipPerUser",
+					DEFAULT_ZIP_PER_USER_FLAG);
+			int zipInMemoryFileSizeKb = getOptionalProp(props, "zipInMemoryFileSizeKb",
+					StreamingArchiveSink.DEFAULT_MAX_IN_MEMORY_SIZE / 1024, 1);
+			String zipSpoolDir = getOptionalProp(props, "zipSpoolDir");
+			String objectStoreEndpoint = getOptionalProp(props, "objectStoreEndpoint");
+			if (objectStoreEndpoint != null && zipOutputDir)
+				throw new IllegalArgumentException(
+						"Properties 'objectStoreEndpoint' and 'zipOutputDir' cannot both be set");
+			boolean resume = getOptionalProp(props, "resume", DEFAULT_RESUME_FLAG);
+			if (resume && (zipOutputDir || objectStoreEndpoint != null)) {
+				// an archive can't be reopened to append to (and uploads
+				// aren't journaled), so there's nothing to resume in
+				progressWatcher.notify("Ignoring 'resume' since the backup isn't written to local files");
+				resume = false;
+			}
+			String outputDir = resume ? findIncompleteBackupDir(baseOutputDir) : null;
+			if (outputDir != null)
+				progressWatcher.notify("Resuming interrupted backup in: "
+						+ new File(outputDir).getAbsolutePath());
+			else
+				outputDir = baseOutputDir
 					+ "/"
 					+ new SimpleDateFormat("yyyy-MM-dd_HH_mm_ss")
 							.format(new Date());
-			boolean zipOutputDir = getOptionalProp(props, "zipOutputDir",
-					DEFAULT_ZIP_OUTPUT_DIR_FLAG);
 			boolean continueOnError = getOptionalProp(props, "continueOnError",
 					DEFAULT_CONTINUE_ON_ERROR_FLAG);
 
@@ -87,10 +153,57 @@ public class SmartsheetBackupTool {
 
 			String apiBaseUrl = getOptionalProp(props, "smartsheetApiBaseUrl");
 
+			boolean dedupeAttachments = getOptionalProp(props, "dedupeAttachments",
+					DEFAULT_DEDUPE_ATTACHMENTS_FLAG);
+			boolean dedupeSharedFolders = getOptionalProp(props, "dedupeSharedFolders",
+					DEFAULT_DEDUPE_SHARED_FOLDERS_FLAG);
+			DiscoveryMode discoveryMode = getDiscoveryModeProp(props, "discoveryMode");
+			ExportFormat exportFormat = getExportFormatProp(props, "exportFormat");
+			boolean gzipJsonExports = getOptionalProp(props, "gzipJsonExports",
+					DEFAULT_GZIP_JSON_EXPORTS_FLAG);
+			int rowsPageSize = getOptionalProp(props, "rowsPageSize",
+					RestfulSmartsheetService.DEFAULT_ROWS_PAGE_SIZE, 1);
+			int rowPageThreads = getOptionalProp(props, "rowPageThreads",
+					DEFAULT_ROW_PAGE_THREADS, 1);
+			boolean storeSnapshotDeltas = getOptionalProp(props, "storeSnapshotDeltas",
+					DEFAULT_STORE_SNAPSHOT_DELTAS_FLAG);
+			int snapshotRebaseEvery = getOptionalProp(props, "snapshotRebaseEvery",
+					SheetHistoryStore.DEFAULT_REBASE_EVERY, 1);
+			int progressIntervalSeconds = getOptionalProp(props, "progressIntervalSeconds",
+					DEFAULT_PROGRESS_INTERVAL_SECONDS, 0);
+
+			boolean dryRun = getOptionalProp(props, "dryRun", DEFAULT_DRY_RUN_FLAG);
+			boolean dryRunAttachments = getOptionalProp(props, "dryRunAttachments",
+					DEFAULT_DRY_RUN_ATTACHMENTS_FLAG);
+			boolean useInventory = getOptionalProp(props, "useInventory",
+					DEFAULT_USE_INVENTORY_FLAG);
+			String inventoryFile = getOptionalProp(props, "inventoryFile");
+			if (inventoryFile == null)
+				inventoryFile = DEFAULT_INVENTORY_FILE;
+			int apiRequestsPerMinute = getOptionalProp(props, "apiRequestsPerMinute",
+					DEFAULT_API_REQUESTS_PER_MINUTE, 1);
+			int usersPageSize = getOptionalProp(props, "usersPageSize",
+					DEFAULT_USERS_PAGE_SIZE, 1);
+
+			String attachmentStoreDir = getOptionalProp(props, "attachmentStoreDir");
+			if (attachmentStoreDir == null)
+				attachmentStoreDir = baseOutputDir + "/" + DEFAULT_ATTACHMENT_STORE_FOLDER;
+			String snapshotStoreDir = getOptionalProp(props, "snapshotStoreDir");
+			if (snapshotStoreDir == null)
+				snapshotStoreDir = baseOutputDir + "/" + DEFAULT_SNAPSHOT_STORE_FOLDER;
+
 			// 2. instantiate services
+			// the requests to the API are spaced to stay within its rate limit
+			HttpUtils.setApiRequestsPerMinute(apiRequestsPerMinute);
 			RestfulSmartsheetService restfulService = apiBaseUrl == null ?
 					new RestfulSmartsheetService(accessToken) :
 					new RestfulSmartsheetService(accessToken, apiBaseUrl);
+			restfulService.setUsersPageSize(usersPageSize);
+			// the pages of rows of large sheets are read several at a time,
+			// by threads shared by all the sheets
+			ParallelPageReader pageReader = new ParallelPageReader(rowPageThreads);
+			restfulService.setRowsPageSize(rowsPageSize);
+			restfulService.setPageReader(pageReader);
 			SmartsheetService apiService = new ErrorContextualizingSmartsheetService(
 			// the ErrorContextualizingSmartsheetService wraps the
 			// RetryingSmartsheetService:
@@ -104,21 +217,127 @@ public class SmartsheetBackupTool {
 			configHolder.setContinueOnError(continueOnError);
 			progressWatcher.setLogErrorsToFile(continueOnError);
 
+			// a dry run only takes an inventory of what would be backed up,
+			// and reports the plan of the backup
+			if (dryRun) {
+				dryRun(new SmartsheetBackupService(apiService, parallelDownloadService),
+						dryRunAttachments, new File(inventoryFile), apiRequestsPerMinute, downloadThreads);
+				exit(SUCCESS_EXIT_CODE, metricsFile);
+			}
+
+			// 3. choose where the backup is written: either to the output
+			// folder, or straight into a zip file named after it (or its
+			// volumes, or a zip file per user in it), or to an object store
+			// under keys named after it
+			BackupSink sink;
+			StreamingArchiveSink archiveSink = null;
+			boolean localFiles = false;
+			if (objectStoreEndpoint != null) {
+				sink = newObjectStoreSink(props, objectStoreEndpoint, outputDir);
+				progressWatcher.notify("Uploading backup to object store: "
+						+ sink.getLocation(new File(outputDir)));
+			} else if (zipOutputDir) {
+				archiveSink = new StreamingArchiveSink(new File(outputDir),
+						new File(zipPerUser ? outputDir : outputDir + ".zip"),
+						compressionThreads, zipVolumeSizeMb * 1024L * 1024L, zipPerUser);
+				archiveSink.setMaxInMemorySize(zipInMemoryFileSizeKb * 1024);
+				if (zipSpoolDir != null)
+					archiveSink.setSpoolFolder(new File(zipSpoolDir));
+				sink = archiveSink;
+				progressWatcher.notify("Streaming backup to zip file"
+						+ (zipPerUser ? "s in: " : ": ")
+						+ archiveSink.getArchiveFile().getAbsolutePath());
+			} else {
+				sink = new LocalFileSystemSink();
+				localFiles = true;
+			}
+			parallelDownloadService.setSink(sink);
+
+			ContentAddressedAttachmentStore attachmentStore = null;
+			if (dedupeAttachments && !localFiles) {
+				progressWatcher.notify("Ignoring 'dedupeAttachments' since the backup isn't written to local files");
+			} else if (dedupeAttachments) {
+				// the store lives next to (not in) the timestamped backup
+				// folder, so that successive backups share it
+				attachmentStore = new ContentAddressedAttachmentStore(new File(attachmentStoreDir));
+				parallelDownloadService.setAttachmentStore(attachmentStore);
+				progressWatcher.notify("Deduplicating attachments into store: "
+						+ attachmentStore.getStoreFolder().getAbsolutePath());
+			}
+
+			SheetHistoryStore historyStore = null;
+			if (storeSnapshotDeltas && exportFormat != ExportFormat.JSON) {
+				progressWatcher.notify("Ignoring 'storeSnapshotDeltas' since exportFormat isn't JSON");
+			} else if (storeSnapshotDeltas && !localFiles) {
+				progressWatcher.notify("Ignoring 'storeSnapshotDeltas' since the backup isn't written to local files");
+			} else if (storeSnapshotDeltas) {
+				// like the attachment store, shared by successive backups
+				historyStore = new SheetHistoryStore(new File(snapshotStoreDir), snapshotRebaseEvery);
+				progressWatcher.notify("Storing sheet snapshots as deltas in store: "
+						+ historyStore.getStoreFolder().getAbsolutePath());
+			}
+
+			// journal progress so an interrupted backup can be resumed (unless
+			// not writing local files, which can't be resumed)
+			BackupJournal journal = localFiles ? BackupJournal.open(new File(outputDir))
+					: BackupJournal.disabled();
+			parallelDownloadService.setJournal(journal);
+
+			// count the work as it's discovered and done, to report the
+			// progress and the time left
+			BackupProgress progress = new BackupProgress();
+			parallelDownloadService.setProgress(progress);
+
 			SmartsheetBackupService backupService = new SmartsheetBackupService(
-					apiService, parallelDownloadService);
+					apiService, parallelDownloadService, sink);
+			backupService.setJournal(journal);
+			backupService.setProgress(progress);
+			backupService.setDiscoveryMode(discoveryMode);
+			backupService.setExportFormat(exportFormat, gzipJsonExports);
+			backupService.setRowsPageSize(rowsPageSize);
+			backupService.setPageReader(pageReader);
+			if (historyStore != null)
+				backupService.setHistoryStore(historyStore);
+			if (dedupeSharedFolders)
+				backupService.setTraversalIndex(new OrgTraversalIndex());
+			if (useInventory) {
+				BackupInventory inventory = BackupInventory.read(new File(inventoryFile));
+				backupService.setInventory(inventory);
+				progress.planWork(inventory.getTotalOwnedSheets(), inventory.isAttachmentsInventoried()
+						? inventory.getTotalFileAttachmentBytes() : -1);
+				progressWatcher.notify("Using inventory taken %s from: %s",
+						new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(inventory.getCreatedAt())),
+						new File(inventoryFile).getAbsolutePath());
+			}
 			long startTime = System.currentTimeMillis();
-
-			// 3. back up the organization to a local folder
-			int numberUsers = backupService.backupOrgTo(new File(outputDir));
-
-			boolean allDownloadJobsDone = parallelDownloadService
-					.waitTillAllDownloadJobsDone();
+			if (progressIntervalSeconds > 0)
+				progress.startReporting(progressIntervalSeconds);
+
+			// 4. back up the organization
+			int numberUsers;
+			boolean allDownloadJobsDone;
+			try {
+				numberUsers = backupService.backupOrgTo(new File(outputDir));
+
+				allDownloadJobsDone = parallelDownloadService
+						.waitTillAllDownloadJobsDone();
+			} finally {
+				progress.stopReporting();
+			}
+			if (progressIntervalSeconds > 0)
+				progressWatcher.notify(progress.getReport());
+			if (allDownloadJobsDone && progressWatcher.getErrorCount() == 0)
+				journal.markRunComplete();
+			journal.close();
+
+			// the zip file is complete once everything queued for it is written
+			sink.close();
 			if (allDownloadJobsDone || configHolder.isContinueOnError()) {
 
-				// 4. if requested, zip up the backup folder which is then
-				// deleted
-				if (zipOutputDir)
-					zipAndDeleteOutputDir(outputDir);
+				if (archiveSink != null)
+					for (File archiveFile : archiveSink.getArchiveFiles())
+						progressWatcher.notify("Zipped output dir to: "
+								+ archiveFile.getAbsolutePath());
 
 				// 5. tell user how long the backup took and how many users were
 				// backed up
@@ -126,6 +345,17 @@ public class SmartsheetBackupTool {
 				progressWatcher.notify("*** Org backup done -> [" + numberUsers
 						+ "] users total backed up in " + timeSummary + " ***");
 
+				if (attachmentStore != null)
+					progressWatcher.notify(String.format(
+							"*** Attachment store: %d new, %d deduplicated (%d KB not written) ***",
+							attachmentStore.getNewBlobs(), attachmentStore.getDuplicateBlobs(),
+							attachmentStore.getBytesSaved() / 1024));
+				if (historyStore != null)
+					progressWatcher.notify(String.format(
+							"*** Snapshot store: %d bases, %d deltas (%d KB not written) ***",
+							historyStore.getBases(), historyStore.getDeltas(),
+							historyStore.getBytesSaved() / 1024));
+
 				// 6. tell user if there were any errors (in the scenario where
 				// they wanted to continue on error)
 				int errorCount = progressWatcher.getErrorCount();
@@ -148,17 +378,107 @@ public class SmartsheetBackupTool {
 			exitCode = FAILURE_EXIT_CODE;
 		}
 
+		exit(exitCode, metricsFile);
+	}
+
+	private static void exit(int exitCode, String metricsFile) {
+		if (metricsFile != null)
+			writeMetrics(new File(metricsFile));
+		progressWatcher.flush();
 		System.exit(exitCode);
 	}
 
-	private static void zipAndDeleteOutputDir(String outputDirPath)
+	/**
+	 * Takes an inventory of the organization, saves it to a file (for a
+	 * backup to use) and reports the plan of the backup from it.
+	 */
+	private static void dryRun(SmartsheetBackupService backupService,
+			boolean withAttachments, File inventoryFile,
+			int requestsPerMinute, int downloadThreads) throws Exception {
+		progressWatcher.notify("Dry run: taking inventory%s without backing anything up",
+				withAttachments ? " (with attachments)" : "");
+		BackupInventory inventory = backupService.takeInventory(withAttachments);
+		inventory.write(inventoryFile);
+
+		for (String line : inventory.describePlan(requestsPerMinute,
+				downloadThreads, measureApiRequestSeconds()))
+			progressWatcher.notify(line);
+		progressWatcher.notify("Inventory written to: %s (set useInventory=true for the backup to use it)",
+				inventoryFile.getAbsolutePath());
+	}
+
+	/**
+	 * @return the mean time taken by the API requests made so far
+	 */
+	private static double measureApiRequestSeconds() {
+		long count = 0;
+		double totalMs = 0;
+		for (String name : new String[] { "api.getUsers.latency", "api.getHome.latency",
+				"api.getSheetAttachments.latency" }) {
+			Map<String, Object> summary = MetricsRegistry.getInstance().histogram(name).getSummary();
+			long requests = (Long) summary.get("count");
+			count += requests;
+			totalMs += requests * (Double) summary.get("meanMs");
+		}
+		return count == 0 ? DEFAULT_API_REQUEST_SECONDS : totalMs / count / 1000;
+	}
+
+	private static void writeMetrics(File metricsFile) {
+		try {
+			MetricsRegistry.getInstance().writeJson(metricsFile);
+			progressWatcher.notify("Metrics written to: %s", metricsFile.getAbsolutePath());
+		} catch (IOException e) {
+			progressWatcher.notify("***WARNING*** Failed to write metrics to [%s] due to %s - %s",
+					metricsFile.getAbsolutePath(), e.getClass().getSimpleName(), e.getLocalizedMessage());
+		}
+	}
+
+	private static ObjectStoreSink newObjectStoreSink(Properties props,
+			String endpoint, String outputDir) {
+		String bucket = getRequiredProp(props, "objectStoreBucket");
+		String accessKey = getRequiredProp(props, "objectStoreAccessKey");
+		String secretKey = getRequiredProp(props, "objectStoreSecretKey");
+		String region = getOptionalProp(props, "objectStoreRegion");
+		if (region == null)
+			region = DEFAULT_OBJECT_STORE_REGION;
+		int partSizeMb = getOptionalProp(props, "objectStorePartSizeMb",
+				DEFAULT_OBJECT_STORE_PART_SIZE_MB, MIN_OBJECT_STORE_PART_SIZE_MB);
+
+		// the keys mirror the (relative) path of the backup folder
+		String keyPrefix = outputDir.replace('\\', '/');
+		while (keyPrefix.startsWith("/") || keyPrefix.startsWith("./"))
+			keyPrefix = keyPrefix.substring(keyPrefix.indexOf('/') + 1);
+		if (!keyPrefix.isEmpty() && !keyPrefix.endsWith("/"))
+			keyPrefix += "/";
+
+		return new ObjectStoreSink(new File(outputDir), endpoint, bucket,
+				keyPrefix, region, accessKey, secretKey, partSizeMb * 1024 * 1024);
+	}
+
+	/**
+	 * @return the most recent backup folder under the base output folder if its
+	 *         backup was interrupted, or {@code null} if there is no such folder
+	 */
+	private static String findIncompleteBackupDir(String baseOutputDir)
 			throws IOException {
-		String zipFilePath = outputDirPath + ".zip";
-		File outputDir = new File(outputDirPath);
-		zipDirectory(outputDir, new File(zipFilePath));
-		deleteFolder(outputDir);
-		progressWatcher.notify("Zipped output dir to: "
-				+ new File(zipFilePath).getAbsolutePath());
+		File[] backupDirs = new File(baseOutputDir).listFiles();
+		if (backupDirs == null)
+			return null;
+
+		// backup folders are named with a sortable timestamp
+		File latestBackupDir = null;
+		for (File backupDir : backupDirs) {
+			if (new File(backupDir, BackupJournal.JOURNAL_FILE_NAME).isFile()
+					&& (latestBackupDir == null || backupDir.getName()
+							.compareTo(latestBackupDir.getName()) > 0))
+				latestBackupDir = backupDir;
+		}
+
+		if (latestBackupDir == null
+				|| !BackupJournal.isIncomplete(latestBackupDir))
+			return null;
+
+		return latestBackupDir.getPath();
 	}
 
 	private static String computeTimeSummary(long startTime) {
@@ -253,6 +573,48 @@ public class SmartsheetBackupTool {
 		return Boolean.valueOf(prop);
 	}
 
+	private static LogLevel getLogLevelProp(Properties props, String propName) {
+		String prop = getOptionalProp(props, propName);
+		if (prop == null)
+			return DEFAULT_LOG_LEVEL;
+
+		try {
+			return LogLevel.valueOf(prop.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Property '" + propName
+					+ "' must be one of " + Arrays.toString(LogLevel.values())
+					+ " - '" + prop + "' is an invalid value");
+		}
+	}
+
+	private static DiscoveryMode getDiscoveryModeProp(Properties props, String propName) {
+		String prop = getOptionalProp(props, propName);
+		if (prop == null)
+			return DEFAULT_DISCOVERY_MODE;
+
+		try {
+			return DiscoveryMode.valueOf(prop.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Property '" + propName
+					+ "' must be one of " + Arrays.toString(DiscoveryMode.values())
+					+ " - '" + prop + "' is an invalid value");
+		}
+	}
+
+	private static ExportFormat getExportFormatProp(Properties props, String propName) {
+		String prop = getOptionalProp(props, propName);
+		if (prop == null)
+			return DEFAULT_EXPORT_FORMAT;
+
+		try {
+			return ExportFormat.valueOf(prop.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Property '" + propName
+					+ "' must be one of " + Arrays.toString(ExportFormat.values())
+					+ " - '" + prop + "' is an invalid value");
+		}
+	}
+
 	private static String getOptionalProp(Properties props, String propName) {
 		String prop = props.getProperty(propName);
 		if (prop == null || prop.trim().isEmpty())
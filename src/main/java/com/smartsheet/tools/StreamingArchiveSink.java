@@ -0,0 +1,978 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+import com.smartsheet.exceptions.CreateFileSystemItemException;
+import com.smartsheet.tools.CompressionPolicy.Compression;
+import com.smartsheet.utils.ProgressWatcher;
+import com.smartsheet.utils.ZipArchiveWriter;
+import com.smartsheet.utils.ZipArchiveWriter.CompressedEntry;
+
+/**
+ * A {@link BackupSink} which writes the backup straight into zip archives as
+ * sheets and attachments are downloaded, so that the backup folder is never
+ * written to disk and doesn't need to be zipped (and deleted) afterwards.
+ * <p>
+ * Each file is held in memory until it is complete, and is then compressed on
+ * a pool of compression threads as the {@link CompressionPolicy} chooses. A
+ * zip archive can only be written one entry at a time, so each archive has a
+ * single writer thread which adds the compressed entries in the order they
+ * were completed. The queue of each writer thread is bounded, so writers wait
+ * if the archive falls behind.
+ * <p>
+ * A file written from a content stream which grows larger than the in-memory
+ * size is instead compressed as it is written and streamed straight into its
+ * archive, with its CRC and sizes following it in a data descriptor, so it is
+ * never written to disk outside the archive. If it turns out to be incomplete,
+ * the archive is truncated back to where it started. This isn't possible with
+ * capped volumes (as the size of an entry must be known to choose its
+ * volume), or for files written through {@link #newOutputStream(File)} (which
+ * may be kept open while other files are written, holding up the archive), so
+ * these are spooled to a temporary file in the spool folder instead.
+ * <p>
+ * The backup can be written to a single archive, to volumes of a capped size
+ * (each a complete archive in its own right), or to one archive per user
+ * (i.e. per top-level folder), in which case the archives are written
+ * concurrently.
+ */
+public class StreamingArchiveSink implements BackupSink {
+
+	private static final int QUEUE_CAPACITY = 32;
+	public static final int DEFAULT_MAX_IN_MEMORY_SIZE = 1024 * 1024; // 1M
+	private static final int BUFFER_SIZE = 64 * 1024; // 64K
+	/** The number of compressed chunks of a streamed entry which can be pending */
+	private static final int STREAM_CAPACITY = 16;
+	private static final String ZIP_EXTENSION = ".zip";
+
+	/** The entry queued to tell a writer thread there are no more entries */
+	private static final Future<PendingEntry> END_OF_ENTRIES = new FutureTask<PendingEntry>(
+			new Callable<PendingEntry>() {
+				@Override
+				public PendingEntry call() {
+					return null;
+				}
+			});
+
+	private final File rootFolder;
+	private final File archiveFile;
+	private final long volumeSize;
+	private final boolean archivePerUser;
+	private final ExecutorService compressor;
+	private volatile CompressionPolicy compressionPolicy = new CompressionPolicy();
+	private volatile int maxInMemorySize = DEFAULT_MAX_IN_MEMORY_SIZE;
+	private volatile File spoolFolder; // null for the default temporary folder
+
+	/** The writers of the archives, keyed by user folder ("" if not per user) */
+	private final Map<String, ArchiveWriter> writers = new HashMap<String, ArchiveWriter>();
+	private boolean closed;
+
+	/** The names of the folders and files in the archives, used or reserved */
+	private final Set<String> names = new HashSet<String>();
+
+	/**
+	 * Creates a sink which writes a single archive, compressing on as many
+	 * threads as there are processors.
+	 *
+	 * @param rootFolder
+	 *            The backup folder, which the paths of the folders and files of
+	 *            the backup are relative to. Nothing is written to it.
+	 * @param archiveFile
+	 *            The archive to write to (created if it doesn't exist;
+	 *            otherwise overwritten).
+	 */
+	public StreamingArchiveSink(File rootFolder, File archiveFile) throws IOException {
+		this(rootFolder, archiveFile, Runtime.getRuntime().availableProcessors(), 0, false);
+	}
+
+	/**
+	 * @param rootFolder
+	 *            The backup folder, which the paths of the folders and files of
+	 *            the backup are relative to. Nothing is written to it.
+	 * @param archiveFile
+	 *            The archive to write to (created if it doesn't exist;
+	 *            otherwise overwritten). With volumes, the volumes are named
+	 *            after it with a volume number ("backup.001.zip",
+	 *            "backup.002.zip", etc.) With an archive per user, it is
+	 *            instead the folder which the archives of the users are
+	 *            written to, named after each user's folder.
+	 * @param compressionThreads
+	 *            The number of threads to compress entries on.
+	 * @param volumeSize
+	 *            The size in bytes which a volume is not to exceed (a single
+	 *            entry larger than this gets a volume of its own), or 0 to
+	 *            write the whole backup to one archive.
+	 * @param archivePerUser
+	 *            {@code true} to write an archive for each top-level folder
+	 *            (i.e. user) of the backup.
+	 */
+	public StreamingArchiveSink(File rootFolder, File archiveFile, int compressionThreads, long volumeSize,
+			boolean archivePerUser) throws IOException {
+		if (compressionThreads < 1)
+			throw new IllegalArgumentException("At least one compression thread is required");
+
+		this.rootFolder = rootFolder;
+		this.archiveFile = archiveFile;
+		this.volumeSize = volumeSize;
+		this.archivePerUser = archivePerUser;
+
+		File archiveFolder = archivePerUser ? archiveFile : archiveFile.getAbsoluteFile().getParentFile();
+		if (!archiveFolder.isDirectory() && !archiveFolder.mkdirs())
+			throw new CreateFileSystemItemException(archiveFolder);
+
+		compressor = Executors.newFixedThreadPool(compressionThreads);
+		if (!archivePerUser)
+			getArchiveWriter(""); // so the archive exists even if empty
+	}
+
+	/**
+	 * Sets the size above which the content of a file is no longer held in
+	 * memory, and is streamed into the archive or spooled to a temporary file.
+	 */
+	public void setMaxInMemorySize(int maxInMemorySize) {
+		this.maxInMemorySize = maxInMemorySize;
+	}
+
+	/**
+	 * Sets the folder which the content of large files is spooled to when it
+	 * can't be streamed into the archive (by default the system temporary
+	 * folder).
+	 */
+	public void setSpoolFolder(File spoolFolder) throws IOException {
+		if (!spoolFolder.isDirectory() && !spoolFolder.mkdirs())
+			throw new CreateFileSystemItemException(spoolFolder);
+		this.spoolFolder = spoolFolder;
+	}
+
+	/**
+	 * @return the archive file (or, with an archive per user, the folder of the
+	 *         archives) as given when the sink was created
+	 */
+	public File getArchiveFile() {
+		return archiveFile;
+	}
+
+	/**
+	 * Sets the policy which decides how each file is compressed (by default, a
+	 * {@link CompressionPolicy} which doesn't deflate compressed content).
+	 */
+	public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+		this.compressionPolicy = compressionPolicy;
+	}
+
+	/**
+	 * @return the archive files written so far (including all volumes)
+	 */
+	public List<File> getArchiveFiles() {
+		List<File> archiveFiles = new ArrayList<File>();
+		synchronized (writers) {
+			for (ArchiveWriter writer : writers.values())
+				archiveFiles.addAll(writer.getVolumeFiles());
+		}
+		return archiveFiles;
+	}
+
+	@Override
+	public void prepareFolder(File folder) throws IOException {
+		String name = getEntryName(folder);
+		if (name.isEmpty())
+			return; // the root folder is the archive itself
+
+		synchronized (names) {
+			if (!names.add(name))
+				return;
+		}
+		enqueueFolder(name);
+	}
+
+	@Override
+	public void createFolder(File folder) throws IOException {
+		String name = getEntryName(folder);
+		reserve(name, folder);
+		enqueueFolder(name);
+	}
+
+	@Override
+	public boolean exists(File item) {
+		String name = getFileEntryName(item);
+		synchronized (names) {
+			return names.contains(name) || names.contains(name + "/");
+		}
+	}
+
+	@Override
+	public String[] listExisting(File folder) {
+		return null; // the archive is new
+	}
+
+	/**
+	 * Archives are treated as case-insensitive (although zip entry names
+	 * aren't), so that they can be extracted on Windows and Mac OS X without
+	 * entries overwriting each other.
+	 */
+	@Override
+	public boolean isCaseSensitive() {
+		return false;
+	}
+
+	@Override
+	public void createFile(File file) throws IOException {
+		reserve(getFileEntryName(file), file);
+	}
+
+	@Override
+	public void write(File file, String mimeType, InputStream content) throws IOException {
+		Spool spool = new Spool(getFileEntryName(file), mimeType, volumeSize <= 0);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int bytesRead;
+			while ((bytesRead = content.read(buffer)) != -1)
+				spool.write(buffer, 0, bytesRead);
+
+		} catch (IOException e) {
+			// the content is incomplete, so it must not be committed
+			spool.dispose();
+			throw e;
+		}
+		spool.close();
+	}
+
+	@Override
+	public OutputStream newOutputStream(File file) throws IOException {
+		return new Spool(getFileEntryName(file), null, false);
+	}
+
+	@Override
+	public String getLocation(File item) {
+		String name = getFileEntryName(item);
+		String user = getArchiveUser(name);
+		File volumeFile;
+		synchronized (writers) {
+			ArchiveWriter writer = writers.get(user);
+			volumeFile = writer != null ? writer.getCurrentVolumeFile() : getVolumeFile(user, 1);
+		}
+		return volumeFile.getAbsolutePath() + "!/" + name;
+	}
+
+	@Override
+	public void close() throws IOException {
+		List<ArchiveWriter> allWriters;
+		synchronized (writers) {
+			closed = true;
+			allWriters = new ArrayList<ArchiveWriter>(writers.values());
+		}
+
+		IOException failure = null;
+		for (ArchiveWriter writer : allWriters) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+		compressor.shutdown();
+		if (failure != null)
+			throw failure;
+	}
+
+	// helpers
+
+	private void reserve(String name, File item) throws CreateFileSystemItemException {
+		synchronized (names) {
+			String fileName = name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+			if (names.contains(fileName) || names.contains(fileName + "/"))
+				throw new CreateFileSystemItemException(item);
+			names.add(name);
+		}
+	}
+
+	private void enqueueFolder(String name) throws IOException {
+		final PendingEntry folder = new PendingEntry(CompressedEntry.folder(name), null);
+		getArchiveWriter(name).enqueue(new Callable<PendingEntry>() {
+			@Override
+			public PendingEntry call() {
+				return folder; // nothing to compress
+			}
+		}, null);
+	}
+
+	/**
+	 * @return the writer of the archive which an entry belongs in, started on
+	 *         first use
+	 */
+	private ArchiveWriter getArchiveWriter(String name) {
+		String user = getArchiveUser(name);
+		synchronized (writers) {
+			if (closed)
+				throw new IllegalStateException("Archive " + archiveFile + " is closed");
+
+			ArchiveWriter writer = writers.get(user);
+			if (writer == null) {
+				writer = new ArchiveWriter(user);
+				writers.put(user, writer);
+			}
+			return writer;
+		}
+	}
+
+	/**
+	 * @return the user folder whose archive an entry belongs in ("" if not per
+	 *         user)
+	 */
+	private String getArchiveUser(String name) {
+		if (!archivePerUser)
+			return "";
+		int separator = name.indexOf('/');
+		return separator == -1 ? name : name.substring(0, separator);
+	}
+
+	/**
+	 * @return a volume (numbered from 1) of the archive of a user folder, or
+	 *         the archive itself if volumes aren't capped
+	 */
+	private File getVolumeFile(String user, int volumeNumber) {
+		String baseName;
+		File folder;
+		if (archivePerUser) {
+			baseName = user.isEmpty() ? rootFolder.getName() : user;
+			folder = archiveFile;
+		} else {
+			baseName = archiveFile.getName();
+			if (baseName.toLowerCase().endsWith(ZIP_EXTENSION))
+				baseName = baseName.substring(0, baseName.length() - ZIP_EXTENSION.length());
+			folder = archiveFile.getAbsoluteFile().getParentFile();
+		}
+		if (volumeSize <= 0)
+			return new File(folder, baseName + ZIP_EXTENSION);
+		return new File(folder, String.format("%s.%03d%s", baseName, volumeNumber, ZIP_EXTENSION));
+	}
+
+	private String getFileEntryName(File item) {
+		String name = getEntryName(item);
+		return name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+	}
+
+	/**
+	 * @return the path of an item relative to the root folder, using '/' as
+	 *         the separator and ending with '/' (as folder entries must)
+	 */
+	private String getEntryName(File item) {
+		String rootPath = rootFolder.getAbsolutePath();
+		String path = item.getAbsolutePath();
+		if (path.equals(rootPath))
+			return "";
+		if (!path.startsWith(rootPath + File.separator))
+			throw new IllegalArgumentException(path + " is not in the backup folder " + rootPath);
+
+		return path.substring(rootPath.length() + 1).replace(File.separatorChar, '/') + "/";
+	}
+
+	/**
+	 * Compresses the content of a file into an entry as the compression policy
+	 * chooses, storing it instead if compressing doesn't make it smaller.
+	 */
+	private PendingEntry compress(String name, String mimeType, Buffer content) throws IOException {
+		CRC32 crc = new CRC32();
+		Buffer compressed = null;
+		Deflater deflater = null;
+		try {
+			InputStream in = content.openInputStream();
+			try {
+				// sample the start of the content to choose the compression
+				byte[] sample = new byte[CompressionPolicy.SAMPLE_SIZE];
+				int sampleLength = 0;
+				int bytesRead;
+				while (sampleLength < sample.length
+						&& (bytesRead = in.read(sample, sampleLength, sample.length - sampleLength)) != -1)
+					sampleLength += bytesRead;
+				Compression compression = compressionPolicy.choose(name, mimeType, sample, sampleLength);
+
+				OutputStream out = null;
+				if (compression.getMethod() == ZipEntry.DEFLATED) {
+					compressed = new Buffer();
+					deflater = new Deflater(compression.getLevel(), true /* raw, as zip requires */);
+					out = new DeflaterOutputStream(compressed, deflater, BUFFER_SIZE);
+				}
+
+				crc.update(sample, 0, sampleLength);
+				if (out != null)
+					out.write(sample, 0, sampleLength);
+				byte[] buffer = new byte[BUFFER_SIZE];
+				while ((bytesRead = in.read(buffer)) != -1) {
+					crc.update(buffer, 0, bytesRead);
+					if (out != null)
+						out.write(buffer, 0, bytesRead);
+				}
+				if (out != null)
+					out.close();
+
+			} finally {
+				in.close();
+			}
+
+		} catch (IOException e) {
+			if (compressed != null)
+				compressed.dispose();
+			content.dispose();
+			throw e;
+		} finally {
+			if (deflater != null)
+				deflater.end();
+		}
+
+		if (compressed == null || compressed.size() >= content.size()) {
+			if (compressed != null)
+				compressed.dispose();
+			return new PendingEntry(new CompressedEntry(name, ZipEntry.STORED, crc.getValue(), content.size(),
+					content.size()), content);
+		}
+		content.dispose();
+		return new PendingEntry(new CompressedEntry(name, ZipEntry.DEFLATED, crc.getValue(), content.size(),
+				compressed.size()), compressed);
+	}
+
+	private static class PendingEntry {
+		private final CompressedEntry entry; // null if streamed
+		private final Buffer content; // null for a folder
+		private final StreamedContent streamed;
+
+		PendingEntry(CompressedEntry entry, Buffer content) {
+			this.entry = entry;
+			this.content = content;
+			this.streamed = null;
+		}
+
+		PendingEntry(StreamedContent streamed) {
+			this.entry = null;
+			this.content = null;
+			this.streamed = streamed;
+		}
+
+		void dispose() {
+			if (content != null)
+				content.dispose();
+		}
+	}
+
+	/**
+	 * Writes the entries of one archive (split into volumes, if they are
+	 * capped) on its own thread, in the order they were queued.
+	 */
+	private class ArchiveWriter {
+		private final String user;
+		private final BlockingQueue<Future<PendingEntry>> queue = new ArrayBlockingQueue<Future<PendingEntry>>(
+				QUEUE_CAPACITY);
+		private final Thread thread;
+		private final List<File> volumeFiles = new ArrayList<File>();
+		private ZipArchiveWriter volume;
+
+		/** The error which stopped the writer thread, if any */
+		private volatile IOException failure;
+
+		ArchiveWriter(String user) {
+			this.user = user;
+			volumeFiles.add(getVolumeFile(user, 1));
+			thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					writeQueuedEntries();
+				}
+			}, "archive-writer-" + getCurrentVolumeFile().getName());
+			thread.start();
+		}
+
+		synchronized List<File> getVolumeFiles() {
+			return new ArrayList<File>(volumeFiles);
+		}
+
+		synchronized File getCurrentVolumeFile() {
+			return volumeFiles.get(volumeFiles.size() - 1);
+		}
+
+		/**
+		 * Submits an entry to be compressed, and queues it to be written once
+		 * it is.
+		 *
+		 * @param content
+		 *            The content which the entry is compressed from (null for a
+		 *            folder), which is disposed if the entry can't be queued.
+		 */
+		void enqueue(Callable<PendingEntry> compression, Buffer content) throws IOException {
+			if (failure != null) {
+				if (content != null)
+					content.dispose();
+				throw failure;
+			}
+
+			Future<PendingEntry> compressedEntry = compressor.submit(compression);
+			try {
+				queue.put(compressedEntry);
+			} catch (InterruptedException e) {
+				if (compressedEntry.cancel(false) && content != null)
+					content.dispose();
+				throw new InterruptedIOException("Interrupted while queuing entry for archive");
+			}
+		}
+
+		/**
+		 * Queues an entry whose content is streamed into the archive as it is
+		 * written, once the entries queued before it are written.
+		 */
+		void enqueue(final StreamedContent streamed) throws IOException {
+			if (failure != null)
+				throw failure;
+
+			FutureTask<PendingEntry> entry = new FutureTask<PendingEntry>(new Callable<PendingEntry>() {
+				@Override
+				public PendingEntry call() {
+					return new PendingEntry(streamed);
+				}
+			});
+			entry.run(); // nothing to compress up front
+			try {
+				queue.put(entry);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while queuing entry for archive");
+			}
+		}
+
+		void close() throws IOException {
+			try {
+				queue.put(END_OF_ENTRIES);
+				thread.join();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while completing archive " + getCurrentVolumeFile());
+			}
+			if (failure != null)
+				throw failure;
+		}
+
+		/**
+		 * The logic of the writer thread, which adds the queued entries to the
+		 * archive as their compression completes, until told there are no
+		 * more.
+		 */
+		private void writeQueuedEntries() {
+			try {
+				while (true) {
+					Future<PendingEntry> compressedEntry = queue.take();
+					if (compressedEntry == END_OF_ENTRIES)
+						break;
+
+					PendingEntry entry = null;
+					try {
+						entry = compressedEntry.get();
+						if (entry.streamed != null)
+							writeStreamedEntry(entry.streamed);
+						else if (failure == null)
+							writeEntry(entry);
+
+					} catch (ExecutionException e) {
+						// only this entry is affected (e.g. its spool file
+						// couldn't be read)
+						ProgressWatcher.getInstance().notifyError(String.format("[%s: %s] compressing entry for [%s]",
+								e.getCause().getClass().getSimpleName(), e.getCause().getLocalizedMessage(),
+								getCurrentVolumeFile()), e);
+					} catch (IOException e) {
+						// the archive can't be written any more, but keep
+						// taking entries so writers don't wait forever
+						failure = e;
+					} finally {
+						if (entry != null)
+							entry.dispose();
+					}
+				}
+				if (volume != null)
+					volume.close();
+				else if (failure == null)
+					new ZipArchiveWriter(getCurrentVolumeFile()).close(); // empty archive
+
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+			} catch (InterruptedException e) {
+				failure = new InterruptedIOException("Interrupted while writing archive " + getCurrentVolumeFile());
+			}
+		}
+
+		private void writeEntry(PendingEntry entry) throws IOException {
+			// start a new volume if this entry would make the current one too
+			// big (unless it's the first, as an entry can't be split)
+			if (volume != null && volumeSize > 0 && volume.getEntryCount() > 0
+					&& volume.getArchiveSizeWith(entry.entry) > volumeSize) {
+				volume.close();
+				volume = null;
+				synchronized (this) {
+					volumeFiles.add(getVolumeFile(user, volumeFiles.size() + 1));
+				}
+			}
+			if (volume == null)
+				volume = new ZipArchiveWriter(getCurrentVolumeFile());
+
+			if (entry.content == null) {
+				volume.write(entry.entry, null);
+				return;
+			}
+			InputStream content = entry.content.openInputStream();
+			try {
+				volume.write(entry.entry, content);
+			} finally {
+				content.close();
+			}
+		}
+
+		/**
+		 * Writes the content of a streamed entry into the archive as it
+		 * arrives, until it is complete or abandoned. If the archive can't be
+		 * written, the content is still taken (and discarded) so that the
+		 * writer of the file doesn't wait forever.
+		 */
+		private void writeStreamedEntry(StreamedContent streamed) throws IOException, InterruptedException {
+			boolean writing = false;
+			if (failure == null) {
+				try {
+					if (volume == null)
+						volume = new ZipArchiveWriter(getCurrentVolumeFile());
+					volume.startEntry(streamed.name, ZipEntry.DEFLATED);
+					writing = true;
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+
+			while (true) {
+				byte[] chunk = streamed.take();
+				if (chunk == StreamedContent.END_OF_CONTENT) {
+					if (writing)
+						volume.finishEntry(streamed.getCrc(), streamed.getSize());
+					return;
+				}
+				if (chunk == StreamedContent.ABORTED) {
+					if (writing)
+						volume.abortEntry();
+					return;
+				}
+				if (writing) {
+					try {
+						volume.writeEntryContent(chunk, 0, chunk.length);
+					} catch (IOException e) {
+						failure = e;
+						writing = false;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Holds content in memory while it is small and in a temporary file in the
+	 * spool folder once it grows larger.
+	 */
+	private class Buffer extends OutputStream {
+		private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+		private File spillFile;
+		private OutputStream spillStream;
+		private long size;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			if (spillStream == null && memory.size() + length > maxInMemorySize) {
+				spillFile = File.createTempFile("smartsheet-backup-", ".spool", spoolFolder);
+				spillStream = new BufferedOutputStream(new FileOutputStream(spillFile), BUFFER_SIZE);
+				memory.writeTo(spillStream);
+				memory = null;
+			}
+			if (spillStream != null)
+				spillStream.write(bytes, offset, length);
+			else
+				memory.write(bytes, offset, length);
+			size += length;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (spillStream != null)
+				spillStream.close();
+		}
+
+		long size() {
+			return size;
+		}
+
+		InputStream openInputStream() throws IOException {
+			if (spillFile != null)
+				return new BufferedInputStream(new FileInputStream(spillFile), BUFFER_SIZE);
+			return new ByteArrayInputStream(memory.toByteArray());
+		}
+
+		void dispose() {
+			try {
+				if (spillStream != null)
+					spillStream.close();
+			} catch (IOException e) {
+				// ignore, the spill file is deleted anyway
+			}
+			if (spillFile != null)
+				spillFile.delete();
+			memory = null;
+		}
+	}
+
+	/**
+	 * Holds the content of a file until it is complete. Closing the spool
+	 * queues it to be compressed and added to its archive. If it can be
+	 * streamed, content beyond the in-memory size is instead compressed as it
+	 * is written and streamed into the archive, and closing the spool
+	 * completes the entry.
+	 */
+	private class Spool extends Buffer {
+		private final String name;
+		private final String mimeType;
+		private final boolean streamable;
+		private StreamedContent streamed;
+		private boolean closed;
+
+		Spool(String name, String mimeType, boolean streamable) {
+			this.name = name;
+			this.mimeType = mimeType;
+			this.streamable = streamable;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			if (streamed == null && streamable && size() + length > maxInMemorySize)
+				startStreaming();
+			if (streamed != null)
+				streamed.write(bytes, offset, length);
+			else
+				super.write(bytes, offset, length);
+		}
+
+		/**
+		 * Queues the entry to be streamed into the archive, choosing its
+		 * compression from the content so far, and passes that content on.
+		 */
+		private void startStreaming() throws IOException {
+			byte[] content = new byte[(int) size()];
+			InputStream in = openInputStream();
+			try {
+				int length = 0;
+				int bytesRead;
+				while (length < content.length
+						&& (bytesRead = in.read(content, length, content.length - length)) != -1)
+					length += bytesRead;
+			} finally {
+				in.close();
+			}
+			super.dispose();
+
+			// streamed entries are always deflated (if only at level 0 when
+			// they are to be stored), as readers of zip streams can't find the
+			// end of stored content followed by a data descriptor
+			int sampleLength = Math.min(content.length, CompressionPolicy.SAMPLE_SIZE);
+			Compression compression = compressionPolicy.choose(name, mimeType, content, sampleLength);
+			int level = compression.getMethod() == ZipEntry.DEFLATED ? compression.getLevel()
+					: Deflater.NO_COMPRESSION;
+			streamed = new StreamedContent(name, level);
+			getArchiveWriter(name).enqueue(streamed);
+			streamed.write(content, 0, content.length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+
+			super.close();
+			synchronized (names) {
+				names.add(name);
+			}
+			if (streamed != null) {
+				streamed.finish();
+				return;
+			}
+
+			final Buffer content = this;
+			getArchiveWriter(name).enqueue(new Callable<PendingEntry>() {
+				@Override
+				public PendingEntry call() throws IOException {
+					return compress(name, mimeType, content);
+				}
+			}, content);
+		}
+
+		@Override
+		void dispose() {
+			closed = true;
+			if (streamed != null)
+				streamed.abort();
+			super.dispose();
+		}
+	}
+
+	/**
+	 * The content of an entry which is streamed into its archive: it is
+	 * deflated as it is written, and handed to the writer thread of the
+	 * archive in chunks through a bounded queue, so the writer of the file
+	 * waits if the archive falls behind.
+	 */
+	private static class StreamedContent {
+		/** The chunk queued after the last of the content */
+		static final byte[] END_OF_CONTENT = new byte[0];
+		/** The chunk queued if the content is incomplete */
+		static final byte[] ABORTED = new byte[0];
+
+		private final String name;
+		private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(STREAM_CAPACITY);
+		private final CRC32 crc = new CRC32();
+		private final Deflater deflater;
+		private final DeflaterOutputStream out;
+		private long size;
+		private boolean done;
+
+		StreamedContent(String name, int level) {
+			this.name = name;
+			deflater = new Deflater(level, true /* raw, as zip requires */);
+			out = new DeflaterOutputStream(new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] bytes, int offset, int length) throws IOException {
+					byte[] chunk = new byte[length];
+					System.arraycopy(bytes, offset, chunk, 0, length);
+					put(chunk);
+				}
+			}, deflater, BUFFER_SIZE);
+		}
+
+		void write(byte[] bytes, int offset, int length) throws IOException {
+			crc.update(bytes, offset, length);
+			size += length;
+			out.write(bytes, offset, length);
+		}
+
+		/**
+		 * Completes the content, which the archive can then complete its entry
+		 * with.
+		 */
+		void finish() throws IOException {
+			if (done)
+				return;
+			try {
+				out.close();
+			} catch (IOException e) {
+				abort();
+				throw e;
+			}
+			done = true;
+			deflater.end();
+			putLast(END_OF_CONTENT);
+		}
+
+		/**
+		 * Abandons the content, which the archive then discards.
+		 */
+		void abort() {
+			if (done)
+				return;
+			done = true;
+			deflater.end();
+			putLast(ABORTED);
+		}
+
+		/**
+		 * @return the next chunk of the deflated content, or
+		 *         {@link #END_OF_CONTENT} or {@link #ABORTED}
+		 */
+		byte[] take() throws InterruptedException {
+			return chunks.take();
+		}
+
+		long getCrc() {
+			return crc.getValue();
+		}
+
+		long getSize() {
+			return size;
+		}
+
+		/**
+		 * Queues the chunk which ends the content, as the writer thread must
+		 * be told even if this thread is interrupted.
+		 */
+		private void putLast(byte[] chunk) {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					chunks.put(chunk);
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		private void put(byte[] chunk) throws IOException {
+			try {
+				chunks.put(chunk);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while streaming entry " + name + " into archive");
+			}
+		}
+	}
+}
@@ -0,0 +1,314 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.utils;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.IllegalFormatException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A logger which hands log events over to a background thread through a
+ * lock-free ring buffer, so that the threads which log never wait for the
+ * console or a log file (unless the buffer is full, in which case they wait
+ * for room rather than lose events). Messages are formatted on the background
+ * thread, which writes each batch of events it takes from the buffer to its
+ * {@link Appender}s before flushing them once.
+ * <p>
+ * Any number of threads can log; only the background thread reads the buffer.
+ */
+public class AsyncLogger {
+
+    /**
+     * A destination of log events, called only from the background thread.
+     */
+    public interface Appender {
+        void append(Event event) throws IOException;
+
+        /**
+         * Called after each batch of events.
+         */
+        void flush() throws IOException;
+
+        void close() throws IOException;
+    }
+
+    /**
+     * A log event. Its message is formatted when it's first needed.
+     */
+    public static class Event {
+        private final LogLevel level;
+        private final long time;
+        private final String threadName;
+        private final String format;
+        private final Object[] args;
+        private final Throwable error;
+        private final boolean printStackTrace;
+        private final int errorNumber;
+        private final String errorLogFile;
+        private String message;
+
+        public Event(LogLevel level, String format, Object[] args, Throwable error, boolean printStackTrace,
+            int errorNumber, String errorLogFile) {
+            this.level = level;
+            this.time = System.currentTimeMillis();
+            this.threadName = Thread.currentThread().getName();
+            this.format = format;
+            this.args = args;
+            this.error = error;
+            this.printStackTrace = printStackTrace;
+            this.errorNumber = errorNumber;
+            this.errorLogFile = errorLogFile;
+        }
+
+        public LogLevel getLevel() {
+            return level;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getThreadName() {
+            return threadName;
+        }
+
+        public String getMessage() {
+            if (message == null) {
+                if (args == null || args.length == 0) {
+                    message = String.valueOf(format);
+                } else {
+                    try {
+                        message = String.format(format, args);
+                    } catch (IllegalFormatException e) {
+                        message = format + " " + Arrays.toString(args);
+                    }
+                }
+            }
+            return message;
+        }
+
+        /**
+         * @return the error logged with the message, or null
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        public String getStackTrace() {
+            if (error == null)
+                return null;
+
+            StringWriter trace = new StringWriter();
+            error.printStackTrace(new PrintWriter(trace));
+            return trace.toString();
+        }
+
+        /**
+         * @return whether the stack trace of the error is to be shown on the
+         *         console (it's always written to log files)
+         */
+        public boolean isPrintStackTrace() {
+            return printStackTrace;
+        }
+
+        /**
+         * @return the number of the error (counting from 1), or 0 if the event
+         *         isn't an error
+         */
+        public int getErrorNumber() {
+            return errorNumber;
+        }
+
+        /**
+         * @return the path of the file which the error is to be logged to, or
+         *         null
+         */
+        public String getErrorLogFile() {
+            return errorLogFile;
+        }
+    }
+
+    private static final int MAX_BATCH_SIZE = 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final AtomicReferenceArray<Event> slots;
+    private final int mask;
+    /** The sequence number of the next event to be logged */
+    private final AtomicLong tail = new AtomicLong();
+    /** The sequence number of the next event to be taken by the background thread */
+    private volatile long head;
+    /** The sequence number up to which events have been written and flushed */
+    private volatile long written;
+    private volatile boolean idle;
+    private volatile boolean running = true;
+
+    private final List<Appender> appenders = new CopyOnWriteArrayList<Appender>();
+    private final Thread consumer;
+
+    /**
+     * @param capacity
+     *            the number of events the ring buffer holds, rounded up to a
+     *            power of 2
+     */
+    public AsyncLogger(int capacity, String threadName) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        slots = new AtomicReferenceArray<Event>(size);
+        mask = size - 1;
+
+        consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, threadName);
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    public void addAppender(Appender appender) {
+        appenders.add(appender);
+    }
+
+    /**
+     * Puts an event in the ring buffer, waiting if it's full. Once the logger
+     * is closed, the message is printed straight to the console instead.
+     */
+    public void log(Event event) {
+        if (!running) {
+            // closed (as the program exits), so there's no thread to wait for
+            System.out.println(event.getMessage());
+            return;
+        }
+
+        long sequence;
+        while (true) {
+            sequence = tail.get();
+            if (sequence - head > mask) {
+                // full, so wait for the background thread to make room
+                if (!consumer.isAlive()) {
+                    System.out.println(event.getMessage());
+                    return;
+                }
+                LockSupport.unpark(consumer);
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+
+            } else if (tail.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+        slots.set((int) sequence & mask, event);
+
+        if (idle)
+            LockSupport.unpark(consumer);
+    }
+
+    /**
+     * Waits until the events logged before the call have been written and
+     * flushed.
+     */
+    public void flush() {
+        if (Thread.currentThread() == consumer)
+            return;
+
+        long target = tail.get();
+        while (written < target && consumer.isAlive()) {
+            LockSupport.unpark(consumer);
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Writes the events logged so far, stops the background thread and closes
+     * the appenders.
+     */
+    public void close() {
+        flush();
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void consume() {
+        while (running || head != tail.get()) {
+            int batchSize = 0;
+            long next = head;
+            Event event;
+            while (batchSize < MAX_BATCH_SIZE && (event = slots.get((int) next & mask)) != null) {
+                slots.set((int) next & mask, null);
+                next++;
+                batchSize++;
+                for (Appender appender : appenders) {
+                    try {
+                        appender.append(event);
+                    } catch (Exception e) {
+                        reportAppenderFailure(appender, e);
+                    }
+                }
+            }
+
+            if (batchSize > 0) {
+                head = next;
+                for (Appender appender : appenders) {
+                    try {
+                        appender.flush();
+                    } catch (Exception e) {
+                        reportAppenderFailure(appender, e);
+                    }
+                }
+                written = next;
+
+            } else if (running) {
+                idle = true;
+                // check again once the flag is raised: an event logged before
+                // then is seen here, and one logged after wakes the thread
+                if (slots.get((int) head & mask) == null)
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                idle = false;
+
+            } else {
+                Thread.yield(); // an event is being put in the buffer
+            }
+        }
+
+        for (Appender appender : appenders) {
+            try {
+                appender.close();
+            } catch (Exception e) {
+                reportAppenderFailure(appender, e);
+            }
+        }
+    }
+
+    private static void reportAppenderFailure(Appender appender, Exception e) {
+        // the background thread can't log through itself
+        System.err.println(String.format("***ERROR*** Failed to write to log %s due to %s - %s", appender,
+            e.getClass().getSimpleName(), e.getLocalizedMessage()));
+    }
+}
@@ -0,0 +1,66 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.utils;
+
+import java.io.PrintStream;
+
+/**
+ * Writes log messages to the console, collecting each batch of messages to
+ * print it in one go. Errors are marked as such, and their stack traces (if
+ * requested) are printed to the standard error stream.
+ */
+public class ConsoleLogAppender implements AsyncLogger.Appender {
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private final StringBuilder batch = new StringBuilder();
+
+    @Override
+    public void append(AsyncLogger.Event event) {
+        if (event.getLevel() == LogLevel.ERROR)
+            batch.append("***ERROR*** ");
+        batch.append(event.getMessage()).append(LINE_SEPARATOR);
+
+        if (event.isPrintStackTrace() && event.getError() != null) {
+            // print the messages so far first, so the trace follows its error
+            flush();
+            event.getError().printStackTrace(System.err);
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (batch.length() == 0)
+            return;
+
+        // the current streams are used, in case they have been redirected
+        PrintStream out = System.out;
+        out.print(batch);
+        out.flush();
+        batch.setLength(0);
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    @Override
+    public String toString() {
+        return "console";
+    }
+}
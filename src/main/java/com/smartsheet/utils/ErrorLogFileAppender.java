@@ -0,0 +1,84 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.utils;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Appends errors, with their stack traces, to the error log file named by
+ * each error event (if any). The file is kept open between errors, and only
+ * reopened when the file named changes.
+ */
+public class ErrorLogFileAppender implements AsyncLogger.Appender {
+
+    private static final String DATE_FORMAT = "yyyy-MM-dd hh:mm:ss";
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
+    private String openFile;
+    private PrintWriter writer;
+
+    @Override
+    public void append(AsyncLogger.Event event) throws IOException {
+        String errorLogFile = event.getErrorLogFile();
+        if (event.getLevel() != LogLevel.ERROR || errorLogFile == null)
+            return;
+
+        if (!errorLogFile.equals(openFile)) {
+            close();
+            writer = new PrintWriter(new BufferedWriter(new FileWriter(errorLogFile, true /*append*/)));
+            openFile = errorLogFile;
+        }
+
+        String error = event.getMessage();
+        String stackTrace = event.getStackTrace();
+        if (stackTrace != null)
+            error += "\nTRACE:\n" + stackTrace;
+        writer.println(String.format(
+            "[%s] *** ERROR %d *** %s", dateFormat.format(new Date(event.getTime())), event.getErrorNumber(), error));
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (writer != null) {
+            writer.flush();
+            if (writer.checkError()) {
+                String failedFile = openFile;
+                close(); // reopened with the next error
+                throw new IOException("Failed to write to " + failedFile);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+            openFile = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "file [" + openFile + "]";
+    }
+}
@@ -23,10 +23,13 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
@@ -35,6 +38,7 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.DefaultHttpClient;
 
 import com.smartsheet.exceptions.ServiceUnavailableException;
+import com.smartsheet.exceptions.TooManyRequestsException;
 import com.smartsheet.restapi.service.RetryingSmartsheetService;
 import com.smartsheet.tools.SmartsheetBackupTool;
 import sun.misc.IOUtils;
@@ -45,13 +49,33 @@ import sun.misc.IOUtils;
 public class HttpUtils {
 
     private static final String CHARSET = "UTF-8";
-    private static final String ACCEPT_JSON_HEADER = "application/json; charset=" + CHARSET.toLowerCase();
+    public static final String ACCEPT_JSON_HEADER = "application/json; charset=" + CHARSET.toLowerCase();
     private static final int ATTACHMENT_BUFFER_SIZE = 64*1024; // 64K
 
+    // the latency of requests (until the response headers are received) by
+    // HTTP status, created as statuses are seen
+    private static final AtomicReferenceArray<LatencyHistogram> STATUS_LATENCIES =
+        new AtomicReferenceArray<LatencyHistogram>(600);
+    private static final LatencyHistogram FAILED_REQUEST_LATENCY =
+        MetricsRegistry.getInstance().histogram("http.failed.latency");
+    private static final StripedCounter DOWNLOAD_RETRIES = MetricsRegistry.getInstance().counter("http.downloadRetries");
+
+    // spaces the requests made with an access token (i.e. to the API, rather
+    // than attachment downloads), if set
+    private static volatile RequestRateLimiter apiRateLimiter;
+
     private HttpUtils() {
         // private constructor because this is a singleton helper class, not intended to be instantiated
     }
 
+    /**
+     * Limits the rate of the requests made with an access token (i.e. to the
+     * Smartsheet API) to stay within its rate limit, or 0 not to limit them.
+     */
+    public static void setApiRequestsPerMinute(int requestsPerMinute) {
+        apiRateLimiter = requestsPerMinute > 0 ? new RequestRateLimiter(requestsPerMinute) : null;
+    }
+
     /**
      * Gets the JSON payload (as a String) returned by invoking HTTP GET on the
      * specified URL, with the optional accessToken and userToAssume arguments.
@@ -80,12 +104,64 @@ public class HttpUtils {
         }
     }
 
+    /**
+     * Streams the JSON payload returned by invoking HTTP GET on the specified
+     * URL to a {@link ContentHandler} as it's received, rather than reading it
+     * into a String, with the optional accessToken and userToAssume arguments.
+     */
+    public static void streamJsonPayload(String url, String accessToken, String userToAssume,
+            ContentHandler handler) throws IOException {
+
+        HttpGet httpGet = newGetRequest(url, accessToken, ACCEPT_JSON_HEADER, userToAssume);
+        HttpResponse response = getResponse(httpGet);
+        try {
+            StatusLine status = response.getStatusLine();
+            if (status.getStatusCode() == ServiceUnavailableException.SERVICE_UNAVAILABLE_CODE)
+                throw new ServiceUnavailableException(url);
+
+            InputStream content = getContentOnSuccess(response, url, status);
+            handler.handle(new BufferedInputStream(content));
+
+        } finally {
+            httpGet.releaseConnection();
+        }
+    }
+
+    /**
+     * Receives the content of a successful download. Implementations consume
+     * (but need not close) the stream; a handler may be invoked more than once
+     * for the same URL if the download is retried.
+     */
+    public interface ContentHandler {
+        void handle(InputStream content) throws IOException;
+    }
+
     /**
      * Saves the contents at the specified URL to a local file, with the optional
      * accessToken and userToAssume arguments used when requesting the URL.
      */
-    public static void saveUrlToFile(String url, File file, String accessToken, String acceptHeader, String userToAssume) 
+    public static void saveUrlToFile(String url, final File file, String accessToken, String acceptHeader, String userToAssume)
             throws InterruptedException, IOException {
+        saveUrlTo(url, accessToken, acceptHeader, userToAssume, new ContentHandler() {
+            @Override
+            public void handle(InputStream content) throws IOException {
+                if (file.exists())
+                    file.delete();
+
+                OutputStream outStream = new BufferedOutputStream(new FileOutputStream(file), ATTACHMENT_BUFFER_SIZE);
+                copyAndClose(content, outStream);
+            }
+        }, file.getAbsolutePath());
+    }
+
+    /**
+     * Streams the contents at the specified URL to a {@link ContentHandler},
+     * with the optional accessToken and userToAssume arguments used when
+     * requesting the URL. The target is only used to describe the download in
+     * log messages.
+     */
+    public static void saveUrlTo(String url, String accessToken, String acceptHeader, String userToAssume,
+            ContentHandler handler, String target) throws InterruptedException, IOException {
         IOException finalException = null;
         // This logic should be moved to the smartsheet api class. adding retry logic here for expediency.
         for (int i = 0; i <= RetryingSmartsheetService.MAX_RETRIES; i++) {
@@ -102,11 +178,7 @@ public class HttpUtils {
 
                     InputStream content = getContentOnSuccess(response, url, status);
                     InputStream inStream = new BufferedInputStream(content, ATTACHMENT_BUFFER_SIZE);
-                    if (file.exists())
-                        file.delete();
-
-                    OutputStream outStream = new BufferedOutputStream(new FileOutputStream(file), ATTACHMENT_BUFFER_SIZE);
-                    copyAndClose(inStream, outStream);
+                    handler.handle(inStream);
                     return;
 
                 } finally {
@@ -114,18 +186,19 @@ public class HttpUtils {
                 }
             } catch (ServiceUnavailableException sue) {
                 if (i < RetryingSmartsheetService.MAX_RETRIES)
-                    RetryingSmartsheetService.sleepForDefinedInterval(i+1, "saveUrlToFile");
+                    RetryingSmartsheetService.sleepForDefinedInterval(i+1, "saveUrlToFile", sue);
                 else
                     finalException = sue;
 
             } catch (IOException unexpected) {
                 // There was an unexpected error getting the content at the URL.
                 // We'll try again immediately, unless we've reached MAX_RETRIES.
-                if (i < RetryingSmartsheetService.MAX_RETRIES)
-                    ProgressWatcher.getInstance().notify(String.format(
+                if (i < RetryingSmartsheetService.MAX_RETRIES) {
+                    DOWNLOAD_RETRIES.increment();
+                    ProgressWatcher.getInstance().notify(
                         "There was an issue while attempting to download [%s] to [%s]. Retrying...",
-                        url, file.getAbsolutePath()));
-                else
+                        url, target);
+                } else
                     finalException = unexpected;
             }
         }
@@ -162,13 +235,45 @@ public class HttpUtils {
      * Invokes a HTTP GET and returns the response.
      */
     private static HttpResponse getResponse(HttpGet httpGet) throws IOException, ClientProtocolException {
+        RequestRateLimiter rateLimiter = apiRateLimiter;
+        if (rateLimiter != null && httpGet.containsHeader("Authorization")) {
+            try {
+                rateLimiter.acquire();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting to request " + httpGet.getURI());
+            }
+        }
+
+        long start = System.nanoTime();
         DefaultHttpClient httpclient = new DefaultHttpClient();
-        return httpclient.execute(httpGet);
+        HttpResponse response;
+        try {
+            response = httpclient.execute(httpGet);
+        } catch (IOException e) {
+            FAILED_REQUEST_LATENCY.recordSince(start);
+            throw e;
+        }
+        getStatusLatency(response.getStatusLine().getStatusCode()).recordSince(start);
+        return response;
+    }
+
+    private static LatencyHistogram getStatusLatency(int statusCode) {
+        if (statusCode < 0 || statusCode >= STATUS_LATENCIES.length())
+            return MetricsRegistry.getInstance().histogram("http.status." + statusCode + ".latency");
+
+        LatencyHistogram latency = STATUS_LATENCIES.get(statusCode);
+        if (latency == null) {
+            latency = MetricsRegistry.getInstance().histogram("http.status." + statusCode + ".latency");
+            STATUS_LATENCIES.set(statusCode, latency);
+        }
+        return latency;
     }
 
     /**
      * Gets the content of the HTTP response as an input stream if the response
-     * status is success (200). Otherwise {@link IOException} is thrown.
+     * status is success (200). Otherwise {@link IOException} is thrown, or
+     * {@link ServiceUnavailableException} (to be retried) for a server error
+     * or {@link TooManyRequestsException} if the rate limit was exceeded.
      */
     private static InputStream getContentOnSuccess(HttpResponse response, String url, StatusLine status)
             throws IOException {
@@ -181,6 +286,9 @@ public class HttpUtils {
         if(statusCode >= 500){
         	// This exception is caught and causes it to try again.
         	throw new ServiceUnavailableException(url);
+        }else if (statusCode == TooManyRequestsException.TOO_MANY_REQUESTS_CODE) {
+            // retried too, but after backing off
+            throw new TooManyRequestsException(url, getRetryAfterSecs(response));
         }else if (statusCode != 200) {
             // Try to get the response as well
             String errorResponse = "";
@@ -196,10 +304,25 @@ public class HttpUtils {
         return entity.getContent();
     }
 
+    /**
+     * @return the delay in seconds given by the Retry-After header of a
+     *         response, or -1 if it has none (or gives a date instead)
+     */
+    private static int getRetryAfterSecs(HttpResponse response) {
+        Header retryAfter = response.getFirstHeader("Retry-After");
+        if (retryAfter == null)
+            return -1;
+        try {
+            return Math.max(0, Integer.parseInt(retryAfter.getValue().trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     /**
      * Copies an input stream to an output stream, closing the output stream before returning.
      */
-    private static void copyAndClose(InputStream inStream, OutputStream outStream) throws IOException {
+    public static void copyAndClose(InputStream inStream, OutputStream outStream) throws IOException {
         try {
             byte[] bytes = new byte[ATTACHMENT_BUFFER_SIZE];
             int actualRead;
@@ -0,0 +1,111 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, counted in buckets whose bounds double (1, 2, 4,
+ * 8... microseconds), so percentiles are approximate (to the upper bound of
+ * their bucket) but recording is cheap. Like a {@link StripedCounter}, each
+ * thread records to one of several stripes, which are merged when read.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 40; // up to 2^40 microseconds
+    private static final int COUNT = BUCKETS;
+    private static final int SUM = BUCKETS + 1;
+    private static final int MAX = BUCKETS + 2;
+    private static final int ROW = 48; // the cells of a stripe, padded to whole cache lines
+
+    private final AtomicLongArray cells = new AtomicLongArray(StripedCounter.STRIPES * ROW);
+
+    /**
+     * Records a latency measured with {@link System#nanoTime()}.
+     */
+    public void recordNanos(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        int row = StripedCounter.stripe() * ROW;
+        cells.getAndIncrement(row + bucket);
+        cells.getAndIncrement(row + COUNT);
+        cells.getAndAdd(row + SUM, micros);
+        long max;
+        while (micros > (max = cells.get(row + MAX)) && !cells.compareAndSet(row + MAX, max, micros))
+            ; // retry
+    }
+
+    /**
+     * Records the latency since a start time taken with
+     * {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        recordNanos(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return sum(COUNT);
+    }
+
+    /**
+     * @return the count, mean, 50th, 90th and 99th percentiles and maximum of
+     *         the latencies (in milliseconds)
+     */
+    public Map<String, Object> getSummary() {
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = sum(i);
+        long count = 0;
+        for (long bucket : buckets)
+            count += bucket;
+        long max = 0;
+        for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++)
+            max = Math.max(max, cells.get(stripe * ROW + MAX));
+
+        Map<String, Object> summary = new LinkedHashMap<String, Object>();
+        summary.put("count", count);
+        summary.put("meanMs", count == 0 ? 0.0 : sum(SUM) / 1000.0 / count);
+        summary.put("p50Ms", percentile(buckets, count, 0.5));
+        summary.put("p90Ms", percentile(buckets, count, 0.9));
+        summary.put("p99Ms", percentile(buckets, count, 0.99));
+        summary.put("maxMs", max / 1000.0);
+        return summary;
+    }
+
+    private static double percentile(long[] buckets, long count, double fraction) {
+        if (count == 0)
+            return 0.0;
+
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank)
+                return (1L << i) / 1000.0; // the upper bound of the bucket
+        }
+        return (1L << (buckets.length - 1)) / 1000.0;
+    }
+
+    private long sum(int cell) {
+        long sum = 0;
+        for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++)
+            sum += cells.get(stripe * ROW + cell);
+        return sum;
+    }
+}
@@ -0,0 +1,33 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.utils;
+
+/**
+ * The levels of the messages logged by the {@link ProgressWatcher}, from the
+ * least to the most severe.
+ */
+public enum LogLevel {
+    DEBUG, INFO, WARN, ERROR;
+
+    /**
+     * @return {@code true} if messages of a level are logged when this is the
+     *         minimum level logged
+     */
+    public boolean enables(LogLevel level) {
+        return level.compareTo(this) >= 0;
+    }
+}
@@ -0,0 +1,218 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * A registry of the runtime metrics of a backup: counters (reported with their
+ * rate per second since the registry was created), latency histograms, and
+ * gauges which are read when reported. The metrics are exposed over JMX as the
+ * attributes of an MBean, and can be written to a JSON file.
+ * <p>
+ * Metrics are looked up by name, so callers on a hot path should keep the
+ * counter or histogram they record to rather than looking it up each time.
+ */
+public class MetricsRegistry {
+
+    public static final String OBJECT_NAME = "com.smartsheet.backup:type=Metrics";
+
+    private static final MetricsRegistry singleton = new MetricsRegistry();
+
+    public static MetricsRegistry getInstance() {
+        return singleton;
+    }
+
+    /**
+     * A value which is read when metrics are reported.
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    private final long startTime = System.currentTimeMillis();
+    private final ConcurrentMap<String, StripedCounter> counters = new ConcurrentHashMap<String, StripedCounter>();
+    private final ConcurrentMap<String, LatencyHistogram> histograms =
+        new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    private MetricsRegistry() {
+        // private constructor because this is a singleton helper class, not intended to be instantiated
+    }
+
+    public StripedCounter counter(String name) {
+        StripedCounter counter = counters.get(name);
+        if (counter == null) {
+            StripedCounter newCounter = new StripedCounter();
+            counter = counters.putIfAbsent(name, newCounter);
+            if (counter == null)
+                counter = newCounter;
+        }
+        return counter;
+    }
+
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(name, newHistogram);
+            if (histogram == null)
+                histogram = newHistogram;
+        }
+        return histogram;
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge of the same name.
+     */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @return the current values of all metrics, by name (sorted)
+     */
+    public Map<String, Object> getSnapshot() {
+        double elapsedSeconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+        Map<String, Object> snapshot = new TreeMap<String, Object>();
+        for (Map.Entry<String, StripedCounter> counter : counters.entrySet()) {
+            Map<String, Object> values = new TreeMap<String, Object>();
+            long count = counter.getValue().get();
+            values.put("count", count);
+            values.put("perSecond", count / elapsedSeconds);
+            snapshot.put(counter.getKey(), values);
+        }
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet())
+            snapshot.put(histogram.getKey(), histogram.getValue().getSummary());
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet())
+            snapshot.put(gauge.getKey(), gauge.getValue().getValue());
+        snapshot.put("elapsedSeconds", elapsedSeconds);
+        return snapshot;
+    }
+
+    /**
+     * Writes the current values of all metrics to a JSON file.
+     */
+    public void writeJson(File file) throws IOException {
+        JsonGenerator json = new JsonFactory(new ObjectMapper()).createJsonGenerator(file, JsonEncoding.UTF8);
+        try {
+            json.useDefaultPrettyPrinter();
+            json.writeObject(getSnapshot());
+        } finally {
+            json.close();
+        }
+    }
+
+    /**
+     * Registers an MBean with the platform MBean server (under
+     * {@link #OBJECT_NAME}) which exposes each metric value as an attribute.
+     * Values of counters and histograms are named with the metric name and the
+     * value name, such as "api.getHome.latency.p99Ms".
+     */
+    public void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!server.isRegistered(name))
+            server.registerMBean(new MetricsMBean(), name);
+    }
+
+    private Map<String, Object> getFlatSnapshot() {
+        Map<String, Object> flat = new TreeMap<String, Object>();
+        for (Map.Entry<String, Object> metric : getSnapshot().entrySet()) {
+            if (metric.getValue() instanceof Map) {
+                for (Map.Entry<?, ?> value : ((Map<?, ?>) metric.getValue()).entrySet())
+                    flat.put(metric.getKey() + "." + value.getKey(), value.getValue());
+            } else {
+                flat.put(metric.getKey(), metric.getValue());
+            }
+        }
+        return flat;
+    }
+
+    /**
+     * A read-only MBean whose attributes are the metric values at the time
+     * they are read (so the attributes grow as metrics are registered).
+     */
+    private class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = getFlatSnapshot().get(attribute);
+            if (value == null)
+                throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Object> snapshot = getFlatSnapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes)
+                if (snapshot.containsKey(attribute))
+                    list.add(new Attribute(attribute, snapshot.get(attribute)));
+            return list;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            for (Map.Entry<String, Object> value : getFlatSnapshot().entrySet())
+                attributes.add(new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+                    value.getKey(), true, false, false));
+            return new MBeanInfo(MetricsRegistry.class.getName(), "Smartsheet backup metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.utils;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads a run of pages (such as the pages of the rows of a sheet) several at
+ * a time, passing them to a handler one by one in page order. Only as many
+ * pages as there are threads are read ahead of the page being handled, so
+ * the memory used doesn't grow with the number of pages.
+ * <p>
+ * Each page is read on its own, so a page which fails can be retried by its
+ * source without reading the others again. The threads are shared by all the
+ * reads of a reader, which may be made from several threads.
+ */
+public class ParallelPageReader {
+
+    /**
+     * Reads a page. Called from the threads of the reader.
+     */
+    public interface PageSource<P> {
+        P read(int pageNumber) throws Exception;
+    }
+
+    /**
+     * Handles the pages read, in order. Called from the thread reading.
+     */
+    public interface PageHandler<P> {
+        void handle(P page) throws Exception;
+    }
+
+    private final int threads;
+    private final ExecutorService executor; // null if reading one page at a time
+
+    /**
+     * @param threads
+     *            the number of pages read at a time; with one thread, pages
+     *            are read in turn by the thread calling
+     *            {@link #read(int, int, PageSource, PageHandler)}
+     */
+    public ParallelPageReader(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be at least 1");
+
+        this.threads = threads;
+        this.executor = threads == 1 ? null : Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int threadNumber;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "page-reader-" + ++threadNumber);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Reads a run of pages, passing each to a handler in order. If a page
+     * can't be read (or handled), the pages after it aren't handled and the
+     * error is thrown.
+     *
+     * @param firstPage
+     *            the number of the first page read
+     * @param lastPage
+     *            the number of the last page read (no pages are read if it's
+     *            before the first)
+     */
+    public <P> void read(int firstPage, int lastPage, final PageSource<P> source, PageHandler<P> handler)
+            throws Exception {
+        if (executor == null) {
+            for (int pageNumber = firstPage; pageNumber <= lastPage; pageNumber++)
+                handler.handle(source.read(pageNumber));
+            return;
+        }
+
+        Deque<Future<P>> pending = new ArrayDeque<Future<P>>();
+        int nextPage = firstPage;
+        try {
+            while (nextPage <= lastPage || !pending.isEmpty()) {
+                // keep a page per thread on the way
+                while (nextPage <= lastPage && pending.size() < threads) {
+                    final int pageNumber = nextPage++;
+                    pending.add(executor.submit(new Callable<P>() {
+                        @Override
+                        public P call() throws Exception {
+                            return source.read(pageNumber);
+                        }
+                    }));
+                }
+                handler.handle(getPage(pending.poll()));
+            }
+
+        } finally {
+            for (Future<P> future : pending)
+                future.cancel(true);
+        }
+    }
+
+    private static <P> P getPage(Future<P> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+}
@@ -16,24 +16,28 @@
 **/
 package com.smartsheet.utils;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A Progress Watcher which receives status and error notifications, publishing
- * them to the console.
+ * them to the console (and errors to an error log file, if requested).
+ * <p>
+ * Notifications are published asynchronously by an {@link AsyncLogger}, so
+ * the threads notifying don't contend for the console. Messages can be given
+ * as a format and arguments, in which case they are only formatted if their
+ * level is enabled (and then by the logger's thread). Notifications can also
+ * be written as JSON lines to a rolling log file.
  */
 public class ProgressWatcher {
 
     private static final String SMARTSHEET_BACKUP_ERROR_LOG_PREFIX = "smartsheet-backup-error-log_";
     private static final String SMARTSHEET_BACKUP_ERROR_LOG_EXTENSION = ".log";
     private static final String DATE_FORMAT = "yyyy-MM-dd hh:mm:ss";
+    private static final int LOG_BUFFER_CAPACITY = 8192;
 
     private static final ProgressWatcher singleton = new ProgressWatcher();
 
@@ -41,49 +45,124 @@ public class ProgressWatcher {
         return singleton;
     }
 
-    private int errorCount = 0;
-    private boolean logErrorsToFile = false;
-    private String errorLogFilePath; // initialized whenever logErrorsToFile is set to true
+    private final AsyncLogger logger;
+    private volatile LogLevel logLevel = LogLevel.INFO;
+    private final AtomicInteger errorCount = new AtomicInteger();
+    // the errors notified by each thread, so that a thread can tell the errors
+    // of its own work from those of other threads
+    private final ThreadLocal<int[]> threadErrorCount = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+    private volatile boolean logErrorsToFile = false;
+    private volatile String errorLogFilePath; // initialized whenever logErrorsToFile is set to true
 
     private ProgressWatcher() {
         // private constructor because this is a singleton helper class, not intended to be instantiated
+        logger = new AsyncLogger(LOG_BUFFER_CAPACITY, "progress-watcher");
+        logger.addAppender(new ConsoleLogAppender());
+        logger.addAppender(new ErrorLogFileAppender());
+
+        // publish whatever is pending when the program exits
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                logger.close();
+            }
+        }, "progress-watcher-shutdown"));
     }
 
     public void notify(String status) {
-        System.out.println(status);
-    }
-
-    public synchronized void notifyError(String error, Exception ex) {
-        notify("***ERROR*** " + error);
-        errorCount++;
-        if (logErrorsToFile) {
-            try {
-            	if(ex != null){
-                    StringWriter sw = new StringWriter();
-                    ex.printStackTrace(new PrintWriter(sw));
-            		error += error+"\nTRACE:\n"+sw.toString();
-            	}
-            	
-                logToFile(error);
-            } catch (IOException e) {
-                notify(String.format(
-                    "***ERROR*** Failed to write to error log file [%s] due to %s - %s",
-                    errorLogFilePath, e.getClass().getSimpleName(), e.getLocalizedMessage()));
-            }
-        }
+        if (logLevel.enables(LogLevel.INFO))
+            logger.log(new AsyncLogger.Event(LogLevel.INFO, status, null, null, false, 0, null));
+    }
+
+    /**
+     * Notifies a status given as a {@link String#format(String, Object...)}
+     * format and arguments, which are formatted only if published.
+     */
+    public void notify(String format, Object... args) {
+        log(LogLevel.INFO, format, args);
+    }
+
+    /**
+     * Notifies a detailed status, which is only published if the
+     * {@link LogLevel#DEBUG} level is enabled.
+     */
+    public void debug(String format, Object... args) {
+        log(LogLevel.DEBUG, format, args);
+    }
+
+    public void warn(String format, Object... args) {
+        log(LogLevel.WARN, format, args);
+    }
+
+    public void notifyError(String error, Exception ex) {
+        notifyError(error, ex, false);
     }
 
     public void notifyError(Throwable error) {
         Throwable cause = error.getCause();
         if (cause != null)
             error = cause;
-        notifyError(String.format("%s - %s", error.getClass().getSimpleName(), error.getLocalizedMessage()),null);
-        System.out.flush(); // flush before printing stack trace to avoid overlapping logs from multiple threads
-        error.printStackTrace();
+        notifyError(String.format("%s - %s", error.getClass().getSimpleName(), error.getLocalizedMessage()), error,
+            true);
+    }
+
+    private void notifyError(String error, Throwable ex, boolean printStackTrace) {
+        int errorNumber = errorCount.incrementAndGet();
+        threadErrorCount.get()[0]++;
+        logger.log(new AsyncLogger.Event(LogLevel.ERROR, error, null, ex, printStackTrace, errorNumber,
+            logErrorsToFile ? errorLogFilePath : null));
+    }
+
+    private void log(LogLevel level, String format, Object[] args) {
+        if (logLevel.enables(level))
+            logger.log(new AsyncLogger.Event(level, format, args, null, false, 0, null));
+    }
+
+    /**
+     * @return {@code true} if notifications of a level are published, for
+     *         callers who need to do work to build a notification
+     */
+    public boolean isEnabled(LogLevel level) {
+        return logLevel.enables(level);
+    }
+
+    /**
+     * Sets the minimum level of the notifications published (errors are always
+     * published).
+     */
+    public void setLogLevel(LogLevel logLevel) {
+        this.logLevel = logLevel;
+    }
+
+    /**
+     * Writes all notifications as JSON lines to a log file (in addition to the
+     * console), rolling the file over when it reaches a maximum size.
+     */
+    public void setJsonLogFile(File file, long maxFileSize, int maxBackupFiles) throws IOException {
+        logger.addAppender(new RollingJsonLogAppender(file, maxFileSize, maxBackupFiles));
+    }
+
+    /**
+     * Waits until the notifications so far have been published.
+     */
+    public void flush() {
+        logger.flush();
     }
 
     public int getErrorCount() {
-        return errorCount;
+        return errorCount.get();
+    }
+
+    /**
+     * @return the number of errors notified by the current thread
+     */
+    public int getThreadErrorCount() {
+        return threadErrorCount.get()[0];
     }
 
     public void setLogErrorsToFile(boolean logErrorsToFile) {
@@ -96,28 +175,16 @@ public class ProgressWatcher {
         String logFileExtension = SMARTSHEET_BACKUP_ERROR_LOG_EXTENSION;
         errorLogFilePath = new File(logFilePrefix + logFileSuffix + logFileExtension).getAbsolutePath();
 
-        errorCount = 0; // reinitialize since errorLogFilePath has been reset
+        errorCount.set(0); // reinitialize since errorLogFilePath has been reset
     }
 
     public String getErrorLogFile() {
-        if (errorCount > 0 && logErrorsToFile)
+        if (errorCount.get() > 0 && logErrorsToFile)
             return errorLogFilePath;
 
         return null;
     }
 
-    private void logToFile(String error) throws IOException {
-        String log = String.format(
-            "[%s] *** ERROR %d *** %s", getCurrentDateTimeString(), errorCount, error);
-        PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(errorLogFilePath, true /*append*/)));
-        try {
-            writer.println(log);
-
-        } finally {
-            writer.close();
-        }
-    }
-
     private static String getCurrentDateTimeString() {
         return new SimpleDateFormat(DATE_FORMAT).format(new Date());
     }
@@ -0,0 +1,61 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces requests evenly so that together they don't exceed a rate limit,
+ * however many threads make them. Each request waits for its slot, which is
+ * reserved when it asks, so requests are served in the order they ask.
+ */
+public class RequestRateLimiter {
+
+    private static final StripedCounter WAITS = MetricsRegistry.getInstance().counter("http.rateLimiter.waits");
+
+    private final long intervalNanos;
+    private long nextSlot = System.nanoTime();
+
+    public RequestRateLimiter(int requestsPerMinute) {
+        if (requestsPerMinute < 1)
+            throw new IllegalArgumentException("requestsPerMinute must be at least 1");
+        this.intervalNanos = TimeUnit.MINUTES.toNanos(1) / requestsPerMinute;
+    }
+
+    /**
+     * Waits until a request can be made without exceeding the rate.
+     */
+    public void acquire() throws InterruptedException {
+        long slot;
+        synchronized (this) {
+            long now = System.nanoTime();
+            // unused slots aren't saved up for a burst
+            if (nextSlot - now < 0)
+                nextSlot = now;
+            slot = nextSlot;
+            nextSlot += intervalNanos;
+        }
+        long waitNanos = slot - System.nanoTime();
+        if (waitNanos > 0) {
+            WAITS.increment();
+            // a sleep can end slightly early, so sleep again till the slot
+            do {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } while ((waitNanos = slot - System.nanoTime()) > 0);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * Writes log events as JSON lines (one JSON object per line) to a log file,
+ * rolling it over when it would exceed a maximum size: the full file is
+ * renamed with the suffix ".1" (and any previous ".1" file to ".2", and so on,
+ * up to a maximum number of files kept) and a new file is started.
+ */
+public class RollingJsonLogAppender implements AsyncLogger.Appender {
+
+    private static final int BUFFER_SIZE = 64 * 1024; // 64K
+
+    private final File file;
+    private final long maxFileSize;
+    private final int maxBackupFiles;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    private OutputStream out;
+    private long fileSize;
+
+    /**
+     * @param file
+     *            the log file, which is appended to if it exists
+     * @param maxBackupFiles
+     *            the number of rolled over files kept
+     */
+    public RollingJsonLogAppender(File file, long maxFileSize, int maxBackupFiles) throws IOException {
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+        this.maxBackupFiles = maxBackupFiles;
+        timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        open(true);
+    }
+
+    @Override
+    public void append(AsyncLogger.Event event) throws IOException {
+        StringWriter line = new StringWriter();
+        JsonGenerator json = jsonFactory.createJsonGenerator(line);
+        json.writeStartObject();
+        json.writeStringField("time", timeFormat.format(new Date(event.getTime())));
+        json.writeStringField("level", event.getLevel().name());
+        json.writeStringField("thread", event.getThreadName());
+        json.writeStringField("message", event.getMessage());
+        if (event.getErrorNumber() > 0)
+            json.writeNumberField("errorNumber", event.getErrorNumber());
+        if (event.getError() != null) {
+            json.writeStringField("exception", event.getError().getClass().getName());
+            json.writeStringField("stackTrace", event.getStackTrace());
+        }
+        json.writeEndObject();
+        json.close();
+        line.write('\n');
+
+        byte[] bytes = line.toString().getBytes("UTF-8");
+        if (fileSize > 0 && fileSize + bytes.length > maxFileSize)
+            rollOver();
+        out.write(bytes);
+        fileSize += bytes.length;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private void rollOver() throws IOException {
+        out.close();
+        if (maxBackupFiles > 0) {
+            new File(file.getPath() + "." + maxBackupFiles).delete();
+            for (int i = maxBackupFiles - 1; i >= 1; i--)
+                new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+            file.renameTo(new File(file.getPath() + ".1"));
+        }
+        open(false);
+    }
+
+    private void open(boolean append) throws IOException {
+        File folder = file.getAbsoluteFile().getParentFile();
+        if (folder != null && !folder.isDirectory() && !folder.mkdirs())
+            throw new IOException("Failed to create folder " + folder);
+
+        out = new BufferedOutputStream(new FileOutputStream(file, append), BUFFER_SIZE);
+        fileSize = append ? file.length() : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "file [" + file.getAbsolutePath() + "]";
+    }
+}
@@ -0,0 +1,63 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which many threads can add to without contending: each thread
+ * adds to one of several cells (chosen by its thread ID), each in a cache line
+ * of its own, and the cells are summed when the counter is read.
+ */
+public class StripedCounter {
+
+    static final int STRIPES = stripes();
+    private static final int CACHE_LINE_LONGS = 8; // 64 bytes
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * CACHE_LINE_LONGS);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long amount) {
+        cells.getAndAdd(stripe() * CACHE_LINE_LONGS, amount);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++)
+            sum += cells.get(i * CACHE_LINE_LONGS);
+        return sum;
+    }
+
+    /**
+     * @return the stripe of the current thread
+     */
+    static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    /**
+     * @return the number of stripes: a power of 2 of at least twice the number
+     *         of processors, up to 64
+     */
+    private static int stripes() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        return Math.min(64, Integer.highestOneBit(Math.max(1, 2 * processors - 1)) << 1);
+    }
+}
@@ -0,0 +1,502 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a zip archive from entries whose contents are already compressed (or
+ * stored), unlike {@link java.util.zip.ZipOutputStream} which compresses the
+ * contents itself. This allows the entries to be compressed in parallel, and
+ * then just written one after the other.
+ * <p>
+ * An entry whose size isn't known in advance can instead be streamed into the
+ * archive as its content is compressed ({@link #startEntry(String, int)}), in
+ * which case its CRC and sizes follow its content in a data descriptor. When
+ * writing to a file, such an entry can be abandoned part way through, which
+ * truncates the archive back to where the entry started.
+ * <p>
+ * Zip64 extensions are written as needed, so archives may have more than
+ * 65,535 entries and be larger than 4 GB.
+ * <p>
+ * This class is not thread-safe; entries must be written by one thread.
+ */
+public class ZipArchiveWriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024; // 64K
+
+    private static final int LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_FILE_HEADER_SIGNATURE = 0x02014b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIR_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIR_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_OF_CENTRAL_DIR_SIGNATURE = 0x06054b50;
+
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int UTF8_NAMES_FLAG = 0x0800;
+    private static final int DATA_DESCRIPTOR_FLAG = 0x0008;
+    private static final int ZIP64_EXTRA_FIELD_ID = 0x0001;
+    private static final int DIRECTORY_ATTRIBUTE = 0x10;
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    /**
+     * An entry whose content has been compressed (or stored) already.
+     */
+    public static class CompressedEntry {
+        private final String name;
+        private final int method;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+
+        /**
+         * @param name
+         *            The name of the entry, ending with '/' for a folder.
+         * @param method
+         *            {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+         *            (raw deflate data, without a zlib header).
+         * @param crc
+         *            The CRC-32 of the uncompressed content.
+         * @param size
+         *            The size of the uncompressed content.
+         * @param compressedSize
+         *            The size of the compressed content.
+         */
+        public CompressedEntry(String name, int method, long crc, long size, long compressedSize) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+        }
+
+        /**
+         * @return an entry for a folder
+         */
+        public static CompressedEntry folder(String name) {
+            return new CompressedEntry(name, ZipEntry.STORED, 0, 0, 0);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        boolean isFolder() {
+            return name.endsWith("/");
+        }
+    }
+
+    /** The central directory record of an entry already written */
+    private static class WrittenEntry {
+        private final CompressedEntry entry;
+        private final byte[] nameBytes;
+        private final long offset;
+        private final int dosTime;
+        private final int flags;
+
+        WrittenEntry(CompressedEntry entry, byte[] nameBytes, long offset, int dosTime, int flags) {
+            this.entry = entry;
+            this.nameBytes = nameBytes;
+            this.offset = offset;
+            this.dosTime = dosTime;
+            this.flags = flags;
+        }
+    }
+
+    private final OutputStream out;
+    private final FileOutputStream fileOut; // null unless writing to a file
+    private final List<WrittenEntry> entries = new ArrayList<WrittenEntry>();
+    private final byte[] header = new byte[64];
+    private long bytesWritten;
+    private long centralDirSize;
+    private boolean closed;
+
+    /** The entry being streamed (with a placeholder entry), if any */
+    private WrittenEntry streamedEntry;
+    private long streamedContentOffset;
+
+    public ZipArchiveWriter(File zipFile) throws IOException {
+        this(new FileOutputStream(zipFile), true);
+    }
+
+    public ZipArchiveWriter(OutputStream out) {
+        this.out = out;
+        this.fileOut = null;
+    }
+
+    private ZipArchiveWriter(FileOutputStream fileOut, boolean buffered) {
+        this.out = buffered ? new BufferedOutputStream(fileOut, BUFFER_SIZE) : fileOut;
+        this.fileOut = fileOut;
+    }
+
+    /**
+     * @return the number of bytes written to the archive so far
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return the number of entries written to the archive so far
+     */
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return the size which the completed archive would have if an entry were
+     *         written to it next, so that the archive can be kept under a size
+     */
+    public long getArchiveSizeWith(CompressedEntry entry) throws IOException {
+        int nameLength = entry.getName().getBytes("UTF-8").length;
+        long size = bytesWritten + getLocalHeaderSize(entry, nameLength) + entry.compressedSize
+            + centralDirSize + getCentralHeaderSize(entry, nameLength, bytesWritten);
+        return size + 22 // end of central directory record
+            + (entries.size() + 1 >= ZIP64_MAGIC_COUNT || size >= ZIP64_MAGIC ? 56 + 20 : 0);
+    }
+
+    /**
+     * Writes an entry to the archive.
+     *
+     * @param entry
+     *            The entry to write.
+     * @param compressedContent
+     *            The compressed content of the entry, exactly
+     *            {@link CompressedEntry#getCompressedSize()} bytes long (ignored
+     *            for a folder). The stream is not closed.
+     */
+    public void write(CompressedEntry entry, InputStream compressedContent) throws IOException {
+        checkNotStreaming();
+        byte[] nameBytes = entry.getName().getBytes("UTF-8");
+        WrittenEntry written = new WrittenEntry(entry, nameBytes, bytesWritten, toDosTime(System.currentTimeMillis()),
+            UTF8_NAMES_FLAG);
+        boolean zip64 = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+
+        // local file header (with the sizes, since they are known already)
+        int pos = 0;
+        pos = putInt(header, pos, LOCAL_FILE_HEADER_SIGNATURE);
+        pos = putShort(header, pos, zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        pos = putShort(header, pos, UTF8_NAMES_FLAG);
+        pos = putShort(header, pos, entry.method);
+        pos = putInt(header, pos, written.dosTime);
+        pos = putInt(header, pos, (int) entry.crc);
+        pos = putInt(header, pos, (int) (zip64 ? ZIP64_MAGIC : entry.compressedSize));
+        pos = putInt(header, pos, (int) (zip64 ? ZIP64_MAGIC : entry.size));
+        pos = putShort(header, pos, nameBytes.length);
+        pos = putShort(header, pos, zip64 ? 20 : 0);
+        writeBytes(header, 0, pos);
+        writeBytes(nameBytes, 0, nameBytes.length);
+        if (zip64) {
+            pos = 0;
+            pos = putShort(header, pos, ZIP64_EXTRA_FIELD_ID);
+            pos = putShort(header, pos, 16);
+            pos = putLong(header, pos, entry.size);
+            pos = putLong(header, pos, entry.compressedSize);
+            writeBytes(header, 0, pos);
+        }
+
+        // content
+        if (!entry.isFolder()) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = entry.compressedSize;
+            while (remaining > 0) {
+                int bytesRead = compressedContent.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1)
+                    throw new IOException("Content of zip entry " + entry.getName() + " is shorter than "
+                        + entry.compressedSize + " bytes");
+                writeBytes(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+        }
+
+        entries.add(written);
+        centralDirSize += getCentralHeaderSize(entry, nameBytes.length, written.offset);
+    }
+
+    /**
+     * Starts an entry whose content is streamed into the archive, written
+     * with {@link #writeEntryContent(byte[], int, int)} and then completed with
+     * {@link #finishEntry(long, long)} (or abandoned with
+     * {@link #abortEntry()}). No other entry can be written in the meantime.
+     *
+     * @param method
+     *            {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED} (raw
+     *            deflate data, without a zlib header), although readers of
+     *            streamed zip archives (such as
+     *            {@link java.util.zip.ZipInputStream}) only accept
+     *            {@link ZipEntry#DEFLATED} content with a data descriptor
+     */
+    public void startEntry(String name, int method) throws IOException {
+        checkNotStreaming();
+        byte[] nameBytes = name.getBytes("UTF-8");
+        streamedEntry = new WrittenEntry(new CompressedEntry(name, method, 0, 0, 0), nameBytes, bytesWritten,
+            toDosTime(System.currentTimeMillis()), UTF8_NAMES_FLAG | DATA_DESCRIPTOR_FLAG);
+
+        // local file header, with the CRC and sizes left for the descriptor
+        int pos = 0;
+        pos = putInt(header, pos, LOCAL_FILE_HEADER_SIGNATURE);
+        pos = putShort(header, pos, VERSION_DEFAULT);
+        pos = putShort(header, pos, streamedEntry.flags);
+        pos = putShort(header, pos, method);
+        pos = putInt(header, pos, streamedEntry.dosTime);
+        pos = putInt(header, pos, 0); // CRC
+        pos = putInt(header, pos, 0); // compressed size
+        pos = putInt(header, pos, 0); // size
+        pos = putShort(header, pos, nameBytes.length);
+        pos = putShort(header, pos, 0); // extra field length
+        writeBytes(header, 0, pos);
+        writeBytes(nameBytes, 0, nameBytes.length);
+        streamedContentOffset = bytesWritten;
+    }
+
+    /**
+     * Writes (compressed) content of the entry being streamed.
+     */
+    public void writeEntryContent(byte[] bytes, int offset, int length) throws IOException {
+        if (streamedEntry == null)
+            throw new IllegalStateException("No entry is being streamed");
+        writeBytes(bytes, offset, length);
+    }
+
+    /**
+     * Completes the entry being streamed with its data descriptor.
+     *
+     * @param crc
+     *            The CRC-32 of the uncompressed content.
+     * @param size
+     *            The size of the uncompressed content.
+     */
+    public void finishEntry(long crc, long size) throws IOException {
+        if (streamedEntry == null)
+            throw new IllegalStateException("No entry is being streamed");
+
+        long compressedSize = bytesWritten - streamedContentOffset;
+        CompressedEntry entry = new CompressedEntry(streamedEntry.entry.getName(), streamedEntry.entry.getMethod(),
+            crc, size, compressedSize);
+        // the sizes are 8 bytes each if either needs it, as readers expect
+        boolean zip64 = size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC;
+        int pos = 0;
+        pos = putInt(header, pos, DATA_DESCRIPTOR_SIGNATURE);
+        pos = putInt(header, pos, (int) crc);
+        if (zip64) {
+            pos = putLong(header, pos, compressedSize);
+            pos = putLong(header, pos, size);
+        } else {
+            pos = putInt(header, pos, (int) compressedSize);
+            pos = putInt(header, pos, (int) size);
+        }
+        writeBytes(header, 0, pos);
+
+        WrittenEntry written = new WrittenEntry(entry, streamedEntry.nameBytes, streamedEntry.offset,
+            streamedEntry.dosTime, streamedEntry.flags);
+        streamedEntry = null;
+        entries.add(written);
+        centralDirSize += getCentralHeaderSize(entry, written.nameBytes.length, written.offset);
+    }
+
+    /**
+     * Abandons the entry being streamed, truncating the archive back to where
+     * the entry started. Only possible when writing to a file.
+     */
+    public void abortEntry() throws IOException {
+        if (streamedEntry == null)
+            throw new IllegalStateException("No entry is being streamed");
+        if (fileOut == null)
+            throw new IOException("Can't abandon zip entry " + streamedEntry.entry.getName()
+                + " which is written to a stream");
+
+        out.flush();
+        fileOut.getChannel().truncate(streamedEntry.offset);
+        bytesWritten = streamedEntry.offset;
+        streamedEntry = null;
+    }
+
+    /**
+     * Writes the central directory, completing the archive, and closes it.
+     */
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+
+        try {
+            if (streamedEntry != null)
+                throw new IOException("Zip entry " + streamedEntry.entry.getName() + " is incomplete");
+            long centralDirOffset = bytesWritten;
+            ByteArrayOutputStream extra = new ByteArrayOutputStream();
+            for (WrittenEntry written : entries)
+                writeCentralFileHeader(written, extra);
+            long centralDirSize = bytesWritten - centralDirOffset;
+
+            boolean zip64 = entries.size() >= ZIP64_MAGIC_COUNT || centralDirOffset >= ZIP64_MAGIC
+                || centralDirSize >= ZIP64_MAGIC;
+            int pos;
+            if (zip64) {
+                long zip64EndOffset = bytesWritten;
+                pos = 0;
+                pos = putInt(header, pos, ZIP64_END_OF_CENTRAL_DIR_SIGNATURE);
+                pos = putLong(header, pos, 44); // size of the rest of the record
+                pos = putShort(header, pos, VERSION_ZIP64);
+                pos = putShort(header, pos, VERSION_ZIP64);
+                pos = putInt(header, pos, 0); // this disk
+                pos = putInt(header, pos, 0); // disk with the central directory
+                pos = putLong(header, pos, entries.size());
+                pos = putLong(header, pos, entries.size());
+                pos = putLong(header, pos, centralDirSize);
+                pos = putLong(header, pos, centralDirOffset);
+                writeBytes(header, 0, pos);
+
+                pos = 0;
+                pos = putInt(header, pos, ZIP64_END_OF_CENTRAL_DIR_LOCATOR_SIGNATURE);
+                pos = putInt(header, pos, 0); // disk with the zip64 end record
+                pos = putLong(header, pos, zip64EndOffset);
+                pos = putInt(header, pos, 1); // total disks
+                writeBytes(header, 0, pos);
+            }
+
+            int entryCount = Math.min(entries.size(), ZIP64_MAGIC_COUNT);
+            pos = 0;
+            pos = putInt(header, pos, END_OF_CENTRAL_DIR_SIGNATURE);
+            pos = putShort(header, pos, 0); // this disk
+            pos = putShort(header, pos, 0); // disk with the central directory
+            pos = putShort(header, pos, entryCount);
+            pos = putShort(header, pos, entryCount);
+            pos = putInt(header, pos, (int) Math.min(centralDirSize, ZIP64_MAGIC));
+            pos = putInt(header, pos, (int) Math.min(centralDirOffset, ZIP64_MAGIC));
+            pos = putShort(header, pos, 0); // comment length
+            writeBytes(header, 0, pos);
+
+        } finally {
+            out.close();
+        }
+    }
+
+    // helpers
+
+    private void checkNotStreaming() {
+        if (streamedEntry != null)
+            throw new IllegalStateException("Zip entry " + streamedEntry.entry.getName() + " is being streamed");
+    }
+
+    private void writeCentralFileHeader(WrittenEntry written, ByteArrayOutputStream extra) throws IOException {
+        CompressedEntry entry = written.entry;
+
+        // the zip64 extra field holds (in this order) just those values which
+        // don't fit in the header
+        extra.reset();
+        byte[] value = new byte[8];
+        if (entry.size >= ZIP64_MAGIC)
+            extra.write(value, 0, putLong(value, 0, entry.size));
+        if (entry.compressedSize >= ZIP64_MAGIC)
+            extra.write(value, 0, putLong(value, 0, entry.compressedSize));
+        if (written.offset >= ZIP64_MAGIC)
+            extra.write(value, 0, putLong(value, 0, written.offset));
+        boolean zip64 = extra.size() > 0;
+
+        int pos = 0;
+        pos = putInt(header, pos, CENTRAL_FILE_HEADER_SIGNATURE);
+        pos = putShort(header, pos, VERSION_ZIP64); // version made by
+        pos = putShort(header, pos, zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        pos = putShort(header, pos, written.flags);
+        pos = putShort(header, pos, entry.method);
+        pos = putInt(header, pos, written.dosTime);
+        pos = putInt(header, pos, (int) entry.crc);
+        pos = putInt(header, pos, (int) Math.min(entry.compressedSize, ZIP64_MAGIC));
+        pos = putInt(header, pos, (int) Math.min(entry.size, ZIP64_MAGIC));
+        pos = putShort(header, pos, written.nameBytes.length);
+        pos = putShort(header, pos, zip64 ? extra.size() + 4 : 0);
+        pos = putShort(header, pos, 0); // comment length
+        pos = putShort(header, pos, 0); // disk number start
+        pos = putShort(header, pos, 0); // internal attributes
+        pos = putInt(header, pos, entry.isFolder() ? DIRECTORY_ATTRIBUTE : 0);
+        pos = putInt(header, pos, (int) Math.min(written.offset, ZIP64_MAGIC));
+        writeBytes(header, 0, pos);
+        writeBytes(written.nameBytes, 0, written.nameBytes.length);
+        if (zip64) {
+            pos = 0;
+            pos = putShort(header, pos, ZIP64_EXTRA_FIELD_ID);
+            pos = putShort(header, pos, extra.size());
+            writeBytes(header, 0, pos);
+            byte[] extraBytes = extra.toByteArray();
+            writeBytes(extraBytes, 0, extraBytes.length);
+        }
+    }
+
+    private static int getLocalHeaderSize(CompressedEntry entry, int nameLength) {
+        boolean zip64 = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+        return 30 + nameLength + (zip64 ? 20 : 0);
+    }
+
+    private static int getCentralHeaderSize(CompressedEntry entry, int nameLength, long offset) {
+        int zip64Values = (entry.size >= ZIP64_MAGIC ? 1 : 0) + (entry.compressedSize >= ZIP64_MAGIC ? 1 : 0)
+            + (offset >= ZIP64_MAGIC ? 1 : 0);
+        return 46 + nameLength + (zip64Values > 0 ? 4 + 8 * zip64Values : 0);
+    }
+
+    private void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+        bytesWritten += length;
+    }
+
+    private static int putShort(byte[] bytes, int pos, int value) {
+        bytes[pos] = (byte) value;
+        bytes[pos + 1] = (byte) (value >>> 8);
+        return pos + 2;
+    }
+
+    private static int putInt(byte[] bytes, int pos, int value) {
+        pos = putShort(bytes, pos, value);
+        return putShort(bytes, pos, value >>> 16);
+    }
+
+    private static int putLong(byte[] bytes, int pos, long value) {
+        pos = putInt(bytes, pos, (int) value);
+        return putInt(bytes, pos, (int) (value >>> 32));
+    }
+
+    private static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16); // 1980-01-01, the earliest DOS date
+        return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21
+            | calendar.get(Calendar.DAY_OF_MONTH) << 16 | calendar.get(Calendar.HOUR_OF_DAY) << 11
+            | calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+    }
+}
@@ -0,0 +1,92 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.restapi.service.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.smartsheet.restapi.model.SmartsheetAttachment;
+import com.smartsheet.restapi.model.SmartsheetDiscussion;
+import com.smartsheet.restapi.model.SmartsheetRow;
+import com.smartsheet.restapi.model.SmartsheetSheet;
+import com.smartsheet.restapi.service.JsonDeserializer;
+import com.smartsheet.restapi.service.SheetAttachmentExtractor;
+import com.smartsheet.restapi.service.SmartsheetService;
+import com.smartsheet.testutils.TestUtils;
+
+public class SheetAttachmentExtractorTest {
+
+	@Test
+	public void extractsSameAttachmentsAsDeserializedSheet() throws Exception {
+		String json = TestUtils.getSampleGetSheetJsonResponse();
+
+		SmartsheetSheet sheet = new JsonDeserializer<SmartsheetSheet>().deserialize(json, SmartsheetSheet.class);
+		List<String> expected = new ArrayList<String>();
+		addAll(expected, sheet.getAttachments());
+		for (SmartsheetDiscussion discussion : sheet.getDiscussions())
+			addAll(expected, discussion.getCommentAttachments());
+		for (SmartsheetRow row : sheet.getRows()) {
+			addAll(expected, row.getAttachments());
+			for (SmartsheetDiscussion discussion : row.getDiscussions())
+				addAll(expected, discussion.getCommentAttachments());
+		}
+
+		List<String> extracted = extract(json);
+		Collections.sort(expected);
+		Collections.sort(extracted);
+		assertEquals(10, extracted.size());
+		assertEquals(expected, extracted);
+	}
+
+	@Test
+	public void skipsOtherContentInJsonOrder() throws Exception {
+		String json = "{\"id\":1,\"columns\":[{\"title\":\"attachments\"}],"
+				+ "\"rows\":[{\"cells\":[{\"value\":{\"attachments\":[{\"id\":9}]}}],"
+				+ "\"attachments\":[{\"id\":2,\"name\":\"b.pdf\",\"attachmentType\":\"FILE\",\"sizeInKb\":5}],"
+				+ "\"discussions\":null},"
+				+ "{\"discussions\":[{\"comments\":[{\"attachments\":[{\"id\":8}]}],"
+				+ "\"commentAttachments\":[{\"id\":3,\"name\":\"c\"}]}]}],"
+				+ "\"attachments\":[{\"id\":4,\"name\":\"d\",\"unknown\":{\"nested\":[1,2]}}],"
+				+ "\"discussions\":[]}";
+
+		assertEquals(Arrays.asList("2 b.pdf", "3 c", "4 d"), extract(json));
+	}
+
+	private static List<String> extract(String json) throws Exception {
+		final List<String> extracted = new ArrayList<String>();
+		SheetAttachmentExtractor.extract(new ByteArrayInputStream(json.getBytes("UTF-8")),
+				new SmartsheetService.AttachmentHandler() {
+					@Override
+					public void handle(SmartsheetAttachment attachment) {
+						extracted.add(attachment.getId() + " " + attachment.getName());
+					}
+				});
+		return extracted;
+	}
+
+	private static void addAll(List<String> ids, List<SmartsheetAttachment> attachments) {
+		for (SmartsheetAttachment attachment : attachments)
+			ids.add(attachment.getId() + " " + attachment.getName());
+	}
+}
@@ -0,0 +1,265 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.testutils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.smartsheet.testutils.FaultSchedule.Fault;
+import com.smartsheet.testutils.FaultSchedule.FaultType;
+
+/**
+ * A TCP proxy in front of a local HTTP server (such as a
+ * {@link MockSmartsheetApiServer}) which injects the faults of a
+ * {@link FaultSchedule} into the responses it relays. The faults happen in
+ * the transport, so a client sees them as it would those of a bad network: a
+ * reset is a TCP reset part way through the body, a truncated body is the
+ * connection closed before the Content-Length of the body has been sent, and
+ * a trickle is the body paced to a slow rate. A 503 (Service Unavailable) is
+ * responded by the proxy itself, without forwarding the request.
+ * <p>
+ * Each connection carries a single request (the proxy asks the server to close
+ * the connection after its response), which draws its fault from the
+ * schedule.
+ */
+public class FaultInjectingProxy {
+
+    private static final Charset HEAD_CHARSET = Charset.forName("ISO-8859-1");
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final int TRICKLE_CHUNK_SIZE = 1024;
+    private static final int SOCKET_TIMEOUT_MILLIS = 60 * 1000;
+    private static final Pattern CONTENT_LENGTH_PATTERN = Pattern.compile("(?im)^Content-Length:\\s*(\\d+)\\s*$");
+
+    private final ServerSocket serverSocket;
+    private final InetSocketAddress upstream;
+    private final FaultSchedule schedule;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicLong bytesRelayed = new AtomicLong();
+
+    /**
+     * @param upstreamEndpoint
+     *          the endpoint of the server, e.g. http://127.0.0.1:8080
+     */
+    public FaultInjectingProxy(String upstreamEndpoint, FaultSchedule schedule) throws IOException {
+        URI uri = URI.create(upstreamEndpoint);
+        upstream = new InetSocketAddress(uri.getHost(), uri.getPort());
+        this.schedule = schedule;
+
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    /**
+     * @return the endpoint of the proxy, which serves the same URLs (under
+     *         this endpoint) as the server
+     */
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    public FaultSchedule getSchedule() {
+        return schedule;
+    }
+
+    /**
+     * @return the bytes of the bodies of the responses relayed to clients
+     *         (including those of responses which were cut short)
+     */
+    public long getBytesRelayed() {
+        return bytesRelayed.get();
+    }
+
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            final Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                return; // stopped
+            }
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        relay(client);
+                    } catch (Exception e) {
+                        // the client or the server went away
+                    } finally {
+                        closeQuietly(client);
+                    }
+                }
+            });
+        }
+    }
+
+    private void relay(Socket client) throws IOException, InterruptedException {
+        client.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+        String requestHead = readHead(new BufferedInputStream(client.getInputStream()));
+        if (requestHead == null)
+            return;
+
+        OutputStream clientOut = client.getOutputStream();
+        Fault fault = schedule.next();
+        FaultType type = fault == null ? null : fault.getType();
+        if (type == FaultType.SERVICE_UNAVAILABLE) {
+            byte[] body = "{\"errorCode\":4503,\"message\":\"Injected fault\"}".getBytes("UTF-8");
+            clientOut.write(("HTTP/1.1 503 Service Unavailable\r\n"
+                + "Content-Type: application/json;charset=UTF-8\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n\r\n").getBytes(HEAD_CHARSET));
+            clientOut.write(body);
+            clientOut.flush();
+            return;
+        }
+
+        Socket server = new Socket();
+        try {
+            server.connect(upstream, SOCKET_TIMEOUT_MILLIS);
+            server.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+            OutputStream serverOut = server.getOutputStream();
+            serverOut.write(closingConnection(requestHead).getBytes(HEAD_CHARSET));
+            serverOut.flush();
+
+            InputStream serverIn = new BufferedInputStream(server.getInputStream());
+            String responseHead = readHead(serverIn);
+            if (responseHead == null)
+                return;
+
+            if (type == FaultType.LATENCY)
+                Thread.sleep(fault.getLatencyMillis());
+            clientOut.write(responseHead.getBytes(HEAD_CHARSET));
+
+            Matcher contentLength = CONTENT_LENGTH_PATTERN.matcher(responseHead);
+            long length = contentLength.find() ? Long.parseLong(contentLength.group(1)) : -1;
+            long cutAt = -1;
+            if (type == FaultType.RESET || type == FaultType.TRUNCATED)
+                cutAt = fault.getCutAt(length >= 0 ? length : CHUNK_SIZE);
+            relayBody(serverIn, clientOut, length, cutAt, type == FaultType.TRICKLE ? fault.getBytesPerSecond() : 0);
+
+            if (type == FaultType.RESET)
+                client.setSoLinger(true, 0); // closing resets the connection
+
+        } finally {
+            closeQuietly(server);
+        }
+    }
+
+    /**
+     * Relays a body, pacing it to a rate if one is given.
+     *
+     * @param length
+     *          the length of the body, or -1 to relay it till the server
+     *          closes the connection
+     * @param cutAt
+     *          the number of bytes after which to stop relaying, or -1 for all
+     * @param bytesPerSecond
+     *          the rate to relay at, or 0 for unlimited
+     */
+    private void relayBody(InputStream in, OutputStream out, long length, long cutAt, long bytesPerSecond)
+            throws IOException, InterruptedException {
+        long limit = cutAt >= 0 ? cutAt : length;
+        byte[] chunk = new byte[bytesPerSecond > 0 ? TRICKLE_CHUNK_SIZE : CHUNK_SIZE];
+        long start = System.nanoTime();
+        long relayed = 0;
+        while (limit < 0 || relayed < limit) {
+            int read = in.read(chunk, 0, limit < 0 ? chunk.length : (int) Math.min(chunk.length, limit - relayed));
+            if (read == -1)
+                break;
+            out.write(chunk, 0, read);
+            relayed += read;
+            bytesRelayed.addAndGet(read);
+
+            if (bytesPerSecond > 0) {
+                long dueNanos = relayed * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+                long aheadNanos = dueNanos - (System.nanoTime() - start);
+                if (aheadNanos > 0)
+                    TimeUnit.NANOSECONDS.sleep(aheadNanos);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * @return the head of a request or response (up to and including the
+     *         blank line which ends it), or null if the connection ended
+     *         before it
+     */
+    private static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0; // the characters of "\r\n\r\n" matched
+        int b;
+        while (matched < 4 && (b = in.read()) != -1) {
+            head.write(b);
+            if (b == (matched % 2 == 0 ? '\r' : '\n'))
+                matched++;
+            else
+                matched = b == '\r' ? 1 : 0;
+        }
+        return matched < 4 ? null : new String(head.toByteArray(), HEAD_CHARSET);
+    }
+
+    /**
+     * @return the head of a request, asking the server to close the
+     *         connection after its response
+     */
+    private static String closingConnection(String requestHead) {
+        StringBuilder head = new StringBuilder();
+        for (String line : requestHead.split("\r\n")) {
+            if (line.length() > 0 && !line.toLowerCase().startsWith("connection:"))
+                head.append(line).append("\r\n");
+        }
+        return head.append("Connection: close\r\n\r\n").toString();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
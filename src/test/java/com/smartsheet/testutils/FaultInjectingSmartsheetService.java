@@ -0,0 +1,225 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.testutils;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.smartsheet.exceptions.ServiceUnavailableException;
+import com.smartsheet.restapi.model.SmartsheetAttachment;
+import com.smartsheet.restapi.model.SmartsheetFolder;
+import com.smartsheet.restapi.model.SmartsheetHome;
+import com.smartsheet.restapi.model.SmartsheetPagingwrapper;
+import com.smartsheet.restapi.model.SmartsheetSheet;
+import com.smartsheet.restapi.model.SmartsheetUser;
+import com.smartsheet.restapi.model.SmartsheetWorkspace;
+import com.smartsheet.restapi.service.SmartsheetService;
+import com.smartsheet.testutils.FaultSchedule.Fault;
+import com.smartsheet.testutils.FaultSchedule.FaultType;
+
+/**
+ * A wrapper around a {@link SmartsheetService} delegate which injects the
+ * faults of a {@link FaultSchedule} into its calls, as a
+ * {@link FaultInjectingProxy} does into HTTP responses, so that failure paths
+ * can be tested with any delegate (such as an {@link OrgSmartsheetService})
+ * and under the {@link com.smartsheet.restapi.service.RetryingSmartsheetService}:
+ * <ul>
+ * <li>latency delays the call;</li>
+ * <li>a reset fails the call with a {@link SocketException};</li>
+ * <li>a 503 fails the call with a {@link ServiceUnavailableException};</li>
+ * <li>a truncated body fails the call with an {@link IOException}, after
+ * {@link #getSheetAttachments} has passed some of the attachments to its
+ * handler;</li>
+ * <li>a trickle delays the result by the time its JSON would take to be sent
+ * at the rate of the trickle.</li>
+ * </ul>
+ * Cloning it clones its delegate, and shares its schedule.
+ */
+public class FaultInjectingSmartsheetService implements SmartsheetService, Cloneable {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private SmartsheetService delegateService;
+    private final FaultSchedule schedule;
+
+    public FaultInjectingSmartsheetService(SmartsheetService delegateService, FaultSchedule schedule) {
+        this.delegateService = delegateService;
+        this.schedule = schedule;
+    }
+
+    @Override
+    public SmartsheetPagingwrapper<SmartsheetUser> getUsers(int page) throws Exception {
+        Fault fault = inject("GET users");
+        return delay(delegateService.getUsers(page), fault);
+    }
+
+    @Override
+    public SmartsheetHome getHome() throws Exception {
+        Fault fault = inject("GET home");
+        return delay(delegateService.getHome(), fault);
+    }
+
+    @Override
+    public SmartsheetPagingwrapper<SmartsheetSheet> getSheets(int page) throws Exception {
+        Fault fault = inject("GET sheets page " + page);
+        return delay(delegateService.getSheets(page), fault);
+    }
+
+    @Override
+    public SmartsheetPagingwrapper<SmartsheetFolder> getHomeFolders(int page) throws Exception {
+        Fault fault = inject("GET home folders page " + page);
+        return delay(delegateService.getHomeFolders(page), fault);
+    }
+
+    @Override
+    public SmartsheetPagingwrapper<SmartsheetWorkspace> getWorkspaces(int page) throws Exception {
+        Fault fault = inject("GET workspaces page " + page);
+        return delay(delegateService.getWorkspaces(page), fault);
+    }
+
+    @Override
+    public SmartsheetFolder getFolder(String folderName, long folderId) throws Exception {
+        Fault fault = inject("GET folder " + folderId);
+        return delay(delegateService.getFolder(folderName, folderId), fault);
+    }
+
+    @Override
+    public SmartsheetWorkspace getWorkspace(String workspaceName, long workspaceId) throws Exception {
+        Fault fault = inject("GET workspace " + workspaceId);
+        return delay(delegateService.getWorkspace(workspaceName, workspaceId), fault);
+    }
+
+    @Override
+    public SmartsheetSheet getSheetDetails(String sheetName, long sheetId) throws Exception {
+        Fault fault = inject("GET sheet " + sheetId);
+        return delay(delegateService.getSheetDetails(sheetName, sheetId), fault);
+    }
+
+    @Override
+    public void getSheetAttachments(String sheetName, long sheetId, AttachmentHandler handler) throws Exception {
+        Fault fault = schedule.next();
+        if (fault == null || fault.getType() != FaultType.TRUNCATED) {
+            throwOrDelay(fault, "GET sheet " + sheetId);
+            List<SmartsheetAttachment> attachments = collectAttachments(sheetName, sheetId);
+            for (SmartsheetAttachment attachment : attachments)
+                handler.handle(delay(attachment, fault));
+            return;
+        }
+
+        // the attachments before the body was cut short are handled
+        List<SmartsheetAttachment> attachments = collectAttachments(sheetName, sheetId);
+        long cutAt = fault.getCutAt(attachments.size());
+        for (int i = 0; i < cutAt; i++)
+            handler.handle(attachments.get(i));
+        throw truncated("GET sheet " + sheetId);
+    }
+
+    @Override
+    public SmartsheetAttachment getAttachmentDetails(String attachmentName, long attachmentId, String sheetName,
+        long sheetId) throws Exception {
+        Fault fault = inject("GET attachment " + attachmentId);
+        return delay(delegateService.getAttachmentDetails(attachmentName, attachmentId, sheetName, sheetId),
+            fault);
+    }
+
+    @Override
+    public String getAccessToken() {
+        return delegateService.getAccessToken();
+    }
+
+    @Override
+    public void assumeUser(String assumedUserEmail) {
+        delegateService.assumeUser(assumedUserEmail);
+    }
+
+    @Override
+    public String getAssumedUser() {
+        return delegateService.getAssumedUser();
+    }
+
+    @Override
+    public String getApiBaseUrl() {
+        return delegateService.getApiBaseUrl();
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        FaultInjectingSmartsheetService fiss = (FaultInjectingSmartsheetService) super.clone();
+        if (delegateService instanceof Cloneable)
+            fiss.delegateService = (SmartsheetService) delegateService.clone();
+        return fiss;
+    }
+
+    private List<SmartsheetAttachment> collectAttachments(String sheetName, long sheetId) throws Exception {
+        final List<SmartsheetAttachment> attachments = new ArrayList<SmartsheetAttachment>();
+        delegateService.getSheetAttachments(sheetName, sheetId, new AttachmentHandler() {
+            @Override
+            public void handle(SmartsheetAttachment attachment) {
+                attachments.add(attachment);
+            }
+        });
+        return attachments;
+    }
+
+    /**
+     * Draws the fault of a call, failing it if the fault is a failure.
+     *
+     * @return the fault, to delay the result by
+     */
+    private Fault inject(String request) throws Exception {
+        Fault fault = schedule.next();
+        throwOrDelay(fault, request);
+        return fault;
+    }
+
+    private static void throwOrDelay(Fault fault, String request) throws Exception {
+        if (fault == null)
+            return;
+
+        switch (fault.getType()) {
+        case LATENCY:
+            Thread.sleep(fault.getLatencyMillis());
+            break;
+        case RESET:
+            throw new SocketException("Connection reset (injected) for " + request);
+        case SERVICE_UNAVAILABLE:
+            throw new ServiceUnavailableException(request);
+        case TRUNCATED:
+            throw truncated(request);
+        case TRICKLE:
+            break; // the result is delayed
+        }
+    }
+
+    private static IOException truncated(String request) {
+        return new IOException("Premature end of Content-Length delimited message body (injected) for " + request);
+    }
+
+    /**
+     * @return the result, after the time it would take to send as JSON if
+     *         the fault is a trickle
+     */
+    private static <T> T delay(T result, Fault fault) throws Exception {
+        if (fault != null && fault.getType() == FaultType.TRICKLE && result != null)
+            Thread.sleep(mapper.writeValueAsBytes(result).length * 1000L / fault.getBytesPerSecond());
+        return result;
+    }
+}
@@ -0,0 +1,228 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.testutils;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A seeded schedule of the faults injected into successive requests by a
+ * {@link FaultInjectingProxy} or a {@link FaultInjectingSmartsheetService}:
+ * <ul>
+ * <li>{@link FaultType#LATENCY}: the response is delayed;</li>
+ * <li>{@link FaultType#RESET}: the connection is reset part way through the
+ * body of the response;</li>
+ * <li>{@link FaultType#SERVICE_UNAVAILABLE}: a burst of successive requests
+ * are responded to with 503 (Service Unavailable);</li>
+ * <li>{@link FaultType#TRUNCATED}: the connection is closed part way through
+ * the body of the response, as if it had ended;</li>
+ * <li>{@link FaultType#TRICKLE}: the response is sent slowly.</li>
+ * </ul>
+ * Each request draws at most one fault, with the configured rate of each
+ * type. The same seed gives the same sequence of faults, so a single-threaded
+ * run sees the same faults in the same requests every time.
+ * <p>
+ * The methods of this class are thread-safe.
+ */
+public class FaultSchedule {
+
+    public enum FaultType {
+        LATENCY, RESET, SERVICE_UNAVAILABLE, TRUNCATED, TRICKLE
+    }
+
+    /**
+     * A fault drawn for a request.
+     */
+    public static class Fault {
+        private final FaultType type;
+        private final long latencyMillis;
+        private final double cutFraction;
+        private final long bytesPerSecond;
+
+        Fault(FaultType type, long latencyMillis, double cutFraction, long bytesPerSecond) {
+            this.type = type;
+            this.latencyMillis = latencyMillis;
+            this.cutFraction = cutFraction;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        public FaultType getType() {
+            return type;
+        }
+
+        /**
+         * @return the time the response is delayed by, for
+         *         {@link FaultType#LATENCY}
+         */
+        public long getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        /**
+         * @return how many of the bytes of a body of a given length are sent
+         *         before the connection is reset or closed, for
+         *         {@link FaultType#RESET} and {@link FaultType#TRUNCATED}
+         *         (always fewer than the length, unless it's 0)
+         */
+        public long getCutAt(long length) {
+            return Math.min((long) (cutFraction * length), Math.max(0, length - 1));
+        }
+
+        /**
+         * @return the rate the response is sent at, for
+         *         {@link FaultType#TRICKLE}
+         */
+        public long getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return type.toString();
+        }
+    }
+
+    private final Random random;
+    private final Map<FaultType, Double> rates = new EnumMap<FaultType, Double>(FaultType.class);
+    private final Map<FaultType, Integer> injected = new EnumMap<FaultType, Integer>(FaultType.class);
+    private long latencyMillis;
+    private int burstLength = 1;
+    private long trickleBytesPerSecond;
+
+    private int burstLeft;
+    private int draws;
+
+    public FaultSchedule(long seed) {
+        random = new Random(seed);
+        for (FaultType type : FaultType.values()) {
+            rates.put(type, 0.0);
+            injected.put(type, 0);
+        }
+    }
+
+    /**
+     * Delays a fraction of the responses.
+     */
+    public synchronized void setLatency(double rate, long latencyMillis) {
+        rates.put(FaultType.LATENCY, rate);
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Resets the connection of a fraction of the responses part way through
+     * their bodies.
+     */
+    public synchronized void setResets(double rate) {
+        rates.put(FaultType.RESET, rate);
+    }
+
+    /**
+     * Starts bursts of 503 (Service Unavailable) responses at a fraction of
+     * the requests.
+     *
+     * @param burstLength
+     *          the number of successive requests responded to with 503 in each
+     *          burst
+     */
+    public synchronized void setServiceUnavailableBursts(double rate, int burstLength) {
+        rates.put(FaultType.SERVICE_UNAVAILABLE, rate);
+        this.burstLength = burstLength;
+    }
+
+    /**
+     * Closes the connection of a fraction of the responses part way through
+     * their bodies.
+     */
+    public synchronized void setTruncations(double rate) {
+        rates.put(FaultType.TRUNCATED, rate);
+    }
+
+    /**
+     * Sends a fraction of the responses slowly.
+     */
+    public synchronized void setTrickles(double rate, long bytesPerSecond) {
+        rates.put(FaultType.TRICKLE, rate);
+        trickleBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Draws the fault of the next request.
+     *
+     * @return the fault, or null if the request isn't faulted
+     */
+    public synchronized Fault next() {
+        draws++;
+        double draw = random.nextDouble();
+        double cutFraction = random.nextDouble();
+        FaultType type = null;
+        if (burstLeft > 0) {
+            burstLeft--;
+            type = FaultType.SERVICE_UNAVAILABLE;
+        } else {
+            double cumulativeRate = 0;
+            for (Map.Entry<FaultType, Double> rate : rates.entrySet()) {
+                cumulativeRate += rate.getValue();
+                if (draw < cumulativeRate) {
+                    type = rate.getKey();
+                    break;
+                }
+            }
+            if (type == FaultType.SERVICE_UNAVAILABLE)
+                burstLeft = burstLength - 1;
+        }
+
+        if (type == null)
+            return null;
+        injected.put(type, injected.get(type) + 1);
+        return new Fault(type, latencyMillis, cutFraction, trickleBytesPerSecond);
+    }
+
+    /**
+     * @return the number of requests which faults have been drawn for
+     */
+    public synchronized int getDraws() {
+        return draws;
+    }
+
+    public synchronized int getInjected(FaultType type) {
+        return injected.get(type);
+    }
+
+    /**
+     * @return the number of faults of all types injected
+     */
+    public synchronized int getInjected() {
+        int total = 0;
+        for (int count : injected.values())
+            total += count;
+        return total;
+    }
+
+    /**
+     * @return the faults injected by type, e.g. {RESET=3, TRUNCATED=1}
+     */
+    @Override
+    public synchronized String toString() {
+        Map<FaultType, Integer> faults = new EnumMap<FaultType, Integer>(FaultType.class);
+        for (Map.Entry<FaultType, Integer> count : injected.entrySet()) {
+            if (count.getValue() > 0)
+                faults.put(count.getKey(), count.getValue());
+        }
+        return faults.toString();
+    }
+}
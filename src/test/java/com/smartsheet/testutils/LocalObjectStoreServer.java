@@ -0,0 +1,219 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.testutils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A minimal in-process stand-in for an S3-compatible object store, supporting
+ * just what the backup uses: single PUTs and multipart uploads (initiate,
+ * upload part, complete, abort) of objects in path-style URLs, and GETs to
+ * check what was stored. Requests must be signed (the signature itself isn't
+ * checked) and their payload hash must match their body.
+ */
+public class LocalObjectStoreServer {
+
+    private static final Pattern PART_PATTERN = Pattern.compile(
+        "<Part><PartNumber>(\\d+)</PartNumber><ETag>([^<]*)</ETag></Part>");
+
+    private final HttpServer server;
+    private final Map<String, byte[]> objects = new HashMap<String, byte[]>();
+    private final Map<String, TreeMap<Integer, byte[]>> uploads = new HashMap<String, TreeMap<Integer, byte[]>>();
+    private final AtomicInteger uploadIds = new AtomicInteger();
+    private final AtomicInteger completedMultipartUploads = new AtomicInteger();
+    private final AtomicInteger abortedMultipartUploads = new AtomicInteger();
+
+    public LocalObjectStoreServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleRequest(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * @return the content of an object, or null if there is no such object
+     */
+    public synchronized byte[] getObject(String bucket, String key) {
+        return objects.get(bucket + "/" + key);
+    }
+
+    public synchronized int getObjectCount() {
+        return objects.size();
+    }
+
+    public synchronized int getPendingMultipartUploads() {
+        return uploads.size();
+    }
+
+    public int getCompletedMultipartUploads() {
+        return completedMultipartUploads.get();
+    }
+
+    public int getAbortedMultipartUploads() {
+        return abortedMultipartUploads.get();
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        byte[] body = read(exchange.getRequestBody());
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        String payloadHash = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+        if (authorization == null || !authorization.startsWith("AWS4-HMAC-SHA256 Credential=")
+            || !toHex(sha256(body)).equals(payloadHash)) {
+            respond(exchange, 403, "<Error><Code>SignatureDoesNotMatch</Code></Error>");
+            return;
+        }
+
+        // path-style: /bucket/key
+        String path = URLDecoder.decode(exchange.getRequestURI().getRawPath().replace("+", "%2B"), "UTF-8")
+            .substring(1);
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String method = exchange.getRequestMethod();
+
+        synchronized (this) {
+            if (method.equals("PUT") && query.containsKey("partNumber")) {
+                TreeMap<Integer, byte[]> parts = uploads.get(query.get("uploadId"));
+                if (parts == null) {
+                    respond(exchange, 404, "<Error><Code>NoSuchUpload</Code></Error>");
+                    return;
+                }
+                int partNumber = Integer.parseInt(query.get("partNumber"));
+                parts.put(partNumber, body);
+                exchange.getResponseHeaders().add("ETag", "\"etag-" + partNumber + "\"");
+                respond(exchange, 200, "");
+
+            } else if (method.equals("PUT")) {
+                objects.put(path, body);
+                respond(exchange, 200, "");
+
+            } else if (method.equals("POST") && query.containsKey("uploads")) {
+                String uploadId = "upload-" + uploadIds.incrementAndGet();
+                uploads.put(uploadId, new TreeMap<Integer, byte[]>());
+                respond(exchange, 200, "<InitiateMultipartUploadResult><UploadId>" + uploadId
+                    + "</UploadId></InitiateMultipartUploadResult>");
+
+            } else if (method.equals("POST") && query.containsKey("uploadId")) {
+                TreeMap<Integer, byte[]> parts = uploads.remove(query.get("uploadId"));
+                ByteArrayOutputStream object = new ByteArrayOutputStream();
+                Matcher matcher = PART_PATTERN.matcher(new String(body, "UTF-8"));
+                while (matcher.find())
+                    object.write(parts.get(Integer.valueOf(matcher.group(1))));
+                objects.put(path, object.toByteArray());
+                completedMultipartUploads.incrementAndGet();
+                respond(exchange, 200, "<CompleteMultipartUploadResult><Key>" + path
+                    + "</Key></CompleteMultipartUploadResult>");
+
+            } else if (method.equals("DELETE") && query.containsKey("uploadId")) {
+                uploads.remove(query.get("uploadId"));
+                abortedMultipartUploads.incrementAndGet();
+                respond(exchange, 204, null);
+
+            } else if (method.equals("GET") && objects.containsKey(path)) {
+                byte[] object = objects.get(path);
+                exchange.sendResponseHeaders(200, object.length);
+                exchange.getResponseBody().write(object);
+
+            } else {
+                respond(exchange, 404, "<Error><Code>NoSuchKey</Code></Error>");
+            }
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = body.getBytes("UTF-8");
+        // an empty body is sent chunked (0), since the JDK's server drops a
+        // kept-alive connection after a 200 sent without a body (-1)
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? 0 : bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        Map<String, String> query = new HashMap<String, String>();
+        if (rawQuery == null)
+            return query;
+        for (String parameter : rawQuery.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals == -1)
+                query.put(parameter, "");
+            else
+                query.put(parameter.substring(0, equals), URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+        }
+        return query;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) != -1)
+            out.write(buffer, 0, bytesRead);
+        return out.toByteArray();
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes)
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+}
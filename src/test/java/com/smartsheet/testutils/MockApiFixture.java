@@ -0,0 +1,150 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.testutils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import com.smartsheet.restapi.model.SmartsheetFolder;
+import com.smartsheet.restapi.model.SmartsheetHome;
+import com.smartsheet.restapi.model.SmartsheetRow;
+import com.smartsheet.restapi.model.SmartsheetSheet;
+import com.smartsheet.restapi.model.SmartsheetUser;
+import com.smartsheet.restapi.model.SmartsheetWorkspace;
+import com.smartsheet.restapi.service.RestfulSmartsheetService;
+import com.smartsheet.tools.ParallelDownloadService;
+import com.smartsheet.tools.SmartsheetBackupService;
+
+/**
+ * A {@link MockSmartsheetApiServer} and a temporary backup folder for a test
+ * to back up an org to, along with builders of the users, sheets, folders and
+ * workspaces of the org. Created in the set up of a test and closed in its
+ * tear down.
+ */
+public class MockApiFixture {
+
+    private final MockSmartsheetApiServer server;
+    private final File backupFolder;
+
+    /**
+     * Starts the server, with the backup folder (not yet created) named after
+     * the test.
+     */
+    public MockApiFixture(Class<?> testClass) throws IOException {
+        server = new MockSmartsheetApiServer();
+        backupFolder = new File(System.getProperty("java.io.tmpdir"),
+            testClass.getSimpleName() + "-" + System.currentTimeMillis());
+    }
+
+    public MockSmartsheetApiServer getServer() {
+        return server;
+    }
+
+    public File getBackupFolder() {
+        return backupFolder;
+    }
+
+    /**
+     * @return a REST service of the server
+     */
+    public RestfulSmartsheetService newApiService() {
+        return new RestfulSmartsheetService("token", server.getApiBaseUrl());
+    }
+
+    /**
+     * @return a backup service of the server, downloading on a single thread
+     */
+    public SmartsheetBackupService newBackupService() {
+        return new SmartsheetBackupService(newApiService(), new ParallelDownloadService(1));
+    }
+
+    /**
+     * Stops the server and deletes the backup folder.
+     */
+    public void close() throws IOException {
+        server.stop();
+        FileUtils.deleteDirectory(backupFolder);
+    }
+
+    /**
+     * @return an active user
+     */
+    public static SmartsheetUser user(String email) {
+        SmartsheetUser user = new SmartsheetUser();
+        user.setEmail(email);
+        user.setStatus("ACTIVE");
+        return user;
+    }
+
+    public static SmartsheetSheet sheet(long id, String name, String accessLevel) {
+        SmartsheetSheet sheet = new SmartsheetSheet();
+        sheet.setId(id);
+        sheet.setName(name);
+        sheet.setAccessLevel(accessLevel);
+        return sheet;
+    }
+
+    /**
+     * @return a home listing sheets at its top level
+     */
+    public static SmartsheetHome home(SmartsheetSheet... sheets) {
+        SmartsheetHome home = new SmartsheetHome();
+        home.setSheets(Arrays.asList(sheets));
+        return home;
+    }
+
+    /**
+     * @return rows with consecutive ids, from the first id
+     */
+    public static List<SmartsheetRow> rows(long firstId, int count) {
+        List<SmartsheetRow> rows = new ArrayList<SmartsheetRow>();
+        for (int i = 0; i < count; i++) {
+            SmartsheetRow row = new SmartsheetRow();
+            row.setId(firstId + i);
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    public static SmartsheetFolder folder(long id, String name, SmartsheetSheet... sheets) {
+        SmartsheetFolder folder = new SmartsheetFolder();
+        folder.setId(id);
+        folder.setName(name);
+        folder.setSheets(Arrays.asList(sheets));
+        return folder;
+    }
+
+    public static SmartsheetFolder folder(long id, String name, List<SmartsheetFolder> folders,
+        SmartsheetSheet... sheets) {
+        SmartsheetFolder folder = folder(id, name, sheets);
+        folder.setFolders(folders);
+        return folder;
+    }
+
+    public static SmartsheetWorkspace workspace(long id, String name, SmartsheetFolder... folders) {
+        SmartsheetWorkspace workspace = new SmartsheetWorkspace();
+        workspace.setId(id);
+        workspace.setName(name);
+        workspace.setFolders(Arrays.asList(folders));
+        return workspace;
+    }
+}
@@ -0,0 +1,854 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.testutils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+
+import com.smartsheet.restapi.model.SmartsheetAttachment;
+import com.smartsheet.restapi.model.SmartsheetDiscussion;
+import com.smartsheet.restapi.model.SmartsheetFolder;
+import com.smartsheet.restapi.model.SmartsheetHome;
+import com.smartsheet.restapi.model.SmartsheetPagingwrapper;
+import com.smartsheet.restapi.model.SmartsheetRow;
+import com.smartsheet.restapi.model.SmartsheetSheet;
+import com.smartsheet.restapi.model.SmartsheetUser;
+import com.smartsheet.restapi.model.SmartsheetWorkspace;
+import com.smartsheet.restapi.service.JsonDeserializer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for the Smartsheet API, serving over real HTTP the
+ * endpoints which {@link com.smartsheet.restapi.service.RestfulSmartsheetService}
+ * and the backup call: the pages of users, the home of the assumed user, the
+ * details (whole or a page of rows at a time) and the Excel or CSV export of a
+ * sheet, the details of an attachment and
+ * the download of an attachment from the (unauthenticated, "signed") URL
+ * given in its details. A backup can hence be run end to end, through
+ * {@link com.smartsheet.utils.HttpUtils}, its retries and real byte
+ * transfers, with no network.
+ * <p>
+ * The organization served is added with {@link #addUser} and
+ * {@link #addSheet} (or {@link #addSampleOrg()}), or is any
+ * {@link SmartsheetOrg} set with {@link #setOrg}, such as a
+ * {@link SyntheticOrg}; the content of exports and attachments is generated at
+ * their listed size. Each response can be
+ * delayed by a fixed latency and sent at a limited bandwidth, and errors
+ * (such as 503 Service Unavailable or 429 Too Many Requests) can be injected
+ * at a rate for each endpoint, from a seeded random sequence.
+ */
+public class MockSmartsheetApiServer {
+
+    /**
+     * The endpoints served, for injecting errors and counting requests.
+     */
+    public enum Endpoint {
+        USERS, HOME, SHEETS, HOME_FOLDERS, WORKSPACES, WORKSPACE, FOLDER, SHEET, EXPORT, ATTACHMENT, DOWNLOAD
+    }
+
+    public static final String API_PATH = "/2.0/";
+    private static final String DOWNLOAD_PATH = "/download/";
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int DEFAULT_SHEET_EXPORT_BYTES = 16 * 1024;
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private static final Pattern SHEET_PATTERN = Pattern.compile("sheets/(\\d+)");
+    private static final Pattern WORKSPACE_PATTERN = Pattern.compile("workspaces/(\\d+)");
+    private static final Pattern FOLDER_PATTERN = Pattern.compile("folders/(\\d+)");
+    private static final Pattern ATTACHMENT_PATTERN = Pattern.compile("sheets/(\\d+)/attachments/(\\d+)");
+    private static final Pattern DOWNLOAD_PATTERN = Pattern.compile(DOWNLOAD_PATH + "(\\d+)/(\\d+)");
+    private static final Pattern PAGE_PATTERN = Pattern.compile("(?:^|&)page=(\\d+)");
+    private static final Pattern PAGE_SIZE_PATTERN = Pattern.compile("(?:^|&)pageSize=(\\d+)");
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    // the organization served
+    private final InMemoryOrg addedOrg = new InMemoryOrg();
+    private volatile SmartsheetOrg org = addedOrg;
+
+    // the behaviour configured
+    private volatile int pageSize = DEFAULT_PAGE_SIZE;
+    private volatile int sheetExportBytes = DEFAULT_SHEET_EXPORT_BYTES;
+    private volatile long latencyMillis;
+    private volatile long bytesPerSecond; // 0 for unlimited
+    private volatile String downloadEndpoint; // null for this server
+    private final Map<Endpoint, List<Fault>> faults = Collections.synchronizedMap(
+        new EnumMap<Endpoint, List<Fault>>(Endpoint.class));
+    private Random faultRandom = new Random(0);
+    private volatile int retryAfterSecs = 1; // of a 429
+
+    // what was served
+    private final Map<Endpoint, AtomicInteger> requests = new EnumMap<Endpoint, AtomicInteger>(Endpoint.class);
+    private final AtomicInteger injectedFaults = new AtomicInteger();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * The organization added with {@link #addUser} and {@link #addSheet}.
+     */
+    private static class InMemoryOrg implements SmartsheetOrg {
+        private final List<SmartsheetUser> users = new CopyOnWriteArrayList<SmartsheetUser>();
+        private final Map<String, SmartsheetHome> homes = new ConcurrentHashMap<String, SmartsheetHome>();
+        private final Map<Long, SmartsheetSheet> sheets = new ConcurrentHashMap<Long, SmartsheetSheet>();
+        private final Map<String, SmartsheetAttachment> attachments =
+            new ConcurrentHashMap<String, SmartsheetAttachment>();
+
+        @Override
+        public int getUserCount() {
+            return users.size();
+        }
+
+        @Override
+        public SmartsheetUser getUser(int index) {
+            return users.get(index);
+        }
+
+        @Override
+        public SmartsheetHome getHome(String email) {
+            return homes.get(email);
+        }
+
+        @Override
+        public SmartsheetSheet getSheet(long sheetId) {
+            return sheets.get(sheetId);
+        }
+
+        @Override
+        public SmartsheetAttachment getAttachment(long sheetId, long attachmentId) {
+            return attachments.get(sheetId + "/" + attachmentId);
+        }
+    }
+
+    private static class Fault {
+        final int page; // 0 for any page
+        final int status;
+        final double rate;
+
+        Fault(int page, int status, double rate) {
+            this.page = page;
+            this.status = status;
+            this.rate = rate;
+        }
+    }
+
+    public MockSmartsheetApiServer() throws IOException {
+        for (Endpoint endpoint : Endpoint.values())
+            requests.put(endpoint, new AtomicInteger());
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleRequest(exchange);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return the base URL of the API, to construct a
+     *         {@link com.smartsheet.restapi.service.RestfulSmartsheetService}
+     *         with
+     */
+    public String getApiBaseUrl() {
+        return getEndpoint() + API_PATH;
+    }
+
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the URL which the content of an attachment is downloaded from,
+     *         as given in its details
+     */
+    public String getDownloadUrl(long sheetId, long attachmentId) {
+        String endpoint = downloadEndpoint;
+        return (endpoint == null ? getEndpoint() : endpoint) + DOWNLOAD_PATH + sheetId + "/" + attachmentId;
+    }
+
+    /**
+     * Gives the download URLs of attachments at another endpoint which
+     * forwards to this server, such as a {@link FaultInjectingProxy}.
+     */
+    public void setDownloadEndpoint(String downloadEndpoint) {
+        this.downloadEndpoint = downloadEndpoint;
+    }
+
+    /**
+     * Serves an organization instead of the users and sheets added.
+     */
+    public void setOrg(SmartsheetOrg org) {
+        this.org = org;
+    }
+
+    /**
+     * Adds a user to the organization.
+     *
+     * @param home
+     *          the home of the user, or null if the user isn't active
+     */
+    public void addUser(SmartsheetUser user, SmartsheetHome home) {
+        addedOrg.users.add(user);
+        if (home != null)
+            addedOrg.homes.put(user.getEmail(), home);
+    }
+
+    /**
+     * Adds a sheet (with its rows, discussions and attachments) to be served
+     * by its ID. The same sheet can be served by several IDs.
+     */
+    public void addSheet(long sheetId, SmartsheetSheet sheet) {
+        addedOrg.sheets.put(sheetId, sheet);
+        for (SmartsheetAttachment attachment : getAttachments(sheet))
+            addedOrg.attachments.put(sheetId + "/" + attachment.getId(), attachment);
+    }
+
+    /**
+     * Adds the organization of the sample payloads: three users (two active),
+     * each with the sample home, whose sheets are all the sample sheet.
+     */
+    public void addSampleOrg() throws IOException {
+        SmartsheetPagingwrapper<SmartsheetUser> sampleUsers =
+            new JsonDeserializer<SmartsheetPagingwrapper<SmartsheetUser>>().deserialize(
+                TestUtils.getSampleGetUsersJsonResponse(),
+                new TypeReference<SmartsheetPagingwrapper<SmartsheetUser>>() {});
+        SmartsheetHome home = new JsonDeserializer<SmartsheetHome>().deserialize(
+            TestUtils.getSampleGetHomeJsonResponse(), SmartsheetHome.class);
+        SmartsheetSheet sheet = new JsonDeserializer<SmartsheetSheet>().deserialize(
+            TestUtils.getSampleGetSheetJsonResponse(), SmartsheetSheet.class);
+
+        for (SmartsheetUser user : sampleUsers.getData())
+            addUser(user, "ACTIVE".equals(user.getStatus()) ? home : null);
+        addSheets(home.getSheets(), sheet);
+        addFolderSheets(home.getFolders(), sheet);
+        for (SmartsheetWorkspace workspace : home.getWorkspaces()) {
+            addSheets(workspace.getSheets(), sheet);
+            addFolderSheets(workspace.getFolders(), sheet);
+        }
+    }
+
+    /**
+     * Sets the number of users in each page listed, unless the request asks
+     * for a page size.
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Sets the size of the Excel export of every sheet (16 KB by default).
+     */
+    public void setSheetExportBytes(int sheetExportBytes) {
+        this.sheetExportBytes = sheetExportBytes;
+    }
+
+    /**
+     * Sets the time each request waits before it's responded to.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Limits the bandwidth at which each response is sent (0, the default, for
+     * unlimited).
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Responds to a fraction of the requests to an endpoint with an error
+     * status instead, e.g. 503 (Service Unavailable) or 429 (Too Many
+     * Requests). Faults added for the same endpoint are drawn independently,
+     * before the access token is checked, as by a gateway in front of the API.
+     *
+     * @param rate
+     *          the fraction of requests which fail, from 0 to 1
+     */
+    public void injectFaults(Endpoint endpoint, int status, double rate) {
+        injectPageFaults(endpoint, 0, status, rate);
+    }
+
+    /**
+     * Responds to a fraction of the requests for a page (as requested with the
+     * page parameter, the first by default) of an endpoint with an error
+     * status instead, as {@link #injectFaults} does for all pages.
+     *
+     * @param page
+     *          the page whose requests fail (0 for any page)
+     */
+    public void injectPageFaults(Endpoint endpoint, int page, int status, double rate) {
+        synchronized (faults) {
+            List<Fault> endpointFaults = faults.get(endpoint);
+            if (endpointFaults == null) {
+                endpointFaults = new ArrayList<Fault>();
+                faults.put(endpoint, endpointFaults);
+            }
+            endpointFaults.add(new Fault(page, status, rate));
+        }
+    }
+
+    /**
+     * Sets the delay which injected 429 (Too Many Requests) responses ask for
+     * in their Retry-After header (1 second by default).
+     */
+    public void setRetryAfterSecs(int retryAfterSecs) {
+        this.retryAfterSecs = retryAfterSecs;
+    }
+
+    /**
+     * Seeds the random sequence which faults are injected from, to repeat the
+     * same faults in a single-threaded run.
+     */
+    public void setFaultSeed(long seed) {
+        synchronized (faults) {
+            faultRandom = new Random(seed);
+        }
+    }
+
+    public int getRequestCount(Endpoint endpoint) {
+        return requests.get(endpoint).get();
+    }
+
+    public int getInjectedFaults() {
+        return injectedFaults.get();
+    }
+
+    /**
+     * @return the bytes of the bodies of all responses sent
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException, InterruptedException {
+        String path = exchange.getRequestURI().getPath();
+        String query = exchange.getRequestURI().getRawQuery();
+        Endpoint endpoint = getEndpoint(path, exchange.getRequestHeaders().getFirst("Accept"));
+        if (endpoint == null) {
+            respondWithError(exchange, 404, 1006, "Not Found");
+            return;
+        }
+        requests.get(endpoint).incrementAndGet();
+
+        if (latencyMillis > 0)
+            Thread.sleep(latencyMillis);
+
+        int faultStatus = drawFault(endpoint, parsePage(query));
+        if (faultStatus != 0) {
+            injectedFaults.incrementAndGet();
+            if (faultStatus == 429)
+                exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfterSecs));
+            respondWithError(exchange, faultStatus, 4000 + faultStatus, "Injected fault");
+            return;
+        }
+
+        if (endpoint != Endpoint.DOWNLOAD) {
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            if (authorization == null || !authorization.startsWith("Bearer ")) {
+                respondWithError(exchange, 401, 1002, "Your Access Token is invalid.");
+                return;
+            }
+        }
+
+        String apiPath = path.startsWith(API_PATH) ? path.substring(API_PATH.length()) : path;
+        switch (endpoint) {
+        case USERS:
+            respondWithUsers(exchange, query);
+            break;
+        case HOME:
+            String assumedUser = exchange.getRequestHeaders().getFirst("Assume-User");
+            respond(exchange, assumedUser == null ? null : org.getHome(URLDecoder.decode(assumedUser, "UTF-8")));
+            break;
+        case SHEETS:
+        case HOME_FOLDERS:
+        case WORKSPACES:
+        case WORKSPACE:
+        case FOLDER:
+            respondWithHomeContents(exchange, endpoint, apiPath, query,
+                exchange.getRequestHeaders().getFirst("Assume-User"));
+            break;
+        case SHEET:
+            SmartsheetSheet sheet = org.getSheet(parseSheetId(apiPath));
+            if (query != null && PAGE_PATTERN.matcher(query).find())
+                respond(exchange, getSheetPage(sheet, parsePage(query), parsePageSize(query)));
+            else
+                respond(exchange, sheet);
+            break;
+        case EXPORT:
+            long sheetId = parseSheetId(apiPath);
+            String accept = exchange.getRequestHeaders().getFirst("Accept");
+            String exportType = "text/csv".equals(accept) ? accept : "application/vnd.ms-excel";
+            respond(exchange, org.getSheet(sheetId) != null ? exportType : null, sheetId, sheetExportBytes);
+            break;
+        case ATTACHMENT:
+            respondWithAttachment(exchange, apiPath);
+            break;
+        case DOWNLOAD:
+            Matcher matcher = DOWNLOAD_PATTERN.matcher(path);
+            SmartsheetAttachment attachment = matcher.matches()
+                ? org.getAttachment(Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2))) : null;
+            respond(exchange, attachment == null ? null : "application/octet-stream",
+                attachment == null ? 0 : attachment.getId(), attachment == null ? 0 : attachment.getSizeInKb() * 1024);
+            break;
+        }
+    }
+
+    private static Endpoint getEndpoint(String path, String accept) {
+        if (path.startsWith(DOWNLOAD_PATH))
+            return Endpoint.DOWNLOAD;
+        if (!path.startsWith(API_PATH))
+            return null;
+
+        String apiPath = path.substring(API_PATH.length());
+        if (apiPath.equals("users"))
+            return Endpoint.USERS;
+        if (apiPath.equals("home"))
+            return Endpoint.HOME;
+        if (apiPath.equals("sheets"))
+            return Endpoint.SHEETS;
+        if (apiPath.equals("home/folders"))
+            return Endpoint.HOME_FOLDERS;
+        if (apiPath.equals("workspaces"))
+            return Endpoint.WORKSPACES;
+        if (WORKSPACE_PATTERN.matcher(apiPath).matches())
+            return Endpoint.WORKSPACE;
+        if (FOLDER_PATTERN.matcher(apiPath).matches())
+            return Endpoint.FOLDER;
+        if (ATTACHMENT_PATTERN.matcher(apiPath).matches())
+            return Endpoint.ATTACHMENT;
+        if (SHEET_PATTERN.matcher(apiPath).matches())
+            return accept != null && accept.startsWith("application/json") ? Endpoint.SHEET : Endpoint.EXPORT;
+        return null;
+    }
+
+    private int drawFault(Endpoint endpoint, int page) {
+        synchronized (faults) {
+            List<Fault> endpointFaults = faults.get(endpoint);
+            if (endpointFaults != null) {
+                for (Fault fault : endpointFaults) {
+                    if ((fault.page == 0 || fault.page == page) && faultRandom.nextDouble() < fault.rate)
+                        return fault.status;
+                }
+            }
+            return 0;
+        }
+    }
+
+    private void respondWithUsers(HttpExchange exchange, String query) throws IOException, InterruptedException {
+        respond(exchange, getUsersPage(org, parsePage(query), parsePageSize(query)));
+    }
+
+    /**
+     * Responds with a part of the home of the assumed user: a page of its
+     * sheets, top-level folders or workspaces, or the contents of one of its
+     * workspaces or folders.
+     */
+    private void respondWithHomeContents(HttpExchange exchange, Endpoint endpoint, String apiPath, String query,
+        String assumedUser) throws IOException, InterruptedException {
+        SmartsheetHome home = assumedUser == null ? null : org.getHome(URLDecoder.decode(assumedUser, "UTF-8"));
+        if (home == null) {
+            respond(exchange, null);
+            return;
+        }
+
+        switch (endpoint) {
+        case SHEETS:
+            respond(exchange, getSheetsPage(home, parsePage(query), parsePageSize(query)));
+            break;
+        case HOME_FOLDERS:
+            respond(exchange, getHomeFoldersPage(home, parsePage(query), parsePageSize(query)));
+            break;
+        case WORKSPACES:
+            respond(exchange, getWorkspacesPage(home, parsePage(query), parsePageSize(query)));
+            break;
+        case WORKSPACE:
+            Matcher matcher = WORKSPACE_PATTERN.matcher(apiPath);
+            respond(exchange, matcher.matches() ? getWorkspace(home, Long.parseLong(matcher.group(1))) : null);
+            break;
+        default:
+            matcher = FOLDER_PATTERN.matcher(apiPath);
+            respond(exchange, matcher.matches() ? getFolder(home, Long.parseLong(matcher.group(1))) : null);
+            break;
+        }
+    }
+
+    /**
+     * @return a page of the rows of a sheet, with its other fields and its
+     *         total number of rows, as returned by the API when paging rows
+     *         (or null if there's no sheet)
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> getSheetPage(SmartsheetSheet sheet, int page, int pageSize) {
+        if (sheet == null)
+            return null;
+
+        Map<String, Object> sheetPage = mapper.convertValue(sheet, LinkedHashMap.class);
+        List<SmartsheetRow> rows = sheet.getRows();
+        int from = Math.min(rows.size(), Math.max(0, page - 1) * pageSize);
+        sheetPage.put("rows", rows.subList(from, Math.min(rows.size(), from + pageSize)));
+        sheetPage.put("totalRowCount", rows.size());
+        return sheetPage;
+    }
+
+    private static int parsePage(String query) {
+        Matcher matcher = PAGE_PATTERN.matcher(query == null ? "" : query);
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : 1;
+    }
+
+    private int parsePageSize(String query) {
+        Matcher matcher = PAGE_SIZE_PATTERN.matcher(query == null ? "" : query);
+        return matcher.find() ? Math.max(1, Integer.parseInt(matcher.group(1))) : pageSize;
+    }
+
+    private void respondWithAttachment(HttpExchange exchange, String apiPath)
+            throws IOException, InterruptedException {
+        Matcher matcher = ATTACHMENT_PATTERN.matcher(apiPath);
+        matcher.matches();
+        long sheetId = Long.parseLong(matcher.group(1));
+        SmartsheetAttachment attachment = org.getAttachment(sheetId, Long.parseLong(matcher.group(2)));
+        if (attachment == null) {
+            respond(exchange, null);
+            return;
+        }
+
+        // the details link to a download which expires, as the API's do
+        Map<String, Object> details = mapper.convertValue(attachment, new TypeReference<Map<String, Object>>() {});
+        details.put("url", getDownloadUrl(sheetId, attachment.getId()));
+        details.put("urlExpiresInMillis", 120000);
+        respond(exchange, details);
+    }
+
+    private static long parseSheetId(String apiPath) {
+        return Long.parseLong(apiPath.substring("sheets/".length()));
+    }
+
+    /**
+     * @return a page of the users of an organization, as listed by the API
+     */
+    public static SmartsheetPagingwrapper<SmartsheetUser> getUsersPage(SmartsheetOrg org, int page, int pageSize) {
+        int userCount = org.getUserCount();
+        int from = Math.min(userCount, (page - 1) * pageSize);
+        int to = Math.min(userCount, from + pageSize);
+        List<SmartsheetUser> users = new ArrayList<SmartsheetUser>(to - from);
+        for (int i = from; i < to; i++)
+            users.add(org.getUser(i));
+
+        SmartsheetPagingwrapper<SmartsheetUser> usersPage = new SmartsheetPagingwrapper<SmartsheetUser>();
+        usersPage.setPageNumber(page);
+        usersPage.setPageSize(pageSize);
+        usersPage.setTotalPages(Math.max(1, (userCount + pageSize - 1) / pageSize));
+        usersPage.setTotalCount(userCount);
+        usersPage.setData(users);
+        return usersPage;
+    }
+
+    /**
+     * @return a page of the sheets in a home (each listed once, with its
+     *         access level but not its location), as listed by the API
+     */
+    public static SmartsheetPagingwrapper<SmartsheetSheet> getSheetsPage(SmartsheetHome home, int page,
+        int pageSize) {
+        Map<Long, SmartsheetSheet> homeSheets = new LinkedHashMap<Long, SmartsheetSheet>();
+        addListedSheets(home.getSheets(), homeSheets);
+        addListedSheetsIn(home.getFolders(), homeSheets);
+        addListedSheetsIn(home.getWorkspaces(), homeSheets);
+
+        return getPage(new ArrayList<SmartsheetSheet>(homeSheets.values()), page, pageSize);
+    }
+
+    /**
+     * @return a page of the folders at the top of a home (without their
+     *         contents), as listed by the API
+     */
+    public static SmartsheetPagingwrapper<SmartsheetFolder> getHomeFoldersPage(SmartsheetHome home, int page,
+        int pageSize) {
+        List<SmartsheetFolder> folders = new ArrayList<SmartsheetFolder>();
+        for (SmartsheetFolder folder : home.getFolders())
+            folders.add(copyFolder(folder, false));
+        return getPage(folders, page, pageSize);
+    }
+
+    /**
+     * @return a page of the workspaces in a home (without their contents), as
+     *         listed by the API
+     */
+    public static SmartsheetPagingwrapper<SmartsheetWorkspace> getWorkspacesPage(SmartsheetHome home, int page,
+        int pageSize) {
+        List<SmartsheetWorkspace> workspaces = new ArrayList<SmartsheetWorkspace>();
+        for (SmartsheetWorkspace workspace : home.getWorkspaces())
+            workspaces.add((SmartsheetWorkspace) copyFolder(workspace, false));
+        return getPage(workspaces, page, pageSize);
+    }
+
+    /**
+     * @return the sheets and folders directly in a workspace of a home
+     *         (without the contents of the folders), or null if it isn't in
+     *         the home
+     */
+    public static SmartsheetWorkspace getWorkspace(SmartsheetHome home, long workspaceId) {
+        for (SmartsheetWorkspace workspace : home.getWorkspaces()) {
+            if (workspace.getId() == workspaceId)
+                return (SmartsheetWorkspace) copyFolder(workspace, true);
+        }
+        return null;
+    }
+
+    /**
+     * @return the sheets and folders directly in a folder anywhere in a home
+     *         (without the contents of the folders), or null if it isn't in
+     *         the home
+     */
+    public static SmartsheetFolder getFolder(SmartsheetHome home, long folderId) {
+        SmartsheetFolder folder = findFolder(home.getFolders(), folderId);
+        for (int i = 0; folder == null && i < home.getWorkspaces().size(); i++)
+            folder = findFolder(home.getWorkspaces().get(i).getFolders(), folderId);
+        return folder == null ? null : copyFolder(folder, true);
+    }
+
+    private static SmartsheetFolder findFolder(List<SmartsheetFolder> folders, long folderId) {
+        for (SmartsheetFolder folder : folders) {
+            SmartsheetFolder found = folder.getId() == folderId ? folder : findFolder(folder.getFolders(), folderId);
+            if (found != null)
+                return found;
+        }
+        return null;
+    }
+
+    /**
+     * @return a copy of a workspace or folder with its sheets and folders
+     *         (without their contents) if asked, or else with neither
+     */
+    private static SmartsheetFolder copyFolder(SmartsheetFolder folder, boolean withContents) {
+        SmartsheetFolder copy;
+        if (folder instanceof SmartsheetWorkspace) {
+            SmartsheetWorkspace workspace = new SmartsheetWorkspace();
+            workspace.setAccessLevel(((SmartsheetWorkspace) folder).getAccessLevel());
+            copy = workspace;
+        } else {
+            copy = new SmartsheetFolder();
+        }
+        copy.setId(folder.getId());
+        copy.setName(folder.getName());
+        if (withContents) {
+            copy.setSheets(folder.getSheets());
+            List<SmartsheetFolder> subfolders = new ArrayList<SmartsheetFolder>();
+            for (SmartsheetFolder subfolder : folder.getFolders())
+                subfolders.add(copyFolder(subfolder, false));
+            copy.setFolders(subfolders);
+        }
+        return copy;
+    }
+
+    private static <T> SmartsheetPagingwrapper<T> getPage(List<T> items, int page, int pageSize) {
+        int from = Math.min(items.size(), (page - 1) * pageSize);
+        int to = Math.min(items.size(), from + pageSize);
+
+        SmartsheetPagingwrapper<T> itemsPage = new SmartsheetPagingwrapper<T>();
+        itemsPage.setPageNumber(page);
+        itemsPage.setPageSize(pageSize);
+        itemsPage.setTotalPages(Math.max(1, (items.size() + pageSize - 1) / pageSize));
+        itemsPage.setTotalCount(items.size());
+        itemsPage.setData(new ArrayList<T>(items.subList(from, to)));
+        return itemsPage;
+    }
+
+    private static void addListedSheets(List<SmartsheetSheet> sheets, Map<Long, SmartsheetSheet> listedSheets) {
+        for (SmartsheetSheet sheet : sheets) {
+            if (listedSheets.containsKey(sheet.getId()))
+                continue;
+            SmartsheetSheet listedSheet = new SmartsheetSheet();
+            listedSheet.setId(sheet.getId());
+            listedSheet.setName(sheet.getName());
+            listedSheet.setAccessLevel(sheet.getAccessLevel());
+            listedSheets.put(sheet.getId(), listedSheet);
+        }
+    }
+
+    private static void addListedSheetsIn(List<? extends SmartsheetFolder> folders,
+        Map<Long, SmartsheetSheet> listedSheets) {
+        for (SmartsheetFolder folder : folders) {
+            addListedSheets(folder.getSheets(), listedSheets);
+            addListedSheetsIn(folder.getFolders(), listedSheets);
+        }
+    }
+
+    /**
+     * Responds with an object as JSON, or with 404 if it's null.
+     */
+    private void respond(HttpExchange exchange, Object object) throws IOException, InterruptedException {
+        if (object == null) {
+            respondWithError(exchange, 404, 1006, "Not Found");
+            return;
+        }
+        byte[] json = mapper.writeValueAsBytes(object);
+        exchange.getResponseHeaders().add("Content-Type", "application/json;charset=UTF-8");
+        send(exchange, 200, new ByteArrayInputStream(json), json.length);
+    }
+
+    /**
+     * Responds with generated content of a size.
+     *
+     * @param contentType
+     *          the type of the content, or null if there is no such content
+     */
+    private void respond(HttpExchange exchange, String contentType, long seed, long size)
+            throws IOException, InterruptedException {
+        if (contentType == null) {
+            respondWithError(exchange, 404, 1006, "Not Found");
+            return;
+        }
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        send(exchange, 200, new GeneratedContent(seed, size), size);
+    }
+
+    private void respondWithError(HttpExchange exchange, int status, int errorCode, String message)
+            throws IOException, InterruptedException {
+        byte[] json = ("{\"errorCode\":" + errorCode + ",\"message\":\"" + message + "\"}").getBytes("UTF-8");
+        exchange.getResponseHeaders().add("Content-Type", "application/json;charset=UTF-8");
+        send(exchange, status, new ByteArrayInputStream(json), json.length);
+    }
+
+    /**
+     * Sends a response body in chunks, pacing them to the bandwidth limit.
+     */
+    private void send(HttpExchange exchange, int status, InputStream body, long length)
+            throws IOException, InterruptedException {
+        exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+        OutputStream out = exchange.getResponseBody();
+        long start = System.nanoTime();
+        long sent = 0;
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int read;
+        while ((read = body.read(chunk)) != -1) {
+            out.write(chunk, 0, read);
+            sent += read;
+            bytesSent.addAndGet(read);
+
+            long limit = bytesPerSecond;
+            if (limit > 0) {
+                long dueNanos = sent * TimeUnit.SECONDS.toNanos(1) / limit;
+                long aheadNanos = dueNanos - (System.nanoTime() - start);
+                if (aheadNanos > 0)
+                    TimeUnit.NANOSECONDS.sleep(aheadNanos);
+            }
+        }
+        out.flush();
+    }
+
+    private void addSheets(List<SmartsheetSheet> homeSheets, SmartsheetSheet sheet) {
+        for (SmartsheetSheet homeSheet : homeSheets)
+            addSheet(homeSheet.getId(), sheet);
+    }
+
+    private void addFolderSheets(List<SmartsheetFolder> folders, SmartsheetSheet sheet) {
+        for (SmartsheetFolder folder : folders) {
+            addSheets(folder.getSheets(), sheet);
+            addFolderSheets(folder.getFolders(), sheet);
+        }
+    }
+
+    /**
+     * @return the attachments of a sheet, its discussions, its rows and their
+     *         discussions
+     */
+    public static List<SmartsheetAttachment> getAttachments(SmartsheetSheet sheet) {
+        List<SmartsheetAttachment> sheetAttachments = new ArrayList<SmartsheetAttachment>(sheet.getAttachments());
+        for (SmartsheetDiscussion discussion : sheet.getDiscussions())
+            sheetAttachments.addAll(discussion.getCommentAttachments());
+        for (SmartsheetRow row : sheet.getRows()) {
+            sheetAttachments.addAll(row.getAttachments());
+            for (SmartsheetDiscussion discussion : row.getDiscussions())
+                sheetAttachments.addAll(discussion.getCommentAttachments());
+        }
+        return sheetAttachments;
+    }
+
+    /**
+     * Content of a size generated from a seed, without holding it in memory.
+     */
+    private static class GeneratedContent extends InputStream {
+        private final Random random;
+        private long remaining;
+
+        GeneratedContent(long seed, long size) {
+            random = new Random(seed);
+            remaining = size;
+        }
+
+        @Override
+        public int read() {
+            if (remaining <= 0)
+                return -1;
+            remaining--;
+            return random.nextInt(256);
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (remaining <= 0)
+                return -1;
+            int count = (int) Math.min(length, remaining);
+            byte[] generated = new byte[count];
+            random.nextBytes(generated);
+            System.arraycopy(generated, 0, bytes, offset, count);
+            remaining -= count;
+            return count;
+        }
+    }
+}
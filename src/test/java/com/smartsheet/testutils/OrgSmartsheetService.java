@@ -0,0 +1,143 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.testutils;
+
+import java.io.FileNotFoundException;
+
+import com.smartsheet.restapi.model.SmartsheetAttachment;
+import com.smartsheet.restapi.model.SmartsheetFolder;
+import com.smartsheet.restapi.model.SmartsheetHome;
+import com.smartsheet.restapi.model.SmartsheetPagingwrapper;
+import com.smartsheet.restapi.model.SmartsheetSheet;
+import com.smartsheet.restapi.model.SmartsheetUser;
+import com.smartsheet.restapi.model.SmartsheetWorkspace;
+import com.smartsheet.restapi.service.SmartsheetService;
+
+/**
+ * A {@link SmartsheetService} which serves a {@link SmartsheetOrg} in memory,
+ * without HTTP, to measure the backup's own work (listing, traversal and
+ * naming) at scale. Sheet exports and attachment downloads are requested over
+ * HTTP by the backup itself, so they are served by a
+ * {@link MockSmartsheetApiServer} of the same organization if one is given;
+ * without one, only what doesn't download (such as taking an inventory) can
+ * be run.
+ */
+public class OrgSmartsheetService implements SmartsheetService, Cloneable {
+
+    public static final int PAGE_SIZE = 100;
+
+    private final SmartsheetOrg org;
+    private final MockSmartsheetApiServer server;
+    private String assumedUserEmail;
+
+    /**
+     * @param server
+     *          the server of exports and downloads, or null
+     */
+    public OrgSmartsheetService(SmartsheetOrg org, MockSmartsheetApiServer server) {
+        this.org = org;
+        this.server = server;
+    }
+
+    @Override
+    public SmartsheetPagingwrapper<SmartsheetUser> getUsers(int page) {
+        return MockSmartsheetApiServer.getUsersPage(org, page, PAGE_SIZE);
+    }
+
+    @Override
+    public SmartsheetHome getHome() throws Exception {
+        return found(org.getHome(assumedUserEmail), "home of " + assumedUserEmail);
+    }
+
+    @Override
+    public SmartsheetPagingwrapper<SmartsheetSheet> getSheets(int page) throws Exception {
+        return MockSmartsheetApiServer.getSheetsPage(getHome(), page, PAGE_SIZE);
+    }
+
+    @Override
+    public SmartsheetPagingwrapper<SmartsheetFolder> getHomeFolders(int page) throws Exception {
+        return MockSmartsheetApiServer.getHomeFoldersPage(getHome(), page, PAGE_SIZE);
+    }
+
+    @Override
+    public SmartsheetPagingwrapper<SmartsheetWorkspace> getWorkspaces(int page) throws Exception {
+        return MockSmartsheetApiServer.getWorkspacesPage(getHome(), page, PAGE_SIZE);
+    }
+
+    @Override
+    public SmartsheetFolder getFolder(String folderName, long folderId) throws Exception {
+        return found(MockSmartsheetApiServer.getFolder(getHome(), folderId), "folder " + folderId);
+    }
+
+    @Override
+    public SmartsheetWorkspace getWorkspace(String workspaceName, long workspaceId) throws Exception {
+        return found(MockSmartsheetApiServer.getWorkspace(getHome(), workspaceId), "workspace " + workspaceId);
+    }
+
+    @Override
+    public SmartsheetSheet getSheetDetails(String sheetName, long sheetId) throws Exception {
+        return found(org.getSheet(sheetId), "sheet " + sheetId);
+    }
+
+    @Override
+    public void getSheetAttachments(String sheetName, long sheetId, AttachmentHandler handler) throws Exception {
+        SmartsheetSheet sheet = found(org.getSheet(sheetId), "sheet " + sheetId);
+        for (SmartsheetAttachment attachment : MockSmartsheetApiServer.getAttachments(sheet))
+            handler.handle(attachment);
+    }
+
+    @Override
+    public SmartsheetAttachment getAttachmentDetails(String attachmentName, long attachmentId, String sheetName,
+        long sheetId) throws Exception {
+        SmartsheetAttachment attachment = found(org.getAttachment(sheetId, attachmentId),
+            "attachment " + attachmentId);
+        if (server != null && "FILE".equals(attachment.getAttachmentType()))
+            attachment.setUrl(server.getDownloadUrl(sheetId, attachmentId));
+        return attachment;
+    }
+
+    @Override
+    public String getAccessToken() {
+        return "token";
+    }
+
+    @Override
+    public void assumeUser(String assumedUserEmail) {
+        this.assumedUserEmail = assumedUserEmail;
+    }
+
+    @Override
+    public String getAssumedUser() {
+        return assumedUserEmail;
+    }
+
+    @Override
+    public String getApiBaseUrl() {
+        return server == null ? null : server.getApiBaseUrl();
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        return super.clone();
+    }
+
+    private static <T> T found(T item, String description) throws FileNotFoundException {
+        if (item == null)
+            throw new FileNotFoundException("No " + description);
+        return item;
+    }
+}
@@ -0,0 +1,57 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.testutils;
+
+import com.smartsheet.restapi.model.SmartsheetAttachment;
+import com.smartsheet.restapi.model.SmartsheetHome;
+import com.smartsheet.restapi.model.SmartsheetSheet;
+import com.smartsheet.restapi.model.SmartsheetUser;
+
+/**
+ * An organization served by the {@link MockSmartsheetApiServer} or the
+ * {@link OrgSmartsheetService}: its users, their homes and the sheets and
+ * attachments in them, looked up as they are requested (so that a large
+ * organization can be generated on demand rather than held in memory).
+ */
+public interface SmartsheetOrg {
+
+    int getUserCount();
+
+    /**
+     * @param index
+     *          the index of the user, from 0 to {@link #getUserCount()} - 1
+     */
+    SmartsheetUser getUser(int index);
+
+    /**
+     * @return the home of a user, or null if the user isn't active or doesn't
+     *         exist
+     */
+    SmartsheetHome getHome(String email);
+
+    /**
+     * @return the details of a sheet (with its rows, discussions and
+     *         attachments), or null if there is no such sheet
+     */
+    SmartsheetSheet getSheet(long sheetId);
+
+    /**
+     * @return the details of an attachment of a sheet, or null if there is no
+     *         such attachment
+     */
+    SmartsheetAttachment getAttachment(long sheetId, long attachmentId);
+}
@@ -0,0 +1,383 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.testutils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import com.smartsheet.restapi.model.SmartsheetAttachment;
+import com.smartsheet.restapi.model.SmartsheetFolder;
+import com.smartsheet.restapi.model.SmartsheetHome;
+import com.smartsheet.restapi.model.SmartsheetNamedEntity;
+import com.smartsheet.restapi.model.SmartsheetRow;
+import com.smartsheet.restapi.model.SmartsheetSheet;
+import com.smartsheet.restapi.model.SmartsheetUser;
+import com.smartsheet.restapi.model.SmartsheetWorkspace;
+
+/**
+ * A synthetic organization of any size, for measuring how the backup scales.
+ * Every user, home, sheet and attachment is generated deterministically from
+ * a seed and its ID when it's requested, so the same organization is served
+ * every time and a large one isn't held in memory.
+ * <p>
+ * The shape of the organization is configured with the setters (before it's
+ * served): the number of users and the fraction not active; the number of
+ * sheets per user, the number of workspaces, and the depth and fan-out of the
+ * folders in the home and each workspace; the fraction of the sheets in a
+ * home which are shared by another user rather than owned; the number of
+ * rows per sheet and of attachments per row; the median size of the file
+ * attachments; and the fraction of names duplicating another in the same
+ * folder. The numbers of sheets and rows are drawn from exponential
+ * distributions with the configured means, and the sizes of attachments from
+ * a log-normal distribution with the configured median, so that a few users,
+ * sheets and attachments are much larger than the rest, as in a real
+ * organization.
+ */
+public class SyntheticOrg implements SmartsheetOrg {
+
+    // IDs encode what they identify: the sheets of user u are numbered
+    // (u + 1) * SHEET_IDS + s, the attachments of a sheet
+    // sheetId * ATTACHMENT_IDS + a, and the folders and workspaces of user u
+    // FOLDER_ID_BASE + u * SHEET_IDS + f
+    private static final long SHEET_IDS = 100000;
+    private static final long ATTACHMENT_IDS = 10000;
+    private static final long FOLDER_ID_BASE = 1000000000000000L;
+    private static final int MAX_ROWS = 20000;
+
+    private static final String EMAIL_PREFIX = "user";
+    private static final String EMAIL_DOMAIN = "@example.com";
+    private static final String[] COMMON_ATTACHMENT_NAMES = {
+        "image.png", "Screenshot.png", "Report.pdf", "Budget.xlsx", "Notes.docx", "photo.jpg"
+    };
+    private static final String[] ATTACHMENT_EXTENSIONS = { ".pdf", ".png", ".jpg", ".docx", ".xlsx", ".zip" };
+    private static final double ATTACHMENT_SIZE_SIGMA = 1.0;
+    private static final double LINK_ATTACHMENT_RATE = 0.1;
+
+    // salts of the random sequences of each kind of item
+    private static final long USER_SALT = 1;
+    private static final long HOME_SALT = 2;
+    private static final long SHEET_SALT = 3;
+    private static final long ATTACHMENT_SALT = 4;
+
+    private final long seed;
+    private int users = 10;
+    private double inactiveUserRate = 0.1;
+    private int sheetsPerUser = 10;
+    private int workspacesPerUser = 1;
+    private int folderDepth = 2;
+    private int folderFanOut = 2;
+    private double sharedSheetRate = 0.2;
+    private int rowsPerSheet = 50;
+    private double attachmentsPerRow = 0.1;
+    private int attachmentKb = 100;
+    private double duplicateNameRate = 0.1;
+
+    public SyntheticOrg(long seed) {
+        this.seed = seed;
+    }
+
+    public void setUsers(int users) {
+        this.users = users;
+    }
+
+    /**
+     * Sets the fraction of the users who are pending rather than active (0.1
+     * by default). The first user, the administrator, is always active.
+     */
+    public void setInactiveUserRate(double inactiveUserRate) {
+        this.inactiveUserRate = inactiveUserRate;
+    }
+
+    /**
+     * Sets the mean number of sheets in the home of a user (10 by default).
+     */
+    public void setSheetsPerUser(int sheetsPerUser) {
+        this.sheetsPerUser = sheetsPerUser;
+    }
+
+    /**
+     * Sets the number of workspaces in the home of a user (1 by default).
+     */
+    public void setWorkspacesPerUser(int workspacesPerUser) {
+        this.workspacesPerUser = workspacesPerUser;
+    }
+
+    /**
+     * Sets the depth of the folders in the home and in each workspace (2 by
+     * default), and the number of folders in the home, each workspace and
+     * each folder above that depth (2 by default).
+     */
+    public void setFolders(int folderDepth, int folderFanOut) {
+        this.folderDepth = folderDepth;
+        this.folderFanOut = folderFanOut;
+    }
+
+    /**
+     * Sets the fraction of the sheets in a home which are shared by other
+     * users rather than owned (0.2 by default).
+     */
+    public void setSharedSheetRate(double sharedSheetRate) {
+        this.sharedSheetRate = sharedSheetRate;
+    }
+
+    /**
+     * Sets the mean number of rows of a sheet (50 by default).
+     */
+    public void setRowsPerSheet(int rowsPerSheet) {
+        this.rowsPerSheet = rowsPerSheet;
+    }
+
+    /**
+     * Sets the mean number of attachments of a row (0.1 by default).
+     */
+    public void setAttachmentsPerRow(double attachmentsPerRow) {
+        this.attachmentsPerRow = attachmentsPerRow;
+    }
+
+    /**
+     * Sets the median size of the file attachments (100 KB by default).
+     */
+    public void setAttachmentKb(int attachmentKb) {
+        this.attachmentKb = attachmentKb;
+    }
+
+    /**
+     * Sets the fraction of the names of folders, sheets and attachments which
+     * duplicate another name in the same folder (0.1 by default).
+     */
+    public void setDuplicateNameRate(double duplicateNameRate) {
+        this.duplicateNameRate = duplicateNameRate;
+    }
+
+    @Override
+    public int getUserCount() {
+        return users;
+    }
+
+    @Override
+    public SmartsheetUser getUser(int index) {
+        Random random = random(USER_SALT, index);
+        SmartsheetUser user = new SmartsheetUser();
+        user.setId(index + 1);
+        user.setEmail(EMAIL_PREFIX + index + EMAIL_DOMAIN);
+        user.setName("User " + index);
+        user.setAdmin(index == 0);
+        user.setLicensedSheetCreator(true);
+        user.setStatus(index > 0 && random.nextDouble() < inactiveUserRate ? "PENDING" : "ACTIVE");
+        return user;
+    }
+
+    @Override
+    public SmartsheetHome getHome(String email) {
+        int index = getUserIndex(email);
+        if (index < 0 || !"ACTIVE".equals(getUser(index).getStatus()))
+            return null;
+
+        Random random = random(HOME_SALT, index);
+        SmartsheetHome home = new SmartsheetHome();
+        home.setSheets(new ArrayList<SmartsheetSheet>());
+        home.setFolders(new ArrayList<SmartsheetFolder>());
+        home.setWorkspaces(new ArrayList<SmartsheetWorkspace>());
+
+        // the folders and workspaces, then the sheets placed in them (or in
+        // the home itself) at random
+        List<List<SmartsheetSheet>> containers = new ArrayList<List<SmartsheetSheet>>();
+        containers.add(home.getSheets());
+        long[] nextFolderId = { FOLDER_ID_BASE + index * SHEET_IDS };
+        addFolders(home.getFolders(), folderDepth, random, containers, nextFolderId);
+        for (int w = 0; w < workspacesPerUser; w++) {
+            SmartsheetWorkspace workspace = new SmartsheetWorkspace();
+            workspace.setId(nextFolderId[0]++);
+            workspace.setName(uniqueOrDuplicate(random, "Workspace " + w, home.getWorkspaces()));
+            workspace.setAccessLevel("OWNER");
+            workspace.setSheets(new ArrayList<SmartsheetSheet>());
+            workspace.setFolders(new ArrayList<SmartsheetFolder>());
+            containers.add(workspace.getSheets());
+            addFolders(workspace.getFolders(), folderDepth, random, containers, nextFolderId);
+            home.getWorkspaces().add(workspace);
+        }
+
+        int sheetCount = (int) Math.min(SHEET_IDS - 1, exponential(random, sheetsPerUser));
+        for (int s = 0; s < sheetCount; s++) {
+            List<SmartsheetSheet> container = containers.get(random.nextInt(containers.size()));
+            SmartsheetSheet sheet = new SmartsheetSheet();
+            if (random.nextDouble() < sharedSheetRate) {
+                // another user's sheet, which the backup skips
+                sheet.setId(getSheetId(random.nextInt(users), 0));
+                sheet.setAccessLevel("EDITOR");
+            } else {
+                sheet.setId(getSheetId(index, s));
+                sheet.setAccessLevel("OWNER");
+            }
+            sheet.setName(uniqueOrDuplicate(random, "Sheet " + s, container));
+            container.add(sheet);
+        }
+        return home;
+    }
+
+    @Override
+    public SmartsheetSheet getSheet(long sheetId) {
+        if (getSheetUser(sheetId) < 0)
+            return null;
+
+        Random random = random(SHEET_SALT, sheetId);
+        SmartsheetSheet sheet = new SmartsheetSheet();
+        sheet.setId(sheetId);
+        sheet.setName("Sheet " + sheetId % SHEET_IDS);
+        sheet.setAccessLevel("OWNER");
+        sheet.setAttachments(Collections.<SmartsheetAttachment>emptyList());
+
+        int rowCount = (int) Math.min(MAX_ROWS, exponential(random, rowsPerSheet));
+        List<SmartsheetRow> rows = new ArrayList<SmartsheetRow>(rowCount);
+        long attachmentId = sheetId * ATTACHMENT_IDS;
+        long lastAttachmentId = attachmentId + ATTACHMENT_IDS - 1;
+        for (int r = 0; r < rowCount; r++) {
+            SmartsheetRow row = new SmartsheetRow();
+            row.setId(sheetId * MAX_ROWS + r);
+            int attachmentCount = (int) attachmentsPerRow
+                + (random.nextDouble() < attachmentsPerRow % 1 ? 1 : 0);
+            List<SmartsheetAttachment> attachments = new ArrayList<SmartsheetAttachment>(attachmentCount);
+            for (int a = 0; a < attachmentCount && attachmentId <= lastAttachmentId; a++)
+                attachments.add(getAttachment(sheetId, attachmentId++));
+            row.setAttachments(attachments);
+            rows.add(row);
+        }
+        sheet.setRows(rows);
+        return sheet;
+    }
+
+    @Override
+    public SmartsheetAttachment getAttachment(long sheetId, long attachmentId) {
+        if (attachmentId / ATTACHMENT_IDS != sheetId || getSheetUser(sheetId) < 0)
+            return null;
+
+        Random random = random(ATTACHMENT_SALT, attachmentId);
+        SmartsheetAttachment attachment = new SmartsheetAttachment();
+        attachment.setId(attachmentId);
+        attachment.setCreatedAt(new Date(1368576000000L + attachmentId % ATTACHMENT_IDS * 60000));
+        if (random.nextDouble() < LINK_ATTACHMENT_RATE) {
+            attachment.setAttachmentType("LINK");
+            attachment.setName("Link " + attachmentId % ATTACHMENT_IDS);
+            attachment.setUrl("https://www.example.com/" + attachmentId);
+            return attachment;
+        }
+
+        // the file attachments of a sheet are saved in one folder, where
+        // common names clash
+        attachment.setName(random.nextDouble() < duplicateNameRate
+            ? COMMON_ATTACHMENT_NAMES[random.nextInt(COMMON_ATTACHMENT_NAMES.length)]
+            : "Attachment " + attachmentId % ATTACHMENT_IDS
+                + ATTACHMENT_EXTENSIONS[random.nextInt(ATTACHMENT_EXTENSIONS.length)]);
+        attachment.setAttachmentType("FILE");
+        attachment.setMimeType("application/octet-stream");
+        attachment.setSizeInKb(Math.max(1,
+            Math.round(attachmentKb * Math.exp(ATTACHMENT_SIZE_SIGMA * random.nextGaussian()))));
+        return attachment;
+    }
+
+    /**
+     * @return the number of sheets which a user owns, i.e. which a backup
+     *         saves
+     */
+    public int getOwnedSheets(String email) {
+        SmartsheetHome home = getHome(email);
+        if (home == null)
+            return 0;
+
+        int owned = countOwned(home.getSheets(), home.getFolders());
+        for (SmartsheetWorkspace workspace : home.getWorkspaces())
+            owned += countOwned(workspace.getSheets(), workspace.getFolders());
+        return owned;
+    }
+
+    private void addFolders(List<SmartsheetFolder> folders, int depth, Random random,
+        List<List<SmartsheetSheet>> containers, long[] nextFolderId) {
+        if (depth == 0)
+            return;
+
+        for (int f = 0; f < folderFanOut; f++) {
+            SmartsheetFolder folder = new SmartsheetFolder();
+            folder.setId(nextFolderId[0]++);
+            folder.setName(uniqueOrDuplicate(random, "Folder " + depth + "." + f, folders));
+            folder.setSheets(new ArrayList<SmartsheetSheet>());
+            folder.setFolders(new ArrayList<SmartsheetFolder>());
+            containers.add(folder.getSheets());
+            addFolders(folder.getFolders(), depth - 1, random, containers, nextFolderId);
+            folders.add(folder);
+        }
+    }
+
+    /**
+     * @return a name, or the name of an item already in the same folder
+     */
+    private String uniqueOrDuplicate(Random random, String name, List<? extends SmartsheetNamedEntity> items) {
+        if (!items.isEmpty() && random.nextDouble() < duplicateNameRate)
+            return items.get(random.nextInt(items.size())).getName();
+        return name;
+    }
+
+    private static int countOwned(List<SmartsheetSheet> sheets, List<SmartsheetFolder> folders) {
+        int owned = 0;
+        for (SmartsheetSheet sheet : sheets) {
+            if ("OWNER".equals(sheet.getAccessLevel()))
+                owned++;
+        }
+        for (SmartsheetFolder folder : folders)
+            owned += countOwned(folder.getSheets(), folder.getFolders());
+        return owned;
+    }
+
+    private int getUserIndex(String email) {
+        if (email == null || !email.startsWith(EMAIL_PREFIX) || !email.endsWith(EMAIL_DOMAIN))
+            return -1;
+        try {
+            int index = Integer.parseInt(email.substring(EMAIL_PREFIX.length(), email.length() - EMAIL_DOMAIN.length()));
+            return index < users ? index : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long getSheetId(int userIndex, int sheetIndex) {
+        return (userIndex + 1) * SHEET_IDS + sheetIndex;
+    }
+
+    /**
+     * @return the index of the user whose sheet an ID is, or -1 if it isn't
+     *         the ID of a sheet
+     */
+    private int getSheetUser(long sheetId) {
+        long user = sheetId / SHEET_IDS - 1;
+        return user >= 0 && user < users ? (int) user : -1;
+    }
+
+    private static long exponential(Random random, double mean) {
+        return Math.round(-mean * Math.log(1 - random.nextDouble()));
+    }
+
+    private Random random(long salt, long id) {
+        // scrambled, since the sequences of java.util.Random from nearby seeds
+        // start alike
+        long z = seed * 0x9E3779B97F4A7C15L + salt * 0xC2B2AE3D27D4EB4FL + id;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return new Random(z ^ (z >>> 31));
+    }
+}
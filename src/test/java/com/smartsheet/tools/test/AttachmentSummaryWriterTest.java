@@ -0,0 +1,119 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.smartsheet.restapi.model.SmartsheetAttachment;
+import com.smartsheet.tools.AttachmentSummaryWriter;
+import com.smartsheet.tools.LocalFileSystemSink;
+
+public class AttachmentSummaryWriterTest {
+
+    private File summaryFile;
+
+    @Before
+    public void setUp() throws IOException {
+        summaryFile = File.createTempFile("summary", ".csv");
+        summaryFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        summaryFile.delete();
+    }
+
+    @Test
+    public void quotesFieldsAsCsv() throws IOException {
+        AttachmentSummaryWriter writer = new AttachmentSummaryWriter(new LocalFileSystemSink(), summaryFile);
+        writer.write(link("Plan", "https://example.com/plan", "LINK"));
+        writer.write(link("Budget, \"final\"", "https://example.com/?a=1,2", "GOOGLE_DRIVE"));
+        writer.write(link("Notes\nfor Q2", null, "BOX_COM"));
+        writer.close();
+
+        assertEquals("Name,URL,AttachmentType\r\n"
+            + "Plan,https://example.com/plan,LINK\r\n"
+            + "\"Budget, \"\"final\"\"\",\"https://example.com/?a=1,2\",GOOGLE_DRIVE\r\n"
+            + "\"Notes\nfor Q2\",,BOX_COM\r\n", read(summaryFile));
+        assertEquals(3, writer.getRowCount());
+    }
+
+    @Test
+    public void writesNothingWithoutSummaries() throws IOException {
+        new AttachmentSummaryWriter(new LocalFileSystemSink(), summaryFile).close();
+
+        assertFalse(summaryFile.exists());
+    }
+
+    @Test
+    public void writesConcurrentSummariesAsWholeRows() throws Exception {
+        final AttachmentSummaryWriter writer = new AttachmentSummaryWriter(new LocalFileSystemSink(), summaryFile);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < 1000; i++) {
+            final int number = i;
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writer.write(link("Link " + number, "https://example.com/" + number, "LINK"));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+        writer.close();
+
+        String[] lines = read(summaryFile).split("\r\n");
+        assertEquals(1001, lines.length);
+        for (int i = 1; i < lines.length; i++)
+            assertTrue(lines[i], lines[i].matches("Link (\\d+),https://example.com/\\1,LINK"));
+    }
+
+    private static SmartsheetAttachment link(String name, String url, String attachmentType) {
+        SmartsheetAttachment attachment = new SmartsheetAttachment();
+        attachment.setName(name);
+        attachment.setUrl(url);
+        attachment.setAttachmentType(attachmentType);
+        return attachment;
+    }
+
+    private static String read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return IOUtils.toString(in);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.smartsheet.tools.BackupInventory;
+import com.smartsheet.tools.ParallelDownloadService;
+import com.smartsheet.tools.SmartsheetBackupService;
+
+public class BackupInventoryTest {
+
+    private static final long SAMPLE_SHEET_FILE_ATTACHMENT_BYTES = (3 + 3 + 4 + 3 + 11 + 760) * 1024;
+
+    private File inventoryFile;
+
+    @Before
+    public void setUp() throws IOException {
+        inventoryFile = File.createTempFile("inventory", ".json");
+    }
+
+    @After
+    public void tearDown() {
+        inventoryFile.delete();
+    }
+
+    @Test
+    public void takesInventoryWithoutDownloading() throws Exception {
+        ParallelDownloadService parallelDownloadService = new ParallelDownloadService(1);
+        SmartsheetBackupService backupService = new SmartsheetBackupService(new StubSmartsheetService(),
+            parallelDownloadService);
+
+        BackupInventory inventory = backupService.takeInventory(true);
+        // each of the 2 active users owns 9 sample sheets with 6 file attachments each
+        assertEquals(3, inventory.getUsers().size());
+        assertEquals(18, inventory.getTotalOwnedSheets());
+        assertEquals(108, inventory.getTotalFileAttachments());
+        assertEquals(18 * SAMPLE_SHEET_FILE_ATTACHMENT_BYTES, inventory.getTotalFileAttachmentBytes());
+        assertNull(inventory.getHome("william@firstclassmandarin.com")); // pending
+
+        // sheets and attachments: exported and detailed, users: 2 pages and 2 homes
+        assertEquals(18 * 2 + 108 * 2 + 2 + 2, inventory.estimateApiRequests(false));
+        assertEquals(18 * 2 + 108 * 2, inventory.estimateApiRequests(true));
+        assertTrue(parallelDownloadService.waitTillAllDownloadJobsDone()); // nothing posted
+    }
+
+    @Test
+    public void readsBackWrittenInventory() throws Exception {
+        BackupInventory inventory = new SmartsheetBackupService(new StubSmartsheetService(),
+            new ParallelDownloadService(1)).takeInventory(false);
+        inventory.write(inventoryFile);
+
+        BackupInventory readInventory = BackupInventory.read(inventoryFile);
+        assertEquals(inventory.getCreatedAt(), readInventory.getCreatedAt());
+        assertEquals(2, readInventory.getUserPages());
+        assertEquals(3, readInventory.getSmartsheetUsers().size());
+        assertEquals(18, readInventory.getTotalOwnedSheets());
+        assertEquals(0, readInventory.getTotalFileAttachments());
+        assertNotNull(readInventory.getHome("wwmcheung@hotmail.com"));
+        assertEquals(inventory.getHome("wwmcheung@hotmail.com").getWorkspaces().size(),
+            readInventory.getHome("wwmcheung@hotmail.com").getWorkspaces().size());
+    }
+
+    @Test
+    public void estimatesDurationFromRateLimitOrLatency() {
+        BackupInventory inventory = new BackupInventory();
+        BackupInventory.UserInventory user = new BackupInventory.UserInventory();
+        user.setOwnedSheets(10);
+        user.setFileAttachments(150);
+        inventory.addUser(user);
+        assertEquals(320, inventory.estimateApiRequests(true));
+
+        // rate limited: 320 requests at 300 per minute
+        assertEquals(64, inventory.estimateSeconds(true, 300, 2, 0.1));
+        // sequential sheets: 20 requests at 5 seconds
+        assertEquals(100, inventory.estimateSeconds(true, 300, 100, 5.0));
+        // attachments: 300 requests at 1 second by 2 threads
+        assertEquals(150, inventory.estimateSeconds(true, 300, 2, 1.0));
+
+        List<String> plan = inventory.describePlan(300, 4, 0.1);
+        assertTrue(plan.toString(), plan.contains("Owned sheets: 10"));
+    }
+}
@@ -0,0 +1,115 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.smartsheet.tools.BackupJournal;
+import com.smartsheet.tools.BackupJournal.JournaledAttachment;
+import com.smartsheet.utils.FileUtils;
+
+public class BackupJournalTest {
+
+    private File backupFolder;
+
+    @Before
+    public void setUp() {
+        backupFolder = new File(System.getProperty("java.io.tmpdir"),
+            getClass().getSimpleName() + "-" + System.currentTimeMillis());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteFolder(backupFolder);
+    }
+
+    @Test
+    public void replaysRecordsOfInterruptedRun() throws IOException {
+        File userFolder = new File(backupFolder, "user@example.com");
+        File sheetFile = new File(userFolder, "Sheets/sheet.xlsx");
+        File attachmentsFolder = new File(userFolder, "Sheets/sheet - attachments");
+
+        BackupJournal journal = BackupJournal.open(backupFolder);
+        journal.recordFolder("user@example.com", userFolder);
+        journal.recordSheet(1, sheetFile);
+        journal.recordAttachment(10, 1, "user@example.com", new File(attachmentsFolder, "done.png"));
+        journal.recordAttachment(11, 1, "user@example.com", new File(attachmentsFolder, "partial.png"));
+        journal.markAttachmentDone(10);
+        journal.markSheetDone(1);
+        journal.close(); // simulates the JVM dying
+
+        assertTrue(BackupJournal.isIncomplete(backupFolder));
+
+        BackupJournal resumed = BackupJournal.open(backupFolder);
+        assertTrue(resumed.isResuming());
+        assertEquals(userFolder.getAbsolutePath(), resumed.getFolder("user@example.com").getAbsolutePath());
+        assertEquals(sheetFile.getAbsolutePath(), resumed.getSheetFile(1).getAbsolutePath());
+        assertTrue(resumed.isSheetDone(1));
+        assertTrue(resumed.isAttachmentDone(10));
+        assertFalse(resumed.isAttachmentDone(11));
+        assertEquals(2, resumed.getAttachmentFileNames(1).size());
+
+        List<JournaledAttachment> pending = resumed.getPendingAttachments();
+        assertEquals(1, pending.size());
+        assertEquals(11, pending.get(0).getAttachmentId());
+        assertEquals("user@example.com", pending.get(0).getUserEmail());
+
+        resumed.markRunComplete();
+        resumed.close();
+        assertFalse(BackupJournal.isIncomplete(backupFolder));
+    }
+
+    @Test
+    public void ignoresPartiallyWrittenLastRecord() throws IOException {
+        BackupJournal journal = BackupJournal.open(backupFolder);
+        journal.recordSheet(1, new File(backupFolder, "sheet.xlsx"));
+        journal.close();
+
+        // a crash while writing leaves a record without a line terminator
+        FileWriter writer = new FileWriter(new File(backupFolder, BackupJournal.JOURNAL_FILE_NAME), true);
+        writer.write("SHEET_DONE\t");
+        writer.close();
+
+        BackupJournal resumed = BackupJournal.open(backupFolder);
+        assertFalse(resumed.isSheetDone(1));
+        assertTrue(resumed.getSheetFile(1) != null);
+        resumed.close();
+    }
+
+    @Test
+    public void disabledJournalHasNothingToResume() throws IOException {
+        BackupJournal journal = BackupJournal.disabled();
+        journal.recordFolder("key", new File(backupFolder, "folder"));
+
+        assertFalse(journal.isEnabled());
+        assertFalse(journal.isResuming());
+        assertNull(journal.getFolder("key"));
+        assertFalse(backupFolder.exists());
+    }
+}
@@ -0,0 +1,85 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.smartsheet.tools.BackupProgress;
+
+public class BackupProgressTest {
+
+    private static final double DELTA = 0.001;
+
+    @Test
+    public void estimatesRemainingWorkFromDiscoveredWork() {
+        BackupProgress progress = new BackupProgress();
+        progress.planUsers(4);
+
+        // the first user has 2 sheets and a 300 KB attachment...
+        progress.userStarted();
+        progress.sheetsDiscovered(2);
+        progress.sheetDone(100 * 1024);
+        progress.attachmentDiscovered(300 * 1024);
+        assertEquals(100 * 1024, progress.getBytesDone());
+        // ...so 100 KB (a sheet) + 300 KB are left, and 500 KB for each of
+        // the 3 users not started
+        assertEquals(1900 * 1024, progress.getBytesRemaining());
+        assertEquals(5.0, progress.getPercentComplete(), DELTA);
+
+        progress.sheetDone(100 * 1024);
+        progress.attachmentDone(300 * 1024);
+        assertEquals(500.0 / 2000 * 100, progress.getPercentComplete(), DELTA);
+
+        // the rest have nothing to back up
+        for (int i = 0; i < 3; i++)
+            progress.userStarted();
+        assertEquals(0, progress.getBytesRemaining());
+        assertEquals(100.0, progress.getPercentComplete(), DELTA);
+    }
+
+    @Test
+    public void countsSkippedSheetsAsDoneWithoutAffectingSheetSize() {
+        BackupProgress progress = new BackupProgress();
+        progress.planUsers(1);
+        progress.userStarted();
+        progress.sheetsDiscovered(3);
+        progress.sheetDone(0); // skipped
+        progress.sheetDone(50 * 1024);
+
+        assertEquals(50 * 1024, progress.getBytesRemaining());
+    }
+
+    @Test
+    public void reportsProgressAndEta() {
+        BackupProgress progress = new BackupProgress();
+        assertEquals(-1, progress.getSecondsRemaining());
+        assertTrue(progress.getReport(), progress.getReport().endsWith("ETA unknown ***"));
+
+        progress.planUsers(2);
+        progress.userStarted();
+        progress.sheetsDiscovered(1);
+        progress.attachmentDiscovered(2 * 1024 * 1024);
+        progress.attachmentDone(2 * 1024 * 1024);
+
+        String report = progress.getReport();
+        assertTrue(report, report.contains("users 1 of 2, sheets 0 of 1, attachments 1 of 1 (2.0 MB of 2.0 MB)"));
+        assertTrue(report, !report.contains("ETA unknown"));
+    }
+}
@@ -0,0 +1,205 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.smartsheet.tools.CompressionPolicy;
+import com.smartsheet.tools.StreamingArchiveSink;
+
+/**
+ * Compares the CPU time and archive size of compressing a representative mixed
+ * corpus of backup files with the content-aware {@link CompressionPolicy} and
+ * with deflating everything (as archives were compressed before).
+ * <p>
+ * The corpus is generated (deterministically) to resemble a backup: .xlsx
+ * sheet exports, CSV summaries, JSON and text attachments, JPEG images, PDF
+ * documents, MP4 videos, and binary files of unknown type, some compressible
+ * and some not. It is not a unit test; run it with
+ * {@code java -cp <test classpath> com.smartsheet.tools.test.CompressionPolicyBenchmark [iterations]}.
+ */
+public class CompressionPolicyBenchmark {
+
+    private static final int KB = 1024;
+
+    private static class CorpusFile {
+        final String name;
+        final String mimeType;
+        final byte[] content;
+
+        CorpusFile(String name, String mimeType, byte[] content) {
+            this.name = name;
+            this.mimeType = mimeType;
+            this.content = content;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        List<CorpusFile> corpus = createCorpus(new Random(42));
+        long corpusSize = 0;
+        for (CorpusFile file : corpus)
+            corpusSize += file.content.length;
+        System.out.printf("Corpus: %d files, %d KB%n", corpus.size(), corpusSize / KB);
+
+        // warm up, then measure
+        run(corpus, CompressionPolicy.DEFLATE_ALL);
+        run(corpus, new CompressionPolicy());
+        report("deflate all", corpus, CompressionPolicy.DEFLATE_ALL, iterations, corpusSize);
+        report("content-aware", corpus, new CompressionPolicy(), iterations, corpusSize);
+    }
+
+    private static void report(String label, List<CorpusFile> corpus, CompressionPolicy policy, int iterations,
+        long corpusSize) throws Exception {
+        long cpuNanos = 0;
+        long archiveSize = 0;
+        for (int i = 0; i < iterations; i++) {
+            long[] result = run(corpus, policy);
+            cpuNanos += result[0];
+            archiveSize = result[1];
+        }
+        System.out.printf("%-14s CPU %6d ms/run, archive %6d KB (%.1f%% of corpus)%n", label,
+            cpuNanos / iterations / 1000000, archiveSize / KB, 100.0 * archiveSize / corpusSize);
+    }
+
+    /**
+     * @return the CPU time (of all threads) taken to write the corpus to an
+     *         archive, and the size of the archive
+     */
+    private static long[] run(List<CorpusFile> corpus, CompressionPolicy policy) throws Exception {
+        File root = new File(System.getProperty("java.io.tmpdir"), "compression-benchmark");
+        File archive = File.createTempFile("compression-benchmark", ".zip");
+        try {
+            long cpuBefore = getTotalCpuTime();
+            StreamingArchiveSink sink = new StreamingArchiveSink(root, archive, 1, 0, false);
+            sink.setCompressionPolicy(policy);
+            for (CorpusFile file : corpus)
+                sink.write(new File(root, file.name), file.mimeType, new ByteArrayInputStream(file.content));
+            sink.close();
+            return new long[] { getTotalCpuTime() - cpuBefore, archive.length() };
+
+        } finally {
+            archive.delete();
+        }
+    }
+
+    private static long getTotalCpuTime() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long id : threads.getAllThreadIds()) {
+            long time = threads.getThreadCpuTime(id);
+            if (time > 0)
+                total += time;
+        }
+        return total;
+    }
+
+    // corpus generation
+
+    private static List<CorpusFile> createCorpus(Random random) throws IOException {
+        List<CorpusFile> corpus = new ArrayList<CorpusFile>();
+        for (int i = 0; i < 40; i++)
+            corpus.add(new CorpusFile("sheet" + i + ".xlsx", null, xlsx(random, 50 + random.nextInt(400))));
+        for (int i = 0; i < 40; i++)
+            corpus.add(new CorpusFile("sheet" + i + " - summary.csv", null, csv(random, 20 + random.nextInt(80))));
+        for (int i = 0; i < 20; i++)
+            corpus.add(new CorpusFile("data" + i + ".json", "application/json", json(random, 100 + random.nextInt(400))));
+        for (int i = 0; i < 30; i++)
+            corpus.add(new CorpusFile("photo" + i + ".jpg", "image/jpeg", random(random, (100 + random.nextInt(900)) * KB)));
+        for (int i = 0; i < 15; i++)
+            corpus.add(new CorpusFile("document" + i + ".pdf", "application/pdf", pdf(random, 200 + random.nextInt(800))));
+        for (int i = 0; i < 3; i++)
+            corpus.add(new CorpusFile("video" + i + ".mp4", "video/mp4", random(random, (4 + random.nextInt(8)) * KB * KB)));
+        for (int i = 0; i < 10; i++)
+            corpus.add(new CorpusFile("export" + i, "application/octet-stream", records(random, 200 + random.nextInt(300))));
+        for (int i = 0; i < 10; i++)
+            corpus.add(new CorpusFile("archive" + i, "application/octet-stream", random(random, (100 + random.nextInt(400)) * KB)));
+        return corpus;
+    }
+
+    private static byte[] random(Random random, int size) {
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        return content;
+    }
+
+    private static byte[] csv(Random random, int rows) {
+        StringBuilder csv = new StringBuilder("Name,URL,AttachmentType\n");
+        for (int i = 0; i < rows; i++)
+            csv.append("Link ").append(random.nextInt(10000)).append(",https://example.com/docs/")
+                .append(Long.toHexString(random.nextLong())).append(",LINK\n");
+        return csv.toString().getBytes();
+    }
+
+    private static byte[] json(Random random, int records) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < records; i++)
+            json.append(i > 0 ? "," : "").append("{\"id\":").append(random.nextInt(1000000))
+                .append(",\"status\":\"").append(random.nextBoolean() ? "Complete" : "In progress")
+                .append("\",\"owner\":\"user").append(random.nextInt(50)).append("@example.com\"}");
+        return json.append("]").toString().getBytes();
+    }
+
+    private static byte[] xlsx(Random random, int rows) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        zip.putNextEntry(new ZipEntry("xl/worksheets/sheet1.xml"));
+        StringBuilder xml = new StringBuilder("<worksheet><sheetData>");
+        for (int i = 0; i < rows; i++)
+            xml.append("<row r=\"").append(i + 1).append("\"><c t=\"s\"><v>").append(random.nextInt(500))
+                .append("</v></c><c><v>").append(random.nextDouble()).append("</v></c></row>");
+        zip.write(xml.append("</sheetData></worksheet>").toString().getBytes());
+        zip.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] pdf(Random random, int kilobytes) throws IOException {
+        // mostly deflated streams, with some uncompressed structure
+        ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+        pdf.write("%PDF-1.4\n".getBytes());
+        for (int i = 0; pdf.size() < kilobytes * KB; i++) {
+            pdf.write((i + " 0 obj << /Filter /FlateDecode >> stream\n").getBytes());
+            DeflaterOutputStream stream = new DeflaterOutputStream(pdf, new Deflater());
+            stream.write(random(random, 16 * KB));
+            stream.finish();
+            pdf.write("\nendstream endobj\n".getBytes());
+        }
+        return pdf.toByteArray();
+    }
+
+    private static byte[] records(Random random, int kilobytes) {
+        // fixed-size binary records with small values, which compress well
+        byte[] content = new byte[kilobytes * KB];
+        for (int i = 0; i < content.length; i += 16) {
+            content[i] = (byte) random.nextInt(4);
+            content[i + 4] = (byte) random.nextInt(16);
+        }
+        return content;
+    }
+}
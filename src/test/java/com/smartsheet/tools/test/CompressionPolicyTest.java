@@ -0,0 +1,78 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.smartsheet.tools.CompressionPolicy;
+import com.smartsheet.tools.CompressionPolicy.Compression;
+
+public class CompressionPolicyTest {
+
+    private final CompressionPolicy policy = new CompressionPolicy();
+    private final byte[] textSample = textSample();
+    private final byte[] randomSample = randomSample();
+
+    @Test
+    public void storesCompressedTypesWhateverTheirContent() {
+        assertSame(Compression.STORED, choose("photo", "image/jpeg", textSample));
+        assertSame(Compression.STORED, choose("clip", "video/mp4; codecs=avc1", textSample));
+        assertSame(Compression.STORED, choose("export", "application/vnd.openxmlformats-officedocument"
+            + ".spreadsheetml.sheet", textSample));
+        assertSame(Compression.STORED, choose("user/Sheets/Budget.xlsx", null, textSample));
+        assertSame(Compression.STORED, choose("scan.PDF", "application/octet-stream", textSample));
+    }
+
+    @Test
+    public void deflatesTextTypes() {
+        assertSame(Compression.DEFAULT, choose("notes", "text/plain", randomSample));
+        assertSame(Compression.DEFAULT, choose("data", "application/json", randomSample));
+        assertSame(Compression.DEFAULT, choose("Budget - attachments/Budget - summary.csv", null, randomSample));
+    }
+
+    @Test
+    public void judgesUnknownTypesByEntropyOfSample() {
+        assertSame(Compression.STORED, choose("blob.dat", null, randomSample));
+        assertSame(Compression.DEFAULT, choose("blob.dat", "application/octet-stream", textSample));
+
+        byte[] tiny = Arrays.copyOf(textSample, 10);
+        assertSame(Compression.STORED, policy.choose("tiny.dat", null, tiny, tiny.length));
+    }
+
+    private Compression choose(String name, String mimeType, byte[] sample) {
+        return policy.choose(name, mimeType, sample, sample.length);
+    }
+
+    private static byte[] textSample() {
+        byte[] sample = new byte[CompressionPolicy.SAMPLE_SIZE];
+        byte[] line = "Row 1,Task name,In progress,2013-05-01\n".getBytes();
+        for (int i = 0; i < sample.length; i++)
+            sample[i] = line[i % line.length];
+        return sample;
+    }
+
+    private static byte[] randomSample() {
+        byte[] sample = new byte[CompressionPolicy.SAMPLE_SIZE];
+        new Random(1).nextBytes(sample);
+        return sample;
+    }
+}
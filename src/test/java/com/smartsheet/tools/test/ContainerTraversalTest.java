@@ -0,0 +1,171 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import static com.smartsheet.testutils.MockApiFixture.folder;
+import static com.smartsheet.testutils.MockApiFixture.sheet;
+import static com.smartsheet.testutils.MockApiFixture.user;
+import static com.smartsheet.testutils.MockApiFixture.workspace;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.smartsheet.restapi.model.SmartsheetFolder;
+import com.smartsheet.restapi.model.SmartsheetHome;
+import com.smartsheet.restapi.model.SmartsheetSheet;
+import com.smartsheet.restapi.service.RestfulSmartsheetService;
+import com.smartsheet.restapi.service.SmartsheetService;
+import com.smartsheet.testutils.MockApiFixture;
+import com.smartsheet.testutils.MockSmartsheetApiServer;
+import com.smartsheet.testutils.MockSmartsheetApiServer.Endpoint;
+import com.smartsheet.tools.ContainerTraversal;
+import com.smartsheet.tools.DiscoveryMode;
+import com.smartsheet.tools.SmartsheetBackupService;
+
+public class ContainerTraversalTest {
+
+    private static final String ALICE = "alice@example.com";
+
+    private MockApiFixture fixture;
+    private MockSmartsheetApiServer server;
+    private File backupFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        fixture = new MockApiFixture(getClass());
+        server = fixture.getServer();
+        backupFolder = fixture.getBackupFolder();
+
+        // Alice owns a sheet at the top of her home, one in her "Personal"
+        // folder and two in the "Team" workspace, one of them two folders deep
+        SmartsheetFolder q1 = folder(21, "Q1", Collections.<SmartsheetFolder> emptyList(),
+            sheet(3, "Q1 plan", "OWNER"));
+        SmartsheetFolder plans = folder(20, "Plans", Arrays.asList(q1), sheet(2, "Plan", "OWNER"),
+            sheet(5, "Shared plan", "VIEWER"));
+        SmartsheetFolder empty = folder(22, "Empty", Collections.<SmartsheetFolder> emptyList());
+        SmartsheetFolder personal = folder(30, "Personal", Collections.<SmartsheetFolder> emptyList(),
+            sheet(4, "Notes", "OWNER"));
+
+        SmartsheetHome home = new SmartsheetHome();
+        home.setSheets(Arrays.asList(sheet(1, "Budget", "OWNER")));
+        home.setFolders(Arrays.asList(personal));
+        home.setWorkspaces(Arrays.asList(workspace(10, "Team", plans, empty)));
+
+        server.addUser(user(ALICE), home);
+        for (long sheetId = 1; sheetId <= 5; sheetId++)
+            server.addSheet(sheetId, new SmartsheetSheet());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fixture.close();
+    }
+
+    @Test
+    public void backsUpWholeHomeWithoutListingIt() throws Exception {
+        SmartsheetBackupService backupService = fixture.newBackupService();
+        backupService.setDiscoveryMode(DiscoveryMode.CONTAINERS);
+
+        assertEquals(1, backupService.backupOrgTo(backupFolder));
+        assertEquals(0, server.getRequestCount(Endpoint.HOME));
+        assertEquals(1, server.getRequestCount(Endpoint.WORKSPACE));
+        assertEquals(4, server.getRequestCount(Endpoint.FOLDER));
+        assertEquals(4, server.getRequestCount(Endpoint.EXPORT));
+
+        File userFolder = new File(backupFolder, ALICE);
+        assertEquals(1, new File(userFolder, "Sheets").list(new SuffixFilter(".xlsx")).length);
+        assertEquals(1, new File(userFolder, "Sheets/Personal").list(new SuffixFilter(".xlsx")).length);
+        assertEquals(1, new File(userFolder, "Workspaces/Team/Plans").list(new SuffixFilter(".xlsx")).length);
+        assertEquals(1, new File(userFolder, "Workspaces/Team/Plans/Q1").list(new SuffixFilter(".xlsx")).length);
+        assertTrue(new File(userFolder, "Workspaces/Team/Empty").isDirectory());
+    }
+
+    @Test
+    public void takesEveryContainerAfterTheOneItsIn() throws Exception {
+        RestfulSmartsheetService apiService = fixture.newApiService();
+        apiService.assumeUser(ALICE);
+
+        // a single container fetched ahead at a time
+        ContainerTraversal traversal = new ContainerTraversal(apiService, 4, 1);
+        try {
+            assertTakesEveryContainerInOrder(traversal);
+        } finally {
+            traversal.close();
+        }
+    }
+
+    @Test
+    public void walksHomeInTurnIfServiceCantBeCloned() throws Exception {
+        // the stub service can't be cloned
+        SmartsheetService apiService = new StubSmartsheetService();
+        SmartsheetHome home = apiService.getHome();
+
+        Set<ContainerTraversal.Container> taken = new HashSet<ContainerTraversal.Container>();
+        ContainerTraversal traversal = new ContainerTraversal(apiService);
+        ContainerTraversal.Container container;
+        while ((container = traversal.next()) != null) {
+            if (container.getParent() != null)
+                assertTrue(taken.contains(container.getParent()));
+            taken.add(container);
+        }
+        assertEquals(countContainers(home.getFolders()) + countContainers(home.getWorkspaces()), taken.size());
+    }
+
+    private static void assertTakesEveryContainerInOrder(ContainerTraversal traversal) throws Exception {
+        Set<String> taken = new HashSet<String>();
+        ContainerTraversal.Container container;
+        while ((container = traversal.next()) != null) {
+            ContainerTraversal.Container parent = container.getParent();
+            if (parent != null)
+                assertTrue(taken.contains(parent.getContents().getName()));
+            taken.add(container.getContents().getName());
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("Team", "Plans", "Q1", "Empty", "Personal")), taken);
+    }
+
+    private static int countContainers(List<? extends SmartsheetFolder> folders) {
+        int count = folders.size();
+        for (SmartsheetFolder folder : folders)
+            count += countContainers(folder.getFolders());
+        return count;
+    }
+
+    private static class SuffixFilter implements FilenameFilter {
+        private final String suffix;
+
+        SuffixFilter(String suffix) {
+            this.suffix = suffix;
+        }
+
+        @Override
+        public boolean accept(File dir, String name) {
+            return name.endsWith(suffix);
+        }
+    }
+}
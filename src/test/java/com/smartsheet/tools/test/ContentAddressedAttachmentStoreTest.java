@@ -0,0 +1,98 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.smartsheet.tools.ContentAddressedAttachmentStore;
+
+public class ContentAddressedAttachmentStoreTest {
+
+    private File testFolder;
+    private File backupFolder;
+    private ContentAddressedAttachmentStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        testFolder = new File(System.getProperty("java.io.tmpdir"),
+            getClass().getSimpleName() + "-" + System.currentTimeMillis());
+        backupFolder = new File(testFolder, "backup");
+        backupFolder.mkdirs();
+        store = new ContentAddressedAttachmentStore(new File(testFolder, "store"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        com.smartsheet.utils.FileUtils.deleteFolder(testFolder);
+    }
+
+    @Test
+    public void storesIdenticalContentOnlyOnce() throws IOException {
+        File first = store.store(stream("same bytes"), new File(backupFolder, "a.txt"));
+        File second = store.store(stream("same bytes"), new File(backupFolder, "b.txt"));
+
+        assertEquals(1, store.getNewBlobs());
+        assertEquals(1, store.getDuplicateBlobs());
+        assertEquals("same bytes".length(), store.getBytesSaved());
+        assertContent(first, "same bytes");
+        assertContent(second, "same bytes");
+    }
+
+    @Test
+    public void storesDifferentContentSeparately() throws IOException {
+        File first = store.store(stream("some bytes"), new File(backupFolder, "a.txt"));
+        File second = store.store(stream("other bytes"), new File(backupFolder, "a (2).txt"));
+
+        assertEquals(2, store.getNewBlobs());
+        assertEquals(0, store.getDuplicateBlobs());
+        assertContent(first, "some bytes");
+        assertContent(second, "other bytes");
+    }
+
+    @Test
+    public void leavesNoIncomingFilesBehind() throws IOException {
+        store.store(stream("same bytes"), new File(backupFolder, "a.txt"));
+        store.store(stream("same bytes"), new File(backupFolder, "b.txt"));
+
+        File incomingFolder = new File(store.getStoreFolder(), "incoming");
+        assertEquals(0, incomingFolder.list().length);
+    }
+
+    private static ByteArrayInputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes());
+    }
+
+    private static void assertContent(File file, String expected) throws IOException {
+        // hard links present the content directly, pointer files name the blob
+        if (file.getName().endsWith(ContentAddressedAttachmentStore.POINTER_FILE_EXTENSION)) {
+            String[] lines = FileUtils.readFileToString(file, "UTF-8").split("\n");
+            file = new File(lines[1].trim());
+        }
+        assertTrue(file.isFile());
+        assertEquals(expected, FileUtils.readFileToString(file, "UTF-8"));
+    }
+}
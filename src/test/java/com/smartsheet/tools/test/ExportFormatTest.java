@@ -0,0 +1,124 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import static com.smartsheet.testutils.MockApiFixture.home;
+import static com.smartsheet.testutils.MockApiFixture.rows;
+import static com.smartsheet.testutils.MockApiFixture.sheet;
+import static com.smartsheet.testutils.MockApiFixture.user;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.smartsheet.restapi.model.SmartsheetSheet;
+import com.smartsheet.testutils.MockApiFixture;
+import com.smartsheet.testutils.MockSmartsheetApiServer;
+import com.smartsheet.testutils.MockSmartsheetApiServer.Endpoint;
+import com.smartsheet.tools.ExportFormat;
+import com.smartsheet.tools.SmartsheetBackupService;
+
+public class ExportFormatTest {
+
+    private static final String ALICE = "alice@example.com";
+    private static final int ROWS = 5;
+
+    private MockApiFixture fixture;
+    private MockSmartsheetApiServer server;
+    private File backupFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        fixture = new MockApiFixture(getClass());
+        server = fixture.getServer();
+        backupFolder = fixture.getBackupFolder();
+
+        server.addUser(user(ALICE), home(sheet(1, "Budget", "OWNER")));
+        SmartsheetSheet sheet = sheet(1, "Budget", null);
+        sheet.setRows(rows(101, ROWS));
+        server.addSheet(1, sheet);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fixture.close();
+    }
+
+    @Test
+    public void savesJsonSnapshotPageByPage() throws Exception {
+        SmartsheetBackupService backupService = fixture.newBackupService();
+        backupService.setExportFormat(ExportFormat.JSON, false);
+        backupService.setRowsPageSize(2);
+
+        assertEquals(1, backupService.backupOrgTo(backupFolder));
+        assertEquals(0, server.getRequestCount(Endpoint.EXPORT));
+        // three pages of rows, and the details read for the attachments
+        assertEquals(4, server.getRequestCount(Endpoint.SHEET));
+
+        File sheetFile = new File(backupFolder, ALICE + "/Sheets/Budget.json");
+        assertSnapshot(new FileInputStream(sheetFile));
+    }
+
+    @Test
+    public void gzipsJsonSnapshot() throws Exception {
+        SmartsheetBackupService backupService = fixture.newBackupService();
+        backupService.setExportFormat(ExportFormat.JSON, true);
+
+        backupService.backupOrgTo(backupFolder);
+        assertFalse(new File(backupFolder, ALICE + "/Sheets/Budget.json").exists());
+        File sheetFile = new File(backupFolder, ALICE + "/Sheets/Budget.json.gz");
+        assertSnapshot(new GZIPInputStream(new FileInputStream(sheetFile)));
+    }
+
+    @Test
+    public void savesCsvExport() throws Exception {
+        SmartsheetBackupService backupService = fixture.newBackupService();
+        backupService.setExportFormat(ExportFormat.CSV, true);
+
+        backupService.backupOrgTo(backupFolder);
+        assertEquals(1, server.getRequestCount(Endpoint.EXPORT));
+        assertTrue(new File(backupFolder, ALICE + "/Sheets/Budget.csv").length() > 0);
+        assertFalse(new File(backupFolder, ALICE + "/Sheets/Budget.xlsx").exists());
+    }
+
+    private static void assertSnapshot(InputStream snapshot) throws IOException {
+        JsonNode sheet;
+        try {
+            sheet = new ObjectMapper().readTree(snapshot);
+        } finally {
+            snapshot.close();
+        }
+
+        assertEquals("Budget", sheet.get("name").getTextValue());
+        assertEquals(ROWS, sheet.get("totalRowCount").getIntValue());
+        JsonNode rows = sheet.get("rows");
+        assertEquals(ROWS, rows.size());
+        for (int i = 0; i < ROWS; i++)
+            assertEquals(101 + i, rows.get(i).get("id").getLongValue());
+    }
+}
@@ -0,0 +1,245 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.smartsheet.exceptions.ServiceUnavailableException;
+import com.smartsheet.restapi.model.SmartsheetAttachment;
+import com.smartsheet.restapi.service.RestfulSmartsheetService;
+import com.smartsheet.restapi.service.RetryingSmartsheetService;
+import com.smartsheet.restapi.service.SmartsheetService;
+import com.smartsheet.testutils.FaultInjectingProxy;
+import com.smartsheet.testutils.FaultInjectingSmartsheetService;
+import com.smartsheet.testutils.FaultSchedule;
+import com.smartsheet.testutils.FaultSchedule.Fault;
+import com.smartsheet.testutils.FaultSchedule.FaultType;
+import com.smartsheet.testutils.MockSmartsheetApiServer;
+import com.smartsheet.testutils.MockSmartsheetApiServer.Endpoint;
+import com.smartsheet.testutils.OrgSmartsheetService;
+import com.smartsheet.testutils.SyntheticOrg;
+import com.smartsheet.tools.ParallelDownloadService;
+import com.smartsheet.tools.SmartsheetBackupService;
+
+/**
+ * Tests of the fault injection of {@link FaultSchedule},
+ * {@link FaultInjectingProxy} and {@link FaultInjectingSmartsheetService}, and
+ * of the backup recovering from the faults injected.
+ */
+public class FaultInjectionTest {
+
+    // each of the 18 sheets owned by the 2 active sample users has 6 file
+    // attachments, of these sizes in KB
+    private static final long OWNED_SHEET_FILE_ATTACHMENT_BYTES = (3 + 3 + 4 + 3 + 11 + 760) * 1024;
+    private static final int OWNED_SHEETS = 18;
+
+    private MockSmartsheetApiServer server;
+    private FaultInjectingProxy proxy;
+    private File backupFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockSmartsheetApiServer();
+        server.addSampleOrg();
+        backupFolder = new File(System.getProperty("java.io.tmpdir"),
+            getClass().getSimpleName() + "-" + System.currentTimeMillis());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (proxy != null)
+            proxy.stop();
+        server.stop();
+        org.apache.commons.io.FileUtils.deleteDirectory(backupFolder);
+    }
+
+    @Test
+    public void schedulesSameFaultsFromSameSeed() {
+        List<FaultType> faults = drawFaults(newSchedule(7), 2000);
+        assertEquals(faults, drawFaults(newSchedule(7), 2000));
+        assertFalse(faults.equals(drawFaults(newSchedule(8), 2000)));
+
+        // every fault is drawn at about its rate, and 503s come in bursts of 3
+        FaultSchedule schedule = newSchedule(7);
+        drawFaults(schedule, 2000);
+        for (FaultType type : FaultType.values()) {
+            int expected = type == FaultType.SERVICE_UNAVAILABLE ? 2000 * 3 / 100 : 2000 / 20;
+            int injected = schedule.getInjected(type);
+            assertTrue(type + " " + injected, injected > expected / 2 && injected < expected * 2);
+        }
+        int burst = 0;
+        for (FaultType type : faults) {
+            if (type == FaultType.SERVICE_UNAVAILABLE)
+                burst++;
+            else {
+                assertTrue("burst of " + burst, burst == 0 || burst >= 3);
+                burst = 0;
+            }
+        }
+    }
+
+    @Test
+    public void downloadsIntactFilesThroughResetsAndTruncatedBodies() throws Exception {
+        FaultSchedule schedule = new FaultSchedule(42);
+        schedule.setResets(0.15);
+        schedule.setTruncations(0.15);
+        proxy = new FaultInjectingProxy(server.getEndpoint(), schedule);
+        server.setDownloadEndpoint(proxy.getEndpoint());
+        // downloads by a single thread draw the same faults every run
+        ParallelDownloadService parallelDownloadService = new ParallelDownloadService(1);
+
+        new SmartsheetBackupService(new RetryingSmartsheetService(new RestfulSmartsheetService("token",
+            server.getApiBaseUrl())), parallelDownloadService).backupOrgTo(backupFolder);
+        assertTrue(parallelDownloadService.waitTillAllDownloadJobsDone());
+
+        assertTrue(schedule.toString(), schedule.getInjected(FaultType.RESET) > 0);
+        assertTrue(schedule.toString(), schedule.getInjected(FaultType.TRUNCATED) > 0);
+        // each download cut short was retried, and none was saved cut short
+        assertEquals(server.getRequestCount(Endpoint.ATTACHMENT) + schedule.getInjected(),
+            server.getRequestCount(Endpoint.DOWNLOAD));
+        assertEquals(OWNED_SHEETS * OWNED_SHEET_FILE_ATTACHMENT_BYTES, sizeOfAttachmentFiles(backupFolder));
+    }
+
+    @Test
+    public void relaysResponsesUnchangedWithoutFaults() throws Exception {
+        proxy = new FaultInjectingProxy(server.getEndpoint(), new FaultSchedule(0));
+        SmartsheetService proxied = new RestfulSmartsheetService("token",
+            proxy.getEndpoint() + MockSmartsheetApiServer.API_PATH);
+        SmartsheetService direct = new RestfulSmartsheetService("token", server.getApiBaseUrl());
+
+        ObjectMapper mapper = new ObjectMapper();
+        assertEquals(mapper.writeValueAsString(direct.getUsers(1)), mapper.writeValueAsString(proxied.getUsers(1)));
+        direct.assumeUser("wwmcheung@hotmail.com");
+        proxied.assumeUser("wwmcheung@hotmail.com");
+        assertEquals(mapper.writeValueAsString(direct.getHome()), mapper.writeValueAsString(proxied.getHome()));
+        assertTrue(proxy.getBytesRelayed() > 0);
+    }
+
+    @Test
+    public void injectsFaultsIntoServiceCalls() throws Exception {
+        SyntheticOrg syntheticOrg = new SyntheticOrg(1);
+        syntheticOrg.setUsers(5);
+        syntheticOrg.setAttachmentsPerRow(1);
+        OrgSmartsheetService orgService = new OrgSmartsheetService(syntheticOrg, null);
+
+        FaultSchedule resets = new FaultSchedule(3);
+        resets.setResets(0.3);
+        SmartsheetService service = new FaultInjectingSmartsheetService(orgService, resets);
+        int failed = 0;
+        for (int i = 0; i < 100; i++) {
+            try {
+                service.getUsers(1);
+            } catch (SocketException e) {
+                failed++;
+            }
+        }
+        assertEquals(resets.getInjected(FaultType.RESET), failed);
+        assertTrue(failed > 0);
+
+        FaultSchedule unavailable = new FaultSchedule(3);
+        unavailable.setServiceUnavailableBursts(1, 1);
+        try {
+            new FaultInjectingSmartsheetService(orgService, unavailable).getUsers(1);
+            fail();
+        } catch (ServiceUnavailableException e) {
+            // expected
+        }
+
+        // a truncated body passes some attachments before failing
+        long sheetId = 100001; // a sheet of user0 with attachments to cut short
+        while (MockSmartsheetApiServer.getAttachments(syntheticOrg.getSheet(sheetId)).size() < 2)
+            sheetId++;
+        final List<SmartsheetAttachment> handled = new ArrayList<SmartsheetAttachment>();
+        FaultSchedule truncations = new FaultSchedule(3);
+        truncations.setTruncations(1);
+        try {
+            new FaultInjectingSmartsheetService(orgService, truncations).getSheetAttachments("sheet", sheetId,
+                new SmartsheetService.AttachmentHandler() {
+                    @Override
+                    public void handle(SmartsheetAttachment attachment) {
+                        handled.add(attachment);
+                    }
+                });
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(handled.size() < MockSmartsheetApiServer.getAttachments(syntheticOrg.getSheet(sheetId)).size());
+    }
+
+    @Test
+    public void retryingServiceClonesDecoratedDelegate() throws Exception {
+        SmartsheetService service = new RetryingSmartsheetService(new FaultInjectingSmartsheetService(
+            new OrgSmartsheetService(new SyntheticOrg(1), null), new FaultSchedule(0)));
+        service.assumeUser("user0@example.com");
+
+        SmartsheetService clone = (SmartsheetService) service.clone();
+        assertNotSame(service, clone);
+        clone.assumeUser("user1@example.com");
+        assertEquals("user0@example.com", service.getAssumedUser());
+        assertEquals("user1@example.com", clone.getAssumedUser());
+    }
+
+    private static FaultSchedule newSchedule(long seed) {
+        FaultSchedule schedule = new FaultSchedule(seed);
+        schedule.setLatency(0.05, 10);
+        schedule.setResets(0.05);
+        schedule.setServiceUnavailableBursts(0.01, 3);
+        schedule.setTruncations(0.05);
+        schedule.setTrickles(0.05, 1024);
+        return schedule;
+    }
+
+    private static List<FaultType> drawFaults(FaultSchedule schedule, int requests) {
+        List<FaultType> faults = new ArrayList<FaultType>();
+        for (int i = 0; i < requests; i++) {
+            Fault fault = schedule.next();
+            faults.add(fault == null ? null : fault.getType());
+        }
+        return faults;
+    }
+
+    private static long sizeOfAttachmentFiles(File folder) {
+        long size = 0;
+        File[] items = folder.listFiles();
+        if (items == null)
+            return 0;
+        for (File item : items) {
+            if (item.isDirectory())
+                size += sizeOfAttachmentFiles(item);
+            else if (folder.getName().endsWith(" - attachments")
+                && !item.getName().endsWith(" - non-file attachments.csv"))
+                size += item.length();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,208 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.smartsheet.restapi.model.SmartsheetAttachment;
+import com.smartsheet.restapi.service.RestfulSmartsheetService;
+import com.smartsheet.restapi.service.RetryingSmartsheetService;
+import com.smartsheet.restapi.service.SmartsheetService;
+import com.smartsheet.testutils.MockSmartsheetApiServer;
+import com.smartsheet.testutils.MockSmartsheetApiServer.Endpoint;
+import com.smartsheet.tools.BackupJournal;
+import com.smartsheet.tools.LocalFileSystemSink;
+import com.smartsheet.tools.ParallelDownloadService;
+import com.smartsheet.tools.SmartsheetBackupService;
+import com.smartsheet.utils.HttpUtils;
+import com.smartsheet.utils.MetricsRegistry;
+import com.smartsheet.utils.StripedCounter;
+
+/**
+ * End-to-end tests of a backup against the {@link MockSmartsheetApiServer},
+ * through the REST service, HTTP and the file system.
+ */
+public class MockApiBackupTest {
+
+    private static final int DOWNLOAD_THREADS = 4;
+    // 2 active users, each with the 9 sample sheets they own
+    private static final int OWNED_SHEETS = 18;
+    private static final String[] ACTIVE_USERS = { "wwmcheung@hotmail.com", "wwmcheungmale@gmail.com" };
+
+    private MockSmartsheetApiServer server;
+    private ParallelDownloadService parallelDownloadService;
+    private File backupFolder;
+    private CountDownLatch backedUp = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockSmartsheetApiServer();
+        server.addSampleOrg();
+        parallelDownloadService = new ParallelDownloadService(DOWNLOAD_THREADS);
+        backupFolder = new File(System.getProperty("java.io.tmpdir"),
+            getClass().getSimpleName() + "-" + System.currentTimeMillis());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop();
+        org.apache.commons.io.FileUtils.deleteDirectory(backupFolder);
+    }
+
+    @Test
+    public void backsUpOrgThroughHttp() throws Exception {
+        SmartsheetBackupService backupService = new SmartsheetBackupService(newService(), parallelDownloadService);
+
+        assertEquals(2, backupService.backupOrgTo(backupFolder));
+        assertTrue(parallelDownloadService.waitTillAllDownloadJobsDone());
+
+        assertEquals(1, server.getRequestCount(Endpoint.USERS));
+        assertEquals(2, server.getRequestCount(Endpoint.HOME));
+        assertEquals(OWNED_SHEETS, server.getRequestCount(Endpoint.EXPORT));
+        assertTrue(server.getRequestCount(Endpoint.DOWNLOAD) > 0);
+        assertEquals(server.getRequestCount(Endpoint.ATTACHMENT), server.getRequestCount(Endpoint.DOWNLOAD));
+        assertEquals(server.getRequestCount(Endpoint.DOWNLOAD), countAttachmentFiles(backupFolder));
+    }
+
+    @Test
+    public void retriesDownloadsRejectedWithFaults() throws Exception {
+        // the server asks for a delay of a second before each retry
+        server.injectFaults(Endpoint.DOWNLOAD, 429, 0.2);
+        server.setFaultSeed(42);
+        SmartsheetBackupService backupService = new SmartsheetBackupService(newService(), parallelDownloadService);
+        StripedCounter rateLimited = MetricsRegistry.getInstance().counter("api.rateLimited");
+        StripedCounter backoffSeconds = MetricsRegistry.getInstance().counter("api.backoffSeconds");
+        long rateLimitedBefore = rateLimited.get();
+        long backoffSecondsBefore = backoffSeconds.get();
+
+        backupService.backupOrgTo(backupFolder);
+        assertTrue(parallelDownloadService.waitTillAllDownloadJobsDone());
+
+        assertTrue(server.getInjectedFaults() > 0);
+        assertEquals(server.getRequestCount(Endpoint.ATTACHMENT) + server.getInjectedFaults(),
+            server.getRequestCount(Endpoint.DOWNLOAD));
+        assertEquals(server.getRequestCount(Endpoint.ATTACHMENT), countAttachmentFiles(backupFolder));
+        // each rejected download backed off as asked before it was retried
+        assertEquals(server.getInjectedFaults(), rateLimited.get() - rateLimitedBefore);
+        assertEquals(server.getInjectedFaults(), backoffSeconds.get() - backoffSecondsBefore);
+    }
+
+    @Test
+    public void journalsUsersDoneOnlyOnceTheirDownloadsSucceed() throws Exception {
+        assertEquals(Arrays.asList(true, true), backUpUsersDone());
+
+        // the downloads fail once the backup of every user has returned
+        org.apache.commons.io.FileUtils.deleteDirectory(backupFolder);
+        backedUp = new CountDownLatch(1);
+        parallelDownloadService = new ParallelDownloadService(DOWNLOAD_THREADS);
+        parallelDownloadService.setSink(new LocalFileSystemSink() {
+            @Override
+            public void write(File file, String mimeType, InputStream content) throws IOException {
+                try {
+                    backedUp.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("No space left on device");
+            }
+        });
+        assertEquals(Arrays.asList(false, false), backUpUsersDone());
+    }
+
+    /**
+     * @return whether each active user is done in the journal of the backup,
+     *         as replayed by a resumed backup
+     */
+    private List<Boolean> backUpUsersDone() throws Exception {
+        BackupJournal journal = BackupJournal.open(backupFolder);
+        try {
+            SmartsheetBackupService backupService = new SmartsheetBackupService(newService(), parallelDownloadService);
+            backupService.setJournal(journal);
+            parallelDownloadService.setJournal(journal);
+            assertEquals(2, backupService.backupOrgTo(backupFolder));
+            backedUp.countDown();
+            parallelDownloadService.waitTillAllDownloadJobsDone();
+        } finally {
+            journal.close();
+        }
+
+        BackupJournal resumed = BackupJournal.open(backupFolder);
+        try {
+            List<Boolean> usersDone = new ArrayList<Boolean>();
+            for (String email : ACTIVE_USERS)
+                usersDone.add(resumed.isUserDone(email));
+            return usersDone;
+
+        } finally {
+            resumed.close();
+        }
+    }
+
+    @Test
+    public void limitsBandwidthAndDelaysResponses() throws Exception {
+        server.setLatencyMillis(100);
+        server.setBytesPerSecond(1024 * 1024);
+        SmartsheetService service = newService();
+        service.assumeUser("wwmcheung@hotmail.com");
+        long sheetId = service.getHome().getSheets().get(0).getId();
+        // the largest sample attachment, of 760 KB
+        SmartsheetAttachment attachment = service.getAttachmentDetails("Penguins.jpg",
+            1168656408307588L, "lev 1 sheet 1", sheetId);
+
+        File file = new File(backupFolder, "attachment");
+        backupFolder.mkdirs();
+        long start = System.currentTimeMillis();
+        HttpUtils.saveUrlToFile(attachment.getUrl(), file);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(760 * 1024, file.length());
+        assertTrue("took " + elapsed + " ms", elapsed >= 100 + 700);
+    }
+
+    private SmartsheetService newService() {
+        return new RetryingSmartsheetService(new RestfulSmartsheetService("token", server.getApiBaseUrl()));
+    }
+
+    private static int countAttachmentFiles(File folder) {
+        int count = 0;
+        File[] items = folder.listFiles();
+        if (items == null)
+            return 0;
+        for (File item : items) {
+            if (item.isDirectory())
+                count += countAttachmentFiles(item);
+            // the summary of the non-file attachments isn't downloaded
+            else if (folder.getName().endsWith(" - attachments")
+                && !item.getName().endsWith(" - non-file attachments.csv"))
+                count++;
+        }
+        return count;
+    }
+}
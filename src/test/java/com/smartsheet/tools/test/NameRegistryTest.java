@@ -0,0 +1,104 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.smartsheet.tools.LocalFileSystemSink;
+import com.smartsheet.tools.NameRegistry;
+import com.smartsheet.tools.StreamingArchiveSink;
+import com.smartsheet.utils.FileUtils;
+
+public class NameRegistryTest {
+
+    private File folder;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = new File(System.getProperty("java.io.tmpdir"), getClass().getSimpleName());
+        if (folder.exists())
+            FileUtils.deleteFolder(folder);
+        new LocalFileSystemSink().prepareFolder(folder);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteFolder(folder);
+    }
+
+    @Test
+    public void numbersDuplicateNamesAndSkipsNamesAlreadyInFolder() throws IOException {
+        new File(folder, "Budget.xlsx").createNewFile();
+        new File(folder, "Budget (3).xlsx").createNewFile();
+        NameRegistry names = new NameRegistry(new LocalFileSystemSink());
+
+        assertEquals("Budget (2).xlsx", names.reserveUnique(folder, "Budget", ".xlsx"));
+        assertEquals("Budget (4).xlsx", names.reserveUnique(folder, "Budget", ".xlsx"));
+        assertEquals("Plan.xlsx", names.reserveUnique(folder, "Plan", ".xlsx"));
+        assertEquals("Plan", names.reserveUnique(folder, "Plan", ""));
+        assertEquals("Plan (1)", names.reserveUnique(folder, "Plan", "", 1));
+
+        assertFalse(names.reserve(folder, "Plan.xlsx"));
+        assertTrue(names.reserve(new File(folder, "Sheets"), "Plan.xlsx")); // another folder
+    }
+
+    @Test
+    public void comparesNamesCaseInsensitivelyWhenSinkDoes() throws IOException {
+        File root = new File(folder, "archive");
+        NameRegistry names = new NameRegistry(new StreamingArchiveSink(root, new File(folder, "archive.zip")));
+
+        assertEquals("Budget", names.reserveUnique(root, "Budget", ""));
+        assertEquals("BUDGET (2)", names.reserveUnique(root, "BUDGET", ""));
+        assertFalse(names.reserve(root, "budget (2)"));
+    }
+
+    @Test
+    public void assignsUniqueNamesConcurrently() throws InterruptedException {
+        final NameRegistry names = new NameRegistry(new LocalFileSystemSink());
+        final Set<String> assigned = Collections.synchronizedSet(new HashSet<String>());
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 2000; i++) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    assigned.add(names.reserveUnique(folder, "Sheet", ".xlsx"));
+                }
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertEquals(2000, assigned.size());
+        assertTrue(assigned.contains("Sheet.xlsx"));
+        assertTrue(assigned.contains("Sheet (2000).xlsx"));
+    }
+}
@@ -0,0 +1,119 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.smartsheet.testutils.LocalObjectStoreServer;
+import com.smartsheet.tools.ObjectStoreSink;
+
+public class ObjectStoreSinkTest {
+
+    private static final String BUCKET = "backups";
+    private static final String PREFIX = "smartsheet-backup/2013-05-01_12_00_00/";
+
+    private LocalObjectStoreServer server;
+    private File backupFolder;
+    private ObjectStoreSink sink;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalObjectStoreServer();
+        backupFolder = new File(System.getProperty("java.io.tmpdir"), getClass().getSimpleName());
+        sink = new ObjectStoreSink(backupFolder, server.getEndpoint(), BUCKET, PREFIX, "us-east-1",
+            "test-access-key", "test-secret-key", ObjectStoreSink.MIN_PART_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void uploadsSmallFilesWithSinglePut() throws IOException {
+        File folder = new File(backupFolder, "user@example.com/Sheets");
+        sink.prepareFolder(folder);
+        File sheetFile = new File(folder, "Plan (2013) + Budget.xlsx");
+        sink.createFile(sheetFile);
+        assertTrue(sink.exists(sheetFile));
+        sink.write(sheetFile, "application/vnd.ms-excel", new ByteArrayInputStream("sheet".getBytes("UTF-8")));
+
+        File summaryFile = new File(folder, "summary.csv");
+        OutputStream out = sink.newOutputStream(summaryFile);
+        out.write("Name,URL,AttachmentType\n".getBytes("UTF-8"));
+        out.close();
+        sink.close();
+
+        assertEquals(2, server.getObjectCount()); // folders are implied by keys
+        assertEquals("sheet", new String(server.getObject(BUCKET,
+            PREFIX + "user@example.com/Sheets/Plan (2013) + Budget.xlsx"), "UTF-8"));
+        assertEquals("Name,URL,AttachmentType\n", new String(server.getObject(BUCKET,
+            PREFIX + "user@example.com/Sheets/summary.csv"), "UTF-8"));
+        assertEquals(0, server.getCompletedMultipartUploads());
+    }
+
+    @Test
+    public void streamsLargeFilesAsMultipartUploads() throws IOException {
+        byte[] content = new byte[2 * ObjectStoreSink.MIN_PART_SIZE + 1000];
+        new Random(1).nextBytes(content);
+
+        sink.write(new File(backupFolder, "video.mp4"), "video/mp4", new ByteArrayInputStream(content));
+
+        assertArrayEquals(content, server.getObject(BUCKET, PREFIX + "video.mp4"));
+        assertEquals(1, server.getCompletedMultipartUploads());
+        assertEquals(0, server.getPendingMultipartUploads());
+    }
+
+    @Test
+    public void abortsUploadOfIncompleteContent() {
+        try {
+            // fails after more than a part has been uploaded
+            sink.write(new File(backupFolder, "attachment.bin"), null, new InputStream() {
+                private int remaining = ObjectStoreSink.MIN_PART_SIZE + 10;
+
+                @Override
+                public int read() throws IOException {
+                    if (remaining-- <= 0)
+                        throw new IOException("Connection reset");
+                    return 'x';
+                }
+            });
+            fail("the read error is passed on");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertNull(server.getObject(BUCKET, PREFIX + "attachment.bin"));
+        assertEquals(1, server.getAbortedMultipartUploads());
+        assertEquals(0, server.getPendingMultipartUploads());
+    }
+}
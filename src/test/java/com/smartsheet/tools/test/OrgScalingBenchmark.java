@@ -0,0 +1,136 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import com.smartsheet.restapi.service.RestfulSmartsheetService;
+import com.smartsheet.testutils.MockSmartsheetApiServer;
+import com.smartsheet.testutils.MockSmartsheetApiServer.Endpoint;
+import com.smartsheet.testutils.OrgSmartsheetService;
+import com.smartsheet.testutils.SyntheticOrg;
+import com.smartsheet.tools.BackupInventory;
+import com.smartsheet.tools.ParallelDownloadService;
+import com.smartsheet.tools.SmartsheetBackupService;
+import com.smartsheet.utils.LogLevel;
+import com.smartsheet.utils.ProgressWatcher;
+
+/**
+ * Measures how the backup scales with the size of an organization, on
+ * {@link SyntheticOrg}s of increasing numbers of users (of the same shape),
+ * to find where its time or memory per user grows:
+ * <ul>
+ * <li>listing the users and traversing their homes, by taking an inventory
+ * through an in-memory {@link OrgSmartsheetService}, with no HTTP;</li>
+ * <li>a whole backup (with exports and downloads) over HTTP against a
+ * {@link MockSmartsheetApiServer}, for the smaller organizations.</li>
+ * </ul>
+ * It is not a unit test; run it with
+ * {@code java -cp <test classpath> com.smartsheet.tools.test.OrgScalingBenchmark [maxUsers [maxBackupUsers]]},
+ * which measures organizations of 10, 100, ... users up to maxUsers (100,000
+ * by default) and backs up those of up to maxBackupUsers (1,000 by default).
+ */
+public class OrgScalingBenchmark {
+
+    private static final long SEED = 42;
+    private static final int DOWNLOAD_THREADS = 8;
+
+    public static void main(String[] args) throws Exception {
+        int maxUsers = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int maxBackupUsers = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        ProgressWatcher.getInstance().setLogLevel(LogLevel.WARN);
+
+        // warm up
+        inventory(newOrg(100));
+
+        System.out.printf("%-8s %-9s %10s %10s %12s%n", "users", "phase", "total ms", "us/user", "peak heap MB");
+        for (int users = 10; users <= maxUsers; users *= 10) {
+            report(users, "inventory", inventory(newOrg(users)));
+            if (users <= maxBackupUsers)
+                report(users, "backup", backup(newOrg(users)));
+        }
+    }
+
+    private static SyntheticOrg newOrg(int users) {
+        SyntheticOrg syntheticOrg = new SyntheticOrg(SEED);
+        syntheticOrg.setUsers(users);
+        syntheticOrg.setAttachmentKb(8);
+        return syntheticOrg;
+    }
+
+    /**
+     * @return the time taken in nanoseconds, and the peak heap used
+     */
+    private static long[] inventory(SyntheticOrg syntheticOrg) throws Exception {
+        resetPeakHeap();
+        long start = System.nanoTime();
+        BackupInventory inventory = new SmartsheetBackupService(new OrgSmartsheetService(syntheticOrg, null),
+            new ParallelDownloadService(1)).takeInventory(false);
+        long elapsed = System.nanoTime() - start;
+        if (inventory.getUsers().size() != syntheticOrg.getUserCount())
+            throw new IllegalStateException("Inventoried " + inventory.getUsers().size() + " users");
+        return new long[] { elapsed, getPeakHeap() };
+    }
+
+    private static long[] backup(SyntheticOrg syntheticOrg) throws Exception {
+        MockSmartsheetApiServer server = new MockSmartsheetApiServer();
+        server.setOrg(syntheticOrg);
+        ParallelDownloadService parallelDownloadService = new ParallelDownloadService(DOWNLOAD_THREADS);
+        File backupFolder = new File(System.getProperty("java.io.tmpdir"),
+            "org-scaling-benchmark-" + System.currentTimeMillis());
+        try {
+            resetPeakHeap();
+            long start = System.nanoTime();
+            new SmartsheetBackupService(new RestfulSmartsheetService("token", server.getApiBaseUrl()),
+                parallelDownloadService).backupOrgTo(backupFolder);
+            parallelDownloadService.waitTillAllDownloadJobsDone();
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%-8s %-9s %d exports, %d downloads%n", "", "",
+                server.getRequestCount(Endpoint.EXPORT), server.getRequestCount(Endpoint.DOWNLOAD));
+            return new long[] { elapsed, getPeakHeap() };
+
+        } finally {
+            server.stop();
+            org.apache.commons.io.FileUtils.deleteDirectory(backupFolder);
+        }
+    }
+
+    private static void report(int users, String phase, long[] result) {
+        System.out.printf("%-8d %-9s %10d %10d %12d%n", users, phase, result[0] / 1000000, result[0] / 1000 / users,
+            result[1] / (1024 * 1024));
+    }
+
+    private static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+    }
+
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,122 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import static com.smartsheet.testutils.MockApiFixture.folder;
+import static com.smartsheet.testutils.MockApiFixture.sheet;
+import static com.smartsheet.testutils.MockApiFixture.user;
+import static com.smartsheet.testutils.MockApiFixture.workspace;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.smartsheet.restapi.model.SmartsheetHome;
+import com.smartsheet.restapi.model.SmartsheetSheet;
+import com.smartsheet.testutils.MockApiFixture;
+import com.smartsheet.testutils.MockSmartsheetApiServer;
+import com.smartsheet.testutils.MockSmartsheetApiServer.Endpoint;
+import com.smartsheet.tools.OrgTraversalIndex;
+import com.smartsheet.tools.SmartsheetBackupService;
+
+public class OrgTraversalIndexTest {
+
+    private static final String ALICE = "alice@example.com";
+    private static final String BOB = "bob@example.com";
+
+    private MockApiFixture fixture;
+    private MockSmartsheetApiServer server;
+    private File backupFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        fixture = new MockApiFixture(getClass());
+        server = fixture.getServer();
+        backupFolder = fixture.getBackupFolder();
+
+        // both users are members of the "Team" workspace, each owning a sheet
+        // in its "Plans" folder; the "Archive" workspace only holds a sheet
+        // of Alice, which is also listed at the top of her home
+        SmartsheetHome aliceHome = new SmartsheetHome();
+        aliceHome.setSheets(Arrays.asList(sheet(3, "Old plan", "OWNER")));
+        aliceHome.setWorkspaces(Arrays.asList(
+            workspace(10, "Team", folder(20, "Plans", sheet(1, "Alice plan", "OWNER"),
+                sheet(2, "Bob plan", "EDITOR"))),
+            workspace(11, "Archive", folder(21, "2013", sheet(3, "Old plan", "OWNER")))));
+
+        SmartsheetHome bobHome = new SmartsheetHome();
+        bobHome.setWorkspaces(Arrays.asList(
+            workspace(10, "Team", folder(20, "Plans", sheet(1, "Alice plan", "EDITOR"),
+                sheet(2, "Bob plan", "OWNER"))),
+            workspace(11, "Archive", folder(21, "2013", sheet(3, "Old plan", "VIEWER")))));
+
+        server.addUser(user(ALICE), aliceHome);
+        server.addUser(user(BOB), bobHome);
+        for (long sheetId = 1; sheetId <= 3; sheetId++)
+            server.addSheet(sheetId, new SmartsheetSheet());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fixture.close();
+    }
+
+    @Test
+    public void backsUpSharedWorkspacesAndSheetsOnce() throws Exception {
+        SmartsheetBackupService backupService = fixture.newBackupService();
+        backupService.setTraversalIndex(new OrgTraversalIndex());
+
+        assertEquals(2, backupService.backupOrgTo(backupFolder));
+        assertEquals(3, server.getRequestCount(Endpoint.EXPORT));
+
+        assertTrue(new File(backupFolder, ALICE + "/Workspaces/Team/Plans").isDirectory());
+        assertTrue(new File(backupFolder, ALICE + "/Workspaces/Archive/2013").isDirectory());
+        // Bob only gets the folders leading to his sheet
+        assertTrue(new File(backupFolder, BOB + "/Workspaces/Team/Plans").isDirectory());
+        assertFalse(new File(backupFolder, BOB + "/Workspaces/Archive").exists());
+    }
+
+    @Test
+    public void copiesSharedWorkspacesForEveryUserWithoutIndex() throws Exception {
+        assertEquals(2, fixture.newBackupService().backupOrgTo(backupFolder));
+        // the sheet listed twice in the home of Alice is backed up twice
+        assertEquals(4, server.getRequestCount(Endpoint.EXPORT));
+        assertTrue(new File(backupFolder, BOB + "/Workspaces/Archive/2013").isDirectory());
+    }
+
+    @Test
+    public void claimsEachSheetOnce() {
+        OrgTraversalIndex index = new OrgTraversalIndex();
+        assertTrue(index.claimSheet(1, ALICE));
+        assertFalse(index.claimSheet(1, BOB));
+        assertEquals(ALICE, index.getSheetClaimer(1));
+
+        // workspaces and folders with the same ID are different containers
+        File teamFolder = new File("Team");
+        assertNull(index.visitContainer(workspace(10, "Team"), teamFolder));
+        assertNull(index.visitContainer(folder(10, "Plans"), new File("Plans")));
+        assertEquals(teamFolder, index.visitContainer(workspace(10, "Team"), new File("Team (2)")));
+    }
+}
@@ -0,0 +1,124 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import static com.smartsheet.testutils.MockApiFixture.folder;
+import static com.smartsheet.testutils.MockApiFixture.sheet;
+import static com.smartsheet.testutils.MockApiFixture.user;
+import static com.smartsheet.testutils.MockApiFixture.workspace;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.smartsheet.restapi.model.SmartsheetFolder;
+import com.smartsheet.restapi.model.SmartsheetHome;
+import com.smartsheet.restapi.model.SmartsheetSheet;
+import com.smartsheet.testutils.MockApiFixture;
+import com.smartsheet.testutils.MockSmartsheetApiServer;
+import com.smartsheet.testutils.MockSmartsheetApiServer.Endpoint;
+import com.smartsheet.tools.DiscoveryMode;
+import com.smartsheet.tools.SmartsheetBackupService;
+
+public class OwnedSheetsDiscoveryTest {
+
+    private static final String ALICE = "alice@example.com";
+    private static final String BOB = "bob@example.com";
+    private static final String CAROL = "carol@example.com";
+
+    private MockApiFixture fixture;
+    private MockSmartsheetApiServer server;
+    private File backupFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        fixture = new MockApiFixture(getClass());
+        server = fixture.getServer();
+        backupFolder = fixture.getBackupFolder();
+
+        // Alice owns a sheet at the top of her home and one in the "Team"
+        // workspace, Carol owns a sheet deep in the workspace, and Bob only
+        // views their sheets
+        server.addUser(user(ALICE), home(sheet(1, "Budget", "OWNER"), "OWNER", "EDITOR"));
+        server.addUser(user(BOB), home(sheet(1, "Budget", "VIEWER"), "VIEWER", "VIEWER"));
+        server.addUser(user(CAROL), home(null, "EDITOR", "OWNER"));
+        for (long sheetId = 1; sheetId <= 3; sheetId++)
+            server.addSheet(sheetId, new SmartsheetSheet());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fixture.close();
+    }
+
+    @Test
+    public void backsUpOnlyFoldersHoldingOwnedSheets() throws Exception {
+        SmartsheetBackupService backupService = fixture.newBackupService();
+        backupService.setDiscoveryMode(DiscoveryMode.OWNED_SHEETS);
+
+        assertEquals(3, backupService.backupOrgTo(backupFolder));
+        assertEquals(3, server.getRequestCount(Endpoint.SHEETS));
+        // the home of Bob, who owns no sheets, isn't listed
+        assertEquals(2, server.getRequestCount(Endpoint.HOME));
+        assertEquals(3, server.getRequestCount(Endpoint.EXPORT));
+
+        assertArrayEquals(new String[0], new File(backupFolder, BOB).list());
+        assertTrue(new File(backupFolder, ALICE + "/Sheets").isDirectory());
+        assertTrue(new File(backupFolder, ALICE + "/Workspaces/Team/Plans").isDirectory());
+        assertFalse(new File(backupFolder, ALICE + "/Workspaces/Team/Plans/Q1").exists());
+        assertFalse(new File(backupFolder, ALICE + "/Workspaces/Team/Empty").exists());
+        assertFalse(new File(backupFolder, CAROL + "/Sheets").exists());
+        assertTrue(new File(backupFolder, CAROL + "/Workspaces/Team/Plans/Q1").isDirectory());
+    }
+
+    @Test
+    public void backsUpWholeHomeByDefault() throws Exception {
+        assertEquals(3, fixture.newBackupService().backupOrgTo(backupFolder));
+        assertEquals(0, server.getRequestCount(Endpoint.SHEETS));
+        assertEquals(3, server.getRequestCount(Endpoint.HOME));
+        assertEquals(3, server.getRequestCount(Endpoint.EXPORT));
+        assertTrue(new File(backupFolder, BOB + "/Workspaces/Team/Empty").isDirectory());
+        assertTrue(new File(backupFolder, CAROL + "/Sheets").isDirectory());
+    }
+
+    /**
+     * @return a home with a top-level sheet (if any) and the "Team" workspace,
+     *         holding the "Plans" folder (with a sheet and the "Q1" folder,
+     *         with another sheet) and the "Empty" folder
+     */
+    private static SmartsheetHome home(SmartsheetSheet topSheet, String plansAccess, String q1Access) {
+        SmartsheetFolder q1 = folder(21, "Q1", Collections.<SmartsheetFolder> emptyList(),
+            sheet(3, "Q1 plan", q1Access));
+        SmartsheetFolder plans = folder(20, "Plans", Arrays.asList(q1), sheet(2, "Plan", plansAccess));
+        SmartsheetFolder empty = folder(22, "Empty", Collections.<SmartsheetFolder> emptyList());
+
+        SmartsheetHome home = new SmartsheetHome();
+        if (topSheet != null)
+            home.setSheets(Arrays.asList(topSheet));
+        home.setWorkspaces(Arrays.asList(workspace(10, "Team", plans, empty)));
+        return home;
+    }
+}
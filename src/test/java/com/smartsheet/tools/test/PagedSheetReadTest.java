@@ -0,0 +1,205 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import static com.smartsheet.testutils.MockApiFixture.home;
+import static com.smartsheet.testutils.MockApiFixture.rows;
+import static com.smartsheet.testutils.MockApiFixture.sheet;
+import static com.smartsheet.testutils.MockApiFixture.user;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.smartsheet.exceptions.TooManyRequestsException;
+import com.smartsheet.restapi.model.SmartsheetAttachment;
+import com.smartsheet.restapi.model.SmartsheetRow;
+import com.smartsheet.restapi.model.SmartsheetSheet;
+import com.smartsheet.restapi.service.RestfulSmartsheetService;
+import com.smartsheet.restapi.service.RetryingSmartsheetService;
+import com.smartsheet.restapi.service.SmartsheetService;
+import com.smartsheet.testutils.MockApiFixture;
+import com.smartsheet.testutils.MockSmartsheetApiServer;
+import com.smartsheet.testutils.MockSmartsheetApiServer.Endpoint;
+import com.smartsheet.tools.ExportFormat;
+import com.smartsheet.tools.ParallelDownloadService;
+import com.smartsheet.tools.SheetSnapshotWriter;
+import com.smartsheet.tools.SmartsheetBackupService;
+import com.smartsheet.utils.ParallelPageReader;
+
+public class PagedSheetReadTest {
+
+    private static final String ALICE = "alice@example.com";
+    private static final int ROWS = 10;
+    private static final int ROWS_PAGE_SIZE = 3;
+    private static final int PAGES = 4;
+
+    private MockApiFixture fixture;
+    private MockSmartsheetApiServer server;
+    private RestfulSmartsheetService apiService;
+    private final ParallelPageReader pageReader = new ParallelPageReader(3);
+    private File backupFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        fixture = new MockApiFixture(getClass());
+        server = fixture.getServer();
+        backupFolder = fixture.getBackupFolder();
+        server.addUser(user(ALICE), home(sheet(1, "Inventory", "OWNER")));
+
+        // a link attached to the sheet, and one to each row
+        SmartsheetSheet sheet = sheet(1, "Inventory", null);
+        sheet.setAttachments(Arrays.asList(link(1)));
+        List<SmartsheetRow> rows = rows(101, ROWS);
+        for (SmartsheetRow row : rows)
+            row.setAttachments(Arrays.asList(link(900 + row.getId())));
+        sheet.setRows(rows);
+        server.addSheet(1, sheet);
+
+        apiService = fixture.newApiService();
+        apiService.setRowsPageSize(ROWS_PAGE_SIZE);
+        apiService.setPageReader(pageReader);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fixture.close();
+    }
+
+    @Test
+    public void retriesOnlyPagesWhichFail() throws Exception {
+        // the first request (for the first page) gets through
+        server.injectFaults(Endpoint.SHEET, 429, 0.3);
+
+        final List<Long> attachmentIds = new ArrayList<Long>();
+        apiService.getSheetAttachments("Inventory", 1, new SmartsheetService.AttachmentHandler() {
+            @Override
+            public void handle(SmartsheetAttachment attachment) {
+                attachmentIds.add(attachment.getId());
+            }
+        });
+
+        // the attachment of the sheet once, then those of the rows in order
+        List<Long> expectedIds = new ArrayList<Long>();
+        expectedIds.add(1L);
+        for (int i = 1; i <= ROWS; i++)
+            expectedIds.add(1000L + i);
+        assertEquals(expectedIds, attachmentIds);
+
+        assertTrue(server.getInjectedFaults() > 0);
+        assertEquals(PAGES + server.getInjectedFaults(), server.getRequestCount(Endpoint.SHEET));
+    }
+
+    @Test
+    public void failsSheetWhosePageStillFailsWithoutReadingItAgain() throws Exception {
+        // the third page fails every time, with the API asking for no delay
+        server.injectPageFaults(Endpoint.SHEET, 3, 429, 1);
+        server.setRetryAfterSecs(0);
+
+        final List<Long> attachmentIds = new ArrayList<Long>();
+        try {
+            new RetryingSmartsheetService(apiService).getSheetAttachments("Inventory", 1,
+                new SmartsheetService.AttachmentHandler() {
+                    @Override
+                    public void handle(SmartsheetAttachment attachment) {
+                        attachmentIds.add(attachment.getId());
+                    }
+                });
+            fail("The attachments of a sheet whose page can't be read were all read");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof TooManyRequestsException);
+        }
+
+        // only the failing page was requested again, and the attachments of
+        // the pages before it were handled once
+        assertEquals(RetryingSmartsheetService.MAX_RETRIES + 1, server.getInjectedFaults());
+        assertEquals(PAGES + RetryingSmartsheetService.MAX_RETRIES, server.getRequestCount(Endpoint.SHEET));
+        List<Long> expectedIds = new ArrayList<Long>();
+        expectedIds.add(1L);
+        for (int i = 1; i <= 2 * ROWS_PAGE_SIZE; i++)
+            expectedIds.add(1000L + i);
+        assertEquals(expectedIds, attachmentIds);
+    }
+
+    @Test
+    public void writesPagesOfSnapshotInOrder() throws Exception {
+        SmartsheetBackupService backupService = new SmartsheetBackupService(apiService,
+            new ParallelDownloadService(1));
+        backupService.setExportFormat(ExportFormat.JSON, false);
+        backupService.setRowsPageSize(ROWS_PAGE_SIZE);
+        backupService.setPageReader(pageReader);
+
+        assertEquals(1, backupService.backupOrgTo(backupFolder));
+        // the pages of the snapshot, then those read for the attachments
+        assertEquals(2 * PAGES, server.getRequestCount(Endpoint.SHEET));
+
+        JsonNode rows = new ObjectMapper().readTree(new File(backupFolder, ALICE + "/Sheets/Inventory.json"))
+            .get("rows");
+        assertEquals(ROWS, rows.size());
+        for (int i = 0; i < ROWS; i++)
+            assertEquals(101 + i, rows.get(i).get("id").getLongValue());
+    }
+
+    @Test
+    public void failsSnapshotWhosePageIsForbiddenWithoutAccessToken() throws Exception {
+        // HttpUtils returns no content for a 403 without an access token
+        SmartsheetService withoutToken = (SmartsheetService) Proxy.newProxyInstance(
+            SmartsheetService.class.getClassLoader(), new Class<?>[] { SmartsheetService.class },
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    return method.getName().equals("getAccessToken") ? null : method.invoke(apiService, args);
+                }
+            });
+        server.injectFaults(Endpoint.SHEET, 403, 1);
+
+        SmartsheetSheet sheet = new SmartsheetSheet();
+        sheet.setId(1);
+        sheet.setName("Inventory");
+        try {
+            new SheetSnapshotWriter(withoutToken, ROWS_PAGE_SIZE, pageReader).write(sheet,
+                new ByteArrayOutputStream(), "Inventory.json");
+            fail("The snapshot of a forbidden sheet was written");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("403"));
+        }
+    }
+
+    private static SmartsheetAttachment link(long id) {
+        SmartsheetAttachment attachment = new SmartsheetAttachment();
+        attachment.setId(id);
+        attachment.setName("Link " + id);
+        attachment.setAttachmentType("LINK");
+        attachment.setUrl("http://example.com/" + id);
+        return attachment;
+    }
+}
@@ -0,0 +1,156 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.smartsheet.restapi.model.SmartsheetPagingwrapper;
+import com.smartsheet.restapi.model.SmartsheetUser;
+import com.smartsheet.restapi.service.RestfulSmartsheetService;
+import com.smartsheet.restapi.service.RetryingSmartsheetService;
+import com.smartsheet.testutils.MockApiFixture;
+import com.smartsheet.testutils.MockSmartsheetApiServer;
+import com.smartsheet.testutils.MockSmartsheetApiServer.Endpoint;
+import com.smartsheet.testutils.OrgSmartsheetService;
+import com.smartsheet.testutils.SyntheticOrg;
+import com.smartsheet.tools.BackupInventory;
+import com.smartsheet.tools.ParallelDownloadService;
+import com.smartsheet.tools.ParallelUserLister;
+import com.smartsheet.tools.SmartsheetBackupService;
+
+public class ParallelUserListerTest {
+
+    private MockApiFixture fixture;
+    private MockSmartsheetApiServer server;
+    private File backupFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        fixture = new MockApiFixture(getClass());
+        server = fixture.getServer();
+        backupFolder = fixture.getBackupFolder();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fixture.close();
+    }
+
+    @Test
+    public void listsEveryUserOnceFromConcurrentPages() throws Exception {
+        SyntheticOrg syntheticOrg = new SyntheticOrg(3);
+        syntheticOrg.setUsers(95);
+        server.setOrg(syntheticOrg);
+        server.setLatencyMillis(5);
+
+        ParallelUserLister userLister = new ParallelUserLister(newRestfulService(10), 3);
+        assertEquals(10, userLister.getTotalPages());
+        assertEquals(95, userLister.getTotalCount());
+
+        Set<String> emails = new HashSet<String>();
+        SmartsheetUser user;
+        while ((user = userLister.next()) != null)
+            assertTrue(user.getEmail(), emails.add(user.getEmail()));
+        assertEquals(95, emails.size());
+        assertNull(userLister.next());
+        assertEquals(10, server.getRequestCount(Endpoint.USERS));
+    }
+
+    @Test
+    public void backsUpAndInventoriesUsersOfAllPages() throws Exception {
+        SyntheticOrg syntheticOrg = new SyntheticOrg(5);
+        syntheticOrg.setUsers(30);
+        syntheticOrg.setSheetsPerUser(1);
+        syntheticOrg.setRowsPerSheet(1);
+        syntheticOrg.setAttachmentsPerRow(0);
+        server.setOrg(syntheticOrg);
+        int activeUsers = 0;
+        for (int i = 0; i < syntheticOrg.getUserCount(); i++) {
+            if ("ACTIVE".equals(syntheticOrg.getUser(i).getStatus()))
+                activeUsers++;
+        }
+
+        BackupInventory inventory = new SmartsheetBackupService(
+            new RetryingSmartsheetService(newRestfulService(7)), new ParallelDownloadService(1))
+            .takeInventory(false);
+        assertEquals(5, inventory.getUserPages());
+        assertEquals(30, inventory.getUsers().size());
+        assertEquals(5, server.getRequestCount(Endpoint.USERS));
+
+        ParallelDownloadService parallelDownloadService = new ParallelDownloadService(2);
+        SmartsheetBackupService backupService = new SmartsheetBackupService(
+            new RetryingSmartsheetService(newRestfulService(7)), parallelDownloadService);
+        assertEquals(activeUsers, backupService.backupOrgTo(backupFolder));
+        assertTrue(parallelDownloadService.waitTillAllDownloadJobsDone());
+        assertEquals(5 * 2, server.getRequestCount(Endpoint.USERS));
+        assertEquals(activeUsers * 2, server.getRequestCount(Endpoint.HOME));
+    }
+
+    @Test
+    public void listsPagesInTurnIfServiceCantBeCloned() throws Exception {
+        // the stub lists the same 3 users as page 2 of 2 for any page
+        ParallelUserLister userLister = new ParallelUserLister(new StubSmartsheetService());
+        assertEquals(2, userLister.getTotalPages());
+
+        int users = 0;
+        while (userLister.next() != null)
+            users++;
+        assertEquals(3, users);
+    }
+
+    @Test
+    public void rethrowsErrorListingPage() throws Exception {
+        SyntheticOrg syntheticOrg = new SyntheticOrg(9);
+        syntheticOrg.setUsers(OrgSmartsheetService.PAGE_SIZE * 4);
+        OrgSmartsheetService apiService = new OrgSmartsheetService(syntheticOrg, null) {
+            @Override
+            public SmartsheetPagingwrapper<SmartsheetUser> getUsers(int page) {
+                if (page == 3)
+                    throw new IllegalStateException("page 3 failed");
+                return super.getUsers(page);
+            }
+        };
+
+        ParallelUserLister userLister = new ParallelUserLister(apiService, 2);
+        try {
+            while (userLister.next() != null) {
+                // take the users of the other pages
+            }
+            fail("listed all users");
+        } catch (IllegalStateException e) {
+            assertEquals("page 3 failed", e.getMessage());
+        }
+    }
+
+    private RestfulSmartsheetService newRestfulService(int usersPageSize) {
+        RestfulSmartsheetService restfulService = fixture.newApiService();
+        restfulService.setUsersPageSize(usersPageSize);
+        return restfulService;
+    }
+}
@@ -0,0 +1,475 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.io.FileUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import com.smartsheet.restapi.model.SmartsheetSheet;
+import com.smartsheet.restapi.service.JsonDeserializer;
+import com.smartsheet.restapi.service.RestfulSmartsheetService;
+import com.smartsheet.testutils.MockSmartsheetApiServer;
+import com.smartsheet.testutils.MockSmartsheetApiServer.Endpoint;
+import com.smartsheet.testutils.SyntheticOrg;
+import com.smartsheet.tools.LocalFileSystemSink;
+import com.smartsheet.tools.NameRegistry;
+import com.smartsheet.tools.ParallelDownloadService;
+import com.smartsheet.tools.SmartsheetBackupService;
+import com.smartsheet.utils.LogLevel;
+import com.smartsheet.utils.ProgressWatcher;
+
+/**
+ * Fails if the performance of the backup has regressed from the baseline
+ * checked in as {@value #BASELINE_FILE}, beyond the tolerance of each metric:
+ * <ul>
+ * <li>e2e.*: a fixed scenario, backing up a {@link SyntheticOrg} over HTTP from
+ * a {@link MockSmartsheetApiServer}, measured for throughput (sheets per
+ * second), API calls per sheet, the peak of the heap in use after garbage
+ * collections and allocation (per sheet, so as to be comparable at any
+ * throughput);</li>
+ * <li>micro.*: the throughput of hot paths (deserializing a large sheet and
+ * naming files in a crowded folder).</li>
+ * </ul>
+ * Throughputs are measured relative to that of a fixed reference workload
+ * (sorting and digesting strings) in the same run, so that the baseline holds
+ * on faster or slower machines than the one it was recorded on. The heap
+ * metrics only depend on the JVM; allocation is only measured on JVMs which
+ * count the bytes allocated by each thread, such as HotSpot.
+ * It only runs when the performanceGate system property is true, as it is in
+ * the performance-gate Maven profile ({@code mvn test -P performance-gate}).
+ * When the recordPerformanceBaseline system property is true too, it records
+ * the metrics measured as the new baseline (keeping the tolerances) rather
+ * than comparing them, for after an intended change of performance.
+ */
+public class PerformanceGateTest {
+
+    private static final String BASELINE_FILE = "src/test/resources/performance-baseline.properties";
+    private static final String BASELINE_RESOURCE = "/performance-baseline.properties";
+
+    private static final long SEED = 42;
+    private static final int USERS = 40;
+    private static final int DOWNLOAD_THREADS = 8;
+    private static final long LATENCY_MILLIS = 2;
+    private static final int SCENARIO_RUNS = 3;
+    private static final long MICRO_WARMUP_MILLIS = 3000;
+    private static final long MICRO_ROUND_MILLIS = 500;
+    private static final int MICRO_ROUNDS = 5;
+    private static final long SAMPLE_MILLIS = 20;
+    private static final int REFERENCE_STRINGS = 10000;
+
+    private static volatile Object result;
+
+    /**
+     * A measured metric, and the default tolerance of its regression.
+     */
+    private static class Metric {
+        final String name;
+        final boolean higherIsBetter;
+        final double defaultTolerance;
+        final double value;
+
+        Metric(String name, boolean higherIsBetter, double defaultTolerance, double value) {
+            this.name = name;
+            this.higherIsBetter = higherIsBetter;
+            this.defaultTolerance = defaultTolerance;
+            this.value = value;
+        }
+    }
+
+    @Test
+    public void performsNoWorseThanBaseline() throws Exception {
+        assumeTrue(Boolean.getBoolean("performanceGate"));
+
+        Properties baseline = loadBaseline();
+        if (Boolean.getBoolean("recordPerformanceBaseline")) {
+            recordBaseline(measure(), baseline);
+            return;
+        }
+
+        List<Metric> metrics = measure();
+        List<String> regressions = new ArrayList<String>();
+        System.out.printf("%-44s %12s %12s %8s %9s%n", "metric", "baseline", "measured", "change", "tolerance");
+        for (Metric metric : metrics) {
+            String expectedValue = baseline.getProperty(metric.name + ".baseline");
+            if (expectedValue == null) {
+                regressions.add(metric.name + " has no baseline; record one with -DrecordPerformanceBaseline=true");
+                continue;
+            }
+            double expected = Double.parseDouble(expectedValue);
+            double tolerance = Double.parseDouble(baseline.getProperty(metric.name + ".tolerance",
+                String.valueOf(metric.defaultTolerance)));
+            double change = (metric.value - expected) / expected;
+            boolean regressed = metric.higherIsBetter ? change < -tolerance : change > tolerance;
+
+            System.out.printf("%-44s %12.4f %12.4f %+7.1f%% %8.0f%% %s%n", metric.name, expected, metric.value,
+                change * 100, tolerance * 100, regressed ? "REGRESSED" : "ok");
+            if (regressed)
+                regressions.add(String.format("%s %s from %.4f to %.4f (%+.1f%%, tolerance %.0f%%)", metric.name,
+                    metric.higherIsBetter ? "fell" : "rose", expected, metric.value, change * 100, tolerance * 100));
+        }
+
+        if (!regressions.isEmpty())
+            fail("Performance regressed from " + BASELINE_FILE + ": " + regressions);
+    }
+
+    private static void recordBaseline(List<Metric> metrics, Properties current) throws IOException {
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(BASELINE_FILE), "UTF-8"));
+        try {
+            out.println("# The baseline of PerformanceGateTest, recorded by running it with");
+            out.println("# -DperformanceGate=true -DrecordPerformanceBaseline=true under the JVM");
+            out.println("# settings of the performance-gate Maven profile (-Xms512m -Xmx512m).");
+            out.println("# relative* throughputs are relative to that of the reference workload of");
+            out.println("# the test, measured in the same run.");
+            out.println("# <metric>.tolerance is the fraction by which the metric may be worse than");
+            out.println("# <metric>.baseline before the gate fails.");
+            for (Metric metric : metrics) {
+                out.println();
+                out.printf("%s.baseline=%.4f%n", metric.name, metric.value);
+                out.printf("%s.tolerance=%s%n", metric.name,
+                    current.getProperty(metric.name + ".tolerance", String.valueOf(metric.defaultTolerance)));
+            }
+        } finally {
+            out.close();
+        }
+        System.out.println("Recorded the baseline in " + new File(BASELINE_FILE).getAbsolutePath());
+    }
+
+    private static Properties loadBaseline() throws IOException {
+        Properties baseline = new Properties();
+        InputStream in = PerformanceGateTest.class.getResourceAsStream(BASELINE_RESOURCE);
+        if (in != null) {
+            try {
+                baseline.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return baseline;
+    }
+
+    private static List<Metric> measure() throws Exception {
+        ProgressWatcher.getInstance().setLogLevel(LogLevel.WARN);
+        try {
+            double reference = opsPerSecond(newReferenceWorkload());
+            System.out.printf("The reference workload ran %.2f times per second%n", reference);
+
+            List<Metric> metrics = new ArrayList<Metric>();
+            // the fastest of several runs of the scenario, after warming up
+            runScenario(reference);
+            List<Metric> fastest = null;
+            for (int run = 0; run < SCENARIO_RUNS; run++) {
+                List<Metric> scenario = runScenario(reference);
+                if (fastest == null || scenario.get(0).value > fastest.get(0).value)
+                    fastest = scenario;
+            }
+            metrics.addAll(fastest);
+            metrics.addAll(runMicrobenchmarks(reference));
+            return metrics;
+
+        } finally {
+            ProgressWatcher.getInstance().setLogLevel(LogLevel.INFO);
+        }
+    }
+
+    /**
+     * @return a fixed workload of sorting and digesting strings, which
+     *         exercises the CPU, allocation and memory much as the backup does
+     *         but none of its code, to measure its throughputs against
+     */
+    private static Callable<Object> newReferenceWorkload() {
+        Random random = new Random(SEED);
+        final List<String> strings = new ArrayList<String>();
+        for (int i = 0; i < REFERENCE_STRINGS; i++)
+            strings.add(Long.toString(random.nextLong(), 36));
+
+        return new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                List<String> sorted = new ArrayList<String>(strings);
+                Collections.sort(sorted);
+                MessageDigest digest = MessageDigest.getInstance("MD5");
+                for (String string : sorted)
+                    digest.update(string.getBytes("UTF-8"));
+                return digest.digest();
+            }
+        };
+    }
+
+    // the end-to-end scenario
+
+    /**
+     * @param reference
+     *            the throughput of the reference workload
+     * @return the metrics of the scenario, its throughput first
+     */
+    private static List<Metric> runScenario(double reference) throws Exception {
+        SyntheticOrg org = new SyntheticOrg(SEED);
+        org.setUsers(USERS);
+        org.setAttachmentsPerRow(0.2);
+        org.setAttachmentKb(16);
+
+        MockSmartsheetApiServer server = new MockSmartsheetApiServer();
+        server.setOrg(org);
+        server.setLatencyMillis(LATENCY_MILLIS);
+        ParallelDownloadService parallelDownloadService = new ParallelDownloadService(DOWNLOAD_THREADS);
+        File backupFolder = new File(System.getProperty("java.io.tmpdir"),
+            "performance-gate-" + System.currentTimeMillis());
+        MemorySampler memory = new MemorySampler();
+        try {
+            memory.start();
+            long start = System.nanoTime();
+            new SmartsheetBackupService(new RestfulSmartsheetService("token", server.getApiBaseUrl()),
+                parallelDownloadService).backupOrgTo(backupFolder);
+            if (!parallelDownloadService.waitTillAllDownloadJobsDone())
+                throw new IllegalStateException("The downloads of the scenario didn't complete");
+            double seconds = (System.nanoTime() - start) / 1e9;
+            memory.stop();
+
+            double sheets = server.getRequestCount(Endpoint.EXPORT);
+            double apiCalls = 0;
+            for (Endpoint endpoint : Endpoint.values()) {
+                if (endpoint != Endpoint.DOWNLOAD) // downloads are from signed URLs, not the API
+                    apiCalls += server.getRequestCount(endpoint);
+            }
+
+            List<Metric> metrics = new ArrayList<Metric>();
+            metrics.add(new Metric("e2e.relativeSheetsPerSecond", true, 0.4, sheets / seconds / reference));
+            metrics.add(new Metric("e2e.apiCallsPerSheet", false, 0.02, apiCalls / sheets));
+            metrics.add(new Metric("e2e.peakLiveHeapMb", false, 0.3, memory.getPeakLiveHeap() / (1024.0 * 1024)));
+            if (memory.isAllocationMeasured())
+                metrics.add(new Metric("e2e.allocatedKbPerSheet", false, 0.3,
+                    memory.getAllocatedBytes() / 1024.0 / sheets));
+            return metrics;
+
+        } finally {
+            memory.stop();
+            server.stop();
+            FileUtils.deleteDirectory(backupFolder);
+        }
+    }
+
+    /**
+     * Samples the bytes allocated by each thread, to total the allocation of
+     * threads which end during the scenario too, and the heap in use after
+     * each garbage collection, the peak of which is the peak of the live heap.
+     * <p>
+     * The bytes allocated are counted by the HotSpot extension of
+     * ThreadMXBean, which is looked up by reflection so that the sampler runs
+     * (without counting them) on other JVMs too.
+     */
+    private static class MemorySampler implements Runnable {
+        private final Object threads = ManagementFactory.getThreadMXBean();
+        private final Method getThreadAllocatedBytes = findThreadAllocatedBytes(threads);
+        private final List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+        private final Map<Long, Long> startBytes = new HashMap<Long, Long>();
+        private final Map<Long, Long> lastBytes = new HashMap<Long, Long>();
+        private long peakLiveHeap;
+        private Thread thread;
+
+        MemorySampler() {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP)
+                    heapPools.add(pool);
+            }
+        }
+
+        private static Method findThreadAllocatedBytes(Object threads) {
+            try {
+                Class<?> hotSpotThreads = Class.forName("com.sun.management.ThreadMXBean");
+                if (hotSpotThreads.isInstance(threads))
+                    return hotSpotThreads.getMethod("getThreadAllocatedBytes", long[].class);
+            } catch (ClassNotFoundException e) {
+                // not a HotSpot JVM
+            } catch (NoSuchMethodException e) {
+                // an older HotSpot JVM
+            }
+            return null;
+        }
+
+        boolean isAllocationMeasured() {
+            return getThreadAllocatedBytes != null;
+        }
+
+        synchronized void start() {
+            System.gc();
+            sampleAllocation(startBytes);
+            thread = new Thread(this, "memory-sampler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() throws InterruptedException {
+            Thread sampler;
+            synchronized (this) {
+                sampler = thread;
+                thread = null;
+            }
+            if (sampler != null) {
+                sampler.interrupt();
+                sampler.join();
+                sample();
+            }
+        }
+
+        /**
+         * @return the bytes allocated between starting and stopping
+         */
+        synchronized long getAllocatedBytes() {
+            long allocated = 0;
+            for (Map.Entry<Long, Long> entry : lastBytes.entrySet()) {
+                Long start = startBytes.get(entry.getKey());
+                allocated += entry.getValue() - (start == null ? 0 : start);
+            }
+            return allocated;
+        }
+
+        synchronized long getPeakLiveHeap() {
+            return peakLiveHeap;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    sample();
+                    Thread.sleep(SAMPLE_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        }
+
+        private synchronized void sample() {
+            sampleAllocation(lastBytes);
+            long liveHeap = 0;
+            for (MemoryPoolMXBean pool : heapPools) {
+                MemoryUsage afterGc = pool.getCollectionUsage();
+                if (afterGc != null)
+                    liveHeap += afterGc.getUsed();
+            }
+            peakLiveHeap = Math.max(peakLiveHeap, liveHeap);
+        }
+
+        private void sampleAllocation(Map<Long, Long> bytes) {
+            if (getThreadAllocatedBytes == null)
+                return;
+
+            long[] ids = ManagementFactory.getThreadMXBean().getAllThreadIds();
+            long[] allocated;
+            try {
+                allocated = (long[]) getThreadAllocatedBytes.invoke(threads, (Object) ids);
+            } catch (Exception e) {
+                throw new IllegalStateException("Couldn't sample the bytes allocated by each thread", e);
+            }
+            for (int i = 0; i < ids.length; i++) {
+                if (allocated[i] >= 0)
+                    bytes.put(ids[i], allocated[i]);
+            }
+        }
+    }
+
+    // the microbenchmarks
+
+    /**
+     * @param reference
+     *            the throughput of the reference workload
+     */
+    private static List<Metric> runMicrobenchmarks(double reference) throws Exception {
+        SyntheticOrg org = new SyntheticOrg(SEED);
+        org.setRowsPerSheet(5000);
+        org.setAttachmentsPerRow(0.2);
+        final String sheetJson = new ObjectMapper().writeValueAsString(org.getSheet(100001));
+
+        final File folder = new File(System.getProperty("java.io.tmpdir"), "performance-gate-names");
+        final LocalFileSystemSink sink = new LocalFileSystemSink();
+
+        List<Metric> metrics = new ArrayList<Metric>();
+        double deserializeOpsPerSecond = opsPerSecond(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return new JsonDeserializer<SmartsheetSheet>().deserialize(sheetJson, SmartsheetSheet.class);
+            }
+        });
+        metrics.add(new Metric("micro.relativeDeserializeSheetOpsPerSecond", true, 0.4,
+            deserializeOpsPerSecond / reference));
+        double reserveOpsPerSecond = opsPerSecond(new Callable<Object>() {
+            @Override
+            public Object call() {
+                // 1,000 attachments of 50 names in one folder
+                NameRegistry names = new NameRegistry(sink);
+                String name = null;
+                for (int i = 0; i < 1000; i++)
+                    name = names.reserveUnique(folder, "Attachment " + i % 50, ".png");
+                return name;
+            }
+        });
+        metrics.add(new Metric("micro.relativeReserve1000NamesOpsPerSecond", true, 0.4,
+            reserveOpsPerSecond / reference));
+        return metrics;
+    }
+
+    /**
+     * @return the best throughput of an operation over several rounds, after
+     *         warming up
+     */
+    private static double opsPerSecond(Callable<Object> operation) throws Exception {
+        run(operation, MICRO_WARMUP_MILLIS);
+        double best = 0;
+        for (int round = 0; round < MICRO_ROUNDS; round++) {
+            System.gc(); // so that no round pays for the garbage of another
+            best = Math.max(best, run(operation, MICRO_ROUND_MILLIS));
+        }
+        return best;
+    }
+
+    private static double run(Callable<Object> operation, long millis) throws Exception {
+        long start = System.nanoTime();
+        long end = start + millis * 1000000;
+        int ops = 0;
+        long now;
+        do {
+            result = operation.call(); // kept, so that the operation isn't optimized away
+            ops++;
+        } while ((now = System.nanoTime()) < end);
+        return ops * 1e9 / (now - start);
+    }
+}
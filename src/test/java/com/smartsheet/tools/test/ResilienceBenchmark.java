@@ -0,0 +1,171 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import com.smartsheet.restapi.service.ErrorContextualizingSmartsheetService;
+import com.smartsheet.restapi.service.RestfulSmartsheetService;
+import com.smartsheet.restapi.service.RetryingSmartsheetService;
+import com.smartsheet.testutils.FaultInjectingProxy;
+import com.smartsheet.testutils.FaultSchedule;
+import com.smartsheet.testutils.MockSmartsheetApiServer;
+import com.smartsheet.testutils.SyntheticOrg;
+import com.smartsheet.tools.ParallelDownloadService;
+import com.smartsheet.tools.SmartsheetBackupService;
+import com.smartsheet.utils.ConfigHolder;
+import com.smartsheet.utils.LogLevel;
+import com.smartsheet.utils.MetricsRegistry;
+import com.smartsheet.utils.ProgressWatcher;
+
+/**
+ * Measures how much of its throughput a backup keeps under faults, backing up
+ * the same {@link SyntheticOrg} from a {@link MockSmartsheetApiServer} through
+ * a {@link FaultInjectingProxy} (for both API requests and downloads) under
+ * each of these fault profiles:
+ * <ul>
+ * <li>none: the baseline;</li>
+ * <li>latency: 20% of responses delayed by 200 ms;</li>
+ * <li>resets: 10% of connections reset part way through the body;</li>
+ * <li>503-bursts: 1% of requests start a burst of 3 503 (Service Unavailable)
+ * responses;</li>
+ * <li>truncated: 10% of bodies cut short;</li>
+ * <li>trickle: 10% of responses sent at 32 KB/s;</li>
+ * <li>mixed: all of the above at a quarter of their rates.</li>
+ * </ul>
+ * The report shows, for each profile, the throughput of the files saved and
+ * the percentage of the baseline's which was kept, the percentage of the
+ * baseline's bytes which were saved (a fault which isn't recovered from loses
+ * content, which can make a backup faster), the faults injected, the retries
+ * and seconds of backoff which recovered from them, the errors left (items
+ * which weren't backed up), and the bytes relayed per byte saved (the cost of
+ * the downloads restarted, on top of that of the API's JSON).
+ * <p>
+ * It is not a unit test; run it with
+ * {@code java -cp <test classpath> com.smartsheet.tools.test.ResilienceBenchmark [profile...]},
+ * which runs all the profiles by default.
+ */
+public class ResilienceBenchmark {
+
+    private static final long SEED = 42;
+    private static final int USERS = 10;
+    private static final int ATTACHMENT_KB = 64;
+    private static final int DOWNLOAD_THREADS = 8;
+    private static final List<String> PROFILES = Arrays.asList(
+        "none", "latency", "resets", "503-bursts", "truncated", "trickle", "mixed");
+
+    public static void main(String[] args) throws Exception {
+        List<String> profiles = args.length > 0 ? Arrays.asList(args) : PROFILES;
+        for (String profile : profiles) {
+            if (!PROFILES.contains(profile))
+                throw new IllegalArgumentException("Unknown profile " + profile + ", not one of " + PROFILES);
+        }
+        ProgressWatcher.getInstance().setLogLevel(LogLevel.WARN);
+        ProgressWatcher.getInstance().setLogErrorsToFile(false);
+        ConfigHolder.getInstance().setContinueOnError(true);
+
+        run("none"); // warm up
+        double[] baseline = run("none");
+
+        List<double[]> results = new ArrayList<double[]>();
+        for (String profile : profiles)
+            results.add(run(profile));
+
+        // reported after the errors logged by the backups
+        ProgressWatcher.getInstance().flush();
+        System.out.printf("%-11s %8s %8s %6s %6s %7s %8s %9s %7s %15s%n", "profile", "seconds", "MB/s", "kept",
+            "saved", "faults", "retries", "backoff s", "errors", "relayed/saved");
+        for (int i = 0; i < profiles.size(); i++) {
+            double[] result = results.get(i);
+            System.out.printf("%-11s %8.1f %8.2f %5.0f%% %5.0f%% %7d %8d %9d %7d %15.2f%n", profiles.get(i),
+                result[0], result[1] / (1024 * 1024), 100 * result[1] / baseline[1], 100 * result[7] / baseline[7],
+                (long) result[2], (long) result[3], (long) result[4], (long) result[5], result[6]);
+        }
+        System.exit(0); // as the tool does, since the download threads of a backup aren't daemons
+    }
+
+    private static FaultSchedule newSchedule(String profile) {
+        boolean mixed = profile.equals("mixed");
+        double scale = mixed ? 0.25 : 1;
+        FaultSchedule schedule = new FaultSchedule(SEED);
+        if (mixed || profile.equals("latency"))
+            schedule.setLatency(0.2 * scale, 200);
+        if (mixed || profile.equals("resets"))
+            schedule.setResets(0.1 * scale);
+        if (mixed || profile.equals("503-bursts"))
+            schedule.setServiceUnavailableBursts(0.01 * scale, 3);
+        if (mixed || profile.equals("truncated"))
+            schedule.setTruncations(0.1 * scale);
+        if (mixed || profile.equals("trickle"))
+            schedule.setTrickles(0.1 * scale, 32 * 1024);
+        return schedule;
+    }
+
+    /**
+     * @return the seconds taken, the bytes saved per second, the faults
+     *         injected, the retries, the seconds of backoff, the errors, the
+     *         bytes relayed per byte saved and the bytes saved
+     */
+    private static double[] run(String profile) throws Exception {
+        SyntheticOrg syntheticOrg = new SyntheticOrg(SEED);
+        syntheticOrg.setUsers(USERS);
+        syntheticOrg.setAttachmentKb(ATTACHMENT_KB);
+
+        MockSmartsheetApiServer server = new MockSmartsheetApiServer();
+        server.setOrg(syntheticOrg);
+        FaultSchedule schedule = newSchedule(profile);
+        FaultInjectingProxy proxy = new FaultInjectingProxy(server.getEndpoint(), schedule);
+        server.setDownloadEndpoint(proxy.getEndpoint());
+        ParallelDownloadService parallelDownloadService = new ParallelDownloadService(DOWNLOAD_THREADS);
+        File backupFolder = new File(System.getProperty("java.io.tmpdir"),
+            "resilience-benchmark-" + System.currentTimeMillis());
+
+        long[] before = getRecoveryCounts();
+        try {
+            long start = System.nanoTime();
+            new SmartsheetBackupService(new ErrorContextualizingSmartsheetService(new RetryingSmartsheetService(
+                new RestfulSmartsheetService("token", proxy.getEndpoint() + MockSmartsheetApiServer.API_PATH))),
+                parallelDownloadService).backupOrgTo(backupFolder);
+            parallelDownloadService.waitTillAllDownloadJobsDone();
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            long[] after = getRecoveryCounts();
+            long savedBytes = backupFolder.exists() ? FileUtils.sizeOfDirectory(backupFolder) : 0;
+            return new double[] { seconds, savedBytes / seconds, schedule.getInjected(), after[0] - before[0],
+                after[1] - before[1], after[2] - before[2], proxy.getBytesRelayed() / (double) savedBytes, savedBytes };
+
+        } finally {
+            proxy.stop();
+            server.stop();
+            FileUtils.deleteDirectory(backupFolder);
+        }
+    }
+
+    /**
+     * @return the retries, the seconds of backoff and the errors so far
+     */
+    private static long[] getRecoveryCounts() {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        return new long[] { metrics.counter("api.retries").get() + metrics.counter("http.downloadRetries").get(),
+            metrics.counter("api.backoffSeconds").get(), ProgressWatcher.getInstance().getErrorCount() };
+    }
+}
@@ -0,0 +1,221 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import static com.smartsheet.testutils.MockApiFixture.home;
+import static com.smartsheet.testutils.MockApiFixture.rows;
+import static com.smartsheet.testutils.MockApiFixture.sheet;
+import static com.smartsheet.testutils.MockApiFixture.user;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.smartsheet.restapi.model.SmartsheetRow;
+import com.smartsheet.restapi.model.SmartsheetSheet;
+import com.smartsheet.testutils.MockApiFixture;
+import com.smartsheet.tools.ExportFormat;
+import com.smartsheet.tools.SheetHistoryStore;
+import com.smartsheet.tools.SmartsheetBackupService;
+
+public class SheetHistoryStoreTest {
+
+    private static final String ALICE = "alice@example.com";
+    private static final long SHEET_ID = 1;
+    private static final int ROWS = 100;
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final long START = 1369000000000L;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private MockApiFixture fixture;
+    private File testFolder;
+    private SheetHistoryStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        // the store and the backups are kept in the backup folder of the
+        // fixture, which is deleted when it's closed
+        fixture = new MockApiFixture(getClass());
+        testFolder = fixture.getBackupFolder();
+        store = new SheetHistoryStore(new File(testFolder, "store"), 2);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fixture.close();
+    }
+
+    @Test
+    public void storesLaterSnapshotsAsRowDeltas() throws Exception {
+        ObjectNode first = newSnapshot(ROWS);
+        File base = record(first, START);
+        assertTrue(base.getName().startsWith("base-"));
+
+        // a row changed, one removed and one added in the middle, which
+        // moves the rows below it
+        ObjectNode second = (ObjectNode) mapper.readTree(mapper.writeValueAsBytes(first));
+        ArrayNode rows = (ArrayNode) second.get("rows");
+        ((ObjectNode) rows.get(4)).put("value", "changed");
+        rows.remove(9);
+        rows.insert(2, newRow(1000));
+        for (int i = 0; i < rows.size(); i++)
+            ((ObjectNode) rows.get(i)).put("rowNumber", i + 1);
+        second.put("totalRowCount", ROWS);
+
+        File delta = record(second, START + DAY);
+        assertTrue(delta.getName().startsWith("delta-"));
+        assertTrue(delta.length() * 10 < base.length());
+        JsonNode stored = mapper.readTree(delta);
+        assertEquals(Arrays.asList(1000L), ids(stored.get("added")));
+        assertEquals(Arrays.asList(5L), ids(stored.get("changed")));
+        assertEquals(Arrays.asList(10L), ids(stored.get("removed")));
+        assertEquals(2, stored.get("rows").size());
+        assertEquals(4, stored.get("moved").get("3").get("rowNumber").getIntValue());
+        assertEquals(6, stored.get("moved").size()); // rows 3-9, except the changed row
+        assertEquals(1, store.getBases());
+        assertEquals(1, store.getDeltas());
+        assertTrue(store.getBytesSaved() > 0);
+
+        // each snapshot as it was at the time
+        assertFalse(store.reconstruct(SHEET_ID, START - 1, new ByteArrayOutputStream()));
+        assertEquals(parsed(first), reconstruct(START + DAY - 1));
+        assertEquals(parsed(second), reconstruct(START + DAY));
+        assertEquals(parsed(second), reconstruct(START + 2 * DAY));
+    }
+
+    @Test
+    public void rebasesAfterDeltasOrWhenMostRowsChange() throws Exception {
+        ObjectNode snapshot = newSnapshot(ROWS);
+        assertTrue(record(snapshot, START).getName().startsWith("base-"));
+        ((ObjectNode) snapshot.get("rows").get(0)).put("value", "changed");
+        assertTrue(record(snapshot, START + DAY).getName().startsWith("delta-"));
+        assertTrue(record(snapshot, START + 2 * DAY).getName().startsWith("delta-"));
+        // the store keeps two deltas per base
+        assertTrue(record(snapshot, START + 3 * DAY).getName().startsWith("base-"));
+
+        ObjectNode replaced = newSnapshot(0);
+        for (int i = 1; i <= ROWS; i++)
+            ((ArrayNode) replaced.get("rows")).add(newRow(ROWS + i));
+        assertTrue(record(replaced, START + 4 * DAY).getName().startsWith("base-"));
+
+        assertEquals(3, store.getBases());
+        assertEquals(2, store.getDeltas());
+        assertEquals(parsed(snapshot), reconstruct(START + 3 * DAY));
+        assertEquals(parsed(replaced), reconstruct(START + 4 * DAY));
+    }
+
+    @Test
+    public void backsUpSheetsAsPointersToStoredSnapshots() throws Exception {
+        fixture.getServer().addUser(user(ALICE), home(sheet(SHEET_ID, "Budget", "OWNER")));
+        List<SmartsheetRow> rows = rows(1, ROWS);
+        SmartsheetSheet sheet = sheet(SHEET_ID, "Budget", null);
+        sheet.setRows(rows);
+        fixture.getServer().addSheet(SHEET_ID, sheet);
+
+        File firstPointer = backup("first");
+        assertTrue(store.resolvePointer(firstPointer).getName().startsWith("base-"));
+        assertFalse("the pointer is relative to the store",
+            FileUtils.readFileToString(firstPointer).contains(testFolder.getAbsolutePath()));
+
+        // a row removed before the next backup
+        Thread.sleep(5);
+        rows.remove(0);
+        File secondPointer = backup("second");
+        File delta = store.resolvePointer(secondPointer);
+        assertTrue(delta.getName().startsWith("delta-"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SheetHistoryStore.reconstruct(delta, out);
+        JsonNode snapshot = mapper.readTree(out.toByteArray());
+        assertEquals("Budget", snapshot.get("name").getTextValue());
+        assertEquals(ROWS - 1, snapshot.get("rows").size());
+        assertEquals(2, snapshot.get("rows").get(0).get("id").getLongValue());
+    }
+
+    private File backup(String folderName) throws Exception {
+        SmartsheetBackupService backupService = fixture.newBackupService();
+        backupService.setExportFormat(ExportFormat.JSON, true);
+        backupService.setHistoryStore(store);
+
+        File backupFolder = new File(testFolder, folderName);
+        assertEquals(1, backupService.backupOrgTo(backupFolder));
+        assertFalse(new File(backupFolder, ALICE + "/Sheets/Budget.json.gz").exists());
+        File pointerFile = new File(backupFolder, ALICE + "/Sheets/Budget.json.snapref");
+        assertTrue(pointerFile.isFile());
+        return pointerFile;
+    }
+
+    private File record(ObjectNode snapshot, long takenAt) throws IOException {
+        File incoming = store.newIncomingFile();
+        mapper.writeValue(incoming, snapshot);
+        return store.record(SHEET_ID, incoming, takenAt);
+    }
+
+    private JsonNode reconstruct(long pointInTime) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(store.reconstruct(SHEET_ID, pointInTime, out));
+        return mapper.readTree(out.toByteArray());
+    }
+
+    /**
+     * The snapshot as read back from its JSON, for comparing.
+     */
+    private JsonNode parsed(JsonNode snapshot) throws IOException {
+        return mapper.readTree(mapper.writeValueAsBytes(snapshot));
+    }
+
+    private ObjectNode newSnapshot(int rowCount) {
+        ObjectNode snapshot = mapper.createObjectNode();
+        snapshot.put("id", SHEET_ID);
+        snapshot.put("name", "Budget");
+        snapshot.put("totalRowCount", rowCount);
+        ArrayNode rows = snapshot.putArray("rows");
+        for (int i = 1; i <= rowCount; i++)
+            rows.add(newRow(i));
+        return snapshot;
+    }
+
+    private ObjectNode newRow(long id) {
+        ObjectNode row = mapper.createObjectNode();
+        row.put("id", id);
+        row.put("rowNumber", id);
+        row.put("value", "Row " + id + " of a sheet which changes a few rows a day");
+        return row;
+    }
+
+    private static List<Long> ids(JsonNode array) {
+        List<Long> ids = new ArrayList<Long>();
+        for (JsonNode id : array)
+            ids.add(id.getLongValue());
+        return ids;
+    }
+}
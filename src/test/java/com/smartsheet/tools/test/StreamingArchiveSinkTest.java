@@ -0,0 +1,280 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.smartsheet.exceptions.CreateFileSystemItemException;
+import com.smartsheet.tools.StreamingArchiveSink;
+import com.smartsheet.utils.FileUtils;
+import com.smartsheet.utils.HttpUtils;
+
+public class StreamingArchiveSinkTest {
+
+    private File backupFolder;
+    private File archiveFile;
+
+    @Before
+    public void setUp() {
+        backupFolder = new File(System.getProperty("java.io.tmpdir"),
+            getClass().getSimpleName() + "-" + System.currentTimeMillis());
+        archiveFile = new File(backupFolder.getPath() + ".zip");
+    }
+
+    @After
+    public void tearDown() {
+        archiveFile.delete();
+    }
+
+    @Test
+    public void writesFilesFromConcurrentWritersIntoArchive() throws Exception {
+        final StreamingArchiveSink sink = new StreamingArchiveSink(backupFolder, archiveFile);
+        final File folder = new File(backupFolder, "user@example.com");
+        sink.prepareFolder(folder);
+
+        // one of the files is large enough to be streamed into the archive
+        final Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        Random random = new Random(1);
+        for (int i = 0; i < 20; i++) {
+            byte[] content = new byte[i == 0 ? 3 * 1024 * 1024 : 1000 + i];
+            random.nextBytes(content);
+            contents.put("file" + i + ".bin", content);
+        }
+
+        List<Thread> writers = new ArrayList<Thread>();
+        final List<Exception> errors = new ArrayList<Exception>();
+        for (final Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        File file = new File(folder, entry.getKey());
+                        sink.createFile(file);
+                        sink.write(file, null, new ByteArrayInputStream(entry.getValue()));
+                    } catch (Exception e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            writer.start();
+            writers.add(writer);
+        }
+        for (Thread writer : writers)
+            writer.join();
+        sink.close();
+
+        assertTrue(errors.isEmpty());
+        assertFalse("nothing is written to the backup folder", backupFolder.exists());
+
+        ZipFile zipFile = new ZipFile(archiveFile);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            assertEquals("user@example.com/", entries.nextElement().getName());
+
+            int fileEntries = 0;
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName().substring("user@example.com/".length());
+                assertArrayEquals(contents.get(name), read(zipFile.getInputStream(entry)));
+                fileEntries++;
+            }
+            assertEquals(contents.size(), fileEntries);
+
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    @Test
+    public void reservesNamesAndDiscardsIncompleteContent() throws Exception {
+        StreamingArchiveSink sink = new StreamingArchiveSink(backupFolder, archiveFile);
+        File file = new File(backupFolder, "sheet.xlsx");
+        sink.createFile(file);
+        assertTrue(sink.exists(file));
+        try {
+            sink.createFile(file);
+            fail("a name can't be used twice");
+        } catch (CreateFileSystemItemException e) {
+            // expected
+        }
+
+        // a download which fails part way through isn't committed...
+        try {
+            sink.write(file, null, new InputStream() {
+                private int remaining = 10;
+
+                @Override
+                public int read() throws IOException {
+                    if (remaining-- <= 0)
+                        throw new IOException("Connection reset");
+                    return 'x';
+                }
+            });
+            fail("the read error is passed on");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // ...so it can be retried
+        OutputStream out = sink.newOutputStream(file);
+        out.write("complete".getBytes("UTF-8"));
+        out.close();
+        sink.close();
+
+        ZipFile zipFile = new ZipFile(archiveFile);
+        try {
+            assertEquals(1, zipFile.size());
+            assertEquals("complete", new String(read(zipFile.getInputStream(zipFile.getEntry("sheet.xlsx"))), "UTF-8"));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    @Test
+    public void streamsLargeFilesIntoArchiveWithoutSpooling() throws Exception {
+        File spoolFolder = new File(backupFolder.getPath() + "-spool");
+        StreamingArchiveSink sink = new StreamingArchiveSink(backupFolder, archiveFile);
+        sink.setMaxInMemorySize(64 * 1024);
+        sink.setSpoolFolder(spoolFolder);
+        try {
+            Random random = new Random(1);
+            final byte[] random256K = new byte[256 * 1024];
+            random.nextBytes(random256K);
+            StringBuilder text = new StringBuilder();
+            while (text.length() < 256 * 1024)
+                text.append("row ").append(text.length()).append(",a line of text which compresses well\n");
+            byte[] text256K = text.toString().getBytes("UTF-8");
+
+            sink.write(new File(backupFolder, "random.bin"), null, new ByteArrayInputStream(random256K));
+            // a large download which fails part way through is cut from the
+            // archive...
+            try {
+                sink.write(new File(backupFolder, "failed.bin"), null, new InputStream() {
+                    private int read;
+
+                    @Override
+                    public int read() throws IOException {
+                        if (read == random256K.length / 2)
+                            throw new IOException("Connection reset");
+                        return random256K[read++] & 0xff;
+                    }
+                });
+                fail("the read error is passed on");
+            } catch (IOException e) {
+                // expected
+            }
+            // ...and the entries after it follow on
+            sink.write(new File(backupFolder, "text.csv"), "text/csv", new ByteArrayInputStream(text256K));
+            sink.write(new File(backupFolder, "small.txt"), null, new ByteArrayInputStream(new byte[] { 1 }));
+            assertEquals(0, spoolFolder.list().length);
+            sink.close();
+
+            ZipFile zipFile = new ZipFile(archiveFile);
+            try {
+                assertEquals(3, zipFile.size());
+                assertArrayEquals(random256K, read(zipFile.getInputStream(zipFile.getEntry("random.bin"))));
+                ZipEntry textEntry = zipFile.getEntry("text.csv");
+                assertTrue(textEntry.getCompressedSize() < text256K.length / 4);
+                assertArrayEquals(text256K, read(zipFile.getInputStream(textEntry)));
+                assertArrayEquals(new byte[] { 1 }, read(zipFile.getInputStream(zipFile.getEntry("small.txt"))));
+            } finally {
+                zipFile.close();
+            }
+
+        } finally {
+            FileUtils.deleteFolder(spoolFolder);
+        }
+    }
+
+    @Test
+    public void splitsArchivePerUserIntoVolumes() throws Exception {
+        File archiveFolder = new File(backupFolder.getPath() + "-archives");
+        StreamingArchiveSink sink = new StreamingArchiveSink(backupFolder, archiveFolder, 2, 50 * 1024, true);
+        try {
+            // random content doesn't compress, so each file fills half a volume
+            Random random = new Random(1);
+            for (String user : new String[] { "a@example.com", "b@example.com" }) {
+                File userFolder = new File(backupFolder, user);
+                sink.prepareFolder(userFolder);
+                for (int i = 0; i < 4; i++) {
+                    byte[] content = new byte[20 * 1024];
+                    random.nextBytes(content);
+                    sink.write(new File(userFolder, "file" + i), null, new ByteArrayInputStream(content));
+                }
+            }
+            sink.close();
+
+            assertEquals(4, sink.getArchiveFiles().size());
+            for (String user : new String[] { "a@example.com", "b@example.com" }) {
+                int fileEntries = 0;
+                for (String volume : new String[] { ".001.zip", ".002.zip" }) {
+                    File volumeFile = new File(archiveFolder, user + volume);
+                    assertTrue(volumeFile.length() <= 50 * 1024);
+                    ZipFile zipFile = new ZipFile(volumeFile);
+                    try {
+                        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                        while (entries.hasMoreElements()) {
+                            ZipEntry entry = entries.nextElement();
+                            assertTrue(entry.getName().startsWith(user + "/"));
+                            if (!entry.isDirectory()) {
+                                assertEquals(ZipEntry.STORED, entry.getMethod());
+                                fileEntries++;
+                            }
+                        }
+                    } finally {
+                        zipFile.close();
+                    }
+                }
+                assertEquals(4, fileEntries);
+            }
+
+        } finally {
+            FileUtils.deleteFolder(archiveFolder);
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HttpUtils.copyAndClose(in, out);
+        return out.toByteArray();
+    }
+}
@@ -53,6 +53,15 @@ public class StubBadConnectionSmartsheetService extends StubSmartsheetService {
 		return super.getSheetDetails(sheetName, sheetId);
 	}
 
+	@Override
+	public void getSheetAttachments(String sheetName, long sheetId, AttachmentHandler handler) throws Exception {
+
+		if (isConnectionCurrentlyBad())
+			throw fakeConnectionException();
+
+		super.getSheetAttachments(sheetName, sheetId, handler);
+	}
+
 	@Override
 	public SmartsheetAttachment getAttachmentDetails(String attachmentName, long attachmentId, String sheetName,
 			long sheetId) throws Exception {
@@ -36,6 +36,7 @@ public class StubRecoveringServiceUnavailableSmartsheetService extends StubSmart
 	private final AtomicInteger countGetUserCalls = new AtomicInteger();
 	private final AtomicInteger countGetHomeCalls = new AtomicInteger();
 	private final AtomicInteger countGetSheetDetails = new AtomicInteger();
+	private final AtomicInteger countGetSheetAttachments = new AtomicInteger();
 	private final AtomicInteger countGetAttachmentDetails = new AtomicInteger();
 
 	@Override
@@ -59,6 +60,13 @@ public class StubRecoveringServiceUnavailableSmartsheetService extends StubSmart
 		return super.getSheetDetails(sheetName, sheetId);
 	}
 
+	@Override
+	public void getSheetAttachments(String sheetName, long sheetId, AttachmentHandler handler) throws Exception {
+		if (countGetSheetAttachments.getAndIncrement() == 0)
+			throw new ServiceUnavailableException();
+		super.getSheetAttachments(sheetName, sheetId, handler);
+	}
+
 	@Override
 	public SmartsheetAttachment getAttachmentDetails(String attachmentName, long attachmentId, String sheetName,
 			long sheetId) throws Exception {
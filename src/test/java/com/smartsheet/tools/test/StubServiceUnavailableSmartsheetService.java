@@ -20,10 +20,12 @@ import java.util.List;
 
 import com.smartsheet.exceptions.ServiceUnavailableException;
 import com.smartsheet.restapi.model.SmartsheetAttachment;
+import com.smartsheet.restapi.model.SmartsheetFolder;
 import com.smartsheet.restapi.model.SmartsheetHome;
 import com.smartsheet.restapi.model.SmartsheetPagingwrapper;
 import com.smartsheet.restapi.model.SmartsheetSheet;
 import com.smartsheet.restapi.model.SmartsheetUser;
+import com.smartsheet.restapi.model.SmartsheetWorkspace;
 import com.smartsheet.restapi.service.SmartsheetService;
 
 /**
@@ -42,11 +44,41 @@ public class StubServiceUnavailableSmartsheetService implements SmartsheetServic
 		throw new ServiceUnavailableException();
 	}
 
+	@Override
+	public SmartsheetPagingwrapper<SmartsheetSheet> getSheets(int page) throws Exception {
+		throw new ServiceUnavailableException();
+	}
+
+	@Override
+	public SmartsheetPagingwrapper<SmartsheetFolder> getHomeFolders(int page) throws Exception {
+		throw new ServiceUnavailableException();
+	}
+
+	@Override
+	public SmartsheetPagingwrapper<SmartsheetWorkspace> getWorkspaces(int page) throws Exception {
+		throw new ServiceUnavailableException();
+	}
+
+	@Override
+	public SmartsheetFolder getFolder(String folderName, long folderId) throws Exception {
+		throw new ServiceUnavailableException();
+	}
+
+	@Override
+	public SmartsheetWorkspace getWorkspace(String workspaceName, long workspaceId) throws Exception {
+		throw new ServiceUnavailableException();
+	}
+
 	@Override
 	public SmartsheetSheet getSheetDetails(String sheetName, long sheetId) throws Exception {
 		throw new ServiceUnavailableException();
 	}
 
+	@Override
+	public void getSheetAttachments(String sheetName, long sheetId, AttachmentHandler handler) throws Exception {
+		throw new ServiceUnavailableException();
+	}
+
 	@Override
 	public SmartsheetAttachment getAttachmentDetails(String attachmentName, long attachmentId, String sheetName,long sheetId)
 			throws Exception {
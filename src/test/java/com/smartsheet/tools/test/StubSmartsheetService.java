@@ -16,17 +16,22 @@
 **/
 package com.smartsheet.tools.test;
 
+import java.io.ByteArrayInputStream;
 import java.util.List;
 
 import org.codehaus.jackson.type.TypeReference;
 
 import com.smartsheet.restapi.model.SmartsheetAttachment;
+import com.smartsheet.restapi.model.SmartsheetFolder;
 import com.smartsheet.restapi.model.SmartsheetHome;
 import com.smartsheet.restapi.model.SmartsheetPagingwrapper;
 import com.smartsheet.restapi.model.SmartsheetSheet;
 import com.smartsheet.restapi.model.SmartsheetUser;
+import com.smartsheet.restapi.model.SmartsheetWorkspace;
 import com.smartsheet.restapi.service.JsonDeserializer;
+import com.smartsheet.restapi.service.SheetAttachmentExtractor;
 import com.smartsheet.restapi.service.SmartsheetService;
+import com.smartsheet.testutils.MockSmartsheetApiServer;
 import com.smartsheet.testutils.TestUtils;
 
 /**
@@ -49,6 +54,31 @@ public class StubSmartsheetService implements SmartsheetService {
         return new JsonDeserializer<SmartsheetHome>().deserialize(json, SmartsheetHome.class);
     }
 
+    @Override
+    public SmartsheetPagingwrapper<SmartsheetSheet> getSheets(int page) throws Exception {
+        return MockSmartsheetApiServer.getSheetsPage(getHome(), page, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public SmartsheetPagingwrapper<SmartsheetFolder> getHomeFolders(int page) throws Exception {
+        return MockSmartsheetApiServer.getHomeFoldersPage(getHome(), page, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public SmartsheetPagingwrapper<SmartsheetWorkspace> getWorkspaces(int page) throws Exception {
+        return MockSmartsheetApiServer.getWorkspacesPage(getHome(), page, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public SmartsheetFolder getFolder(String folderName, long folderId) throws Exception {
+        return MockSmartsheetApiServer.getFolder(getHome(), folderId);
+    }
+
+    @Override
+    public SmartsheetWorkspace getWorkspace(String workspaceName, long workspaceId) throws Exception {
+        return MockSmartsheetApiServer.getWorkspace(getHome(), workspaceId);
+    }
+
     @Override
     public SmartsheetSheet getSheetDetails(String sheetName, long sheetId) throws Exception {
 
@@ -56,6 +86,13 @@ public class StubSmartsheetService implements SmartsheetService {
         return new JsonDeserializer<SmartsheetSheet>().deserialize(json, SmartsheetSheet.class);
     }
 
+    @Override
+    public void getSheetAttachments(String sheetName, long sheetId, AttachmentHandler handler) throws Exception {
+
+        String json = TestUtils.getSampleGetSheetJsonResponse();
+        SheetAttachmentExtractor.extract(new ByteArrayInputStream(json.getBytes("UTF-8")), handler);
+    }
+
     @Override
     public SmartsheetAttachment getAttachmentDetails(String attachmentName, long attachmentId, String sheetName,long sheetId) throws Exception {
 
@@ -68,6 +68,14 @@ public class StubSpecificRequestFailureSmartsheetService extends StubBadConnecti
 		return super.getSheetDetails(sheetName, sheetId);
 	}
 
+	@Override
+	public void getSheetAttachments(String sheetName, long sheetId, AttachmentHandler handler) throws Exception {
+		if (makeGetSheetRequestFail)
+			throw fakeConnectionException();
+
+		super.getSheetAttachments(sheetName, sheetId, handler);
+	}
+
 	@Override
 	public SmartsheetAttachment getAttachmentDetails(String attachmentName, long attachmentId, String sheetName,
 			long sheetId) throws Exception {
@@ -0,0 +1,191 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.tools.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import com.smartsheet.restapi.model.SmartsheetFolder;
+import com.smartsheet.restapi.model.SmartsheetHome;
+import com.smartsheet.restapi.model.SmartsheetSheet;
+import com.smartsheet.restapi.service.RestfulSmartsheetService;
+import com.smartsheet.testutils.MockSmartsheetApiServer;
+import com.smartsheet.testutils.MockSmartsheetApiServer.Endpoint;
+import com.smartsheet.testutils.OrgSmartsheetService;
+import com.smartsheet.testutils.SyntheticOrg;
+import com.smartsheet.tools.BackupInventory;
+import com.smartsheet.tools.ParallelDownloadService;
+import com.smartsheet.tools.SmartsheetBackupService;
+
+public class SyntheticOrgTest {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void generatesSameOrgFromSameSeed() throws IOException {
+        SyntheticOrg syntheticOrg = new SyntheticOrg(7);
+        SyntheticOrg sameOrg = new SyntheticOrg(7);
+        SyntheticOrg otherOrg = new SyntheticOrg(8);
+
+        String home = mapper.writeValueAsString(syntheticOrg.getHome("user3@example.com"));
+        assertEquals(home, mapper.writeValueAsString(sameOrg.getHome("user3@example.com")));
+        assertFalse(home.equals(mapper.writeValueAsString(otherOrg.getHome("user3@example.com"))));
+
+        long sheetId = syntheticOrg.getHome("user0@example.com").getWorkspaces().get(0).getId();
+        assertNull(syntheticOrg.getSheet(sheetId)); // a workspace, not a sheet
+        SmartsheetSheet sheet = findOwnedSheet(syntheticOrg.getHome("user0@example.com"));
+        assertEquals(mapper.writeValueAsString(syntheticOrg.getSheet(sheet.getId())),
+            mapper.writeValueAsString(sameOrg.getSheet(sheet.getId())));
+    }
+
+    @Test
+    public void shapesOrgAsConfigured() {
+        SyntheticOrg syntheticOrg = new SyntheticOrg(1);
+        syntheticOrg.setUsers(200);
+        syntheticOrg.setInactiveUserRate(0.5);
+        syntheticOrg.setFolders(3, 2);
+        syntheticOrg.setWorkspacesPerUser(2);
+        syntheticOrg.setSheetsPerUser(50);
+        syntheticOrg.setDuplicateNameRate(0.5);
+
+        int active = 0;
+        for (int i = 0; i < syntheticOrg.getUserCount(); i++) {
+            if ("ACTIVE".equals(syntheticOrg.getUser(i).getStatus()))
+                active++;
+        }
+        assertTrue(active > 60 && active < 140);
+        assertNull(syntheticOrg.getHome("user200@example.com"));
+
+        SmartsheetHome home = syntheticOrg.getHome("user0@example.com");
+        assertEquals(2, home.getFolders().size());
+        assertEquals(2, home.getWorkspaces().size());
+        SmartsheetFolder deepest = home.getWorkspaces().get(1).getFolders().get(1).getFolders().get(0);
+        assertEquals(2, deepest.getFolders().size());
+        assertTrue(deepest.getFolders().get(0).getFolders().isEmpty());
+
+        boolean duplicateNames = false;
+        for (int i = 0; i < 10; i++)
+            duplicateNames |= hasDuplicateSheetNames(syntheticOrg.getHome(syntheticOrg.getUser(i).getEmail()));
+        assertTrue(duplicateNames);
+    }
+
+    @Test
+    public void backsUpSyntheticOrgThroughMockServer() throws Exception {
+        SyntheticOrg syntheticOrg = new SyntheticOrg(42);
+        syntheticOrg.setUsers(6);
+        syntheticOrg.setSheetsPerUser(4);
+        syntheticOrg.setRowsPerSheet(10);
+        syntheticOrg.setAttachmentsPerRow(0.5);
+        syntheticOrg.setAttachmentKb(4);
+        syntheticOrg.setDuplicateNameRate(0.3);
+        int ownedSheets = 0;
+        for (int i = 0; i < syntheticOrg.getUserCount(); i++)
+            ownedSheets += syntheticOrg.getOwnedSheets(syntheticOrg.getUser(i).getEmail());
+
+        MockSmartsheetApiServer server = new MockSmartsheetApiServer();
+        server.setOrg(syntheticOrg);
+        server.setPageSize(4);
+        ParallelDownloadService parallelDownloadService = new ParallelDownloadService(4);
+        File backupFolder = new File(System.getProperty("java.io.tmpdir"),
+            getClass().getSimpleName() + "-" + System.currentTimeMillis());
+        try {
+            new SmartsheetBackupService(new RestfulSmartsheetService("token", server.getApiBaseUrl()),
+                parallelDownloadService).backupOrgTo(backupFolder);
+            assertTrue(parallelDownloadService.waitTillAllDownloadJobsDone());
+
+            assertEquals(2, server.getRequestCount(Endpoint.USERS));
+            assertEquals(ownedSheets, server.getRequestCount(Endpoint.EXPORT));
+            assertTrue(server.getRequestCount(Endpoint.DOWNLOAD) > 0);
+            assertEquals(server.getRequestCount(Endpoint.ATTACHMENT), server.getRequestCount(Endpoint.DOWNLOAD));
+
+        } finally {
+            server.stop();
+            org.apache.commons.io.FileUtils.deleteDirectory(backupFolder);
+        }
+    }
+
+    @Test
+    public void inventoriesLargeOrgInMemory() throws Exception {
+        SyntheticOrg syntheticOrg = new SyntheticOrg(42);
+        syntheticOrg.setUsers(2000);
+        int ownedSheets = 0;
+        for (int i = 0; i < syntheticOrg.getUserCount(); i++)
+            ownedSheets += syntheticOrg.getOwnedSheets(syntheticOrg.getUser(i).getEmail());
+
+        BackupInventory inventory = new SmartsheetBackupService(new OrgSmartsheetService(syntheticOrg, null),
+            new ParallelDownloadService(1)).takeInventory(false);
+
+        assertEquals(2000, inventory.getUsers().size());
+        assertEquals(20, inventory.getUserPages());
+        assertEquals(ownedSheets, inventory.getTotalOwnedSheets());
+    }
+
+    private static SmartsheetSheet findOwnedSheet(SmartsheetHome home) {
+        for (List<SmartsheetSheet> sheets : getSheetsByFolder(home)) {
+            for (SmartsheetSheet sheet : sheets) {
+                if ("OWNER".equals(sheet.getAccessLevel()))
+                    return sheet;
+            }
+        }
+        throw new AssertionError("no owned sheet");
+    }
+
+    private static boolean hasDuplicateSheetNames(SmartsheetHome home) {
+        if (home == null)
+            return false;
+        for (List<SmartsheetSheet> sheets : getSheetsByFolder(home)) {
+            Set<String> names = new HashSet<String>();
+            for (SmartsheetSheet sheet : sheets) {
+                if (!names.add(sheet.getName()))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the sheets in the home, and in each of its folders and
+     *         workspaces
+     */
+    private static List<List<SmartsheetSheet>> getSheetsByFolder(SmartsheetHome home) {
+        List<List<SmartsheetSheet>> sheetsByFolder = new ArrayList<List<SmartsheetSheet>>();
+        sheetsByFolder.add(home.getSheets());
+        addSheetsByFolder(home.getFolders(), sheetsByFolder);
+        addSheetsByFolder(home.getWorkspaces(), sheetsByFolder);
+        return sheetsByFolder;
+    }
+
+    private static void addSheetsByFolder(List<? extends SmartsheetFolder> folders,
+        List<List<SmartsheetSheet>> sheetsByFolder) {
+        for (SmartsheetFolder folder : folders) {
+            sheetsByFolder.add(folder.getSheets());
+            addSheetsByFolder(folder.getFolders(), sheetsByFolder);
+        }
+    }
+}
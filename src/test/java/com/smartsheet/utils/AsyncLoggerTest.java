@@ -0,0 +1,183 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+/**
+ * Unit tests for AsyncLogger and its appenders.
+ */
+public class AsyncLoggerTest {
+
+    private static class CollectingAppender implements AsyncLogger.Appender {
+        final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> formattingThreads = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void append(AsyncLogger.Event event) {
+            formattingThreads.add(Thread.currentThread().getName());
+            messages.add(event.getMessage());
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void testLog_ConcurrentThreadsThroughSmallBuffer() throws InterruptedException {
+        final AsyncLogger logger = new AsyncLogger(16, "test-logger");
+        CollectingAppender appender = new CollectingAppender();
+        logger.addAppender(appender);
+
+        final int threads = 8;
+        final int eventsPerThread = 5000;
+        List<Thread> loggingThreads = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            loggingThreads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < eventsPerThread; i++)
+                        logger.log(new AsyncLogger.Event(LogLevel.INFO, "%d:%d", new Object[] { thread, i }, null,
+                            false, 0, null));
+                }
+            }));
+        }
+        for (Thread thread : loggingThreads)
+            thread.start();
+        for (Thread thread : loggingThreads)
+            thread.join();
+        logger.close();
+
+        // every event is written once, in the order each thread logged them
+        assertEquals(threads * eventsPerThread, appender.messages.size());
+        int[] next = new int[threads];
+        for (String message : appender.messages) {
+            String[] parts = message.split(":");
+            int thread = Integer.parseInt(parts[0]);
+            assertEquals(next[thread]++, Integer.parseInt(parts[1]));
+        }
+    }
+
+    @Test
+    public void testLog_FormatsLazilyOnLoggerThread() {
+        final AtomicInteger formatted = new AtomicInteger();
+        Object argument = new Object() {
+            @Override
+            public String toString() {
+                formatted.incrementAndGet();
+                return "argument";
+            }
+        };
+
+        ProgressWatcher progressWatcher = ProgressWatcher.getInstance();
+        progressWatcher.debug("debug %s", argument); // not enabled by default
+        progressWatcher.flush();
+        assertEquals(0, formatted.get());
+
+        AsyncLogger logger = new AsyncLogger(16, "test-logger");
+        CollectingAppender appender = new CollectingAppender();
+        logger.addAppender(appender);
+        logger.log(new AsyncLogger.Event(LogLevel.INFO, "info %s", new Object[] { argument }, null, false, 0, null));
+        logger.log(new AsyncLogger.Event(LogLevel.INFO, "100% literal", null, null, false, 0, null));
+        logger.close();
+
+        assertEquals(1, formatted.get());
+        assertEquals(2, appender.messages.size());
+        assertEquals("info argument", appender.messages.get(0));
+        assertEquals("100% literal", appender.messages.get(1));
+        assertEquals("test-logger", appender.formattingThreads.get(0));
+    }
+
+    @Test
+    public void testRollingJsonLog_RollsOverAndKeepsBackups() throws IOException {
+        File logFile = File.createTempFile("smartsheet-test", ".jsonl");
+        try {
+            AsyncLogger logger = new AsyncLogger(16, "test-logger");
+            logger.addAppender(new RollingJsonLogAppender(logFile, 1000, 2));
+            for (int i = 0; i < 50; i++)
+                logger.log(new AsyncLogger.Event(LogLevel.INFO, "message \"%d\"", new Object[] { i }, null, false,
+                    0, null));
+            logger.log(new AsyncLogger.Event(LogLevel.ERROR, "failed", null, new IOException("disk full"), false,
+                1, null));
+            logger.close();
+
+            assertTrue(new File(logFile.getPath() + ".1").isFile());
+            assertTrue(new File(logFile.getPath() + ".2").isFile());
+            assertFalse(new File(logFile.getPath() + ".3").exists());
+            assertTrue(new File(logFile.getPath() + ".1").length() <= 1000);
+
+            List<JsonNode> lines = readJsonLines(logFile);
+            JsonNode error = lines.get(lines.size() - 1);
+            assertEquals("ERROR", error.get("level").getTextValue());
+            assertEquals("failed", error.get("message").getTextValue());
+            assertEquals(1, error.get("errorNumber").getIntValue());
+            assertEquals("java.io.IOException", error.get("exception").getTextValue());
+            assertTrue(error.get("stackTrace").getTextValue().contains("disk full"));
+
+            // the error didn't fit in the file with the previous messages
+            assertEquals(1, lines.size());
+            List<JsonNode> previousLines = readJsonLines(new File(logFile.getPath() + ".1"));
+            JsonNode info = previousLines.get(previousLines.size() - 1);
+            assertEquals("INFO", info.get("level").getTextValue());
+            assertEquals("message \"49\"", info.get("message").getTextValue());
+            assertEquals(Thread.currentThread().getName(), info.get("thread").getTextValue());
+            assertNotNull(info.get("time"));
+
+        } finally {
+            for (int i = 1; i <= 2; i++)
+                new File(logFile.getPath() + "." + i).delete();
+            logFile.delete();
+        }
+    }
+
+    private static List<JsonNode> readJsonLines(File file) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        List<JsonNode> lines = new ArrayList<JsonNode>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null)
+                lines.add(mapper.readTree(line));
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
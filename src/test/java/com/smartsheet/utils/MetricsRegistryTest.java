@@ -0,0 +1,110 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+/**
+ * Unit tests for MetricsRegistry, StripedCounter and LatencyHistogram.
+ */
+public class MetricsRegistryTest {
+
+    @Test
+    public void testStripedCounter_ConcurrentAdds() throws InterruptedException {
+        final StripedCounter counter = new StripedCounter();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++)
+                        counter.add(2);
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(8 * 100000 * 2, counter.get());
+    }
+
+    @Test
+    public void testLatencyHistogram_Percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 98; i++)
+            histogram.recordNanos(3000000); // 3ms
+        histogram.recordNanos(100000000); // 100ms
+        histogram.recordNanos(900000000); // 900ms
+
+        Map<String, Object> summary = histogram.getSummary();
+        assertEquals(100L, summary.get("count"));
+        assertEquals(4.096, (Double) summary.get("p50Ms"), 0.0001); // 3ms is counted up to 2^12 micros
+        assertEquals(4.096, (Double) summary.get("p90Ms"), 0.0001);
+        assertEquals(131.072, (Double) summary.get("p99Ms"), 0.0001);
+        assertEquals(900.0, (Double) summary.get("maxMs"), 0.0001);
+        assertEquals((98 * 3 + 100 + 900) / 100.0, (Double) summary.get("meanMs"), 0.0001);
+    }
+
+    @Test
+    public void testRegistry_JsonAndMBean() throws Exception {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.counter("test.files").add(5);
+        metrics.histogram("test.request.latency").recordNanos(1000000);
+        metrics.gauge("test.queueDepth", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return 7;
+            }
+        });
+
+        File file = File.createTempFile("smartsheet-test", ".json");
+        try {
+            metrics.writeJson(file);
+            JsonNode json = new ObjectMapper().readTree(file);
+            assertEquals(5, json.get("test.files").get("count").getLongValue());
+            assertTrue(json.get("test.files").get("perSecond").getDoubleValue() > 0);
+            assertEquals(1, json.get("test.request.latency").get("count").getLongValue());
+            assertEquals(7, json.get("test.queueDepth").getLongValue());
+        } finally {
+            file.delete();
+        }
+
+        metrics.registerMBean();
+        metrics.registerMBean(); // only registered once
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(MetricsRegistry.OBJECT_NAME);
+        assertEquals(5L, server.getAttribute(name, "test.files.count"));
+        assertEquals(7L, server.getAttribute(name, "test.queueDepth"));
+        assertEquals(1L, server.getAttribute(name, "test.request.latency.count"));
+    }
+}
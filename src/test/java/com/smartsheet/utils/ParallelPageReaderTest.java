@@ -0,0 +1,87 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ParallelPageReaderTest {
+
+    @Test
+    public void handlesPagesInOrderThoughReadOutOfOrder() throws Exception {
+        final AtomicInteger reading = new AtomicInteger();
+        final AtomicInteger maxReading = new AtomicInteger();
+        final List<Integer> handled = new ArrayList<Integer>();
+
+        new ParallelPageReader(3).read(2, 9, new ParallelPageReader.PageSource<Integer>() {
+            @Override
+            public Integer read(int pageNumber) throws Exception {
+                int concurrent = reading.incrementAndGet();
+                synchronized (maxReading) {
+                    maxReading.set(Math.max(maxReading.get(), concurrent));
+                }
+                // later pages of each run of three arrive first
+                Thread.sleep(10 * (3 - pageNumber % 3));
+                reading.decrementAndGet();
+                return pageNumber;
+            }
+        }, new ParallelPageReader.PageHandler<Integer>() {
+            @Override
+            public void handle(Integer page) {
+                handled.add(page);
+            }
+        });
+
+        assertEquals(Arrays.asList(2, 3, 4, 5, 6, 7, 8, 9), handled);
+        assertTrue(maxReading.get() > 1);
+        assertTrue(maxReading.get() <= 3);
+    }
+
+    @Test
+    public void stopsAtPageWhichCantBeRead() throws Exception {
+        final List<Integer> handled = new ArrayList<Integer>();
+        try {
+            new ParallelPageReader(2).read(1, 10, new ParallelPageReader.PageSource<Integer>() {
+                @Override
+                public Integer read(int pageNumber) throws Exception {
+                    if (pageNumber == 4)
+                        throw new IOException("page " + pageNumber);
+                    return pageNumber;
+                }
+            }, new ParallelPageReader.PageHandler<Integer>() {
+                @Override
+                public void handle(Integer page) {
+                    handled.add(page);
+                }
+            });
+            fail("expected the error reading page 4");
+
+        } catch (IOException e) {
+            assertEquals("page 4", e.getMessage());
+        }
+        assertEquals(Arrays.asList(1, 2, 3), handled);
+    }
+}
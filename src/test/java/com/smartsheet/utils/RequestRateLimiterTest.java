@@ -0,0 +1,70 @@
+/**
+   Copyright 2013 Smartsheet.com
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+**/
+package com.smartsheet.utils;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RequestRateLimiterTest {
+
+    @Test
+    public void spacesRequestsFromAllThreads() throws Exception {
+        // a request every 50 ms
+        long start = System.nanoTime();
+        final RequestRateLimiter limiter = new RequestRateLimiter(1200);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 3; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 4; j++)
+                            limiter.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        // the first request goes at once, the other 11 in their slots
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(11 * 50));
+    }
+
+    @Test
+    public void doesNotSaveUpUnusedSlots() throws Exception {
+        RequestRateLimiter limiter = new RequestRateLimiter(1200);
+        limiter.acquire();
+        Thread.sleep(300);
+
+        // the first request goes at once, the other 3 in their slots after it
+        long start = System.nanoTime();
+        limiter.acquire();
+        for (int i = 0; i < 3; i++)
+            limiter.acquire();
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(3 * 50));
+    }
+}
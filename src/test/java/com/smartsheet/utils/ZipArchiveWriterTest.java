@@ -0,0 +1,154 @@
+package com.smartsheet.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.smartsheet.utils.ZipArchiveWriter.CompressedEntry;
+
+/**
+ * Unit tests for ZipArchiveWriter.
+ */
+public class ZipArchiveWriterTest {
+
+    private File zipFile;
+
+    @Before
+    public void setUp() throws IOException {
+        zipFile = File.createTempFile("smartsheet-test", ".zip");
+    }
+
+    @After
+    public void tearDown() {
+        zipFile.delete();
+    }
+
+    @Test
+    public void testWrite_StoredAndDeflatedEntries() throws IOException {
+        byte[] content = "a line of text which compresses well\n".getBytes("UTF-8");
+        byte[] repeated = new byte[content.length * 100];
+        for (int i = 0; i < 100; i++)
+            System.arraycopy(content, 0, repeated, i * content.length, content.length);
+
+        ZipArchiveWriter writer = new ZipArchiveWriter(zipFile);
+        writer.write(CompressedEntry.folder("folder/"), null);
+        writer.write(new CompressedEntry("folder/stored.txt", ZipEntry.STORED, crc(content), content.length,
+            content.length), new ByteArrayInputStream(content));
+        byte[] deflated = deflate(repeated);
+        writer.write(new CompressedEntry("folder/deflated.txt", ZipEntry.DEFLATED, crc(repeated), repeated.length,
+            deflated.length), new ByteArrayInputStream(deflated));
+        writer.close();
+
+        ZipFile zip = new ZipFile(zipFile);
+        try {
+            Assert.assertTrue(zip.getEntry("folder/").isDirectory());
+            Assert.assertArrayEquals(content, read(zip.getInputStream(zip.getEntry("folder/stored.txt"))));
+            Assert.assertArrayEquals(repeated, read(zip.getInputStream(zip.getEntry("folder/deflated.txt"))));
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Test
+    public void testClose_MoreEntriesThanFitWithoutZip64() throws IOException {
+        int entryCount = 70000; // more than 65,535
+        byte[] content = new byte[] { 1 };
+
+        ZipArchiveWriter writer = new ZipArchiveWriter(zipFile);
+        for (int i = 0; i < entryCount; i++)
+            writer.write(new CompressedEntry("file" + i, ZipEntry.STORED, crc(content), 1, 1),
+                new ByteArrayInputStream(content));
+        writer.close();
+
+        ZipFile zip = new ZipFile(zipFile);
+        try {
+            Assert.assertEquals(entryCount, zip.size());
+            Assert.assertArrayEquals(content, read(zip.getInputStream(zip.getEntry("file" + (entryCount - 1)))));
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Test
+    public void testStartEntry_StreamedAndAbandonedEntries() throws IOException {
+        byte[] content = "a line of text which compresses well\n".getBytes("UTF-8");
+        byte[] deflated = deflate(content);
+
+        ZipArchiveWriter writer = new ZipArchiveWriter(zipFile);
+        writer.startEntry("abandoned.txt", ZipEntry.DEFLATED);
+        writer.writeEntryContent(deflated, 0, deflated.length);
+        writer.abortEntry();
+        writer.startEntry("streamed.txt", ZipEntry.DEFLATED);
+        writer.writeEntryContent(deflated, 0, 10);
+        writer.writeEntryContent(deflated, 10, deflated.length - 10);
+        writer.finishEntry(crc(content), content.length);
+        writer.write(new CompressedEntry("stored.txt", ZipEntry.STORED, crc(content), content.length,
+            content.length), new ByteArrayInputStream(content));
+        writer.close();
+
+        ZipFile zip = new ZipFile(zipFile);
+        try {
+            Assert.assertEquals(2, zip.size());
+            Assert.assertNull(zip.getEntry("abandoned.txt"));
+            Assert.assertArrayEquals(content, read(zip.getInputStream(zip.getEntry("streamed.txt"))));
+            Assert.assertArrayEquals(content, read(zip.getInputStream(zip.getEntry("stored.txt"))));
+        } finally {
+            zip.close();
+        }
+
+        // readers of zip streams find the end of the entry from its data
+        ZipInputStream in = new ZipInputStream(new FileInputStream(zipFile));
+        try {
+            Assert.assertEquals("streamed.txt", in.getNextEntry().getName());
+            Assert.assertArrayEquals(content, readEntry(in));
+            Assert.assertEquals("stored.txt", in.getNextEntry().getName());
+            Assert.assertArrayEquals(content, readEntry(in));
+            Assert.assertNull(in.getNextEntry());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long crc(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    private static byte[] deflate(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterOutputStream deflater = new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        deflater.write(content);
+        deflater.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] readEntry(ZipInputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) != -1)
+            out.write(buffer, 0, bytesRead);
+        return out.toByteArray();
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HttpUtils.copyAndClose(in, out);
+        return out.toByteArray();
+    }
+}